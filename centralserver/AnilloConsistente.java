@@ -0,0 +1,102 @@
+package centralserver;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * Anillo de hash consistente para ubicar particiones en workers.
+ * Cada worker aparece NODOS_VIRTUALES veces en el anillo; las réplicas de una
+ * partición son los primeros workers distintos que se encuentran avanzando desde
+ * el hash de su ID. Al entrar o salir un worker solo cambian de dueño ~1/N de
+ * las particiones. Es inmutable: ante un cambio de miembros se construye otro.
+ */
+public final class AnilloConsistente {
+
+    private static final int NODOS_VIRTUALES = 128;
+
+    private final long[] posiciones; // Ordenadas
+    private final String[] workers; // workers[i] ocupa posiciones[i]
+    private final int numWorkers;
+
+    public AnilloConsistente(Collection<String> idsWorkers) {
+        TreeSet<String> distintos = new TreeSet<>(idsWorkers);
+        this.numWorkers = distintos.size();
+        int n = numWorkers * NODOS_VIRTUALES;
+        long[] pos = new long[n];
+        String[] dueno = new String[n];
+        Integer[] orden = new Integer[n];
+        int i = 0;
+        for (String w : distintos) {
+            for (int v = 0; v < NODOS_VIRTUALES; v++) {
+                pos[i] = hash(w + "#" + v);
+                dueno[i] = w;
+                orden[i] = i;
+                i++;
+            }
+        }
+        Arrays.sort(orden, Comparator.comparingLong((Integer k) -> pos[k]).thenComparing(k -> dueno[k]));
+        this.posiciones = new long[n];
+        this.workers = new String[n];
+        for (int k = 0; k < n; k++) {
+            posiciones[k] = pos[orden[k]];
+            workers[k] = dueno[orden[k]];
+        }
+    }
+
+    /** Los primeros n workers distintos (en orden de preferencia) para la clave. */
+    public List<String> preferencias(String clave, int n) {
+        List<String> resultado = new ArrayList<>(Math.min(n, numWorkers));
+        if (posiciones.length == 0) {
+            return resultado;
+        }
+        int inicio = Arrays.binarySearch(posiciones, hash(clave));
+        if (inicio < 0) {
+            inicio = -inicio - 1;
+        }
+        for (int k = 0; k < posiciones.length && resultado.size() < n; k++) {
+            String w = workers[(inicio + k) % posiciones.length];
+            if (!resultado.contains(w)) {
+                resultado.add(w);
+            }
+        }
+        return resultado;
+    }
+
+    /**
+     * Ordena los workers de una partición según su preferencia en el anillo, para que
+     * el primero (el que recibe las escrituras y lecturas primero) sea el que le toca.
+     * Los que no están en el anillo van al final, en el orden en que venían.
+     */
+    public void ordenar(String clave, List<String> workersDeParticion) {
+        List<String> prefs = preferencias(clave, numWorkers);
+        workersDeParticion.sort(Comparator.comparingInt(w -> {
+            int rango = prefs.indexOf(w);
+            return rango < 0 ? Integer.MAX_VALUE : rango;
+        }));
+    }
+
+    public int getNumWorkers() {
+        return numWorkers;
+    }
+
+    // FNV-1a de 64 bits con mezcla final, para que IDs parecidos ("worker1#1",
+    // "worker1#2") queden bien repartidos
+    private static long hash(String s) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : s.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b;
+            h *= 0x100000001b3L;
+        }
+        h ^= (h >>> 33);
+        h *= 0xff51afd7ed558ccdL;
+        h ^= (h >>> 33);
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= (h >>> 33);
+        return h;
+    }
+}
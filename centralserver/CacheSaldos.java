@@ -0,0 +1,235 @@
+package centralserver;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Caché de saldos por ID de cuenta en el servidor central, para responder
+ * CONSULTAR_SALDO sin ir a un worker.
+ * - Tiene como mucho CAPACIDAD entradas (-Dbanco.cacheSaldos.capacidad, 0 la
+ * desactiva) y desaloja la usada hace más tiempo (LRU).
+ * - Las transferencias escriben a través de ella: al confirmarse guardan los
+ * saldos nuevos que devuelven los workers; si fallan o su resultado es incierto
+ * (timeout, worker caído) las cuentas se invalidan.
+ * - Cada cuenta tiene una versión (compartida por franjas de cuentas) que sube al
+ * empezar y al terminar cada escritura. Una lectura o escritura solo guarda su
+ * saldo si la versión no cambió desde que empezó; así un resultado viejo nunca
+ * pisa a uno más nuevo.
+ * - Tras una escritura sin saldo confirmado, su franja no guarda lecturas durante
+ * ESPERA_INCIERTA_MS (-Dbanco.cacheSaldos.esperaInciertaMs): el worker pudo
+ * aplicarla después de que el servidor dejara de esperarla (timeout de 10 s).
+ */
+public class CacheSaldos {
+
+    private static final int CAPACIDAD = Integer.getInteger("banco.cacheSaldos.capacidad", 10000);
+    private static final int NUM_FRANJAS = 4096; // Potencia de 2
+    private static final long ESPERA_INCIERTA_MS = Long.getLong("banco.cacheSaldos.esperaInciertaMs", 20000);
+
+    private static final Object cerrojo = new Object();
+    private static final LinkedHashMap<Integer, Double> saldos = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Double> eldest) {
+            if (size() > CAPACIDAD) {
+                desalojos++;
+                return true;
+            }
+            return false;
+        }
+    };
+    private static final long[] versiones = new long[NUM_FRANJAS];
+    // Hasta cuándo (ms) la franja no guarda lecturas por una escritura de resultado incierto
+    private static final long[] inciertaHasta = new long[NUM_FRANJAS];
+
+    // Métricas (protegidas por cerrojo)
+    private static long aciertos = 0;
+    private static long fallos = 0;
+    private static long desalojos = 0;
+    private static long invalidaciones = 0;
+
+    public static boolean estaActiva() {
+        return CAPACIDAD > 0;
+    }
+
+    private static int franja(int idCuenta) {
+        return (idCuenta * 0x9E3779B9 >>> 16) & (NUM_FRANJAS - 1);
+    }
+
+    /** Saldo en caché de la cuenta, o null si no está. */
+    public static Double obtener(int idCuenta) {
+        if (!estaActiva()) {
+            return null;
+        }
+        synchronized (cerrojo) {
+            Double saldo = saldos.get(idCuenta);
+            if (saldo != null) {
+                aciertos++;
+            } else {
+                fallos++;
+            }
+            return saldo;
+        }
+    }
+
+    /** Versión actual de la cuenta; se toma antes de leer el saldo de un worker. */
+    public static long version(int idCuenta) {
+        synchronized (cerrojo) {
+            return versiones[franja(idCuenta)];
+        }
+    }
+
+    /**
+     * Guarda un saldo leído de un worker si ninguna escritura empezó desde que se tomó
+     * la versión ni hay una de resultado incierto reciente en su franja.
+     */
+    public static void guardarLeido(int idCuenta, double saldo, long versionAlLeer) {
+        if (!estaActiva()) {
+            return;
+        }
+        synchronized (cerrojo) {
+            int f = franja(idCuenta);
+            if (versiones[f] == versionAlLeer && System.currentTimeMillis() >= inciertaHasta[f]) {
+                saldos.put(idCuenta, saldo);
+            }
+        }
+    }
+
+    public static void invalidar(int idCuenta) {
+        if (!estaActiva()) {
+            return;
+        }
+        synchronized (cerrojo) {
+            versiones[franja(idCuenta)]++;
+            if (saldos.remove(idCuenta) != null) {
+                invalidaciones++;
+            }
+        }
+    }
+
+    /** Vacía la caché (ej. se perdió un worker y las réplicas que quedan podrían estar atrasadas). */
+    public static void invalidarTodo() {
+        if (!estaActiva()) {
+            return;
+        }
+        synchronized (cerrojo) {
+            for (int i = 0; i < versiones.length; i++) {
+                versiones[i]++;
+            }
+            invalidaciones += saldos.size();
+            saldos.clear();
+        }
+    }
+
+    /** Empieza una escritura sobre las cuentas; hay que llamar a terminar() al acabar, pase lo que pase. */
+    public static Escritura iniciarEscritura(int... idsCuenta) {
+        return new Escritura(idsCuenta);
+    }
+
+    /**
+     * Escritura en curso sobre unas cuentas. Los saldos confirmados se guardan en la
+     * caché al terminar; las cuentas sin saldo confirmado se invalidan.
+     */
+    public static final class Escritura {
+        private final int[] idsCuenta;
+        private final long[] versionInicial;
+        private final Double[] saldosNuevos;
+
+        private Escritura(int[] idsCuenta) {
+            this.idsCuenta = idsCuenta.clone();
+            this.versionInicial = new long[idsCuenta.length];
+            this.saldosNuevos = new Double[idsCuenta.length];
+            if (!estaActiva()) {
+                return;
+            }
+            synchronized (cerrojo) {
+                // Las lecturas que ya estaban en curso no podrán guardar su saldo
+                for (int id : this.idsCuenta) {
+                    versiones[franja(id)]++;
+                }
+                for (int i = 0; i < this.idsCuenta.length; i++) {
+                    versionInicial[i] = versiones[franja(this.idsCuenta[i])];
+                }
+            }
+        }
+
+        /** El worker confirmó el nuevo saldo de la cuenta. */
+        public void confirmar(int idCuenta, double nuevoSaldo) {
+            // Los workers guardan los saldos con 2 decimales: se cachea lo que devolvería una lectura
+            double guardado = Math.round(nuevoSaldo * 100) / 100.0;
+            for (int i = 0; i < idsCuenta.length; i++) {
+                if (idsCuenta[i] == idCuenta) {
+                    saldosNuevos[i] = guardado;
+                }
+            }
+        }
+
+        /** Igual que confirmar(idCuenta, nuevoSaldo) para varias cuentas a la vez. */
+        public void confirmar(Map<Integer, Double> nuevosSaldos) {
+            for (int i = 0; i < idsCuenta.length; i++) {
+                Double nuevoSaldo = nuevosSaldos.get(idsCuenta[i]);
+                if (nuevoSaldo != null) {
+                    saldosNuevos[i] = Math.round(nuevoSaldo * 100) / 100.0;
+                }
+            }
+        }
+
+        public void terminar() {
+            if (!estaActiva()) {
+                return;
+            }
+            long ahora = System.currentTimeMillis();
+            synchronized (cerrojo) {
+                boolean[] vigente = new boolean[idsCuenta.length];
+                for (int i = 0; i < idsCuenta.length; i++) {
+                    vigente[i] = versiones[franja(idsCuenta[i])] == versionInicial[i];
+                }
+                for (int i = 0; i < idsCuenta.length; i++) {
+                    if (saldosNuevos[i] != null && vigente[i]) {
+                        saldos.put(idsCuenta[i], saldosNuevos[i]);
+                        continue;
+                    }
+                    if (saldosNuevos[i] == null) {
+                        // Falló o es incierta: una lectura de ahora aún podría ver el saldo de antes
+                        inciertaHasta[franja(idsCuenta[i])] = ahora + ESPERA_INCIERTA_MS;
+                    }
+                    if (saldos.remove(idsCuenta[i]) != null) {
+                        // Falló, es incierta o hubo otra escritura a la vez: no se sabe cuál quedó última
+                        invalidaciones++;
+                    }
+                }
+                for (int id : idsCuenta) {
+                    versiones[franja(id)]++;
+                }
+            }
+        }
+    }
+
+    public static long getAciertos() {
+        synchronized (cerrojo) {
+            return aciertos;
+        }
+    }
+
+    public static long getFallos() {
+        synchronized (cerrojo) {
+            return fallos;
+        }
+    }
+
+    public static long getDesalojos() {
+        synchronized (cerrojo) {
+            return desalojos;
+        }
+    }
+
+    public static long getInvalidaciones() {
+        synchronized (cerrojo) {
+            return invalidaciones;
+        }
+    }
+
+    public static int getTamano() {
+        synchronized (cerrojo) {
+            return saldos.size();
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package centralserver;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicReference;
+import commons.FlujoMensajes;
+import commons.InfoWorker;
+import commons.Metricas;
+import commons.Respuesta;
+import commons.Solicitud;
+
+/**
+ * Punto único por el que el Servidor Central envía una Solicitud a un worker.
+ * Cada llamada pasa por el InterruptorCircuito del worker: si el circuito está
+ * abierto o el worker ya tiene demasiadas llamadas en vuelo se lanza
+ * WorkerNoDisponibleException sin tocar la red.
+ */
+public class CanalWorker {
+
+    /** El worker no se llamó porque su circuito está abierto o su bulkhead lleno. */
+    public static class WorkerNoDisponibleException extends IOException {
+        private static final long serialVersionUID = 1L;
+        private final boolean saturado;
+
+        public WorkerNoDisponibleException(String mensaje) {
+            this(mensaje, false);
+        }
+
+        public WorkerNoDisponibleException(String mensaje, boolean saturado) {
+            super(mensaje);
+            this.saturado = saturado;
+        }
+
+        /**
+         * El DetectorFallos aún lo da por vivo (bulkhead lleno o circuito abierto por
+         * timeouts): está ocupado, no caído, y sigue siendo el primario de sus particiones.
+         */
+        public boolean isSaturado() {
+            return saturado;
+        }
+    }
+
+    public static Respuesta enviar(String workerId, Solicitud solicitud, int timeoutMs)
+            throws IOException, ClassNotFoundException {
+        return enviar(workerId, solicitud, timeoutMs, null);
+    }
+
+    /**
+     * Envía la solicitud y espera la respuesta. Si socketEnCurso no es null se publica
+     * ahí el socket para que la llamada pueda cancelarse cerrándolo; una llamada
+     * cancelada así no cuenta como fallo del worker.
+     * Devuelve null si el worker respondió algo que no es una Respuesta.
+     */
+    public static Respuesta enviar(String workerId, Solicitud solicitud, int timeoutMs,
+            AtomicReference<Socket> socketEnCurso) throws IOException, ClassNotFoundException {
+        InfoWorker infoWorker = ServidorCentral.workersActivos.get(workerId);
+        if (infoWorker == null) {
+            throw new WorkerNoDisponibleException("Worker " + workerId + " ya no está registrado");
+        }
+        InterruptorCircuito interruptor = InterruptorCircuito.para(workerId);
+        InterruptorCircuito.Permiso permiso = interruptor.intentarAdquirir();
+        if (permiso == null) {
+            InterruptorCircuito.Estado estado = interruptor.getEstado();
+            Metricas.registrarLlamadaWorker(workerId, solicitud.getTipoOperacion(), "no_disponible", -1);
+            throw new WorkerNoDisponibleException("Worker " + workerId + " con circuito " + estado
+                    + " o demasiadas llamadas en vuelo (" + interruptor.getEnVuelo() + ")",
+                    estado == InterruptorCircuito.Estado.CERRADO || infoWorker.isActivo());
+        }
+        long inicio = System.currentTimeMillis();
+        long inicioNs = System.nanoTime();
+        Socket socketAlWorker = null;
+        try {
+            socketAlWorker = new Socket(infoWorker.getHost(), infoWorker.getPuertoTareas());
+            if (socketEnCurso != null) {
+                socketEnCurso.set(socketAlWorker);
+            }
+            socketAlWorker.setSoTimeout(timeoutMs);
+            FlujoMensajes flujoWorker = FlujoMensajes.conectar(socketAlWorker);
+            flujoWorker.escribir(solicitud);
+            Object respuestaObj = flujoWorker.leer();
+            interruptor.registrarResultado(permiso, respuestaObj instanceof Respuesta, System.currentTimeMillis() - inicio);
+            Metricas.registrarLlamadaWorker(workerId, solicitud.getTipoOperacion(),
+                    respuestaObj instanceof Respuesta r && !Metricas.esError(r.getEstado()) ? "ok" : "error",
+                    System.nanoTime() - inicioNs);
+            return respuestaObj instanceof Respuesta ? (Respuesta) respuestaObj : null;
+        } catch (IOException | ClassNotFoundException e) {
+            boolean canceladaPorNosotros = socketEnCurso != null && socketAlWorker != null
+                    && socketAlWorker.isClosed();
+            if (canceladaPorNosotros) {
+                interruptor.registrarCancelacion(permiso);
+            } else {
+                interruptor.registrarResultado(permiso, false, System.currentTimeMillis() - inicio);
+            }
+            Metricas.registrarLlamadaWorker(workerId, solicitud.getTipoOperacion(),
+                    canceladaPorNosotros ? "cancelada" : "fallo", System.nanoTime() - inicioNs);
+            throw e;
+        } finally {
+            interruptor.liberar();
+            if (socketAlWorker != null) {
+                try {
+                    socketAlWorker.close();
+                } catch (IOException e) {
+                    /* Silenciado */ }
+            }
+        }
+    }
+}
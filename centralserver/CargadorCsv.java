@@ -0,0 +1,352 @@
+package centralserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.IntConsumer;
+import java.util.function.ToIntFunction;
+
+/**
+ * Carga en paralelo un CSV separado por '|' (con cabecera) y lo reparte en
+ * particiones de tamaño igual por orden de ID.
+ * El archivo se proyecta en memoria (FileChannel.map) y se corta en tramos que
+ * empiezan justo después de un salto de línea. En una primera pasada se cuentan
+ * las líneas de cada tramo; con eso se sabe la posición global de cada registro y,
+ * en la segunda pasada, cada tramo escribe sus registros directamente en la
+ * posición que les toca dentro de su partición, sin listas intermedias ni
+ * bloqueos. Ambas pasadas corren en un ForkJoinPool.
+ * Si el archivo no está ordenado por ID o tiene líneas inválidas, se ordena y se
+ * reparte en un solo hilo (lo mismo que hacía la carga anterior).
+ */
+public final class CargadorCsv<T> {
+
+    /** Convierte una línea (sin el salto) en un registro, o devuelve null si no es válida. */
+    public interface Analizador<T> {
+        T analizar(byte[] linea, int largo, Map<String, String> cadenas);
+    }
+
+    private static final long TAM_TRAMO_MAX = 32L * 1024 * 1024;
+
+    private final Path ruta;
+    private final Analizador<T> analizador;
+    private final ToIntFunction<T> id;
+    private final ForkJoinPool pool;
+
+    public CargadorCsv(Path ruta, Analizador<T> analizador, ToIntFunction<T> id, ForkJoinPool pool) {
+        this.ruta = ruta;
+        this.analizador = analizador;
+        this.id = id;
+        this.pool = pool;
+    }
+
+    /** Devuelve numParticiones listas (las últimas pueden quedar vacías) con los registros ordenados por ID. */
+    public List<List<T>> cargar(int numParticiones) throws IOException {
+        try (FileChannel canal = FileChannel.open(ruta, StandardOpenOption.READ)) {
+            long[] inicios = cortarEnTramos(canal);
+            int numTramos = inicios.length - 1;
+
+            // Pasada 1: líneas por tramo
+            long[] lineas = new long[numTramos];
+            enParalelo(numTramos, k -> lineas[k] = contarLineas(canal, inicios[k], inicios[k + 1]));
+            long[] primeraLinea = new long[numTramos + 1];
+            for (int k = 0; k < numTramos; k++) {
+                primeraLinea[k + 1] = primeraLinea[k] + lineas[k];
+            }
+            long total = primeraLinea[numTramos];
+            if (total > Integer.MAX_VALUE) {
+                throw new IOException(ruta + " tiene demasiadas líneas (" + total + ")");
+            }
+            int tam = (int) Math.max(1, (total + numParticiones - 1) / numParticiones);
+            Object[][] particiones = new Object[numParticiones][];
+            for (int i = 0; i < numParticiones; i++) {
+                particiones[i] = new Object[(int) Math.max(0, Math.min(tam, total - (long) i * tam))];
+            }
+
+            // Pasada 2: cada registro va directo a su hueco
+            int[] primerId = new int[numTramos];
+            int[] ultimoId = new int[numTramos];
+            AtomicBoolean ordenadoYValido = new AtomicBoolean(true);
+            enParalelo(numTramos, k -> {
+                if (!analizarTramo(canal, inicios[k], inicios[k + 1], primeraLinea[k], tam, particiones, primerId,
+                        ultimoId, k)) {
+                    ordenadoYValido.set(false);
+                }
+            });
+            for (int k = 1; k < numTramos && ordenadoYValido.get(); k++) {
+                if (lineas[k - 1] > 0 && lineas[k] > 0 && ultimoId[k - 1] >= primerId[k]) {
+                    ordenadoYValido.set(false);
+                }
+            }
+
+            List<List<T>> resultado = new ArrayList<>(numParticiones);
+            if (ordenadoYValido.get()) {
+                for (Object[] p : particiones) {
+                    @SuppressWarnings("unchecked") // Cada tramo solo contiene objetos T parseados
+                    List<T> tramo = (List<T>) Arrays.asList(p);
+                    resultado.add(tramo);
+                }
+                return resultado;
+            }
+            System.out.println("CargadorCsv: " + ruta + " no está ordenado por ID o tiene líneas inválidas; "
+                    + "se ordena en un solo hilo.");
+            return repartirOrdenando(particiones, numParticiones);
+        }
+    }
+
+    // Posiciones de inicio de cada tramo (más el fin del archivo); el primero empieza tras la cabecera
+    private long[] cortarEnTramos(FileChannel canal) throws IOException {
+        long tamArchivo = canal.size();
+        long inicio = siguienteLinea(canal, 0);
+        int paralelismo = pool.getParallelism();
+        long tamTramo = Math.max(1, Math.min(TAM_TRAMO_MAX, (tamArchivo - inicio) / (paralelismo * 4L) + 1));
+        List<Long> inicios = new ArrayList<>();
+        inicios.add(inicio);
+        long pos = inicio + tamTramo;
+        while (pos < tamArchivo) {
+            long siguiente = siguienteLinea(canal, pos);
+            if (siguiente >= tamArchivo) {
+                break;
+            }
+            if (siguiente > inicios.get(inicios.size() - 1)) {
+                inicios.add(siguiente);
+            }
+            pos = siguiente + tamTramo;
+        }
+        inicios.add(tamArchivo);
+        long[] resultado = new long[inicios.size()];
+        for (int i = 0; i < resultado.length; i++) {
+            resultado[i] = inicios.get(i);
+        }
+        return resultado;
+    }
+
+    // Posición justo después del primer '\n' a partir de pos (o el fin del archivo)
+    private static long siguienteLinea(FileChannel canal, long pos) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(4096);
+        long tamArchivo = canal.size();
+        while (pos < tamArchivo) {
+            buf.clear();
+            int leidos = canal.read(buf, pos);
+            if (leidos <= 0) {
+                break;
+            }
+            for (int i = 0; i < leidos; i++) {
+                if (buf.get(i) == '\n') {
+                    return pos + i + 1;
+                }
+            }
+            pos += leidos;
+        }
+        return tamArchivo;
+    }
+
+    private static long contarLineas(FileChannel canal, long desde, long hasta) {
+        MappedByteBuffer mapa = proyectar(canal, desde, hasta);
+        int n = mapa.limit();
+        long lineas = 0;
+        for (int i = 0; i < n; i++) {
+            if (mapa.get(i) == '\n') {
+                lineas++;
+            }
+        }
+        // Última línea del archivo sin salto final
+        if (n > 0 && mapa.get(n - 1) != '\n') {
+            lineas++;
+        }
+        return lineas;
+    }
+
+    private boolean analizarTramo(FileChannel canal, long desde, long hasta, long primeraLinea, int tam,
+            Object[][] particiones, int[] primerId, int[] ultimoId, int tramo) {
+        MappedByteBuffer mapa = proyectar(canal, desde, hasta);
+        int n = mapa.limit();
+        byte[] linea = new byte[256];
+        Map<String, String> cadenas = new HashMap<>(); // Repetidas (ej. tipo de cuenta) comparten instancia
+        long g = primeraLinea;
+        boolean valido = true;
+        int anterior = Integer.MIN_VALUE;
+        int i = 0;
+        while (i < n) {
+            int largo = 0;
+            while (i < n) {
+                byte b = mapa.get(i++);
+                if (b == '\n') {
+                    break;
+                }
+                if (largo == linea.length) {
+                    linea = Arrays.copyOf(linea, largo * 2);
+                }
+                linea[largo++] = b;
+            }
+            if (largo > 0 && linea[largo - 1] == '\r') {
+                largo--;
+            }
+            T registro = analizador.analizar(linea, largo, cadenas);
+            if (registro == null) {
+                valido = false;
+            } else {
+                int idRegistro = id.applyAsInt(registro);
+                if (g == primeraLinea) {
+                    primerId[tramo] = idRegistro;
+                } else if (idRegistro <= anterior) {
+                    valido = false;
+                }
+                anterior = idRegistro;
+                ultimoId[tramo] = idRegistro;
+            }
+            particiones[(int) (g / tam)][(int) (g % tam)] = registro;
+            g++;
+        }
+        return valido;
+    }
+
+    private static MappedByteBuffer proyectar(FileChannel canal, long desde, long hasta) {
+        try {
+            return canal.map(FileChannel.MapMode.READ_ONLY, desde, hasta - desde);
+        } catch (IOException e) {
+            throw new IllegalStateException("No se pudo proyectar el tramo " + desde + ".." + hasta, e);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<List<T>> repartirOrdenando(Object[][] particiones, int numParticiones) {
+        List<T> todos = new ArrayList<>();
+        for (Object[] p : particiones) {
+            for (Object o : p) {
+                if (o != null) {
+                    todos.add((T) o);
+                }
+            }
+        }
+        todos.sort(Comparator.comparingInt(id));
+        int tam = (int) Math.max(1, ((long) todos.size() + numParticiones - 1) / numParticiones);
+        List<List<T>> resultado = new ArrayList<>(numParticiones);
+        for (int i = 0; i < numParticiones; i++) {
+            int desde = Math.min(todos.size(), i * tam);
+            int hasta = Math.min(todos.size(), desde + tam);
+            resultado.add(new ArrayList<>(todos.subList(desde, hasta)));
+        }
+        return resultado;
+    }
+
+    private void enParalelo(int n, IntConsumer tarea) {
+        pool.invoke(new Tramos(0, n, tarea));
+    }
+
+    // Divide el rango de tramos a la mitad hasta quedarse con uno
+    private static final class Tramos extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final int desde;
+        private final int hasta;
+        private final transient IntConsumer tarea; // La tarea nunca se serializa
+
+        Tramos(int desde, int hasta, IntConsumer tarea) {
+            this.desde = desde;
+            this.hasta = hasta;
+            this.tarea = tarea;
+        }
+
+        @Override
+        protected void compute() {
+            if (hasta - desde <= 1) {
+                if (desde < hasta) {
+                    tarea.accept(desde);
+                }
+                return;
+            }
+            int medio = (desde + hasta) >>> 1;
+            invokeAll(new Tramos(desde, medio, tarea), new Tramos(medio, hasta, tarea));
+        }
+    }
+
+    // --- Utilidades para los analizadores ---
+
+    /** Posiciones de los separadores '|' de la línea; devuelve cuántos encontró (como mucho seps.length). */
+    public static int separadores(byte[] linea, int largo, int[] seps) {
+        int n = 0;
+        for (int i = 0; i < largo && n < seps.length; i++) {
+            if (linea[i] == '|') {
+                seps[n++] = i;
+            }
+        }
+        return n;
+    }
+
+    public static int entero(byte[] linea, int desde, int hasta) {
+        if (desde >= hasta) {
+            throw new NumberFormatException("Campo vacío");
+        }
+        boolean negativo = linea[desde] == '-';
+        int i = negativo ? desde + 1 : desde;
+        int valor = 0;
+        for (; i < hasta; i++) {
+            int d = linea[i] - '0';
+            if (d < 0 || d > 9) {
+                throw new NumberFormatException("Carácter no numérico en " + texto(linea, desde, hasta));
+            }
+            valor = valor * 10 + d;
+        }
+        return negativo ? -valor : valor;
+    }
+
+    /**
+     * Número con signo y parte decimal opcional (ej. "4016.08") sin crear un String.
+     * Da el mismo double que Double.parseDouble: entero / 10^decimales es una única
+     * división con redondeo correcto mientras ambos sean exactos en un double. Para
+     * cualquier otro formato (exponente, demasiados dígitos) se usa Double.parseDouble.
+     */
+    public static double decimal(byte[] linea, int desde, int hasta) {
+        boolean negativo = desde < hasta && linea[desde] == '-';
+        int i = negativo ? desde + 1 : desde;
+        long mantisa = 0;
+        int digitos = 0;
+        int decimales = -1;
+        for (; i < hasta; i++) {
+            byte b = linea[i];
+            if (b == '.' && decimales < 0) {
+                decimales = 0;
+                continue;
+            }
+            int d = b - '0';
+            if (d < 0 || d > 9 || ++digitos > 15) {
+                return Double.parseDouble(texto(linea, desde, hasta));
+            }
+            mantisa = mantisa * 10 + d;
+            if (decimales >= 0) {
+                decimales++;
+            }
+        }
+        if (digitos == 0) {
+            throw new NumberFormatException("Número vacío: " + texto(linea, desde, hasta));
+        }
+        double valor = decimales > 0 ? mantisa / POTENCIAS_10[decimales] : mantisa;
+        return negativo ? -valor : valor;
+    }
+
+    private static final double[] POTENCIAS_10 = { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12,
+            1e13, 1e14, 1e15 };
+
+    public static String texto(byte[] linea, int desde, int hasta) {
+        return new String(linea, desde, hasta - desde, StandardCharsets.UTF_8);
+    }
+
+    /** Como texto(...), pero devolviendo siempre la misma instancia para valores repetidos. */
+    public static String textoCompartido(byte[] linea, int desde, int hasta, Map<String, String> cadenas) {
+        String s = texto(linea, desde, hasta);
+        String existente = cadenas.putIfAbsent(s, s);
+        return existente != null ? existente : s;
+    }
+}
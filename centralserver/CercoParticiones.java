@@ -0,0 +1,112 @@
+package centralserver;
+
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Cerco por partición entre las operaciones de clientes y el mantenimiento de
+ * particiones (división, migración...).
+ * Las operaciones entran en modo lectura, así que no se bloquean entre sí; el
+ * mantenimiento cierra la partición en modo escritura, espera a que terminen las
+ * operaciones en curso y durante ese breve intervalo nadie la usa.
+ * Tras entrar, el llamador debe comprobar que el enrutamiento no cambió mientras
+ * esperaba; si cambió, sale y vuelve a resolver la partición.
+ * Los cerrojos de particiones que ya no existen no se borran: alguien podría
+ * seguir esperando en ellos.
+ * Una operación puede dejar réplicas actualizándose después de salir (las que no
+ * hacen falta para el quórum); las registra como pendientes y el mantenimiento
+ * espera también a que terminen.
+ */
+public class CercoParticiones {
+
+    private static final ConcurrentHashMap<String, ReentrantReadWriteLock> cerrojos = new ConcurrentHashMap<>();
+
+    private static final ConcurrentHashMap<String, AtomicInteger> replicacionesPendientes = new ConcurrentHashMap<>();
+    private static final Object senalPendientes = new Object();
+
+    private static ReentrantReadWriteLock cerrojo(String idParticion) {
+        return cerrojos.computeIfAbsent(idParticion, _ -> new ReentrantReadWriteLock());
+    }
+
+    /**
+     * Entra (modo lectura) en las particiones dadas, siempre en el mismo orden para
+     * evitar interbloqueos. Los repetidos cuentan una vez y los null se ignoran.
+     */
+    public static void entrar(String... particiones) {
+        for (String p : distintas(particiones)) {
+            cerrojo(p).readLock().lock();
+        }
+    }
+
+    public static void salir(String... particiones) {
+        for (String p : distintas(particiones)) {
+            cerrojo(p).readLock().unlock();
+        }
+    }
+
+    private static TreeSet<String> distintas(String... particiones) {
+        TreeSet<String> resultado = new TreeSet<>();
+        for (String p : particiones) {
+            if (p != null) {
+                resultado.add(p);
+            }
+        }
+        return resultado;
+    }
+
+    /**
+     * Registra una actualización de réplica de la partición que sigue en curso tras
+     * salir del cerco. Hay que llamarla desde dentro del cerco y llamar a
+     * terminarReplicacionPendiente(...) cuando acabe, pase lo que pase.
+     */
+    public static void registrarReplicacionPendiente(String idParticion) {
+        replicacionesPendientes.computeIfAbsent(idParticion, _ -> new AtomicInteger()).incrementAndGet();
+    }
+
+    public static void terminarReplicacionPendiente(String idParticion) {
+        if (replicacionesPendientes.get(idParticion).decrementAndGet() == 0) {
+            synchronized (senalPendientes) {
+                senalPendientes.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Cierra la partición para mantenimiento: espera a las operaciones en curso y a
+     * sus réplicas pendientes. Devuelve false si no lo consigue en timeoutMs.
+     */
+    public static boolean cerrar(String idParticion, long timeoutMs) {
+        long limite = System.currentTimeMillis() + timeoutMs;
+        try {
+            if (!cerrojo(idParticion).writeLock().tryLock(timeoutMs, TimeUnit.MILLISECONDS)) {
+                return false;
+            }
+            // Con el cerco cerrado nadie registra réplicas nuevas: solo quedan las de antes
+            AtomicInteger pendientes = replicacionesPendientes.get(idParticion);
+            synchronized (senalPendientes) {
+                while (pendientes != null && pendientes.get() > 0) {
+                    long restante = limite - System.currentTimeMillis();
+                    if (restante <= 0) {
+                        cerrojo(idParticion).writeLock().unlock();
+                        return false;
+                    }
+                    senalPendientes.wait(restante);
+                }
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            if (cerrojo(idParticion).writeLock().isHeldByCurrentThread()) {
+                cerrojo(idParticion).writeLock().unlock();
+            }
+            return false;
+        }
+    }
+
+    public static void abrir(String idParticion) {
+        cerrojo(idParticion).writeLock().unlock();
+    }
+}
@@ -0,0 +1,99 @@
+package centralserver;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Cerrojos por cuenta en el servidor central, para que dos operaciones que
+ * escriben la misma cuenta no se intercalen (ej. dos PREPARAR_DEBITO que ven el
+ * mismo saldo, o dos réplicas que reciben los saldos finales en otro orden).
+ * - Las cuentas se reparten en NUM_FRANJAS franjas (-Dbanco.cerrojosCuentas.franjas,
+ * se redondea a potencia de 2), cada una con un ReentrantLock. Dos cuentas de la
+ * misma franja se excluyen aunque no choquen; con muchas franjas pasa poco.
+ * - Las franjas se toman siempre en orden creciente y sin repetir, así dos
+ * operaciones con cuentas en común nunca se interbloquean.
+ * - Se toman antes que el cerco de particiones (CercoParticiones) y se sueltan
+ * después: quien espera una cuenta no retiene ninguna partición que el
+ * mantenimiento quiera cerrar.
+ */
+public class CerrojosCuentas {
+
+    private static final int NUM_FRANJAS = Integer.highestOneBit(
+            Math.max(1, Integer.getInteger("banco.cerrojosCuentas.franjas", 4096)));
+
+    private static final ReentrantLock[] cerrojos = new ReentrantLock[NUM_FRANJAS];
+    static {
+        for (int i = 0; i < NUM_FRANJAS; i++) {
+            cerrojos[i] = new ReentrantLock();
+        }
+    }
+
+    // Métricas
+    private static final AtomicLong adquisiciones = new AtomicLong();
+    private static final AtomicLong esperas = new AtomicLong(); // Adquisiciones que encontraron alguna franja ocupada
+    private static final AtomicLong nanosEsperando = new AtomicLong();
+
+    private static int franja(int idCuenta) {
+        return (idCuenta * 0x9E3779B9 >>> 16) & (NUM_FRANJAS - 1);
+    }
+
+    /** Franjas de las cuentas, ordenadas y sin repetir. */
+    private static int[] franjas(int... idsCuenta) {
+        int[] resultado = new int[idsCuenta.length];
+        for (int i = 0; i < idsCuenta.length; i++) {
+            resultado[i] = franja(idsCuenta[i]);
+        }
+        Arrays.sort(resultado);
+        int distintas = 0;
+        for (int i = 0; i < resultado.length; i++) {
+            if (i == 0 || resultado[i] != resultado[i - 1]) {
+                resultado[distintas++] = resultado[i];
+            }
+        }
+        return Arrays.copyOf(resultado, distintas);
+    }
+
+    /**
+     * Bloquea las cuentas dadas (los repetidos cuentan una vez). Hay que llamar a
+     * liberar(...) con las mismas cuentas al terminar, pase lo que pase.
+     */
+    public static void bloquear(int... idsCuenta) {
+        boolean espero = false;
+        long inicio = 0;
+        for (int f : franjas(idsCuenta)) {
+            if (!cerrojos[f].tryLock()) {
+                if (!espero) {
+                    espero = true;
+                    inicio = System.nanoTime();
+                }
+                cerrojos[f].lock();
+            }
+        }
+        adquisiciones.incrementAndGet();
+        if (espero) {
+            esperas.incrementAndGet();
+            nanosEsperando.addAndGet(System.nanoTime() - inicio);
+        }
+    }
+
+    public static void liberar(int... idsCuenta) {
+        int[] f = franjas(idsCuenta);
+        for (int i = f.length - 1; i >= 0; i--) {
+            cerrojos[f[i]].unlock();
+        }
+    }
+
+    public static long getAdquisiciones() {
+        return adquisiciones.get();
+    }
+
+    public static long getEsperas() {
+        return esperas.get();
+    }
+
+    /** Tiempo total que las operaciones pasaron esperando cuentas ocupadas. */
+    public static long getMsEsperando() {
+        return nanosEsperando.get() / 1_000_000;
+    }
+}
@@ -0,0 +1,219 @@
+package centralserver;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import commons.TipoOperacion;
+
+/**
+ * Control de admisión por tipo de operación de cliente, para que bajo sobrecarga
+ * el servidor rechace rápido en lugar de acumular solicitudes y disparar la
+ * latencia de todas.
+ * - Cada tipo tiene un límite de solicitudes en ejecución que se ajusta con AIMD
+ * según la latencia: si la latencia media reciente (EWMA) pasa de TOLERANCIA veces
+ * la base (la menor media vista en los últimos VENTANA_BASE_MS) o una solicitud
+ * falla, el límite baja un 10% (como mucho una vez por INTERVALO_BAJADA_MS); si
+ * no, sube 1/límite. Se usa la media y no cada muestra porque las transferencias
+ * entre particiones tardan bastante más que las de una sola.
+ * - Por encima del límite hay una cola de como mucho MAX_COLA solicitudes que
+ * esperan hasta MAX_ESPERA_MS a que se libere un hueco. Las que esperan no ocupan
+ * ningún hilo: se lanzan en su ejecutor al terminar otra.
+ * - Lo que no cabe en la cola, o espera demasiado, se rechaza con
+ * SERVIDOR_OCUPADO y una sugerencia de cuántos ms esperar antes de reintentar.
+ */
+public class ControlAdmision {
+
+    private static final int LIMITE_INICIAL = Integer.getInteger("banco.admision.limiteInicial", 20);
+    private static final int LIMITE_MINIMO = Integer.getInteger("banco.admision.limiteMinimo", 8);
+    private static final int LIMITE_MAXIMO = Integer.getInteger("banco.admision.limiteMaximo", 200);
+    private static final int MAX_COLA = Integer.getInteger("banco.admision.maxCola", 50);
+    private static final long MAX_ESPERA_MS = Long.getLong("banco.admision.maxEsperaMs", 1000);
+    private static final double TOLERANCIA = 2.0;
+    private static final long INTERVALO_BAJADA_MS = 100;
+    private static final long VENTANA_BASE_MS = 10000;
+    private static final long MIN_REINTENTO_MS = 10;
+    private static final long MAX_REINTENTO_MS = 5000;
+
+    private static final ConcurrentHashMap<TipoOperacion, ControlAdmision> limitadores = new ConcurrentHashMap<>();
+
+    /** Solicitud que pide turno. */
+    public interface Tarea {
+        /** Se ejecuta al ser admitida. Devuelve false si falló por algo que indique sobrecarga. */
+        boolean ejecutar();
+
+        /** No se ejecutará: esperó demasiado en la cola. */
+        void rechazar(long reintentarEnMs);
+    }
+
+    private record EnCola(Tarea tarea, Executor ejecutor, long llegadaMs) {
+    }
+
+    private final TipoOperacion tipo;
+    private final ArrayDeque<EnCola> cola = new ArrayDeque<>();
+    private double limite = LIMITE_INICIAL;
+    private int enEjecucion = 0;
+    private double latenciaMediaNs = 0; // EWMA
+    // Menor latencia media de la ventana actual y de la anterior (así se olvidan los mínimos viejos)
+    private double minMediaVentanaNs = Double.MAX_VALUE;
+    private double minMediaVentanaAnteriorNs = Double.MAX_VALUE;
+    private long inicioVentanaMs = System.currentTimeMillis();
+    private long ultimaBajadaMs = 0;
+
+    // Métricas
+    private long admitidas = 0;
+    private long rechazadas = 0;
+    private long expiradasEnCola = 0;
+
+    private ControlAdmision(TipoOperacion tipo) {
+        this.tipo = tipo;
+    }
+
+    public static ControlAdmision para(TipoOperacion tipo) {
+        return limitadores.computeIfAbsent(tipo, ControlAdmision::new);
+    }
+
+    /**
+     * Pide turno para la tarea sin bloquear. Si hay hueco se lanza ya en el ejecutor;
+     * si no, queda en la cola. Devuelve false si la cola está llena: la tarea no se
+     * ejecutará y hay que responder SERVIDOR_OCUPADO.
+     */
+    public boolean admitir(Tarea tarea, Executor ejecutor) {
+        List<EnCola> expiradas = new ArrayList<>();
+        boolean lanzar = false;
+        boolean encolada = false;
+        synchronized (this) {
+            long ahora = System.currentTimeMillis();
+            sacarExpiradas(ahora, expiradas);
+            if (cola.isEmpty() && enEjecucion < (int) limite) {
+                enEjecucion++;
+                admitidas++;
+                lanzar = true;
+            } else if (cola.size() < MAX_COLA) {
+                cola.addLast(new EnCola(tarea, ejecutor, ahora));
+                encolada = true;
+            } else {
+                rechazadas++;
+            }
+        }
+        rechazar(expiradas);
+        if (lanzar) {
+            lanzar(tarea, ejecutor);
+        }
+        return lanzar || encolada;
+    }
+
+    private void lanzar(Tarea tarea, Executor ejecutor) {
+        ejecutor.execute(() -> {
+            long inicio = System.nanoTime();
+            boolean exito = false;
+            try {
+                exito = tarea.ejecutar();
+            } finally {
+                terminar(System.nanoTime() - inicio, exito);
+            }
+        });
+    }
+
+    /** Quita del principio de la cola las que ya esperaron MAX_ESPERA_MS. */
+    private void sacarExpiradas(long ahora, List<EnCola> expiradas) {
+        while (!cola.isEmpty() && ahora - cola.peekFirst().llegadaMs() >= MAX_ESPERA_MS) {
+            expiradas.add(cola.pollFirst());
+            expiradasEnCola++;
+            rechazadas++;
+        }
+    }
+
+    private void rechazar(List<EnCola> expiradas) {
+        if (expiradas.isEmpty()) {
+            return;
+        }
+        long reintentarEnMs = sugerenciaReintentoMs();
+        for (EnCola e : expiradas) {
+            e.ejecutor().execute(() -> e.tarea().rechazar(reintentarEnMs));
+        }
+    }
+
+    /** Una tarea admitida terminó: ajusta el límite con su latencia y lanza las que quepan de la cola. */
+    private void terminar(long latenciaNs, boolean exito) {
+        List<EnCola> expiradas = new ArrayList<>();
+        List<EnCola> aLanzar = new ArrayList<>();
+        synchronized (this) {
+            enEjecucion--;
+            ajustarLimite(latenciaNs, exito);
+            long ahora = System.currentTimeMillis();
+            sacarExpiradas(ahora, expiradas);
+            while (!cola.isEmpty() && enEjecucion < (int) limite) {
+                aLanzar.add(cola.pollFirst());
+                enEjecucion++;
+                admitidas++;
+            }
+        }
+        rechazar(expiradas);
+        for (EnCola e : aLanzar) {
+            lanzar(e.tarea(), e.ejecutor());
+        }
+    }
+
+    private void ajustarLimite(long latenciaNs, boolean exito) {
+        latenciaMediaNs = latenciaMediaNs == 0 ? latenciaNs : latenciaMediaNs * 0.9 + latenciaNs * 0.1;
+        long ahora = System.currentTimeMillis();
+        if (ahora - inicioVentanaMs >= VENTANA_BASE_MS) {
+            minMediaVentanaAnteriorNs = minMediaVentanaNs;
+            minMediaVentanaNs = Double.MAX_VALUE;
+            inicioVentanaMs = ahora;
+        }
+        minMediaVentanaNs = Math.min(minMediaVentanaNs, latenciaMediaNs);
+        double latenciaBaseNs = Math.min(minMediaVentanaNs, minMediaVentanaAnteriorNs);
+        if (!exito || latenciaMediaNs > TOLERANCIA * latenciaBaseNs) {
+            if (ahora - ultimaBajadaMs >= INTERVALO_BAJADA_MS) {
+                limite = Math.max(LIMITE_MINIMO, limite * 0.9);
+                ultimaBajadaMs = ahora;
+            }
+        } else if (enEjecucion + 1 >= limite / 2) {
+            // Solo se sube si el límite se está usando de verdad
+            limite = Math.min(LIMITE_MAXIMO, limite + 1.0 / limite);
+        }
+    }
+
+    /** Milisegundos sugeridos antes de reintentar: lo que tardaría en vaciarse media cola. */
+    public synchronized long sugerenciaReintentoMs() {
+        double mediaMs = latenciaMediaNs / 1_000_000.0;
+        long estimado = (long) (mediaMs * (cola.size() / 2 + 1) / Math.max(1, (int) limite));
+        return Math.max(MIN_REINTENTO_MS, Math.min(MAX_REINTENTO_MS, estimado));
+    }
+
+    public synchronized int getLimite() {
+        return (int) limite;
+    }
+
+    public synchronized int getEnEjecucion() {
+        return enEjecucion;
+    }
+
+    public synchronized int getEnCola() {
+        return cola.size();
+    }
+
+    public synchronized long getAdmitidas() {
+        return admitidas;
+    }
+
+    public synchronized long getRechazadas() {
+        return rechazadas;
+    }
+
+    public synchronized long getExpiradasEnCola() {
+        return expiradasEnCola;
+    }
+
+    public TipoOperacion getTipo() {
+        return tipo;
+    }
+
+    public static Map<TipoOperacion, ControlAdmision> todos() {
+        return limitadores;
+    }
+}
@@ -0,0 +1,146 @@
+package centralserver;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import commons.InfoWorker;
+
+/**
+ * Detector de fallos "phi accrual" alimentado por los HEARTBEAT que los workers
+ * envían por su conexión de registro.
+ * Para cada worker se guarda el historial de intervalos entre latidos y se
+ * calcula phi = -log10(P(el siguiente latido llegue aún más tarde)). Si phi supera
+ * UMBRAL_PHI el worker se marca inactivo y el enrutamiento lo omite; si vuelve a
+ * latir se reactiva sin las particiones modificadas que atiende otra réplica, que
+ * se le vuelven a copiar (ver ServidorCentral.reincorporarWorker). Tras
+ * MAX_SILENCIO_MS sin latidos se cierra su conexión para que ManejadorWorkerServidor
+ * lo desregistre.
+ */
+public class DetectorFallos {
+
+    private static final int TAM_HISTORIAL = 100;
+    private static final double UMBRAL_PHI = 8.0;
+    private static final double DESVIACION_MINIMA_MS = 20.0; // Evita falsos positivos con latidos muy regulares
+    private static final long INTERVALO_ESPERADO_MS = 100; // Debe coincidir con el intervalo de los workers
+    private static final long INTERVALO_REVISION_MS = 50;
+    private static final long MAX_SILENCIO_MS = 10000;
+
+    private static final ConcurrentHashMap<String, Historial> historiales = new ConcurrentHashMap<>();
+    private static ScheduledExecutorService monitor;
+
+    private static final class Historial {
+        private final double[] intervalos = new double[TAM_HISTORIAL];
+        private int pos = 0;
+        private int n = 0;
+        private double suma = 0;
+        private double sumaCuadrados = 0;
+        private long ultimoLatido;
+
+        Historial(long ahora) {
+            this.ultimoLatido = ahora;
+            // Semilla para que phi sea útil desde el primer latido
+            agregar(INTERVALO_ESPERADO_MS);
+        }
+
+        synchronized void latido(long ahora) {
+            agregar(ahora - ultimoLatido);
+            ultimoLatido = ahora;
+        }
+
+        private void agregar(double intervalo) {
+            if (n == TAM_HISTORIAL) {
+                double viejo = intervalos[pos];
+                suma -= viejo;
+                sumaCuadrados -= viejo * viejo;
+            } else {
+                n++;
+            }
+            intervalos[pos] = intervalo;
+            suma += intervalo;
+            sumaCuadrados += intervalo * intervalo;
+            pos = (pos + 1) % TAM_HISTORIAL;
+        }
+
+        synchronized double phi(long ahora) {
+            double transcurrido = ahora - ultimoLatido;
+            double media = suma / n;
+            double varianza = Math.max(0.0, sumaCuadrados / n - media * media);
+            double desviacion = Math.max(DESVIACION_MINIMA_MS, Math.sqrt(varianza));
+            // Aproximación logística de la CDF normal
+            double y = (transcurrido - media) / desviacion;
+            double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+            if (transcurrido > media) {
+                return -Math.log10(e / (1.0 + e));
+            }
+            return -Math.log10(1.0 - 1.0 / (1.0 + e));
+        }
+
+        synchronized long silencioMs(long ahora) {
+            return ahora - ultimoLatido;
+        }
+    }
+
+    public static void registrarLatido(String workerId) {
+        long ahora = System.currentTimeMillis();
+        Historial h = historiales.get(workerId);
+        if (h == null) {
+            historiales.putIfAbsent(workerId, new Historial(ahora));
+        } else {
+            h.latido(ahora);
+        }
+    }
+
+    public static void olvidar(String workerId) {
+        historiales.remove(workerId);
+    }
+
+    public static double phi(String workerId) {
+        Historial h = historiales.get(workerId);
+        return h == null ? 0.0 : h.phi(System.currentTimeMillis());
+    }
+
+    public static synchronized void iniciarMonitor() {
+        if (monitor != null) {
+            return;
+        }
+        monitor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "detector-fallos");
+            t.setDaemon(true);
+            return t;
+        });
+        monitor.scheduleAtFixedRate(DetectorFallos::revisar, INTERVALO_REVISION_MS, INTERVALO_REVISION_MS,
+                TimeUnit.MILLISECONDS);
+        System.out.println("DetectorFallos: Monitor de heartbeats iniciado (umbral phi=" + UMBRAL_PHI + ").");
+    }
+
+    private static void revisar() {
+        long ahora = System.currentTimeMillis();
+        for (InfoWorker info : ServidorCentral.workersActivos.values()) {
+            Historial h = historiales.get(info.getWorkerId());
+            if (h == null) {
+                continue; // Aún no ha enviado su primer latido
+            }
+            double phi = h.phi(ahora);
+            if (phi > UMBRAL_PHI && info.isActivo()) {
+                info.setActivo(false);
+                System.err.println("DetectorFallos: Worker " + info.getWorkerId() + " sospechoso (phi="
+                        + String.format("%.1f", phi) + ", " + h.silencioMs(ahora)
+                        + " ms sin heartbeat). Marcado inactivo.");
+            }
+            if (h.silencioMs(ahora) > MAX_SILENCIO_MS) {
+                Socket s = info.getSocketConexionInicial();
+                if (s != null && !s.isClosed()) {
+                    System.err.println("DetectorFallos: Worker " + info.getWorkerId() + " sin heartbeats durante "
+                            + MAX_SILENCIO_MS + " ms. Cerrando su conexión de registro.");
+                    try {
+                        s.close(); // ManejadorWorkerServidor lo desregistrará
+                    } catch (IOException e) {
+                        /* Silenciado */ }
+                }
+            }
+        }
+    }
+}
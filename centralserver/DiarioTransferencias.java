@@ -0,0 +1,399 @@
+package centralserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Diario del coordinador para las transferencias entre particiones de dos rondas:
+ * un archivo binario de solo añadir con cada cambio de estado. Si el Servidor
+ * Central se cae a mitad de una, al arrancar se leen las que quedaron abiertas y
+ * RecuperadorTransferencias las termina o las compensa.
+ * - Solo se espera a que lleguen al disco DECIDIDA (antes de la ronda 2) y
+ * REVIRTIENDO (antes de compensar): son las decisiones. Las demás van en el
+ * siguiente fsync; si se pierden, la recuperación repite un paso que el worker ya
+ * aplicó y este devuelve la respuesta de entonces.
+ * - Registros de tamaño fijo con CRC32: un registro a medio escribir al caerse se
+ * descarta.
+ * - Cada REGISTROS_ENTRE_PUNTOS_CONTROL registros se reescribe el archivo con solo
+ * las transferencias abiertas (punto de control) y se cambia por el viejo de forma
+ * atómica: al arrancar se lee eso y lo añadido después, no toda la historia.
+ * Un único hilo escribe, por lotes (igual que RegistroTransaccionesGlobales).
+ */
+public class DiarioTransferencias {
+
+    public enum Paso {
+        PUNTO_CONTROL, // idTransaccion = mayor ID de transacción visto hasta entonces
+        PREPARADA, // Empieza la ronda 1
+        DECIDIDA, // Ronda 1 bien: se confirma (durable)
+        DEBITADA, // CONFIRMAR_DEBITO aplicado
+        ACREDITADA, // APLICAR_CREDITO aplicado
+        REVIRTIENDO, // Se deshacen las mitades aplicadas (durable)
+        CONFIRMADA, // Terminada con éxito
+        REVERTIDA // Terminada sin efecto (cancelada o compensada)
+    }
+
+    /** Estado de una transferencia que aún no terminó. */
+    public static final class Abierta {
+        public final int idTransaccion;
+        public final int idCuentaOrigen;
+        public final int idCuentaDestino;
+        public final double monto;
+        volatile boolean decidida;
+        volatile boolean debitada;
+        volatile boolean acreditada;
+        volatile boolean revirtiendo;
+
+        Abierta(int idTransaccion, int idCuentaOrigen, int idCuentaDestino, double monto) {
+            this.idTransaccion = idTransaccion;
+            this.idCuentaOrigen = idCuentaOrigen;
+            this.idCuentaDestino = idCuentaDestino;
+            this.monto = monto;
+        }
+
+        public boolean isDecidida() {
+            return decidida;
+        }
+
+        public boolean isDebitada() {
+            return debitada;
+        }
+
+        public boolean isAcreditada() {
+            return acreditada;
+        }
+
+        public boolean isRevirtiendo() {
+            return revirtiendo;
+        }
+
+        @Override
+        public String toString() {
+            return "Tx:" + idTransaccion + " (" + idCuentaOrigen + " -> " + idCuentaDestino + ", " + monto
+                    + (revirtiendo ? ", revirtiendo" : decidida ? ", decidida" : ", preparada")
+                    + (debitada ? ", debitada" : "") + (acreditada ? ", acreditada" : "") + ")";
+        }
+    }
+
+    private record Anotacion(Paso paso, int idTransaccion, int idCuentaOrigen, int idCuentaDestino, double monto,
+            CompletableFuture<Void> durable) {
+    }
+
+    // tipo(1) + idTransaccion(4) + idCuentaOrigen(4) + idCuentaDestino(4) + monto(8) + crc(4)
+    private static final int TAM_REGISTRO = 25;
+    private static final int MAX_REGISTROS_LOTE = 1024;
+    private static final long INTERVALO_FSYNC_MS = 10;
+    private static final int REGISTROS_ENTRE_PUNTOS_CONTROL = Integer.getInteger("banco.diario.puntoControlCada",
+            50000);
+    private static final Path RUTA = Paths.get(System.getProperty("banco.diario.archivo",
+            "../data/diario_transferencias.bin"));
+
+    private static final LinkedBlockingQueue<Anotacion> cola = new LinkedBlockingQueue<>();
+    private static Thread escritor;
+
+    // Estado del hilo escritor (antes de arrancarlo, del que llama a cargar())
+    private static final Map<Integer, Abierta> abiertas = new LinkedHashMap<>();
+    private static int maxIdTransaccion = 0;
+    private static FileChannel canal;
+    private static final ByteBuffer buffer = ByteBuffer.allocateDirect(MAX_REGISTROS_LOTE * TAM_REGISTRO);
+    private static final CRC32 crc = new CRC32();
+    private static int registrosDesdePuntoControl = 0;
+    private static boolean sinFsync = false;
+    private static long ultimoFsyncMs = System.currentTimeMillis();
+
+    // Métricas
+    private static volatile long registros = 0;
+    private static volatile long fsyncs = 0;
+    private static volatile long puntosControl = 0;
+    private static volatile long ultimaCargaMs = -1;
+
+    /**
+     * Lee el diario (desde el último punto de control), deja un punto de control
+     * nuevo con lo que quedó abierto y arranca el hilo escritor. Devuelve las
+     * transferencias abiertas, en el orden en que empezaron.
+     */
+    public static synchronized List<Abierta> cargar() throws IOException {
+        if (escritor != null) {
+            throw new IllegalStateException("El diario de transferencias ya está cargado.");
+        }
+        long inicio = System.currentTimeMillis();
+        int leidos = 0;
+        List<Abierta> resultado = new ArrayList<>();
+        try {
+            if (Files.exists(RUTA)) {
+                try (FileChannel lectura = FileChannel.open(RUTA, StandardOpenOption.READ)) {
+                    ByteBuffer registro = ByteBuffer.allocate(TAM_REGISTRO);
+                    while (true) {
+                        registro.clear();
+                        int n = 0;
+                        while (registro.hasRemaining() && n >= 0) {
+                            n = lectura.read(registro);
+                        }
+                        if (registro.hasRemaining() || !registroValido(registro)) {
+                            break; // Fin, o cola a medio escribir al caerse
+                        }
+                        registro.flip();
+                        Paso paso = Paso.values()[registro.get()];
+                        aplicar(paso, registro.getInt(), registro.getInt(), registro.getInt(), registro.getDouble());
+                        leidos++;
+                    }
+                }
+            }
+            Files.createDirectories(RUTA.toAbsolutePath().getParent());
+            escribirPuntoControl();
+            resultado.addAll(abiertas.values());
+        } finally {
+            // Aunque falle, el escritor arranca: sin diario abierto falla las anotaciones
+            // durables y las transferencias entre particiones no pasan de la ronda 1
+            escritor = new Thread(DiarioTransferencias::bucleEscritor, "diario-transferencias");
+            escritor.setDaemon(true);
+            escritor.start();
+        }
+        ultimaCargaMs = System.currentTimeMillis() - inicio;
+        System.out.println("DiarioTransferencias: " + leidos + " registros leídos en " + ultimaCargaMs + " ms. "
+                + resultado.size() + " transferencias abiertas, mayor ID de transacción " + maxIdTransaccion + ".");
+        return resultado;
+    }
+
+    /** Mayor ID de transacción que aparece en el diario al cargarlo. */
+    public static synchronized int getMaxIdTransaccion() {
+        return maxIdTransaccion;
+    }
+
+    /**
+     * Una transferencia ya decidida que sigue en curso (un paso de la ronda 2 quedó
+     * incierto), con los pasos que se sabe que se aplicaron, para resolverla como las
+     * que quedan abiertas al arrancar.
+     */
+    public static Abierta enCurso(int idTransaccion, int idCuentaOrigen, int idCuentaDestino, double monto,
+            boolean debitada, boolean acreditada) {
+        Abierta t = new Abierta(idTransaccion, idCuentaOrigen, idCuentaDestino, monto);
+        t.decidida = true;
+        t.debitada = debitada;
+        t.acreditada = acreditada;
+        return t;
+    }
+
+    /**
+     * Como enCurso, pero ya anotada como REVIRTIENDO: solo queda deshacer las mitades
+     * aplicadas.
+     */
+    public static Abierta enReversion(int idTransaccion, int idCuentaOrigen, int idCuentaDestino, double monto,
+            boolean debitada, boolean acreditada) {
+        Abierta t = enCurso(idTransaccion, idCuentaOrigen, idCuentaDestino, monto, debitada, acreditada);
+        t.revirtiendo = true;
+        return t;
+    }
+
+    /** Encola el registro y vuelve sin esperar al disco. */
+    public static void anotar(Paso paso, int idTransaccion, int idCuentaOrigen, int idCuentaDestino, double monto) {
+        cola.add(new Anotacion(paso, idTransaccion, idCuentaOrigen, idCuentaDestino, monto, null));
+    }
+
+    /**
+     * Encola el registro; el futuro se completa cuando está en disco (con todo lo
+     * anotado antes), o excepcionalmente si no se pudo escribir.
+     */
+    public static CompletableFuture<Void> anotarDurable(Paso paso, int idTransaccion, int idCuentaOrigen,
+            int idCuentaDestino, double monto) {
+        CompletableFuture<Void> durable = new CompletableFuture<>();
+        cola.add(new Anotacion(paso, idTransaccion, idCuentaOrigen, idCuentaDestino, monto, durable));
+        return durable;
+    }
+
+    private static void aplicar(Paso paso, int idTransaccion, int idCuentaOrigen, int idCuentaDestino,
+            double monto) {
+        maxIdTransaccion = Math.max(maxIdTransaccion, idTransaccion);
+        if (paso == Paso.PUNTO_CONTROL) {
+            return;
+        }
+        if (paso == Paso.CONFIRMADA || paso == Paso.REVERTIDA) {
+            abiertas.remove(idTransaccion);
+            return;
+        }
+        Abierta t = abiertas.computeIfAbsent(idTransaccion,
+                _ -> new Abierta(idTransaccion, idCuentaOrigen, idCuentaDestino, monto));
+        switch (paso) {
+            case DECIDIDA -> t.decidida = true;
+            case DEBITADA -> t.debitada = true;
+            case ACREDITADA -> t.acreditada = true;
+            case REVIRTIENDO -> t.revirtiendo = true;
+            default -> {
+            }
+        }
+    }
+
+    private static void bucleEscritor() {
+        List<Anotacion> lote = new ArrayList<>(MAX_REGISTROS_LOTE);
+        List<CompletableFuture<Void>> esperando = new ArrayList<>();
+        while (true) {
+            try {
+                Anotacion primera = cola.poll(INTERVALO_FSYNC_MS, TimeUnit.MILLISECONDS);
+                if (primera != null) {
+                    lote.add(primera);
+                    cola.drainTo(lote, MAX_REGISTROS_LOTE - 1);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            try {
+                if (canal == null) {
+                    throw new IOException("Diario no abierto.");
+                }
+                if (!lote.isEmpty()) {
+                    buffer.clear();
+                    for (Anotacion a : lote) {
+                        codificar(buffer, a.paso(), a.idTransaccion(), a.idCuentaOrigen(), a.idCuentaDestino(),
+                                a.monto());
+                        aplicar(a.paso(), a.idTransaccion(), a.idCuentaOrigen(), a.idCuentaDestino(), a.monto());
+                        if (a.durable() != null) {
+                            esperando.add(a.durable());
+                        }
+                    }
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        canal.write(buffer);
+                    }
+                    registros += lote.size();
+                    registrosDesdePuntoControl += lote.size();
+                    sinFsync = true;
+                }
+                if (sinFsync && (!esperando.isEmpty()
+                        || System.currentTimeMillis() - ultimoFsyncMs >= INTERVALO_FSYNC_MS)) {
+                    canal.force(false);
+                    fsyncs++;
+                    sinFsync = false;
+                    ultimoFsyncMs = System.currentTimeMillis();
+                }
+                for (CompletableFuture<Void> f : esperando) {
+                    f.complete(null);
+                }
+                if (registrosDesdePuntoControl >= REGISTROS_ENTRE_PUNTOS_CONTROL && cola.isEmpty()) {
+                    escribirPuntoControl();
+                }
+            } catch (IOException e) {
+                System.err.println("DiarioTransferencias: Error al escribir el diario: " + e.getMessage());
+                for (CompletableFuture<Void> f : esperando) {
+                    f.completeExceptionally(e);
+                }
+                reabrir();
+            } finally {
+                lote.clear();
+                esperando.clear();
+            }
+        }
+    }
+
+    /**
+     * Escribe en un archivo aparte un PUNTO_CONTROL y las transferencias abiertas, lo
+     * lleva a disco y lo cambia por el diario actual.
+     */
+    private static void escribirPuntoControl() throws IOException {
+        Path temporal = RUTA.resolveSibling(RUTA.getFileName() + ".tmp");
+        try (FileChannel nuevo = FileChannel.open(temporal, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer contenido = ByteBuffer.allocate((1 + abiertas.size() * 5) * TAM_REGISTRO);
+            codificar(contenido, Paso.PUNTO_CONTROL, maxIdTransaccion, 0, 0, 0);
+            for (Abierta t : abiertas.values()) {
+                int o = t.idCuentaOrigen, d = t.idCuentaDestino;
+                codificar(contenido, Paso.PREPARADA, t.idTransaccion, o, d, t.monto);
+                if (t.decidida) {
+                    codificar(contenido, Paso.DECIDIDA, t.idTransaccion, o, d, t.monto);
+                }
+                if (t.debitada) {
+                    codificar(contenido, Paso.DEBITADA, t.idTransaccion, o, d, t.monto);
+                }
+                if (t.acreditada) {
+                    codificar(contenido, Paso.ACREDITADA, t.idTransaccion, o, d, t.monto);
+                }
+                if (t.revirtiendo) {
+                    codificar(contenido, Paso.REVIRTIENDO, t.idTransaccion, o, d, t.monto);
+                }
+            }
+            contenido.flip();
+            while (contenido.hasRemaining()) {
+                nuevo.write(contenido);
+            }
+            nuevo.force(true);
+        }
+        if (canal != null) {
+            canal.close();
+            canal = null;
+        }
+        Files.move(temporal, RUTA, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        canal = FileChannel.open(RUTA, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        registrosDesdePuntoControl = 0;
+        sinFsync = false;
+        puntosControl++;
+    }
+
+    /** Tras un error se vuelve a abrir el diario; lo que no llegó al disco se da por perdido. */
+    private static void reabrir() {
+        try {
+            if (canal != null) {
+                canal.close();
+            }
+        } catch (IOException e) {
+            /* Silenciado */ }
+        try {
+            canal = FileChannel.open(RUTA, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            System.err.println("DiarioTransferencias: No se pudo reabrir el diario: " + e.getMessage());
+            canal = null;
+            try {
+                Thread.sleep(INTERVALO_FSYNC_MS * 10);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static void codificar(ByteBuffer destino, Paso paso, int idTransaccion, int idCuentaOrigen,
+            int idCuentaDestino, double monto) {
+        int inicio = destino.position();
+        destino.put((byte) paso.ordinal()).putInt(idTransaccion).putInt(idCuentaOrigen).putInt(idCuentaDestino)
+                .putDouble(monto);
+        crc.reset();
+        crc.update(destino.duplicate().position(inicio).limit(destino.position()));
+        destino.putInt((int) crc.getValue());
+    }
+
+    private static boolean registroValido(ByteBuffer registro) {
+        crc.reset();
+        crc.update(registro.duplicate().flip().limit(TAM_REGISTRO - 4));
+        int tipo = registro.get(0);
+        return tipo >= 0 && tipo < Paso.values().length && registro.getInt(TAM_REGISTRO - 4) == (int) crc.getValue();
+    }
+
+    public static long getRegistros() {
+        return registros;
+    }
+
+    public static long getFsyncs() {
+        return fsyncs;
+    }
+
+    public static long getPuntosControl() {
+        return puntosControl;
+    }
+
+    /** Lo que tardó la última carga al arrancar (-1 si no se cargó). */
+    public static long getUltimaCargaMs() {
+        return ultimaCargaMs;
+    }
+}
@@ -0,0 +1,176 @@
+package centralserver;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import commons.EstadoOperacion;
+import commons.InfoWorker;
+import commons.Respuesta;
+import commons.Solicitud;
+import commons.TipoOperacion;
+
+/**
+ * Divide en caliente las particiones de cuentas que reciben demasiadas solicitudes
+ * o tienen demasiadas cuentas.
+ * Cada INTERVALO_MS se calcula la tasa de solicitudes de cada partición; las que
+ * pasan de MAX_SOLICITUDES_POR_SEG o de MAX_CUENTAS se parten por el ID de cuenta
+ * mediano. La división:
+ * 1. Cierra la partición con CercoParticiones (espera a las operaciones en curso).
+ * 2. Pide a cada worker que la tiene que parta su archivo (DIVIDIR_PARTICION). Cada
+ * réplica ya tiene los datos, así que no se copia nada por la red.
+ * 3. Publica la tabla de enrutamiento nueva (ServidorCentral.aplicarDivision) y
+ * vuelve a abrir la partición; las operaciones que esperaban se re-enrutan solas.
+ * Las hijas quedan en los mismos workers que la original.
+ */
+public class DivisorParticiones {
+
+    private static final long INTERVALO_MS = Long.getLong("banco.division.intervaloMs", 10000);
+    private static final double MAX_SOLICITUDES_POR_SEG = Double
+            .parseDouble(System.getProperty("banco.division.maxSolicitudesPorSeg", "200"));
+    private static final int MAX_CUENTAS = Integer.getInteger("banco.division.maxCuentas", 50000);
+    private static final int MAX_DIVISIONES_POR_RONDA = 2;
+    private static final long ESPERA_CIERRE_MS = 5000;
+    private static final int TIMEOUT_DIVISION_MS = 15000;
+
+    private static final ConcurrentHashMap<String, LongAdder> accesos = new ConcurrentHashMap<>();
+    // Solicitudes/s de cada partición en la última revisión
+    private static final ConcurrentHashMap<String, Double> tasas = new ConcurrentHashMap<>();
+    private static ScheduledExecutorService monitor;
+    private static long ultimaRevision = System.currentTimeMillis();
+
+    /** Cuenta una solicitud de cliente dirigida a la partición. */
+    public static void registrarAcceso(String idParticion) {
+        LongAdder contador = accesos.get(idParticion);
+        if (contador == null) {
+            contador = accesos.computeIfAbsent(idParticion, _ -> new LongAdder());
+        }
+        contador.increment();
+    }
+
+    /** Solicitudes/s que recibió la partición según la última revisión (0 si no se sabe). */
+    public static double tasaReciente(String idParticion) {
+        return tasas.getOrDefault(idParticion, 0.0);
+    }
+
+    public static synchronized void iniciarMonitor() {
+        if (monitor != null) {
+            return;
+        }
+        monitor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "divisor-particiones");
+            t.setDaemon(true);
+            return t;
+        });
+        monitor.scheduleWithFixedDelay(DivisorParticiones::revisar, INTERVALO_MS, INTERVALO_MS,
+                TimeUnit.MILLISECONDS);
+        System.out.println("DivisorParticiones: Monitor iniciado (máx. " + MAX_SOLICITUDES_POR_SEG
+                + " solicitudes/s o " + MAX_CUENTAS + " cuentas por partición).");
+    }
+
+    private record Candidata(String idParticion, double tasa, int cuentas) {
+    }
+
+    private static void revisar() {
+        try {
+            long ahora = System.currentTimeMillis();
+            double segundos = Math.max(1, ahora - ultimaRevision) / 1000.0;
+            ultimaRevision = ahora;
+
+            List<Candidata> candidatas = new ArrayList<>();
+            TablaEnrutamiento tabla = ServidorCentral.enrutamientoCuentas;
+            for (int i = 0; i < tabla.getNumRangos(); i++) {
+                String idParticion = tabla.getParticion(i);
+                LongAdder contador = accesos.get(idParticion);
+                double tasa = contador == null ? 0 : contador.sumThenReset() / segundos;
+                tasas.put(idParticion, tasa);
+                int cuentas = ImagenesParticiones.numRegistros(idParticion);
+                if (cuentas >= 2 && (tasa > MAX_SOLICITUDES_POR_SEG || cuentas > MAX_CUENTAS)) {
+                    candidatas.add(new Candidata(idParticion, tasa, cuentas));
+                }
+            }
+            // Las particiones que desaparecieron en divisiones anteriores ya no cuentan
+            List<String> vigentes = Arrays.asList(particionesDe(tabla));
+            accesos.keySet().retainAll(vigentes);
+            tasas.keySet().retainAll(vigentes);
+
+            candidatas.sort(Comparator.comparingDouble(Candidata::tasa).reversed()
+                    .thenComparing(Comparator.comparingInt(Candidata::cuentas).reversed()));
+            for (int i = 0; i < candidatas.size() && i < MAX_DIVISIONES_POR_RONDA; i++) {
+                Candidata c = candidatas.get(i);
+                System.out.println("DivisorParticiones: Partición " + c.idParticion() + " caliente ("
+                        + String.format("%.1f", c.tasa()) + " solicitudes/s, " + c.cuentas() + " cuentas).");
+                dividir(c.idParticion());
+            }
+        } catch (RuntimeException e) {
+            // Que un fallo no cancele las siguientes ejecuciones del monitor
+            System.err.println("DivisorParticiones: Error al revisar particiones: " + e);
+        }
+    }
+
+    private static String[] particionesDe(TablaEnrutamiento tabla) {
+        String[] ids = new String[tabla.getNumRangos()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = tabla.getParticion(i);
+        }
+        return ids;
+    }
+
+    /** Divide la partición por su ID de cuenta mediano. Devuelve false si no se pudo. */
+    public static boolean dividir(String idParticion) {
+        if (!CercoParticiones.cerrar(idParticion, ESPERA_CIERRE_MS)) {
+            System.err.println("DivisorParticiones: No se pudo cerrar " + idParticion + " en " + ESPERA_CIERRE_MS
+                    + " ms. Se reintentará en la próxima revisión.");
+            return false;
+        }
+        try {
+            int cuentas = ImagenesParticiones.numRegistros(idParticion);
+            List<String> workers = ServidorCentral.particionANodos.get(idParticion);
+            if (cuentas < 2 || workers == null || workers.isEmpty()) {
+                return false; // Ya dividida, vacía o sin workers
+            }
+            // Los datos de cada partición están ordenados por ID de cuenta
+            int idCorte = ImagenesParticiones.idCuentaEnPosicion(idParticion, cuentas / 2);
+            String[] hijas = ServidorCentral.nuevosIdsParticionCuentas();
+            Map<String, Object> params = Map.of("ID_PARTICION_ORIGINAL", idParticion, "ID_CUENTA_CORTE", idCorte,
+                    "PARTICION_BAJA", hijas[0], "PARTICION_ALTA", hijas[1]);
+
+            List<String> confirmados = new ArrayList<>();
+            for (String workerId : new ArrayList<>(workers)) {
+                InfoWorker info = ServidorCentral.workersActivos.get(workerId);
+                if (info == null || !info.isActivo()) {
+                    continue;
+                }
+                try {
+                    Respuesta resp = CanalWorker.enviar(workerId,
+                            new Solicitud(TipoOperacion.DIVIDIR_PARTICION, params), TIMEOUT_DIVISION_MS);
+                    if (resp != null && resp.getEstado() == EstadoOperacion.EXITO) {
+                        confirmados.add(workerId);
+                    } else {
+                        System.err.println("DivisorParticiones: Worker " + workerId + " no dividió " + idParticion
+                                + ": " + (resp == null ? "respuesta inesperada" : resp.getMensaje()));
+                    }
+                } catch (IOException | ClassNotFoundException e) {
+                    System.err.println("DivisorParticiones: Error al pedir a " + workerId + " que divida "
+                            + idParticion + ": " + e.getMessage());
+                }
+            }
+            if (confirmados.isEmpty()) {
+                System.err.println("DivisorParticiones: Ningún worker dividió " + idParticion
+                        + ". Se mantiene sin dividir.");
+                return false;
+            }
+            ServidorCentral.aplicarDivision(idParticion, idCorte, hijas[0], hijas[1], confirmados);
+            return true;
+        } finally {
+            CercoParticiones.abrir(idParticion);
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package centralserver;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+import commons.Cuenta;
+import commons.ImagenParticion;
+
+/**
+ * Datos iniciales de cada partición (los que se cargaron de los CSV), guardados
+ * en disco en archivos binarios compactos (ver ImagenParticion) en vez de en el
+ * heap del servidor central. En memoria solo queda cuántos registros tiene cada
+ * una; los datos se leen del archivo cuando hay que enviarlos a un worker que se
+ * registra o cuando se divide la partición.
+ * Los archivos se guardan en DIRECTORIO (-Dbanco.imagenes.dir), que se vacía al
+ * arrancar.
+ */
+public class ImagenesParticiones {
+
+    private static final Path DIRECTORIO = Path
+            .of(System.getProperty("banco.imagenes.dir", "../data/imagenes_particiones"));
+
+    // ID de partición -> número de registros de su imagen
+    private static final ConcurrentHashMap<String, Integer> registros = new ConcurrentHashMap<>();
+
+    /** Crea el directorio de imágenes y borra las que hayan quedado de otra ejecución. */
+    public static void inicializar() throws IOException {
+        Files.createDirectories(DIRECTORIO);
+        try (Stream<Path> archivos = Files.list(DIRECTORIO)) {
+            for (Path archivo : (Iterable<Path>) archivos::iterator) {
+                if (archivo.getFileName().toString().endsWith(".bin")) {
+                    Files.deleteIfExists(archivo);
+                }
+            }
+        }
+        registros.clear();
+    }
+
+    private static Path archivoDe(String idParticion) {
+        return DIRECTORIO.resolve(idParticion + ".bin");
+    }
+
+    private static byte tipoDe(String idParticion) {
+        return idParticion.startsWith("CUENTA") ? ImagenParticion.TIPO_CUENTAS : ImagenParticion.TIPO_CLIENTES;
+    }
+
+    /** Guarda en disco los datos de la partición (Cuentas ordenadas por ID, o Clientes). */
+    public static void guardar(String idParticion, List<? extends Serializable> datos) throws IOException {
+        Path temporal = DIRECTORIO.resolve(idParticion + ".bin.tmp");
+        int n = ImagenParticion.escribir(temporal, tipoDe(idParticion), datos);
+        Files.move(temporal, archivoDe(idParticion), StandardCopyOption.REPLACE_EXISTING);
+        registros.put(idParticion, n);
+    }
+
+    /** Los datos de la partición como lista respaldada por su archivo, o null si no hay imagen. */
+    public static List<? extends Serializable> imagen(String idParticion) {
+        Integer n = registros.get(idParticion);
+        return n == null ? null : new ImagenParticion(archivoDe(idParticion), n);
+    }
+
+    /** Registros de la imagen de la partición (0 si no tiene). */
+    public static int numRegistros(String idParticion) {
+        return registros.getOrDefault(idParticion, 0);
+    }
+
+    public static boolean existe(String idParticion) {
+        return registros.containsKey(idParticion);
+    }
+
+    public static boolean estaVacio() {
+        return registros.isEmpty();
+    }
+
+    /** IDs de las particiones con imagen, ordenados. */
+    public static List<String> ids() {
+        List<String> ids = new ArrayList<>(registros.keySet());
+        Collections.sort(ids);
+        return ids;
+    }
+
+    /** ID de la cuenta en la posición dada de una partición de cuentas (recorre el archivo). */
+    public static int idCuentaEnPosicion(String idParticion, int posicion) {
+        List<? extends Serializable> datos = imagen(idParticion);
+        if (datos == null || posicion < 0 || posicion >= datos.size()) {
+            throw new IndexOutOfBoundsException(idParticion + "[" + posicion + "]");
+        }
+        return ((Cuenta) datos.get(posicion)).getIdCuenta();
+    }
+
+    /**
+     * Parte la imagen de una partición de cuentas en las de sus hijas: IDs menores que
+     * idCorte a particionBaja y el resto a particionAlta. Borra la de la original.
+     * Devuelve cuántas cuentas quedaron en cada hija. Si no se pueden escribir, las
+     * hijas quedan sin imagen (a un worker nuevo se le copiarán desde una réplica).
+     */
+    public static int[] dividir(String idParticion, int idCorte, String particionBaja, String particionAlta) {
+        List<? extends Serializable> datos = imagen(idParticion);
+        List<Cuenta> datosBaja = new ArrayList<>();
+        List<Cuenta> datosAlta = new ArrayList<>();
+        if (datos != null) {
+            for (Serializable obj : datos) {
+                Cuenta c = (Cuenta) obj;
+                (c.getIdCuenta() < idCorte ? datosBaja : datosAlta).add(c);
+            }
+        }
+        try {
+            guardar(particionBaja, datosBaja);
+            guardar(particionAlta, datosAlta);
+        } catch (IOException e) {
+            System.err.println("ImagenesParticiones: No se pudo dividir la imagen de " + idParticion + ": "
+                    + e.getMessage());
+            eliminar(particionBaja);
+            eliminar(particionAlta);
+        }
+        eliminar(idParticion);
+        return new int[] { datosBaja.size(), datosAlta.size() };
+    }
+
+    public static void eliminar(String idParticion) {
+        registros.remove(idParticion);
+        try {
+            Files.deleteIfExists(archivoDe(idParticion));
+        } catch (IOException e) {
+            System.err.println("ImagenesParticiones: No se pudo borrar la imagen de " + idParticion + ": "
+                    + e.getMessage());
+        }
+    }
+}
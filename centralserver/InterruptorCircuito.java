@@ -0,0 +1,187 @@
+package centralserver;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Circuit breaker y bulkhead por worker.
+ * - CERRADO: las llamadas pasan; se registra el resultado de las últimas
+ * TAM_VENTANA llamadas (error o más lenta que UMBRAL_LENTO_MS cuenta como mala).
+ * - ABIERTO: si la tasa de llamadas malas supera TASA_FALLO_APERTURA se rechaza
+ * todo durante TIEMPO_ABIERTO_MS, sin tocar la red.
+ * - SEMI_ABIERTO: pasado ese tiempo se deja pasar una única llamada de prueba;
+ * si sale bien se cierra, si no se vuelve a abrir. Los resultados de llamadas
+ * que salieron antes de abrirse se ignoran: solo decide la de prueba.
+ * Además se limita a MAX_EN_VUELO el número de llamadas simultáneas a un mismo
+ * worker (esperando como mucho ESPERA_MAXIMA_BULKHEAD_MS por un hueco), para que
+ * uno lento no acapare los hilos del pool de clientes.
+ */
+public class InterruptorCircuito {
+
+    public enum Estado {
+        CERRADO, ABIERTO, SEMI_ABIERTO
+    }
+
+    private static final int TAM_VENTANA = 20;
+    private static final int MIN_LLAMADAS = 10;
+    private static final double TASA_FALLO_APERTURA = 0.5;
+    private static final long UMBRAL_LENTO_MS = 2000;
+    private static final long TIEMPO_ABIERTO_MS = 5000;
+    // Igual que el pool de tareas del worker (NodoTrabajador.MAX_TAREAS_CONCURRENTES)
+    private static final int MAX_EN_VUELO = 10;
+    private static final long ESPERA_MAXIMA_BULKHEAD_MS = 100;
+
+    /** Llamada admitida por intentarAdquirir; se pasa al registrar su resultado. */
+    public static final class Permiso {
+        private final boolean prueba;
+
+        private Permiso(boolean prueba) {
+            this.prueba = prueba;
+        }
+    }
+
+    private static final ConcurrentHashMap<String, InterruptorCircuito> interruptores = new ConcurrentHashMap<>();
+
+    private final String workerId;
+    private final Semaphore enVuelo = new Semaphore(MAX_EN_VUELO);
+    private final boolean[] ventanaMalas = new boolean[TAM_VENTANA];
+    private int posVentana = 0;
+    private int llamadasEnVentana = 0;
+    private int malasEnVentana = 0;
+    private Estado estado = Estado.CERRADO;
+    private long abiertoDesde = 0;
+    private boolean pruebaEnCurso = false;
+
+    private InterruptorCircuito(String workerId) {
+        this.workerId = workerId;
+    }
+
+    public static InterruptorCircuito para(String workerId) {
+        return interruptores.computeIfAbsent(workerId, InterruptorCircuito::new);
+    }
+
+    public static void eliminar(String workerId) {
+        interruptores.remove(workerId);
+    }
+
+    public static Map<String, InterruptorCircuito> todos() {
+        return interruptores;
+    }
+
+    /**
+     * Intenta reservar una llamada al worker. Si devuelve un Permiso (null = no se
+     * admite), el llamador debe invocar registrarResultado(...) o
+     * registrarCancelacion(...) con él y luego liberar() al terminar.
+     */
+    public Permiso intentarAdquirir() {
+        boolean prueba = false;
+        synchronized (this) {
+            if (estado == Estado.ABIERTO) {
+                if (System.currentTimeMillis() - abiertoDesde < TIEMPO_ABIERTO_MS) {
+                    return null;
+                }
+                estado = Estado.SEMI_ABIERTO;
+                pruebaEnCurso = false;
+                System.out.println(
+                        "InterruptorCircuito [" + workerId + "]: SEMI_ABIERTO, se permite una llamada de prueba.");
+            }
+            if (estado == Estado.SEMI_ABIERTO) {
+                if (pruebaEnCurso) {
+                    return null;
+                }
+                pruebaEnCurso = true;
+                prueba = true;
+            }
+        }
+        boolean adquirido;
+        try {
+            adquirido = enVuelo.tryAcquire(ESPERA_MAXIMA_BULKHEAD_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            adquirido = false;
+        }
+        if (!adquirido) {
+            if (prueba) {
+                synchronized (this) {
+                    pruebaEnCurso = false;
+                }
+            }
+            return null;
+        }
+        return new Permiso(prueba);
+    }
+
+    public void liberar() {
+        enVuelo.release();
+    }
+
+    public synchronized void registrarResultado(Permiso permiso, boolean exito, long latenciaMs) {
+        boolean mala = !exito || latenciaMs > UMBRAL_LENTO_MS;
+        if (estado == Estado.SEMI_ABIERTO) {
+            if (!permiso.prueba) {
+                return; // Salió antes de abrirse: no dice nada de cómo está ahora el worker
+            }
+            pruebaEnCurso = false;
+            if (mala) {
+                abrir("la llamada de prueba falló");
+            } else {
+                estado = Estado.CERRADO;
+                reiniciarVentana();
+                System.out.println("InterruptorCircuito [" + workerId + "]: CERRADO, el worker se ha recuperado.");
+            }
+            return;
+        }
+        if (estado != Estado.CERRADO) {
+            return;
+        }
+        if (llamadasEnVentana == TAM_VENTANA) {
+            if (ventanaMalas[posVentana]) {
+                malasEnVentana--;
+            }
+        } else {
+            llamadasEnVentana++;
+        }
+        ventanaMalas[posVentana] = mala;
+        if (mala) {
+            malasEnVentana++;
+        }
+        posVentana = (posVentana + 1) % TAM_VENTANA;
+        if (llamadasEnVentana >= MIN_LLAMADAS
+                && (double) malasEnVentana / llamadasEnVentana >= TASA_FALLO_APERTURA) {
+            abrir(malasEnVentana + "/" + llamadasEnVentana + " llamadas fallidas o lentas");
+        }
+    }
+
+    private void abrir(String motivo) {
+        estado = Estado.ABIERTO;
+        abiertoDesde = System.currentTimeMillis();
+        reiniciarVentana();
+        System.err.println("InterruptorCircuito [" + workerId + "]: ABIERTO (" + motivo
+                + "). Se rechazan llamadas durante " + TIEMPO_ABIERTO_MS + " ms.");
+    }
+
+    private void reiniciarVentana() {
+        posVentana = 0;
+        llamadasEnVentana = 0;
+        malasEnVentana = 0;
+        Arrays.fill(ventanaMalas, false);
+    }
+
+    /** La llamada se canceló desde el Servidor Central (ej. lectura cubierta): no cuenta como resultado. */
+    public synchronized void registrarCancelacion(Permiso permiso) {
+        if (estado == Estado.SEMI_ABIERTO && permiso.prueba) {
+            pruebaEnCurso = false;
+        }
+    }
+
+    public synchronized Estado getEstado() {
+        return estado;
+    }
+
+    public int getEnVuelo() {
+        return MAX_EN_VUELO - enVuelo.availablePermits();
+    }
+}
@@ -0,0 +1,234 @@
+package centralserver;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import commons.Respuesta;
+
+/**
+ * Lecturas cubiertas ("hedged reads") para CONSULTAR_SALDO.
+ * Se consulta a una réplica y, si no responde dentro del percentil p95 de las
+ * latencias recientes, se envía una segunda consulta a otra réplica. Gana la
+ * primera respuesta y la otra se cancela cerrando su socket.
+ * Las coberturas se pagan con créditos que se ganan en cada lectura, así que
+ * nunca superan ~TASA_MAXIMA_COBERTURAS de carga extra.
+ */
+public class LecturaCubierta {
+
+    /**
+     * Consulta a un worker concreto. Debe publicar su socket en socketEnCurso para
+     * que la lectura pueda cancelarse si otra réplica responde antes.
+     * Devuelve null si el worker respondió algo que no es una Respuesta o que no sirve
+     * (ej. réplica atrasada), y se pasa al siguiente candidato.
+     */
+    @FunctionalInterface
+    public interface IntentoLectura {
+        Respuesta ejecutar(String workerId, AtomicReference<Socket> socketEnCurso)
+                throws IOException, ClassNotFoundException;
+    }
+
+    /** Se invoca por cada intento fallido (no cancelado). error es null si la respuesta no era válida. */
+    @FunctionalInterface
+    public interface ManejadorFallo {
+        void alFallar(String workerId, Exception error);
+    }
+
+    private static final int TAM_VENTANA = 512;
+    private static final double PERCENTIL_COBERTURA = 0.95;
+    private static final int MIN_MUESTRAS = 20;
+    private static final int RECALCULAR_CADA = 16;
+    private static final long RETARDO_INICIAL_MICROS = 50_000; // Hasta tener suficientes muestras
+    private static final long RETARDO_MINIMO_MICROS = 1_000;
+    private static final double TASA_MAXIMA_COBERTURAS = 0.05; // Como máximo ~5% de lecturas extra
+    private static final double MAX_CREDITOS = 10.0;
+    private static final int LOG_RESUMEN_CADA = 1000;
+
+    // Ventana circular de latencias (microsegundos) de intentos exitosos
+    private static final long[] ventanaLatencias = new long[TAM_VENTANA];
+    private static int posVentana = 0;
+    private static int muestras = 0;
+    private static volatile long retardoCoberturaMicros = RETARDO_INICIAL_MICROS;
+    private static double creditos = 1.0;
+
+    public static final AtomicLong lecturas = new AtomicLong();
+    public static final AtomicLong coberturasEnviadas = new AtomicLong();
+    public static final AtomicLong coberturasGanadoras = new AtomicLong();
+    public static final AtomicLong primariasGanadoras = new AtomicLong(); // Primaria ganó habiendo cobertura en curso
+    public static final AtomicLong coberturasDenegadas = new AtomicLong(); // Sin créditos disponibles
+
+    private static final ExecutorService poolLecturas = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "lectura-cubierta");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private static final class Intento {
+        final String workerId;
+        final boolean esCobertura;
+        final AtomicReference<Socket> socket = new AtomicReference<>();
+        Future<Resultado> futuro;
+
+        Intento(String workerId, boolean esCobertura) {
+            this.workerId = workerId;
+            this.esCobertura = esCobertura;
+        }
+    }
+
+    private static final class Resultado {
+        final Intento intento;
+        final Respuesta respuesta;
+        final Exception error;
+        final long nanos;
+
+        Resultado(Intento intento, Respuesta respuesta, Exception error, long nanos) {
+            this.intento = intento;
+            this.respuesta = respuesta;
+            this.error = error;
+            this.nanos = nanos;
+        }
+    }
+
+    /**
+     * Lee de la lista de candidatos (en orden de preferencia). Si un intento falla se
+     * pasa al siguiente candidato; si tarda más que el p95 se lanza una cobertura.
+     * Devuelve null si ningún candidato respondió.
+     */
+    public static Respuesta leer(List<String> candidatos, IntentoLectura intento, ManejadorFallo manejadorFallo) {
+        if (candidatos == null || candidatos.isEmpty()) {
+            return null;
+        }
+        long n = lecturas.incrementAndGet();
+        ganarCredito();
+        if (n % LOG_RESUMEN_CADA == 0) {
+            System.out.println("LecturaCubierta: " + resumen());
+        }
+
+        ExecutorCompletionService<Resultado> ecs = new ExecutorCompletionService<>(poolLecturas);
+        List<Intento> enCurso = new ArrayList<>();
+        int siguiente = 0;
+        enCurso.add(lanzar(ecs, candidatos.get(siguiente++), intento, false));
+        int pendientes = 1;
+        boolean coberturaDecidida = false;
+        boolean huboCobertura = false;
+
+        try {
+            while (pendientes > 0) {
+                Future<Resultado> listo;
+                if (!coberturaDecidida && siguiente < candidatos.size()) {
+                    listo = ecs.poll(retardoCoberturaMicros, TimeUnit.MICROSECONDS);
+                    if (listo == null) {
+                        coberturaDecidida = true;
+                        if (consumirCredito()) {
+                            coberturasEnviadas.incrementAndGet();
+                            huboCobertura = true;
+                            enCurso.add(lanzar(ecs, candidatos.get(siguiente++), intento, true));
+                            pendientes++;
+                        } else {
+                            coberturasDenegadas.incrementAndGet();
+                        }
+                        continue;
+                    }
+                } else {
+                    listo = ecs.take();
+                }
+                pendientes--;
+                Resultado r = listo.get();
+                if (r.respuesta != null) {
+                    registrarLatencia(r.nanos / 1000);
+                    if (huboCobertura) {
+                        (r.intento.esCobertura ? coberturasGanadoras : primariasGanadoras).incrementAndGet();
+                    }
+                    cancelarRestantes(enCurso, r.intento);
+                    return r.respuesta;
+                }
+                manejadorFallo.alFallar(r.intento.workerId, r.error);
+                if (pendientes == 0 && siguiente < candidatos.size()) {
+                    // Failover: nada más en curso, probar con el siguiente candidato
+                    enCurso.add(lanzar(ecs, candidatos.get(siguiente++), intento, false));
+                    pendientes++;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            cancelarRestantes(enCurso, null);
+        } catch (ExecutionException e) {
+            // Los intentos capturan sus propias excepciones; no debería ocurrir.
+            System.err.println("LecturaCubierta: Error inesperado en intento de lectura: " + e.getCause());
+            cancelarRestantes(enCurso, null);
+        }
+        return null;
+    }
+
+    private static Intento lanzar(ExecutorCompletionService<Resultado> ecs, String workerId,
+            IntentoLectura intentoLectura, boolean esCobertura) {
+        Intento intento = new Intento(workerId, esCobertura);
+        intento.futuro = ecs.submit(() -> {
+            long t0 = System.nanoTime();
+            try {
+                Respuesta resp = intentoLectura.ejecutar(workerId, intento.socket);
+                return new Resultado(intento, resp, null, System.nanoTime() - t0);
+            } catch (Exception e) {
+                return new Resultado(intento, null, e, System.nanoTime() - t0);
+            }
+        });
+        return intento;
+    }
+
+    private static void cancelarRestantes(List<Intento> enCurso, Intento ganador) {
+        for (Intento i : enCurso) {
+            if (i == ganador || i.futuro.isDone()) {
+                continue;
+            }
+            i.futuro.cancel(true);
+            Socket s = i.socket.get();
+            if (s != null) {
+                try {
+                    s.close(); // Desbloquea el readObject del intento perdedor
+                } catch (IOException e) {
+                    /* Silenciado */ }
+            }
+        }
+    }
+
+    private static synchronized void registrarLatencia(long micros) {
+        ventanaLatencias[posVentana] = micros;
+        posVentana = (posVentana + 1) % TAM_VENTANA;
+        muestras++;
+        if (muestras >= MIN_MUESTRAS && muestras % RECALCULAR_CADA == 0) {
+            int tam = Math.min(muestras, TAM_VENTANA);
+            long[] copia = Arrays.copyOf(ventanaLatencias, tam);
+            Arrays.sort(copia);
+            long p = copia[Math.min(tam - 1, (int) Math.ceil(PERCENTIL_COBERTURA * tam) - 1)];
+            retardoCoberturaMicros = Math.max(RETARDO_MINIMO_MICROS, p);
+        }
+    }
+
+    private static synchronized void ganarCredito() {
+        creditos = Math.min(MAX_CREDITOS, creditos + TASA_MAXIMA_COBERTURAS);
+    }
+
+    private static synchronized boolean consumirCredito() {
+        if (creditos >= 1.0) {
+            creditos -= 1.0;
+            return true;
+        }
+        return false;
+    }
+
+    public static String resumen() {
+        return "lecturas=" + lecturas.get() + ", coberturasEnviadas=" + coberturasEnviadas.get()
+                + ", coberturasGanadoras=" + coberturasGanadoras.get() + ", primariasGanadoras="
+                + primariasGanadoras.get() + ", coberturasDenegadas=" + coberturasDenegadas.get()
+                + ", retardoCoberturaMs=" + (retardoCoberturaMicros / 1000.0);
+    }
+}
@@ -2,42 +2,111 @@ package centralserver;
 
 import java.io.EOFException;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+import java.util.function.IntToDoubleFunction;
+import java.util.function.IntUnaryOperator;
+import java.util.function.Supplier;
 // import java.util.StringBuilder;
 // import commons.*; // Importará las clases de commons cuando sea necesario
 import commons.Solicitud; // Importar Solicitud
 import commons.Respuesta; // Importar Respuesta
 import commons.EstadoOperacion; // Importar EstadoOperacion
+import commons.FlujoMensajes;
+import commons.Metricas;
+import commons.NivelConsistencia;
 import commons.TipoOperacion;
+import commons.Transferencia;
 import commons.InfoWorker; // Importar InfoWorker
 
 // package centralserver; // Eliminado para simplificar
 
 public class ManejadorClienteServidor implements Runnable {
+        private static final int MAX_INTENTOS_ARQUEO = 3;
+        // Solicitudes con idSolicitud: se atienden en paralelo, como mucho
+        // MAX_EN_VUELO_POR_CONEXION a la vez por conexión
+        private static final int MAX_EN_VUELO_POR_CONEXION = Integer.getInteger("banco.pipeline.maxEnVuelo", 32);
+        private static final ExecutorService poolSolicitudes = Executors.newFixedThreadPool(
+                        Integer.getInteger("banco.pipeline.hilos", 64), r -> {
+                                Thread t = new Thread(r, "solicitud-cliente");
+                                t.setDaemon(true);
+                                return t;
+                        });
+
+        private static final int MAX_TRANSFERENCIAS_POR_LOTE = Integer.getInteger("banco.lote.maxTransferencias",
+                        100000);
+        // Llamadas a workers de TRANSFERIR_LOTE: una por partición, en paralelo
+        private static final ExecutorService poolLotes = Executors.newFixedThreadPool(
+                        Integer.getInteger("banco.lote.hilos", 8), r -> {
+                                Thread t = new Thread(r, "lote-particion");
+                                t.setDaemon(true);
+                                return t;
+                        });
+
+        // Transferencias optimistas: TRANSFERIR_FONDOS no retiene cerrojos de cuentas durante
+        // las llamadas a workers. No hacen falta: la retención de PREPARAR_DEBITO impide gastar
+        // dos veces el mismo saldo y las versiones ordenan las réplicas. Con false se usan los
+        // CerrojosCuentas.
+        private static final boolean TRANSFERENCIAS_OPTIMISTAS = Boolean
+                        .parseBoolean(System.getProperty("banco.transferencias.optimistas", "true"));
+        // Veces que se envía un paso de confirmación si el worker está saturado. Antes de las
+        // retenciones, banco.transferencias.maxIntentos contaba los reintentos por conflicto de
+        // versión; ya no se lee.
+        private static final int MAX_INTENTOS_CONFIRMACION = Integer.getInteger("banco.transferencias.maxReenvios", 5);
+        private static final int TIMEOUT_REPLICA_MS = 5000;
+        // Replicación en cadena: el worker que aplica una escritura la pasa a la siguiente
+        // réplica de la partición, esa a la siguiente, etc. (ver cadenasDeReplicacion).
+        // Con false el servidor central envía los saldos a cada réplica.
+        private static final boolean REPLICACION_EN_CADENA = Boolean
+                        .parseBoolean(System.getProperty("banco.replicacion.cadena", "true"));
+        // Escrituras por quórum: se confirman en cuanto las tiene la mayoría de las réplicas
+        // de la partición (el primario, que las ordena, y las siguientes de su cadena); las
+        // demás se actualizan sin esperarlas (ver diferirReplica). Con false se espera a todas.
+        private static final boolean ESCRITURAS_POR_QUORUM = Boolean
+                        .parseBoolean(System.getProperty("banco.replicacion.quorum", "true"));
+        // Llamadas a workers en paralelo de una transferencia (las dos rondas y la replicación)
+        private static final ExecutorService poolLlamadasWorker = Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(r, "llamada-worker");
+                t.setDaemon(true);
+                return t;
+        });
+
         private Socket socketCliente;
-        private ObjectOutputStream oos;
-        private ObjectInputStream ois;
+        private FlujoMensajes flujo;
         private boolean activo;
         private ServidorCentral servidorCentralInstance; // Necesario para acceder a métodos no estáticos si es el caso
+        private final Semaphore enVuelo = new Semaphore(MAX_EN_VUELO_POR_CONEXION);
 
         public ManejadorClienteServidor(Socket socketCliente, ServidorCentral servidorCentralInstance) {
                 this.socketCliente = socketCliente;
                 this.servidorCentralInstance = servidorCentralInstance; // Guardar la instancia
                 this.activo = true;
                 try {
-                        // Importante: Crear ObjectOutputStream ANTES de ObjectInputStream para evitar
-                        // bloqueos
-                        this.oos = new ObjectOutputStream(socketCliente.getOutputStream());
-                        this.ois = new ObjectInputStream(socketCliente.getInputStream());
-                        System.out.println("ManejadorCliente: Streams creados para " + socketCliente.getInetAddress());
+                        // Espera los primeros bytes del cliente para saber si habla binario o Java
+                        this.flujo = FlujoMensajes.aceptar(socketCliente);
+                        System.out.println("ManejadorCliente: Streams creados para " + socketCliente.getInetAddress()
+                                        + (flujo.isBinario() ? " (binario)" : ""));
                 } catch (IOException e) {
                         System.err.println("ManejadorCliente: Error al crear streams para "
                                         + socketCliente.getInetAddress() + ": "
@@ -57,7 +126,7 @@ public class ManejadorClienteServidor implements Runnable {
 
                 try {
                         while (activo) {
-                                Object objetoRecibido = ois.readObject();
+                                Object objetoRecibido = flujo.leer();
                                 if (objetoRecibido instanceof Solicitud) {
                                         Solicitud solicitud = (Solicitud) objetoRecibido;
                                         System.out.println("Solicitud recibida de ["
@@ -65,18 +134,14 @@ public class ManejadorClienteServidor implements Runnable {
                                                         + "]: " + solicitud.getTipoOperacion() + " con parámetros: "
                                                         + solicitud.getParametros());
 
-                                        Respuesta respuestaCliente;
-                                        if (solicitud.getTipoOperacion() == TipoOperacion.CONSULTAR_SALDO) {
-                                                respuestaCliente = procesarConsultaSaldo(solicitud);
-                                        } else if (solicitud.getTipoOperacion() == TipoOperacion.TRANSFERIR_FONDOS) {
-                                                respuestaCliente = procesarTransferenciaFondos(solicitud);
-                                        } else if (solicitud.getTipoOperacion() == TipoOperacion.ARQUEO_CUENTAS) {
-                                                respuestaCliente = procesarArqueoCuentas(solicitud);
+                                        if (solicitud.getIdSolicitud() != 0) {
+                                                atenderEnParalelo(solicitud);
                                         } else {
-                                                respuestaCliente = new Respuesta(EstadoOperacion.ERROR_GENERAL_SERVIDOR,
-                                                                "Operación no reconocida por el servidor.", null);
+                                                // Sin idSolicitud el cliente espera cada respuesta antes de enviar más
+                                                CompletableFuture<Respuesta> respuesta = new CompletableFuture<>();
+                                                atender(solicitud, respuesta::complete);
+                                                enviarRespuesta(respuesta.get());
                                         }
-                                        enviarRespuesta(respuestaCliente);
                                 } else {
                                         System.err.println(
                                                         "Objeto recibido no es de tipo Solicitud: " + objetoRecibido);
@@ -100,11 +165,129 @@ public class ManejadorClienteServidor implements Runnable {
                 } catch (ClassNotFoundException e) {
                         System.err.println("ManejadorCliente: Error ClassNotFoundException con cliente "
                                         + socketCliente.getInetAddress().getHostAddress() + ": " + e.getMessage());
+                } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                } catch (ExecutionException e) {
+                        System.err.println("ManejadorCliente: Error inesperado al procesar solicitud: " + e.getCause());
                 } finally {
                         cerrarRecursos();
                 }
         }
 
+        private Respuesta procesarSolicitud(Solicitud solicitud) {
+                if (solicitud.getTipoOperacion() == TipoOperacion.CONSULTAR_SALDO) {
+                        return procesarConsultaSaldo(solicitud);
+                } else if (solicitud.getTipoOperacion() == TipoOperacion.TRANSFERIR_FONDOS) {
+                        return procesarTransferenciaFondos(solicitud);
+                } else if (solicitud.getTipoOperacion() == TipoOperacion.TRANSFERIR_LOTE) {
+                        return procesarTransferenciaLote(solicitud);
+                } else if (solicitud.getTipoOperacion() == TipoOperacion.ARQUEO_CUENTAS) {
+                        return procesarArqueoCuentas(solicitud);
+                }
+                return new Respuesta(EstadoOperacion.ERROR_GENERAL_SERVIDOR,
+                                "Operación no reconocida por el servidor.", null);
+        }
+
+        /**
+         * Pasa la solicitud por el ControlAdmision de su tipo de operación y la procesa
+         * en poolSolicitudes cuando le toque. Si no hay sitio ni en su cola, responde
+         * SERVIDOR_OCUPADO enseguida, desde el hilo que llama.
+         */
+        private void atender(Solicitud solicitud, Consumer<Respuesta> responder) {
+                // Latencia desde que se leyó hasta que se responde, contando la espera en admisión
+                long inicioNs = System.nanoTime();
+                Consumer<Respuesta> alResponder = respuesta -> {
+                        Metricas.registrarSolicitud("banco_solicitud", solicitud.getTipoOperacion(),
+                                        respuesta.getEstado(), System.nanoTime() - inicioNs);
+                        responder.accept(respuesta);
+                };
+                if (solicitud.getTipoOperacion() == null) {
+                        poolSolicitudes.execute(() -> alResponder.accept(procesarProtegido(solicitud)));
+                        return;
+                }
+                // Lo que está en la caché no va a ningún worker: se responde sin pasar por la admisión
+                Respuesta desdeCache = respuestaDesdeCache(solicitud);
+                if (desdeCache != null) {
+                        alResponder.accept(desdeCache);
+                        return;
+                }
+                ControlAdmision control = ControlAdmision.para(solicitud.getTipoOperacion());
+                boolean admitida = control.admitir(new ControlAdmision.Tarea() {
+                        @Override
+                        public boolean ejecutar() {
+                                Respuesta respuesta = procesarProtegido(solicitud);
+                                alResponder.accept(respuesta);
+                                // Los errores de negocio (saldo insuficiente...) no indican sobrecarga; un
+                                // worker saturado o con el circuito abierto (SERVIDOR_OCUPADO) sí
+                                EstadoOperacion estado = respuesta.getEstado();
+                                return estado != EstadoOperacion.ERROR_COMUNICACION
+                                                && estado != EstadoOperacion.ERROR_REINTENTAR_EN_OTRO_NODO
+                                                && estado != EstadoOperacion.SERVIDOR_OCUPADO;
+                        }
+
+                        @Override
+                        public void rechazar(long reintentarEnMs) {
+                                alResponder.accept(respuestaOcupado(control, reintentarEnMs));
+                        }
+                }, poolSolicitudes);
+                if (!admitida) {
+                        alResponder.accept(respuestaOcupado(control, control.sugerenciaReintentoMs()));
+                }
+        }
+
+        /**
+         * Respuesta de una CONSULTAR_SALDO cuyo saldo está en CacheSaldos, o null si hay que
+         * ir a un worker. Vale para cualquier NivelConsistencia: la caché recibe el saldo de
+         * cada escritura confirmada antes de que se responda.
+         */
+        private static Respuesta respuestaDesdeCache(Solicitud solicitud) {
+                if (solicitud.getTipoOperacion() != TipoOperacion.CONSULTAR_SALDO
+                                || !(solicitud.getParametros().get("ID_CUENTA") instanceof Integer idCuenta)) {
+                        return null;
+                }
+                Double saldoEnCache = CacheSaldos.obtener(idCuenta);
+                return saldoEnCache == null ? null
+                                : new Respuesta(EstadoOperacion.EXITO, "Saldo: " + saldoEnCache, saldoEnCache);
+        }
+
+        private Respuesta procesarProtegido(Solicitud solicitud) {
+                try {
+                        return procesarSolicitud(solicitud);
+                } catch (RuntimeException e) {
+                        System.err.println("ManejadorCliente: Error al procesar " + solicitud + ": " + e);
+                        return new Respuesta(EstadoOperacion.ERROR_GENERAL_SERVIDOR,
+                                        "Error interno al procesar la solicitud.", null);
+                }
+        }
+
+        private static Respuesta respuestaOcupado(ControlAdmision control, long reintentarEnMs) {
+                return new Respuesta(EstadoOperacion.SERVIDOR_OCUPADO, "Servidor ocupado (" + control.getTipo()
+                                + "). Reintente en " + reintentarEnMs + " ms.", reintentarEnMs);
+        }
+
+        /**
+         * Atiende la solicitud sin esperar su respuesta y sigue leyendo la siguiente. La
+         * respuesta lleva el idSolicitud y puede salir antes que la de solicitudes
+         * anteriores. Si la conexión ya tiene MAX_EN_VUELO_POR_CONEXION en curso, se
+         * deja de leer hasta que termine alguna.
+         */
+        private void atenderEnParalelo(Solicitud solicitud) throws InterruptedException {
+                enVuelo.acquire();
+                try {
+                        atender(solicitud, respuesta -> {
+                                try {
+                                        respuesta.setIdSolicitud(solicitud.getIdSolicitud());
+                                        enviarRespuesta(respuesta);
+                                } finally {
+                                        enVuelo.release();
+                                }
+                        });
+                } catch (RejectedExecutionException e) {
+                        enVuelo.release();
+                        throw e;
+                }
+        }
+
         private Respuesta procesarConsultaSaldo(Solicitud solicitudCliente) {
                 System.out.println("ManejadorCliente: Procesando CONSULTAR_SALDO para: "
                                 + solicitudCliente.getParametros());
@@ -115,8 +298,62 @@ public class ManejadorClienteServidor implements Runnable {
                                         "ID_CUENTA no proporcionado en la solicitud.",
                                         null);
                 }
+                NivelConsistencia nivel = solicitudCliente.getParametros()
+                                .get("CONSISTENCIA") instanceof NivelConsistencia pedido ? pedido
+                                                : NivelConsistencia.LINEALIZABLE;
+                Long versionMinima = (Long) solicitudCliente.getParametros().get("VERSION_MINIMA");
+                Long antiguedadMaxMs = (Long) solicitudCliente.getParametros().get("ANTIGUEDAD_MAX_MS");
+
+                // La versión se toma antes de ir al worker: si una transferencia empieza
+                // mientras tanto, este saldo ya no se guarda en la caché
+                long versionCache = CacheSaldos.version(idCuenta);
+                String idParticion = entrarEnParticionesDeCuentas(idCuenta)[0];
+                try {
+                        Respuesta respuesta = consultarSaldoEnParticion(idCuenta, idParticion, nivel, versionMinima,
+                                        antiguedadMaxMs);
+                        // Lo que se lee de una réplica que puede ir atrasada no se guarda en la caché
+                        if (nivel == NivelConsistencia.LINEALIZABLE && respuesta.getEstado() == EstadoOperacion.EXITO
+                                        && respuesta.getDatos() instanceof Double) {
+                                CacheSaldos.guardarLeido(idCuenta, (Double) respuesta.getDatos(), versionCache);
+                        }
+                        return respuesta;
+                } finally {
+                        CercoParticiones.salir(idParticion);
+                }
+        }
 
-                String idParticion = ServidorCentral.cuentaAParticion.get(idCuenta);
+        /**
+         * Resuelve la partición de cada cuenta y entra en su cerco, repitiendo si una
+         * división de particiones cambió el enrutamiento mientras se esperaba. Las
+         * cuentas sin partición quedan a null. El llamador debe hacer
+         * CercoParticiones.salir(...) con el resultado.
+         */
+        private static String[] entrarEnParticionesDeCuentas(int... idsCuenta) {
+                while (true) {
+                        String[] particiones = new String[idsCuenta.length];
+                        for (int i = 0; i < idsCuenta.length; i++) {
+                                particiones[i] = ServidorCentral.particionDeCuenta(idsCuenta[i]);
+                        }
+                        CercoParticiones.entrar(particiones);
+                        boolean vigente = true;
+                        for (int i = 0; i < idsCuenta.length && vigente; i++) {
+                                vigente = Objects.equals(particiones[i],
+                                                ServidorCentral.particionDeCuenta(idsCuenta[i]));
+                        }
+                        if (vigente) {
+                                for (String p : particiones) {
+                                        if (p != null) {
+                                                DivisorParticiones.registrarAcceso(p);
+                                        }
+                                }
+                                return particiones;
+                        }
+                        CercoParticiones.salir(particiones);
+                }
+        }
+
+        private Respuesta consultarSaldoEnParticion(int idCuenta, String idParticion, NivelConsistencia nivel,
+                        Long versionMinima, Long antiguedadMaxMs) {
                 if (idParticion == null) {
                         System.err.println("ManejadorCliente: No se encontró partición para ID_CUENTA: " + idCuenta);
                         return new Respuesta(EstadoOperacion.ERROR_CUENTA_ORIGEN_NO_EXISTE,
@@ -134,102 +371,38 @@ public class ManejadorClienteServidor implements Runnable {
 
                 // Copiar la lista para iterar de forma segura si la original se modifica (ej.
                 // desregistrarWorker)
-                List<String> workersAIterar = new ArrayList<>(idsWorkersConParticion);
-
-                for (String workerId : workersAIterar) {
+                List<String> asignados = new ArrayList<>(idsWorkersConParticion);
+                List<String> candidatos = new ArrayList<>();
+                for (String workerId : asignados) {
                         InfoWorker infoWorker = ServidorCentral.workersActivos.get(workerId);
                         if (infoWorker != null && infoWorker.isActivo()) {
-                                System.out.println("ManejadorCliente: Intentando CONSULTAR_SALDO de cta " + idCuenta
-                                                + " en worker "
-                                                + workerId + " (" + infoWorker.getHost() + ":"
-                                                + infoWorker.getPuertoTareas() + ")");
-
-                                try (Socket socketAlWorker = new Socket(infoWorker.getHost(),
-                                                infoWorker.getPuertoTareas());
-                                                ObjectOutputStream oosWorker = new ObjectOutputStream(
-                                                                socketAlWorker.getOutputStream());
-                                                ObjectInputStream oisWorker = new ObjectInputStream(
-                                                                socketAlWorker.getInputStream())) {
-
-                                        socketAlWorker.setSoTimeout(10000); // Timeout de 10 segundos para la operación
-                                                                            // con el worker
-
-                                        // Crear una Solicitud para el worker (no MensajeWorker tipo NUEVA_TAREA aquí,
-                                        // ya que el worker escucha directamente Solicitud)
-                                        Map<String, Object> paramsParaWorker = Map.of("ID_CUENTA", idCuenta,
-                                                        "ID_PARTICION", idParticion);
-                                        Solicitud solicitudAWorker = new Solicitud(TipoOperacion.CONSULTAR_SALDO,
-                                                        paramsParaWorker);
-
-                                        oosWorker.writeObject(solicitudAWorker);
-                                        oosWorker.flush();
-                                        System.out.println(
-                                                        "ManejadorCliente: Solicitud CONSULTAR_SALDO enviada a worker "
-                                                                        + workerId);
-
-                                        Object respuestaObj = oisWorker.readObject();
-                                        if (respuestaObj instanceof Respuesta) {
-                                                Respuesta respuestaDeWorker = (Respuesta) respuestaObj;
-                                                System.out.println("ManejadorCliente: Respuesta recibida de worker "
-                                                                + workerId + ": "
-                                                                + respuestaDeWorker.getEstado() + " - "
-                                                                + respuestaDeWorker.getMensaje());
-
-                                                // Si el worker procesó la solicitud (con éxito o error de negocio),
-                                                // usamos esa
-                                                // respuesta.
-                                                if (respuestaDeWorker.getEstado() == EstadoOperacion.EXITO ||
-                                                                respuestaDeWorker
-                                                                                .getEstado() == EstadoOperacion.ERROR_CUENTA_ORIGEN_NO_EXISTE) {
-                                                        return respuestaDeWorker;
-                                                } else {
-                                                        System.err.println("ManejadorCliente: Worker " + workerId
-                                                                        + " devolvió un error funcional: "
-                                                                        + respuestaDeWorker.getEstado() + " - "
-                                                                        + respuestaDeWorker.getMensaje());
-                                                        // Si es un error general del worker, podríamos intentar con
-                                                        // otro si la lista
-                                                        // 'workersAIterar' tuviera más y estuviéramos en un bucle de
-                                                        // reintento.
-                                                        // Por ahora, si no es EXITO o CUENTA_NO_EXISTE (que es una
-                                                        // respuesta válida),
-                                                        // devolvemos el error del worker.
-                                                        return respuestaDeWorker;
-                                                }
-                                        } else {
-                                                System.err.println("ManejadorCliente: Respuesta inesperada de worker "
-                                                                + workerId + ". Tipo: "
-                                                                + respuestaObj.getClass().getName());
-                                                // Continuar al siguiente worker si hay un error de formato de respuesta
-                                        }
-
-                                } catch (SocketTimeoutException e) {
-                                        System.err.println("ManejadorCliente: Timeout al comunicarse con worker "
-                                                        + workerId
-                                                        + " para CONSULTAR_SALDO. Desregistrando worker.");
-                                        ServidorCentral.desregistrarWorker(workerId); // Asumir que el worker está caído
-                                                                                      // o inaccesible
-                                        // Continuar al siguiente worker en la lista
-                                } catch (IOException e) {
-                                        System.err.println("ManejadorCliente: Error de IO al comunicarse con worker "
-                                                        + workerId + ": "
-                                                        + e.getMessage() + ". Desregistrando worker.");
-                                        ServidorCentral.desregistrarWorker(workerId); // Asumir que el worker está caído
-                                        // Continuar al siguiente worker en la lista
-                                } catch (ClassNotFoundException e) {
-                                        System.err.println(
-                                                        "ManejadorCliente: Error ClassNotFound al recibir respuesta de worker "
-                                                                        + workerId + ": " + e.getMessage());
-                                        // Esto es un error grave, no continuar con otros workers para esta solicitud.
-                                        return new Respuesta(EstadoOperacion.ERROR_GENERAL_SERVIDOR,
-                                                        "Error de formato en respuesta del worker (ClassNotFound)",
-                                                        null);
-                                }
+                                candidatos.add(workerId);
                         } else {
                                 System.out.println("ManejadorCliente: Worker " + workerId
-                                                + " no encontrado en activos o marcado como inactivo. Intentando siguiente si hay.");
+                                                + " no encontrado en activos o marcado como inactivo. Se omite.");
                         }
                 }
+
+                candidatos = candidatosParaLectura(idParticion, asignados, candidatos, nivel, antiguedadMaxMs);
+                if (candidatos.isEmpty()) {
+                        System.err.println("ManejadorCliente: Ninguna réplica activa de la partición " + idParticion
+                                        + " puede atender una lectura " + nivel + ".");
+                        return new Respuesta(EstadoOperacion.ERROR_REINTENTAR_EN_OTRO_NODO,
+                                        "Ninguna réplica activa de la partición " + idParticion
+                                                        + " puede atender una lectura " + nivel + ".",
+                                        null);
+                }
+                // Lectura cubierta: si la primera réplica tarda más que el p95 reciente, se
+                // consulta otra y gana la primera respuesta. Si una falla, se pasa a la siguiente.
+                Respuesta respuestaDeWorker = LecturaCubierta.leer(candidatos,
+                                (workerId, socketEnCurso) -> consultarSaldoEnWorker(workerId, idCuenta, idParticion,
+                                                versionMinima, socketEnCurso),
+                                this::manejarFalloConsultaSaldo);
+                if (respuestaDeWorker != null) {
+                        // Si el worker procesó la solicitud (con éxito o error de negocio), usamos esa
+                        // respuesta.
+                        return respuestaDeWorker;
+                }
                 // Si se intentó con todos los workers disponibles para la partición y ninguno
                 // respondió exitosamente o dio una respuesta definitiva
                 System.err.println("ManejadorCliente: No se pudo completar CONSULTAR_SALDO para cuenta " + idCuenta
@@ -240,6 +413,123 @@ public class ManejadorClienteServidor implements Runnable {
                                 null);
         }
 
+        /**
+         * Réplicas activas que pueden atender una lectura con el nivel pedido, de la más
+         * barata a la más cara:
+         * - LINEALIZABLE: las del quórum (el primario y las siguientes de su cadena), que
+         * tienen todas las escrituras confirmadas, empezando por el primario. El quórum se
+         * toma de la lista de réplicas asignadas y luego se quitan las inactivas: una
+         * réplica de fuera del quórum no sustituye a una caída. Si no queda ninguna, la
+         * lista vuelve vacía y la lectura falla.
+         * - LEER_MIS_ESCRITURAS: todas, empezando por la última y con el primario al final.
+         * La que aún no tenga VERSION_MINIMA lo dice y se pasa a la siguiente.
+         * - ANTIGUEDAD_ACOTADA: igual, pero de fuera del quórum solo las que no llevan más
+         * de ANTIGUEDAD_MAX_MS de retraso (MetricasReplicacion.getRetrasoMs).
+         */
+        private static List<String> candidatosParaLectura(String idParticion, List<String> asignados,
+                        List<String> activos, NivelConsistencia nivel, Long antiguedadMaxMs) {
+                List<String> delQuorum = activos;
+                if (ESCRITURAS_POR_QUORUM) {
+                        delQuorum = new ArrayList<>(
+                                        asignados.subList(0, Math.min(asignados.size(), quorum(idParticion))));
+                        delQuorum.retainAll(activos);
+                }
+                if (nivel == NivelConsistencia.LINEALIZABLE) {
+                        return new ArrayList<>(delQuorum);
+                }
+                List<String> candidatos = new ArrayList<>(activos).reversed();
+                if (nivel == NivelConsistencia.ANTIGUEDAD_ACOTADA) {
+                        MetricasReplicacion metricas = MetricasReplicacion.para(idParticion);
+                        for (String w : activos) {
+                                if (!delQuorum.contains(w) && (antiguedadMaxMs == null
+                                                || metricas.getRetrasoMs(w) > antiguedadMaxMs)) {
+                                        candidatos.remove(w);
+                                }
+                        }
+                }
+                return candidatos;
+        }
+
+        private Respuesta consultarSaldoEnWorker(String workerId, int idCuenta, String idParticion,
+                        Long versionMinima, AtomicReference<Socket> socketEnCurso)
+                        throws IOException, ClassNotFoundException {
+                System.out.println("ManejadorCliente: Intentando CONSULTAR_SALDO de cta " + idCuenta + " en worker "
+                                + workerId);
+                // Crear una Solicitud para el worker (no MensajeWorker tipo NUEVA_TAREA aquí,
+                // ya que el worker escucha directamente Solicitud)
+                Map<String, Object> paramsParaWorker = new HashMap<>(
+                                Map.of("ID_CUENTA", idCuenta, "ID_PARTICION", idParticion));
+                if (versionMinima != null) {
+                        paramsParaWorker.put("VERSION_MINIMA", versionMinima);
+                }
+                // Timeout de último recurso; normalmente la cobertura responde mucho antes
+                Respuesta respuestaDeWorker = CanalWorker.enviar(workerId,
+                                new Solicitud(TipoOperacion.CONSULTAR_SALDO, paramsParaWorker), 10000, socketEnCurso);
+                if (respuestaDeWorker != null
+                                && respuestaDeWorker.getEstado() == EstadoOperacion.ERROR_REINTENTAR_EN_OTRO_NODO) {
+                        // Réplica atrasada respecto a la versión que pidió el cliente: probar la siguiente
+                        System.out.println("ManejadorCliente: Worker " + workerId + " atrasado: "
+                                        + respuestaDeWorker.getMensaje());
+                        return null;
+                }
+                if (respuestaDeWorker != null) {
+                        System.out.println("ManejadorCliente: Respuesta recibida de worker " + workerId + ": "
+                                        + respuestaDeWorker.getEstado() + " - " + respuestaDeWorker.getMensaje());
+                } else {
+                        System.err.println("ManejadorCliente: Respuesta inesperada de worker " + workerId);
+                }
+                return respuestaDeWorker; // null: se continúa con el siguiente worker
+        }
+
+        private void manejarFalloConsultaSaldo(String workerId, Exception e) {
+                manejarFalloWorker(workerId, e, "CONSULTAR_SALDO");
+        }
+
+        /**
+         * Política común ante un fallo al llamar a un worker: si el circuito estaba
+         * abierto no se hace nada; un timeout solo cuenta en el InterruptorCircuito
+         * (el worker puede estar lento, no caído); un error de conexión lo desregistra.
+         */
+        private static void manejarFalloWorker(String workerId, Exception e, String logContext) {
+                if (e instanceof CanalWorker.WorkerNoDisponibleException) {
+                        System.out.println("ManejadorCliente [" + logContext + "]: Worker " + workerId
+                                        + " omitido: " + e.getMessage());
+                } else if (e instanceof SocketTimeoutException) {
+                        System.err.println("ManejadorCliente [" + logContext + "]: Timeout con worker " + workerId
+                                        + ". Registrado en su circuito.");
+                } else if (e instanceof IOException) {
+                        System.err.println("ManejadorCliente [" + logContext + "]: Error de IO con worker " + workerId
+                                        + ": " + e.getMessage() + ". Desregistrando worker.");
+                        ServidorCentral.desregistrarWorker(workerId); // Asumir que el worker está caído
+                } else if (e != null) {
+                        System.err.println("ManejadorCliente [" + logContext + "]: Error al recibir respuesta de worker "
+                                        + workerId + ": " + e.getMessage());
+                }
+        }
+
+        private static void esperarRegistroDurable(CompletableFuture<Void> durable, int idTransaccionGlobal) {
+                try {
+                        durable.join();
+                } catch (CompletionException e) {
+                        // La transferencia ya se aplicó; solo se avisa de que su registro pudo perderse.
+                        System.err.println("ManejadorCliente [Tx:" + idTransaccionGlobal
+                                        + "]: No se pudo confirmar en disco el registro de la transacción: "
+                                        + e.getCause());
+                }
+        }
+
+        /** Espera a que el registro del diario esté en disco; false si no se pudo escribir. */
+        private static boolean esperarDiario(CompletableFuture<Void> durable, int idTransaccionGlobal) {
+                try {
+                        durable.join();
+                        return true;
+                } catch (CompletionException e) {
+                        System.err.println("ManejadorCliente [Tx:" + idTransaccionGlobal
+                                        + "]: No se pudo escribir en el diario de transferencias: " + e.getCause());
+                        return false;
+                }
+        }
+
         private Respuesta procesarTransferenciaFondos(Solicitud solicitudCliente) {
                 System.out.println("ManejadorCliente: Procesando TRANSFERIR_FONDOS para: "
                                 + solicitudCliente.getParametros());
@@ -273,8 +563,46 @@ public class ManejadorClienteServidor implements Runnable {
                                         "Cuenta origen y destino no pueden ser la misma.", null);
                 }
 
-                String particionOrigen = ServidorCentral.cuentaAParticion.get(idCuentaOrigen);
-                String particionDestino = ServidorCentral.cuentaAParticion.get(idCuentaDestino);
+                // Sin transferencias optimistas, hasta que termine (replicación incluida) nadie más
+                // escribe estas cuentas
+                if (!TRANSFERENCIAS_OPTIMISTAS) {
+                        CerrojosCuentas.bloquear(idCuentaOrigen, idCuentaDestino);
+                }
+                try {
+                        String[] particiones = entrarEnParticionesDeCuentas(idCuentaOrigen, idCuentaDestino);
+                        // Las cuentas sin saldo confirmado al terminar (fallo o resultado incierto) se
+                        // invalidan en la caché
+                        CacheSaldos.Escritura escrituraCache = CacheSaldos.iniciarEscritura(idCuentaOrigen,
+                                        idCuentaDestino);
+                        try {
+                                ServidorCentral.marcarParticionModificada(particiones[0]);
+                                ServidorCentral.marcarParticionModificada(particiones[1]);
+                                long inicio = System.nanoTime();
+                                Respuesta respuesta = transferirEntreParticiones(idTransaccionGlobal, idCuentaOrigen,
+                                                particiones[0], idCuentaDestino, particiones[1], monto, escrituraCache);
+                                if (respuesta.getEstado() == EstadoOperacion.EXITO) {
+                                        long latenciaNs = System.nanoTime() - inicio;
+                                        MetricasReplicacion.para(particiones[0]).registrarConfirmacion(latenciaNs);
+                                        if (!particiones[1].equals(particiones[0])) {
+                                                MetricasReplicacion.para(particiones[1]).registrarConfirmacion(latenciaNs);
+                                        }
+                                }
+                                return respuesta;
+                        } finally {
+                                escrituraCache.terminar();
+                                // Incluye la replicación: la partición no se divide con réplicas a medio actualizar
+                                CercoParticiones.salir(particiones);
+                        }
+                } finally {
+                        if (!TRANSFERENCIAS_OPTIMISTAS) {
+                                CerrojosCuentas.liberar(idCuentaOrigen, idCuentaDestino);
+                        }
+                }
+        }
+
+        private Respuesta transferirEntreParticiones(int idTransaccionGlobal, int idCuentaOrigen,
+                        String particionOrigen, int idCuentaDestino, String particionDestino, double monto,
+                        CacheSaldos.Escritura escrituraCache) {
 
                 if (particionOrigen == null) {
                         ServidorCentral.registrarTransaccionGlobal(idTransaccionGlobal, idCuentaOrigen, idCuentaDestino,
@@ -302,17 +630,17 @@ public class ManejadorClienteServidor implements Runnable {
                         // Caso A: Misma partición
                         return manejarTransferenciaMismaParticion(idTransaccionGlobal, idCuentaOrigen, idCuentaDestino,
                                         monto,
-                                        particionOrigen);
+                                        particionOrigen, escrituraCache);
                 } else {
                         // Caso B: Diferentes particiones
                         return manejarTransferenciaDiferentesParticiones(idTransaccionGlobal, idCuentaOrigen,
                                         particionOrigen,
-                                        idCuentaDestino, particionDestino, monto);
+                                        idCuentaDestino, particionDestino, monto, escrituraCache);
                 }
         }
 
         private Respuesta manejarTransferenciaMismaParticion(int idTransaccionGlobal, int idCtaOrigen, int idCtaDestino,
-                        double monto, String idParticion) {
+                        double monto, String idParticion, CacheSaldos.Escritura escrituraCache) {
                 System.out.println("ManejadorCliente [Tx:" + idTransaccionGlobal + "]: Transferencia intra-partición ("
                                 + idParticion + ").");
                 List<String> idsWorkers = ServidorCentral.particionANodos.get(idParticion);
@@ -333,24 +661,14 @@ public class ManejadorClienteServidor implements Runnable {
                                 System.out.println("ManejadorCliente [Tx:" + idTransaccionGlobal
                                                 + "]: Intentando TRANSFERIR_FONDOS (intra-partición) en worker "
                                                 + workerId);
-                                try (Socket socketAlWorker = new Socket(infoWorker.getHost(),
-                                                infoWorker.getPuertoTareas());
-                                                ObjectOutputStream oosWorker = new ObjectOutputStream(
-                                                                socketAlWorker.getOutputStream());
-                                                ObjectInputStream oisWorker = new ObjectInputStream(
-                                                                socketAlWorker.getInputStream())) {
-                                        socketAlWorker.setSoTimeout(15000);
-                                        Map<String, Object> params = Map.of("ID_CUENTA_ORIGEN", idCtaOrigen,
-                                                        "ID_CUENTA_DESTINO",
-                                                        idCtaDestino, "MONTO", monto, "ID_PARTICION", idParticion,
-                                                        "ID_TRANSACCION_GLOBAL",
-                                                        idTransaccionGlobal);
+                                try {
+                                        Map<String, Object> params = conCadenas(Map.of("ID_CUENTA_ORIGEN",
+                                                        idCtaOrigen, "ID_CUENTA_DESTINO", idCtaDestino, "MONTO", monto,
+                                                        "ID_PARTICION", idParticion, "ID_TRANSACCION_GLOBAL",
+                                                        idTransaccionGlobal), workerId, idParticion);
                                         Solicitud solicitudAWorker = new Solicitud(TipoOperacion.TRANSFERIR_FONDOS,
                                                         params);
-                                        oosWorker.writeObject(solicitudAWorker);
-                                        oosWorker.flush();
-
-                                        Object respuestaObj = oisWorker.readObject();
+                                        Object respuestaObj = CanalWorker.enviar(workerId, solicitudAWorker, 15000);
                                         if (respuestaObj instanceof Respuesta) {
                                                 Respuesta respuestaDeWorker = (Respuesta) respuestaObj;
                                                 System.out.println("ManejadorCliente [Tx:" + idTransaccionGlobal
@@ -364,9 +682,12 @@ public class ManejadorClienteServidor implements Runnable {
                                                         detalleLog += " Datos: "
                                                                         + respuestaDeWorker.getDatos().toString();
                                                 }
-                                                ServidorCentral.registrarTransaccionGlobal(idTransaccionGlobal,
-                                                                idCtaOrigen, idCtaDestino, monto,
-                                                                respuestaDeWorker.getEstado(), detalleLog);
+                                                // El resultado ya está aplicado en el worker: no responder
+                                                // al cliente hasta que su registro esté en disco.
+                                                esperarRegistroDurable(ServidorCentral.registrarTransaccionGlobalDurable(
+                                                                idTransaccionGlobal, idCtaOrigen, idCtaDestino, monto,
+                                                                respuestaDeWorker.getEstado(), detalleLog),
+                                                                idTransaccionGlobal);
 
                                                 if (respuestaDeWorker.getEstado() == EstadoOperacion.EXITO
                                                                 && respuestaDeWorker.getDatos() instanceof Map) {
@@ -377,16 +698,30 @@ public class ManejadorClienteServidor implements Runnable {
                                                                         .get("nuevoSaldoOrigen");
                                                         Double nuevoSaldoDestino = (Double) datosResultado
                                                                         .get("nuevoSaldoDestino");
+                                                        Set<String> alDia = workersAlDia(datosResultado,
+                                                                        idParticion, workerId);
+                                                        List<CompletableFuture<Void>> envios = new ArrayList<>();
                                                         if (nuevoSaldoOrigen != null) {
-                                                                replicarActualizacionSaldo(idParticion, idCtaOrigen,
-                                                                                nuevoSaldoOrigen, idTransaccionGlobal,
-                                                                                workerId);
+                                                                escrituraCache.confirmar(idCtaOrigen, nuevoSaldoOrigen);
+                                                                envios.addAll(replicarActualizacionSaldo(idParticion,
+                                                                                idCtaOrigen, nuevoSaldoOrigen,
+                                                                                (Long) datosResultado.get("versionOrigen"),
+                                                                                idTransaccionGlobal, alDia));
                                                         }
                                                         if (nuevoSaldoDestino != null) {
-                                                                replicarActualizacionSaldo(idParticion, idCtaDestino,
-                                                                                nuevoSaldoDestino, idTransaccionGlobal,
-                                                                                workerId);
+                                                                escrituraCache.confirmar(idCtaDestino, nuevoSaldoDestino);
+                                                                envios.addAll(replicarActualizacionSaldo(idParticion,
+                                                                                idCtaDestino, nuevoSaldoDestino,
+                                                                                (Long) datosResultado.get("versionDestino"),
+                                                                                idTransaccionGlobal, alDia));
                                                         }
+                                                        esperarReplicas(envios);
+                                                        return new Respuesta(EstadoOperacion.EXITO,
+                                                                        respuestaDeWorker.getMensaje(),
+                                                                        tokenVersiones(idCtaOrigen,
+                                                                                        datosResultado.get("versionOrigen"),
+                                                                                        idCtaDestino,
+                                                                                        datosResultado.get("versionDestino")));
                                                 }
                                                 return respuestaDeWorker;
                                         } else {
@@ -400,16 +735,30 @@ public class ManejadorClienteServidor implements Runnable {
                                         } // No se retorna aquí para poder intentar con otro worker si este da una
                                           // respuesta malformada
                                 } catch (SocketTimeoutException e) {
-                                        System.err.println("ManejadorCliente [Tx:" + idTransaccionGlobal
-                                                        + "]: Timeout con worker " + workerId
-                                                        + " para TRANSFERIR_FONDOS (intra-partición). Desregistrando.");
-                                        ServidorCentral.desregistrarWorker(workerId);
+                                        // Tras un timeout el resultado es incierto: el worker pudo aplicar la
+                                        // transferencia. No se reintenta en otra réplica.
+                                        manejarFalloWorker(workerId, e, "Tx:" + idTransaccionGlobal);
+                                        ServidorCentral.registrarTransaccionGlobal(idTransaccionGlobal, idCtaOrigen,
+                                                        idCtaDestino, monto, EstadoOperacion.TRANSACCION_FALLIDA,
+                                                        "Timeout con worker " + workerId + ". Resultado incierto.");
+                                        return new Respuesta(EstadoOperacion.ERROR_COMUNICACION,
+                                                        "Timeout con worker " + workerId
+                                                                        + ". Resultado de la transferencia incierto.",
+                                                        null);
                                 } catch (IOException e) {
-                                        System.err.println("ManejadorCliente [Tx:" + idTransaccionGlobal
-                                                        + "]: Error IO con worker " + workerId
-                                                        + " para TRANSFERIR_FONDOS (intra-partición): " + e.getMessage()
-                                                        + ". Desregistrando.");
-                                        ServidorCentral.desregistrarWorker(workerId);
+                                        manejarFalloWorker(workerId, e, "Tx:" + idTransaccionGlobal);
+                                        if (e instanceof CanalWorker.WorkerNoDisponibleException noDisponible
+                                                        && noDisponible.isSaturado()) {
+                                                // Igual que en enviarSolicitudSubOperacion: no se escribe en una
+                                                // réplica que puede ir atrasada solo porque el primario está ocupado.
+                                                ServidorCentral.registrarTransaccionGlobal(idTransaccionGlobal,
+                                                                idCtaOrigen, idCtaDestino, monto,
+                                                                EstadoOperacion.TRANSACCION_FALLIDA, "Worker " + workerId
+                                                                                + " saturado. Nada aplicado.");
+                                                return new Respuesta(EstadoOperacion.SERVIDOR_OCUPADO, "Worker "
+                                                                + workerId + " saturado. No se aplicó la transferencia.",
+                                                                null);
+                                        }
                                 } catch (ClassNotFoundException e) {
                                         System.err.println("ManejadorCliente [Tx:" + idTransaccionGlobal
                                                         + "]: Error ClassNotFound (TRANSFERIR_FONDOS) de worker "
@@ -434,164 +783,999 @@ public class ManejadorClienteServidor implements Runnable {
                                 null);
         }
 
+        /**
+         * Transferencia entre dos particiones, en dos rondas con los dos workers a la vez:
+         * 1. PREPARAR_DEBITO retiene el monto en la cuenta origen (si hay saldo libre) y
+         * PREPARAR_CREDITO comprueba que la cuenta destino existe.
+         * 2. CONFIRMAR_DEBITO consume la retención, así que no puede quedarse sin saldo,
+         * mientras APLICAR_CREDITO acredita el destino. Si una falla sin dudas (ver
+         * esFalloDefinitivo), la otra se deshace (REVERTIR_DEBITO o REVERTIR_CREDITO); si
+         * su resultado es incierto no se compensa nada: queda decidida en el diario y
+         * RecuperadorTransferencias la termina (o la revierte) en segundo plano.
+         * Si la preparación falla se libera la retención con CANCELAR_DEBITO (si ese
+         * mensaje se pierde, la retención caduca sola en el worker).
+         * Cada paso queda en DiarioTransferencias, y la ronda 2 no empieza hasta que la
+         * decisión está en disco: si este servidor se cae entre medias, al arrancar
+         * RecuperadorTransferencias la termina o la compensa.
+         * Después los saldos finales se envían a todas las réplicas de las dos particiones
+         * a la vez, mientras se escribe el registro durable; la decisión viaja con ellos
+         * (ID de transacción y versión), sin otra ronda de confirmación.
+         * Si el mismo worker es el primario de las dos particiones no hacen falta rondas:
+         * se le envía la transferencia entera (ver transferirEnUnWorker).
+         */
+        @SuppressWarnings("unchecked")
         private Respuesta manejarTransferenciaDiferentesParticiones(int idTransaccionGlobal, int idCtaOrigen,
-                        String pOrigen, int idCtaDestino, String pDestino, double monto) {
+                        String pOrigen, int idCtaDestino, String pDestino, double monto,
+                        CacheSaldos.Escritura escrituraCache) {
                 System.out.println("ManejadorCliente [Tx:" + idTransaccionGlobal
                                 + "]: Transferencia inter-partición (Origen:" + pOrigen + ", Destino:" + pDestino
                                 + ")");
-                Respuesta respFinalCliente;
-                String workerOrigenId = null, workerDestinoId = null;
-                Double saldoFinalOrigen = null, saldoFinalDestino = null;
-
-                // Paso 1: Preparar Débito
-                Respuesta respPrepDebito = enviarSolicitudSubOperacion(pOrigen, TipoOperacion.PREPARAR_DEBITO,
-                                Map.of("ID_CUENTA_ORIGEN", idCtaOrigen, "MONTO", monto, "ID_TRANSACCION_GLOBAL",
-                                                idTransaccionGlobal, "ID_PARTICION", pOrigen),
-                                "PREPARAR_DEBITO Tx:" + idTransaccionGlobal);
-                if (respPrepDebito.getDatos() instanceof Map) {
-                        workerOrigenId = ((Map<String, String>) respPrepDebito.getDatos()).get("workerIdProcesador"); // Asumimos
-                                                                                                                      // que
-                                                                                                                      // el
-                                                                                                                      // worker
-                                                                                                                      // lo
-                                                                                                                      // incluye
-                }
-
-                if (respPrepDebito.getEstado() != EstadoOperacion.DEBITO_PREPARADO_OK) {
+                String primarioOrigen = primarioActivo(pOrigen);
+                if (primarioOrigen != null && primarioOrigen.equals(primarioActivo(pDestino))) {
+                        Respuesta respLocal = transferirEnUnWorker(primarioOrigen, idTransaccionGlobal, idCtaOrigen,
+                                        pOrigen, idCtaDestino, pDestino, monto, escrituraCache);
+                        if (respLocal != null) {
+                                return respLocal;
+                        }
+                        // No se aplicó nada: se sigue con las dos rondas
+                }
+                Map<String, Object> paramsOrigen = Map.of("ID_CUENTA_ORIGEN", idCtaOrigen, "MONTO", monto,
+                                "ID_TRANSACCION_GLOBAL", idTransaccionGlobal, "ID_PARTICION", pOrigen);
+                Map<String, Object> paramsDestino = Map.of("ID_CUENTA_DESTINO", idCtaDestino, "MONTO", monto,
+                                "ID_TRANSACCION_GLOBAL", idTransaccionGlobal, "ID_PARTICION", pDestino);
+
+                // Ronda 1: retener fondos en origen y validar destino
+                DiarioTransferencias.anotar(DiarioTransferencias.Paso.PREPARADA, idTransaccionGlobal, idCtaOrigen,
+                                idCtaDestino, monto);
+                Map<String, Object> paramsRetencion = new HashMap<>(paramsOrigen);
+                paramsRetencion.put("RETENER", true);
+                Respuesta[] preparacion = enviarEnParalelo(
+                                () -> enviarSolicitudSubOperacion(pOrigen, TipoOperacion.PREPARAR_DEBITO,
+                                                paramsRetencion, "PREPARAR_DEBITO Tx:" + idTransaccionGlobal),
+                                () -> enviarSolicitudSubOperacion(pDestino, TipoOperacion.PREPARAR_CREDITO,
+                                                paramsDestino, "PREPARAR_CREDITO Tx:" + idTransaccionGlobal));
+                Respuesta respPrepDebito = preparacion[0];
+                Respuesta respPrepCredito = preparacion[1];
+                boolean debitoPreparado = respPrepDebito.getEstado() == EstadoOperacion.DEBITO_PREPARADO_OK;
+                if (!debitoPreparado || respPrepCredito.getEstado() != EstadoOperacion.CREDITO_PREPARADO_OK) {
+                        if (debitoPreparado) {
+                                enviarSolicitudSubOperacion(pOrigen, TipoOperacion.CANCELAR_DEBITO, paramsOrigen,
+                                                "CANCELAR_DEBITO Tx:" + idTransaccionGlobal);
+                        }
+                        Respuesta fallo = debitoPreparado ? respPrepCredito : respPrepDebito;
+                        DiarioTransferencias.anotar(DiarioTransferencias.Paso.REVERTIDA, idTransaccionGlobal,
+                                        idCtaOrigen, idCtaDestino, monto);
                         ServidorCentral.registrarTransaccionGlobal(idTransaccionGlobal, idCtaOrigen, idCtaDestino,
-                                        monto, respPrepDebito.getEstado(),
-                                        "Fallo PREPARAR_DEBITO: " + respPrepDebito.getMensaje());
-                        return respPrepDebito;
+                                        monto, fallo.getEstado(), "Fallo "
+                                                        + (debitoPreparado ? "PREPARAR_CREDITO" : "PREPARAR_DEBITO")
+                                                        + ": " + fallo.getMensaje() + ". Nada aplicado.");
+                        return fallo;
                 }
                 System.out.println("ManejadorCliente [Tx:" + idTransaccionGlobal + "]: Débito PREPARADO en part "
-                                + pOrigen + " por worker " + workerOrigenId + ". Saldo origen antes: "
-                                + ((Map<String, Object>) respPrepDebito.getDatos()).get("saldoActualOrigen"));
-                saldoFinalOrigen = ((Double) ((Map<String, Object>) respPrepDebito.getDatos()).get("saldoActualOrigen"))
-                                - monto;
-
-                // Paso 2: Aplicar Crédito
-                Respuesta respAplicarCredito = enviarSolicitudSubOperacion(pDestino, TipoOperacion.APLICAR_CREDITO,
-                                Map.of("ID_CUENTA_DESTINO", idCtaDestino, "MONTO", monto, "ID_TRANSACCION_GLOBAL",
-                                                idTransaccionGlobal, "ID_PARTICION", pDestino),
-                                "APLICAR_CREDITO Tx:" + idTransaccionGlobal);
-                if (respAplicarCredito.getDatos() instanceof Map) {
-                        workerDestinoId = ((Map<String, String>) respAplicarCredito.getDatos())
-                                        .get("workerIdProcesador");
-                        saldoFinalDestino = (Double) ((Map<String, Object>) respAplicarCredito.getDatos())
-                                        .get("nuevoSaldoDestino");
-                }
-
-                if (respAplicarCredito.getEstado() != EstadoOperacion.CREDITO_APLICADO_OK) {
-                        System.err.println("ManejadorCliente [Tx:" + idTransaccionGlobal
-                                        + "]: Falló APLICAR_CREDITO en part " + pDestino
-                                        + ". Revertiendo débito en part " + pOrigen);
+                                + pOrigen + " por worker "
+                                + ((Map<String, Object>) respPrepDebito.getDatos()).get("workerIdProcesador")
+                                + ", crédito PREPARADO en part " + pDestino + " por worker "
+                                + ((Map<String, Object>) respPrepCredito.getDatos()).get("workerIdProcesador"));
+
+                // Punto de no retorno: sin la decisión en disco no se aplica nada
+                if (!esperarDiario(DiarioTransferencias.anotarDurable(DiarioTransferencias.Paso.DECIDIDA,
+                                idTransaccionGlobal, idCtaOrigen, idCtaDestino, monto), idTransaccionGlobal)) {
+                        enviarSolicitudSubOperacion(pOrigen, TipoOperacion.CANCELAR_DEBITO, paramsOrigen,
+                                        "CANCELAR_DEBITO Tx:" + idTransaccionGlobal);
+                        DiarioTransferencias.anotar(DiarioTransferencias.Paso.REVERTIDA, idTransaccionGlobal,
+                                        idCtaOrigen, idCtaDestino, monto);
                         ServidorCentral.registrarTransaccionGlobal(idTransaccionGlobal, idCtaOrigen, idCtaDestino,
-                                        monto, EstadoOperacion.TRANSACCION_FALLIDA, "Fallo APLICAR_CREDITO ("
-                                                        + respAplicarCredito.getMensaje() + "). Reintentando débito.");
-
-                        Respuesta respReversion = enviarSolicitudSubOperacion(pOrigen, TipoOperacion.REVERTIR_DEBITO,
-                                        Map.of("ID_CUENTA_ORIGEN", idCtaOrigen, "MONTO", monto, "ID_TRANSACCION_GLOBAL",
-                                                        idTransaccionGlobal, "ID_PARTICION", pOrigen),
-                                        "REVERTIR_DEBITO Tx:" + idTransaccionGlobal);
-                        if (respReversion.getEstado() != EstadoOperacion.DEBITO_REVERTIDO_OK) {
-                                System.err.println("ManejadorCliente [Tx:" + idTransaccionGlobal
-                                                + "]: CRÍTICO - Falló REVERTIR_DEBITO. INCONSISTENCIA.");
+                                        monto, EstadoOperacion.TRANSACCION_FALLIDA,
+                                        "No se pudo guardar la decisión en el diario. Nada aplicado.");
+                        return new Respuesta(EstadoOperacion.ERROR_GENERAL_SERVIDOR,
+                                        "No se pudo guardar la decisión de la transferencia. Nada aplicado.", null);
+                }
+
+                // Ronda 2: confirmar débito y aplicar crédito
+                Respuesta[] confirmacion = enviarEnParalelo(
+                                () -> enviarConfirmacion(pOrigen, TipoOperacion.CONFIRMAR_DEBITO, paramsOrigen,
+                                                "CONFIRMAR_DEBITO Tx:" + idTransaccionGlobal),
+                                () -> enviarConfirmacion(pDestino, TipoOperacion.APLICAR_CREDITO, paramsDestino,
+                                                "APLICAR_CREDITO Tx:" + idTransaccionGlobal));
+                Respuesta respDebito = confirmacion[0];
+                Respuesta respCredito = confirmacion[1];
+                boolean debitado = respDebito.getEstado() == EstadoOperacion.DEBITO_CONFIRMADO_OK;
+                boolean acreditado = respCredito.getEstado() == EstadoOperacion.CREDITO_APLICADO_OK;
+                if (debitado) {
+                        DiarioTransferencias.anotar(DiarioTransferencias.Paso.DEBITADA, idTransaccionGlobal,
+                                        idCtaOrigen, idCtaDestino, monto);
+                }
+                if (acreditado) {
+                        DiarioTransferencias.anotar(DiarioTransferencias.Paso.ACREDITADA, idTransaccionGlobal,
+                                        idCtaOrigen, idCtaDestino, monto);
+                }
+
+                if (!debitado || !acreditado) {
+                        Respuesta fallo = debitado ? respCredito : respDebito;
+                        String pasoFallido = debitado ? "APLICAR_CREDITO" : "CONFIRMAR_DEBITO";
+                        System.err.println("ManejadorCliente [Tx:" + idTransaccionGlobal + "]: Falló " + pasoFallido
+                                        + ": " + fallo.getMensaje());
+                        // Un paso sin respuesta clara (timeout, worker caído u ocupado) puede
+                        // haberse aplicado: no se compensa nada contra un resultado desconocido
+                        boolean debitoIncierto = !debitado && !esFalloDefinitivo(respDebito);
+                        boolean creditoIncierto = !acreditado && !esFalloDefinitivo(respCredito);
+                        if (debitoIncierto || creditoIncierto) {
+                                String pasoIncierto = debitoIncierto ? "CONFIRMAR_DEBITO" : "APLICAR_CREDITO";
+                                Respuesta incierta = debitoIncierto ? respDebito : respCredito;
+                                // La mitad que sí se aplicó no se volverá a enviar: se replica ya
+                                List<CompletableFuture<Void>> envios = new ArrayList<>();
+                                if (debitado) {
+                                        envios.addAll(replicarSaldoDePaso(respDebito, pOrigen, idCtaOrigen,
+                                                        "nuevoSaldoOrigen", "versionOrigen", idTransaccionGlobal));
+                                }
+                                if (acreditado) {
+                                        envios.addAll(replicarSaldoDePaso(respCredito, pDestino, idCtaDestino,
+                                                        "nuevoSaldoDestino", "versionDestino", idTransaccionGlobal));
+                                }
+                                esperarReplicas(envios);
+                                ServidorCentral.registrarTransaccionGlobal(idTransaccionGlobal, idCtaOrigen,
+                                                idCtaDestino, monto, EstadoOperacion.ERROR_COMUNICACION,
+                                                "Resultado incierto de " + pasoIncierto + " (" + incierta.getMensaje()
+                                                                + "). Decidida: se reintenta en segundo plano.");
+                                // Sigue decidida en el diario: se repiten los pasos que falten
+                                RecuperadorTransferencias.reintentar(DiarioTransferencias.enCurso(idTransaccionGlobal,
+                                                idCtaOrigen, idCtaDestino, monto, debitado, acreditado));
+                                return new Respuesta(EstadoOperacion.ERROR_COMUNICACION, "Resultado incierto en "
+                                                + pasoIncierto + ": la transferencia está decidida y se completará "
+                                                + "o revertirá más tarde (TxID: " + idTransaccionGlobal + ").", null);
+                        }
+                        if (!debitado) {
+                                // CONFIRMAR_DEBITO no se aplicó: se libera la retención
+                                enviarSolicitudSubOperacion(pOrigen, TipoOperacion.CANCELAR_DEBITO, paramsOrigen,
+                                                "CANCELAR_DEBITO Tx:" + idTransaccionGlobal);
+                        }
+                        if (debitado || acreditado) {
+                                ServidorCentral.registrarTransaccionGlobal(idTransaccionGlobal, idCtaOrigen,
+                                                idCtaDestino, monto, EstadoOperacion.TRANSACCION_FALLIDA, "Fallo "
+                                                                + pasoFallido + " (" + fallo.getMensaje()
+                                                                + "). Revirtiendo la otra mitad.");
+                                // Sin esto en disco, la recuperación podría completar lo que se está deshaciendo
+                                boolean revertido = esperarDiario(DiarioTransferencias.anotarDurable(
+                                                DiarioTransferencias.Paso.REVIRTIENDO, idTransaccionGlobal,
+                                                idCtaOrigen, idCtaDestino, monto), idTransaccionGlobal)
+                                                && (debitado
+                                                ? revertirMitadAplicada(pOrigen, TipoOperacion.REVERTIR_DEBITO,
+                                                                EstadoOperacion.DEBITO_REVERTIDO_OK, paramsOrigen,
+                                                                idCtaOrigen, "nuevoSaldoOrigen", "versionOrigen",
+                                                                idTransaccionGlobal, escrituraCache)
+                                                : revertirMitadAplicada(pDestino, TipoOperacion.REVERTIR_CREDITO,
+                                                                EstadoOperacion.CREDITO_REVERTIDO_OK, paramsDestino,
+                                                                idCtaDestino, "nuevoSaldoDestino", "versionDestino",
+                                                                idTransaccionGlobal, escrituraCache));
+                                if (!revertido) {
+                                        // Queda abierta en el diario: se reintenta al arrancar de nuevo
+                                        System.err.println("ManejadorCliente [Tx:" + idTransaccionGlobal
+                                                        + "]: CRÍTICO - Falló " + pasoFallido
+                                                        + " y no se pudo revertir la otra mitad. INCONSISTENCIA.");
+                                        ServidorCentral.registrarTransaccionGlobal(idTransaccionGlobal, idCtaOrigen,
+                                                        idCtaDestino, monto, EstadoOperacion.TRANSACCION_FALLIDA,
+                                                        "CRITICO: Fallo " + pasoFallido
+                                                                        + " y fallo la reversión. Pendiente en el diario.");
+                                        return new Respuesta(EstadoOperacion.ERROR_GENERAL_SERVIDOR, "Error crítico: "
+                                                        + "fallo en " + pasoFallido + " y al revertir la otra mitad.",
+                                                        null);
+                                }
+                                DiarioTransferencias.anotar(DiarioTransferencias.Paso.REVERTIDA, idTransaccionGlobal,
+                                                idCtaOrigen, idCtaDestino, monto);
                                 ServidorCentral.registrarTransaccionGlobal(idTransaccionGlobal, idCtaOrigen,
                                                 idCtaDestino, monto, EstadoOperacion.TRANSACCION_FALLIDA,
-                                                "CRITICO: Fallo APLICAR_CREDITO y Fallo REVERTIR_DEBITO. Requiere intervención.");
-                                respFinalCliente = new Respuesta(EstadoOperacion.ERROR_GENERAL_SERVIDOR,
-                                                "Error crítico: Fallo al aplicar crédito y al revertir débito.", null);
+                                                "Fallo " + pasoFallido + ", otra mitad revertida.");
                         } else {
-                                System.out.println("ManejadorCliente [Tx:" + idTransaccionGlobal
-                                                + "]: Débito REVERTIDO en part " + pOrigen);
+                                // Se responde que falló: antes tiene que constar, o la recuperación la completaría
+                                esperarDiario(DiarioTransferencias.anotarDurable(DiarioTransferencias.Paso.REVERTIDA,
+                                                idTransaccionGlobal, idCtaOrigen, idCtaDestino, monto),
+                                                idTransaccionGlobal);
                                 ServidorCentral.registrarTransaccionGlobal(idTransaccionGlobal, idCtaOrigen,
                                                 idCtaDestino, monto, EstadoOperacion.TRANSACCION_FALLIDA,
-                                                "Fallo APLICAR_CREDITO, Débito Revertido.");
-                                respFinalCliente = new Respuesta(respAplicarCredito.getEstado(),
-                                                "Fallo al aplicar crédito: " + respAplicarCredito.getMensaje()
-                                                                + ". Débito revertido.",
-                                                null);
+                                                "Fallo CONFIRMAR_DEBITO y APLICAR_CREDITO. Nada aplicado.");
                         }
-                        return respFinalCliente;
+                        return new Respuesta(fallo.getEstado(), "Fallo en " + pasoFallido + ": " + fallo.getMensaje()
+                                        + (debitado || acreditado ? ". Otra mitad revertida." : ""), null);
+                }
+                Map<String, Object> datosDebito = (Map<String, Object>) respDebito.getDatos();
+                Map<String, Object> datosCredito = (Map<String, Object>) respCredito.getDatos();
+                Double saldoFinalOrigen = (Double) datosDebito.get("nuevoSaldoOrigen");
+                Double saldoFinalDestino = (Double) datosCredito.get("nuevoSaldoDestino");
+                System.out.println("ManejadorCliente [Tx:" + idTransaccionGlobal + "]: Débito CONFIRMADO en part "
+                                + pOrigen + " y crédito APLICADO en part " + pDestino);
+
+                // Registro y replicación a la vez
+                CompletableFuture<Void> durable = ServidorCentral.registrarTransaccionGlobalDurable(
+                                idTransaccionGlobal, idCtaOrigen, idCtaDestino, monto,
+                                EstadoOperacion.TRANSACCION_CONFIRMADA, "Transferencia inter-partición completada.");
+                List<CompletableFuture<Void>> envios = new ArrayList<>();
+                if (saldoFinalOrigen != null) {
+                        escrituraCache.confirmar(idCtaOrigen, saldoFinalOrigen);
+                        envios.addAll(replicarActualizacionSaldo(pOrigen, idCtaOrigen, saldoFinalOrigen,
+                                        (Long) datosDebito.get("versionOrigen"), idTransaccionGlobal,
+                                        workersAlDia(datosDebito, pOrigen, (String) datosDebito.get("workerIdProcesador"))));
+                }
+                if (saldoFinalDestino != null) {
+                        escrituraCache.confirmar(idCtaDestino, saldoFinalDestino);
+                        envios.addAll(replicarActualizacionSaldo(pDestino, idCtaDestino, saldoFinalDestino,
+                                        (Long) datosCredito.get("versionDestino"), idTransaccionGlobal,
+                                        workersAlDia(datosCredito, pDestino,
+                                                        (String) datosCredito.get("workerIdProcesador"))));
                 }
-                System.out.println("ManejadorCliente [Tx:" + idTransaccionGlobal + "]: Crédito APLICADO en part "
-                                + pDestino + " por worker " + workerDestinoId);
+                esperarRegistroDurable(durable, idTransaccionGlobal);
+                esperarReplicas(envios);
+                DiarioTransferencias.anotar(DiarioTransferencias.Paso.CONFIRMADA, idTransaccionGlobal, idCtaOrigen,
+                                idCtaDestino, monto);
 
-                // Paso 3: Confirmar Débito
-                Respuesta respConfirmarDebito = enviarSolicitudSubOperacion(pOrigen, TipoOperacion.CONFIRMAR_DEBITO,
-                                Map.of("ID_CUENTA_ORIGEN", idCtaOrigen, "MONTO", monto, "ID_TRANSACCION_GLOBAL",
-                                                idTransaccionGlobal, "ID_PARTICION", pOrigen),
-                                "CONFIRMAR_DEBITO Tx:" + idTransaccionGlobal);
+                return new Respuesta(EstadoOperacion.EXITO,
+                                "Transferencia inter-partición completada (TxID: " + idTransaccionGlobal + ")",
+                                tokenVersiones(idCtaOrigen, datosDebito.get("versionOrigen"), idCtaDestino,
+                                                datosCredito.get("versionDestino")));
+        }
 
-                if (respConfirmarDebito.getEstado() != EstadoOperacion.DEBITO_CONFIRMADO_OK) {
-                        System.err.println("ManejadorCliente [Tx:" + idTransaccionGlobal
-                                        + "]: CRÍTICO - Falló CONFIRMAR_DEBITO en part " + pOrigen
-                                        + " DESPUÉS de aplicar crédito. INCONSISTENCIA GRAVE.");
+        /**
+         * Transferencia entre dos particiones con el mismo primario, en una sola llamada:
+         * el worker aplica débito y crédito con los cerrojos de ambas particiones y
+         * devuelve los dos saldos, así que no hay mitades que revertir. Solo vale si es el
+         * primario de las dos: en una réplica de cualquiera de ellas el saldo podría ir
+         * atrasado. Devuelve null si no llegó a aplicarse nada (worker saturado, caído o
+         * que ya no tiene alguna de las particiones) y conviene usar las dos rondas.
+         */
+        @SuppressWarnings("unchecked")
+        private Respuesta transferirEnUnWorker(String workerId, int idTransaccionGlobal, int idCtaOrigen,
+                        String pOrigen, int idCtaDestino, String pDestino, double monto,
+                        CacheSaldos.Escritura escrituraCache) {
+                String logContext = "TRANSFERIR_ENTRE_PARTICIONES Tx:" + idTransaccionGlobal;
+                System.out.println("ManejadorCliente [" + logContext + "]: Worker " + workerId
+                                + " es primario de " + pOrigen + " y " + pDestino + ". Transferencia en una llamada.");
+                Respuesta resp;
+                try {
+                        resp = CanalWorker.enviar(workerId, new Solicitud(TipoOperacion.TRANSFERIR_ENTRE_PARTICIONES,
+                                        conCadenas(Map.of("ID_CUENTA_ORIGEN", idCtaOrigen, "ID_CUENTA_DESTINO",
+                                                        idCtaDestino, "MONTO", monto, "ID_PARTICION_ORIGEN", pOrigen,
+                                                        "ID_PARTICION_DESTINO", pDestino, "ID_TRANSACCION_GLOBAL",
+                                                        idTransaccionGlobal), workerId, pOrigen, pDestino)),
+                                        10000);
+                } catch (SocketTimeoutException e) {
+                        // El worker pudo aplicarla: no se repite por otro camino
+                        manejarFalloWorker(workerId, e, logContext);
                         ServidorCentral.registrarTransaccionGlobal(idTransaccionGlobal, idCtaOrigen, idCtaDestino,
                                         monto, EstadoOperacion.TRANSACCION_FALLIDA,
-                                        "CRITICO: Crédito aplicado, pero Fallo CONFIRMAR_DEBITO. Requiere intervención urgente.");
-                        // NO se revierte el crédito aquí, ya que es más complejo y podría fallar
-                        // también.
-                        // Se prioriza no perder dinero, aunque la cuenta origen no refleje el débito
-                        // final.
-                        return new Respuesta(EstadoOperacion.ERROR_GENERAL_SERVIDOR,
-                                        "Error crítico: Fallo al confirmar débito tras aplicar crédito. Fondos acreditados pero débito no confirmado.",
+                                        "Timeout con worker " + workerId + ". Resultado incierto.");
+                        return new Respuesta(EstadoOperacion.ERROR_COMUNICACION,
+                                        "Timeout con worker " + workerId + ". Resultado de la transferencia incierto.",
                                         null);
+                } catch (IOException e) {
+                        manejarFalloWorker(workerId, e, logContext);
+                        return null;
+                } catch (ClassNotFoundException e) {
+                        System.err.println("ManejadorCliente [" + logContext + "]: Error ClassNotFound de worker "
+                                        + workerId + ": " + e.getMessage());
+                        return new Respuesta(EstadoOperacion.ERROR_GENERAL_SERVIDOR,
+                                        "Error de formato en respuesta del worker.", null);
                 }
-                // Actualizar saldoFinalOrigen con el dato del worker que confirmó
-                if (respConfirmarDebito.getDatos() instanceof Map) {
-                        saldoFinalOrigen = (Double) ((Map<String, Object>) respConfirmarDebito.getDatos())
-                                        .get("nuevoSaldoOrigen");
+                if (resp == null || resp.getEstado() == EstadoOperacion.ERROR_REINTENTAR_EN_OTRO_NODO) {
+                        return null;
                 }
-                System.out.println("ManejadorCliente [Tx:" + idTransaccionGlobal + "]: Débito CONFIRMADO en part "
-                                + pOrigen + ". Worker: "
-                                + ((Map<String, String>) respConfirmarDebito.getDatos()).get("workerIdProcesador"));
+                if (resp.getEstado() != EstadoOperacion.EXITO || !(resp.getDatos() instanceof Map)) {
+                        ServidorCentral.registrarTransaccionGlobal(idTransaccionGlobal, idCtaOrigen, idCtaDestino,
+                                        monto, resp.getEstado() == EstadoOperacion.EXITO
+                                                        ? EstadoOperacion.ERROR_GENERAL_SERVIDOR
+                                                        : resp.getEstado(),
+                                        "Fallo TRANSFERIR_ENTRE_PARTICIONES en worker " + workerId + ": "
+                                                        + resp.getMensaje());
+                        return resp;
+                }
+                Map<String, Object> datos = (Map<String, Object>) resp.getDatos();
+                double saldoFinalOrigen = (Double) datos.get("nuevoSaldoOrigen");
+                double saldoFinalDestino = (Double) datos.get("nuevoSaldoDestino");
+                System.out.println("ManejadorCliente [" + logContext + "]: Aplicada por worker " + workerId);
 
-                ServidorCentral.registrarTransaccionGlobal(idTransaccionGlobal, idCtaOrigen, idCtaDestino, monto,
-                                EstadoOperacion.TRANSACCION_CONFIRMADA, "Transferencia inter-partición completada.");
+                CompletableFuture<Void> durable = ServidorCentral.registrarTransaccionGlobalDurable(
+                                idTransaccionGlobal, idCtaOrigen, idCtaDestino, monto,
+                                EstadoOperacion.TRANSACCION_CONFIRMADA,
+                                "Transferencia inter-partición completada en worker " + workerId + ".");
+                escrituraCache.confirmar(idCtaOrigen, saldoFinalOrigen);
+                escrituraCache.confirmar(idCtaDestino, saldoFinalDestino);
+                List<CompletableFuture<Void>> envios = new ArrayList<>();
+                envios.addAll(replicarActualizacionSaldo(pOrigen, idCtaOrigen, saldoFinalOrigen,
+                                (Long) datos.get("versionOrigen"), idTransaccionGlobal,
+                                workersAlDia(datos, pOrigen, workerId)));
+                envios.addAll(replicarActualizacionSaldo(pDestino, idCtaDestino, saldoFinalDestino,
+                                (Long) datos.get("versionDestino"), idTransaccionGlobal,
+                                workersAlDia(datos, pDestino, workerId)));
+                esperarRegistroDurable(durable, idTransaccionGlobal);
+                esperarReplicas(envios);
+                return new Respuesta(EstadoOperacion.EXITO,
+                                "Transferencia inter-partición completada (TxID: " + idTransaccionGlobal + ")",
+                                tokenVersiones(idCtaOrigen, datos.get("versionOrigen"), idCtaDestino,
+                                                datos.get("versionDestino")));
+        }
 
-                // Replicar cambios
-                if (saldoFinalOrigen != null)
-                        replicarActualizacionSaldo(pOrigen, idCtaOrigen, saldoFinalOrigen, idTransaccionGlobal,
-                                        workerOrigenId);
-                if (saldoFinalDestino != null)
-                        replicarActualizacionSaldo(pDestino, idCtaDestino, saldoFinalDestino, idTransaccionGlobal,
-                                        workerDestinoId);
+        /**
+         * Datos de una transferencia confirmada: la versión nueva de cada cuenta, que el
+         * cliente puede enviar como VERSION_MINIMA al consultarla con LEER_MIS_ESCRITURAS.
+         */
+        private static HashMap<Integer, Long> tokenVersiones(int idCtaOrigen, Object versionOrigen, int idCtaDestino,
+                        Object versionDestino) {
+                HashMap<Integer, Long> token = new HashMap<>();
+                if (versionOrigen instanceof Long v) {
+                        token.put(idCtaOrigen, v);
+                }
+                if (versionDestino instanceof Long v) {
+                        token.put(idCtaDestino, v);
+                }
+                return token;
+        }
 
-                return new Respuesta(EstadoOperacion.EXITO,
-                                "Transferencia inter-partición completada (TxID: " + idTransaccionGlobal + ")", null);
+        /** Worker al que enviarSolicitudSubOperacion mandaría primero las escrituras de la partición. */
+        private static String primarioActivo(String idParticion) {
+                List<String> idsWorkers = ServidorCentral.particionANodos.get(idParticion);
+                if (idsWorkers == null) {
+                        return null;
+                }
+                for (String workerId : new ArrayList<>(idsWorkers)) {
+                        InfoWorker infoWorker = ServidorCentral.workersActivos.get(workerId);
+                        if (infoWorker != null && infoWorker.isActivo()) {
+                                return workerId;
+                        }
+                }
+                return null;
+        }
+
+        /**
+         * Deshace la mitad de una transferencia que sí se aplicó y replica el saldo que
+         * queda (el de antes, con otra versión). Devuelve false si no se pudo.
+         */
+        @SuppressWarnings("unchecked")
+        private static boolean revertirMitadAplicada(String idParticion, TipoOperacion tipoReversion,
+                        EstadoOperacion estadoEsperado, Map<String, Object> parametros, int idCuenta,
+                        String claveSaldo, String claveVersion, int idTransaccionGlobal,
+                        CacheSaldos.Escritura escrituraCache) {
+                Respuesta respReversion = enviarConfirmacion(idParticion, tipoReversion, parametros,
+                                tipoReversion + " Tx:" + idTransaccionGlobal);
+                if (respReversion.getEstado() != estadoEsperado) {
+                        return false;
+                }
+                System.out.println("ManejadorCliente [Tx:" + idTransaccionGlobal + "]: " + tipoReversion
+                                + " hecho en part " + idParticion);
+                Map<String, Object> datosReversion = (Map<String, Object>) respReversion.getDatos();
+                Double saldoRevertido = (Double) datosReversion.get(claveSaldo);
+                if (saldoRevertido != null) {
+                        escrituraCache.confirmar(idCuenta, saldoRevertido);
+                        esperarReplicas(replicarActualizacionSaldo(idParticion, idCuenta, saldoRevertido,
+                                        (Long) datosReversion.get(claveVersion), idTransaccionGlobal,
+                                        workersAlDia(datosReversion, idParticion,
+                                                        (String) datosReversion.get("workerIdProcesador"))));
+                }
+                return true;
+        }
+
+        /**
+         * Termina una transferencia entre particiones que quedó abierta en el diario al
+         * caerse el Servidor Central (ver RecuperadorTransferencias):
+         * - Sin decisión: no se aplicó nada; se libera la retención y queda fallida.
+         * - Decidida: se aplican los pasos que falten (el worker no repite los que ya
+         * aplicó). Si uno falla sin dudas (ej. saldo insuficiente) se deshace el otro.
+         * - Revirtiendo: se deshacen las mitades aplicadas.
+         * Devuelve false si algún worker no respondió y hay que reintentarla.
+         */
+        static boolean resolverTransferenciaEnDuda(DiarioTransferencias.Abierta t) {
+                if (!TRANSFERENCIAS_OPTIMISTAS) {
+                        CerrojosCuentas.bloquear(t.idCuentaOrigen, t.idCuentaDestino);
+                }
+                try {
+                        String[] particiones = entrarEnParticionesDeCuentas(t.idCuentaOrigen, t.idCuentaDestino);
+                        // Los pasos repetidos devuelven los saldos de entonces: la caché solo se invalida
+                        CacheSaldos.Escritura escrituraCache = CacheSaldos.iniciarEscritura(t.idCuentaOrigen,
+                                        t.idCuentaDestino);
+                        try {
+                                if (particiones[0] == null || particiones[1] == null) {
+                                        System.err.println("ManejadorCliente [Tx:" + t.idTransaccion
+                                                        + "]: Recuperación sin partición para alguna de sus cuentas.");
+                                        return false;
+                                }
+                                ServidorCentral.marcarParticionModificada(particiones[0]);
+                                ServidorCentral.marcarParticionModificada(particiones[1]);
+                                return resolverEnParticiones(t, particiones[0], particiones[1]);
+                        } finally {
+                                escrituraCache.terminar();
+                                CercoParticiones.salir(particiones);
+                        }
+                } finally {
+                        if (!TRANSFERENCIAS_OPTIMISTAS) {
+                                CerrojosCuentas.liberar(t.idCuentaOrigen, t.idCuentaDestino);
+                        }
+                }
+        }
+
+        @SuppressWarnings("unchecked")
+        private static boolean resolverEnParticiones(DiarioTransferencias.Abierta t, String pOrigen,
+                        String pDestino) {
+                int idTx = t.idTransaccion;
+                Map<String, Object> paramsOrigen = Map.of("ID_CUENTA_ORIGEN", t.idCuentaOrigen, "MONTO", t.monto,
+                                "ID_TRANSACCION_GLOBAL", idTx, "ID_PARTICION", pOrigen);
+                Map<String, Object> paramsDestino = Map.of("ID_CUENTA_DESTINO", t.idCuentaDestino, "MONTO", t.monto,
+                                "ID_TRANSACCION_GLOBAL", idTx, "ID_PARTICION", pDestino);
+                String logContext = "Recuperación Tx:" + idTx;
+                System.out.println("ManejadorCliente [" + logContext + "]: Resolviendo " + t);
+                if (!t.isDecidida()) {
+                        // Si el CANCELAR_DEBITO no llega, la retención caduca sola
+                        enviarSolicitudSubOperacion(pOrigen, TipoOperacion.CANCELAR_DEBITO, paramsOrigen, logContext);
+                        DiarioTransferencias.anotar(DiarioTransferencias.Paso.REVERTIDA, idTx, t.idCuentaOrigen,
+                                        t.idCuentaDestino, t.monto);
+                        ServidorCentral.registrarTransaccionGlobal(idTx, t.idCuentaOrigen, t.idCuentaDestino, t.monto,
+                                        EstadoOperacion.TRANSACCION_FALLIDA,
+                                        "Recuperada tras reinicio: no se llegó a decidir. Nada aplicado.");
+                        return true;
+                }
+                boolean debitada = t.isDebitada();
+                boolean acreditada = t.isAcreditada();
+                if (!t.isRevirtiendo()) {
+                        Respuesta respDebito = debitada ? null
+                                        : enviarConfirmacion(pOrigen, TipoOperacion.CONFIRMAR_DEBITO, paramsOrigen,
+                                                        logContext);
+                        Respuesta respCredito = acreditada ? null
+                                        : enviarConfirmacion(pDestino, TipoOperacion.APLICAR_CREDITO, paramsDestino,
+                                                        logContext);
+                        List<CompletableFuture<Void>> envios = new ArrayList<>();
+                        if (respDebito != null && respDebito.getEstado() == EstadoOperacion.DEBITO_CONFIRMADO_OK) {
+                                debitada = true;
+                                DiarioTransferencias.anotar(DiarioTransferencias.Paso.DEBITADA, idTx, t.idCuentaOrigen,
+                                                t.idCuentaDestino, t.monto);
+                                envios.addAll(replicarSaldoDePaso(respDebito, pOrigen, t.idCuentaOrigen,
+                                                "nuevoSaldoOrigen", "versionOrigen", idTx));
+                        }
+                        if (respCredito != null && respCredito.getEstado() == EstadoOperacion.CREDITO_APLICADO_OK) {
+                                acreditada = true;
+                                DiarioTransferencias.anotar(DiarioTransferencias.Paso.ACREDITADA, idTx,
+                                                t.idCuentaOrigen, t.idCuentaDestino, t.monto);
+                                envios.addAll(replicarSaldoDePaso(respCredito, pDestino, t.idCuentaDestino,
+                                                "nuevoSaldoDestino", "versionDestino", idTx));
+                        }
+                        esperarReplicas(envios);
+                        if (debitada && acreditada) {
+                                esperarRegistroDurable(ServidorCentral.registrarTransaccionGlobalDurable(idTx,
+                                                t.idCuentaOrigen, t.idCuentaDestino, t.monto,
+                                                EstadoOperacion.TRANSACCION_CONFIRMADA,
+                                                "Recuperada tras reinicio: transferencia inter-partición completada."),
+                                                idTx);
+                                DiarioTransferencias.anotar(DiarioTransferencias.Paso.CONFIRMADA, idTx,
+                                                t.idCuentaOrigen, t.idCuentaDestino, t.monto);
+                                return true;
+                        }
+                        if ((respDebito != null && !debitada && !esFalloDefinitivo(respDebito))
+                                        || (respCredito != null && !acreditada && !esFalloDefinitivo(respCredito))) {
+                                return false; // Resultado incierto o worker no disponible: más tarde
+                        }
+                        System.err.println("ManejadorCliente [" + logContext + "]: "
+                                        + (debitada ? "APLICAR_CREDITO" : "CONFIRMAR_DEBITO")
+                                        + " ya no se puede aplicar. Revirtiendo lo aplicado.");
+                        if (!esperarDiario(DiarioTransferencias.anotarDurable(DiarioTransferencias.Paso.REVIRTIENDO,
+                                        idTx, t.idCuentaOrigen, t.idCuentaDestino, t.monto), idTx)) {
+                                return false;
+                        }
+                }
+                CacheSaldos.Escritura sinCache = CacheSaldos.iniciarEscritura();
+                boolean revertido = (!debitada || revertirMitadAplicada(pOrigen, TipoOperacion.REVERTIR_DEBITO,
+                                EstadoOperacion.DEBITO_REVERTIDO_OK, paramsOrigen, t.idCuentaOrigen, "nuevoSaldoOrigen",
+                                "versionOrigen", idTx, sinCache))
+                                && (!acreditada || revertirMitadAplicada(pDestino, TipoOperacion.REVERTIR_CREDITO,
+                                                EstadoOperacion.CREDITO_REVERTIDO_OK, paramsDestino,
+                                                t.idCuentaDestino, "nuevoSaldoDestino", "versionDestino", idTx,
+                                                sinCache));
+                if (!revertido) {
+                        return false;
+                }
+                DiarioTransferencias.anotar(DiarioTransferencias.Paso.REVERTIDA, idTx, t.idCuentaOrigen,
+                                t.idCuentaDestino, t.monto);
+                ServidorCentral.registrarTransaccionGlobal(idTx, t.idCuentaOrigen, t.idCuentaDestino, t.monto,
+                                EstadoOperacion.TRANSACCION_FALLIDA, "Recuperada tras reinicio: revertida.");
+                return true;
+        }
+
+        /** Fallos de un paso que no cambian al repetirlo: la otra mitad hay que deshacerla. */
+        private static boolean esFalloDefinitivo(Respuesta resp) {
+                return esFalloDefinitivo(resp.getEstado());
+        }
+
+        private static boolean esFalloDefinitivo(EstadoOperacion estado) {
+                return switch (estado) {
+                        case ERROR_SALDO_INSUFICIENTE, ERROR_CUENTA_ORIGEN_NO_EXISTE,
+                                        ERROR_CUENTA_DESTINO_NO_EXISTE -> true;
+                        default -> false;
+                };
+        }
+
+        /** Replica el saldo que dejó un paso aplicado, salvo en los workers que ya lo tienen. */
+        @SuppressWarnings("unchecked")
+        private static List<CompletableFuture<Void>> replicarSaldoDePaso(Respuesta resp, String idParticion,
+                        int idCuenta, String claveSaldo, String claveVersion, int idTransaccionGlobal) {
+                Map<String, Object> datos = (Map<String, Object>) resp.getDatos();
+                if (datos == null || !(datos.get(claveSaldo) instanceof Double saldo)) {
+                        return List.of();
+                }
+                return replicarActualizacionSaldo(idParticion, idCuenta, saldo, (Long) datos.get(claveVersion),
+                                idTransaccionGlobal,
+                                workersAlDia(datos, idParticion, (String) datos.get("workerIdProcesador")));
+        }
+
+        /** Ejecuta las dos llamadas a la vez (la segunda en poolLlamadasWorker) y devuelve ambas respuestas. */
+        private static Respuesta[] enviarEnParalelo(Supplier<Respuesta> primera, Supplier<Respuesta> segunda) {
+                CompletableFuture<Respuesta> enCurso = CompletableFuture.supplyAsync(segunda, poolLlamadasWorker);
+                Respuesta respPrimera = primera.get();
+                return new Respuesta[] { respPrimera, enCurso.join() };
+        }
+
+        /**
+         * Envía un paso que escribe (confirmar, aplicar o revertir) y lo repite si el
+         * worker estaba saturado: en ese caso no llegó a enviarse y repetirlo es seguro.
+         */
+        private static Respuesta enviarConfirmacion(String idParticion, TipoOperacion tipo, Map<String, Object> parametros,
+                        String logContext) {
+                Respuesta resp = null;
+                for (int intento = 1; intento <= MAX_INTENTOS_CONFIRMACION; intento++) {
+                        resp = enviarSolicitudSubOperacion(idParticion, tipo, parametros, logContext);
+                        if (resp.getEstado() != EstadoOperacion.SERVIDOR_OCUPADO) {
+                                break;
+                        }
+                        if (intento < MAX_INTENTOS_CONFIRMACION) {
+                                esperarAntesDeReintentar(intento);
+                        }
+                }
+                return resp;
+        }
+
+        /** Pausa corta y al azar antes de reintentar, para no volver a chocar a la vez. */
+        private static void esperarAntesDeReintentar(int intento) {
+                try {
+                        Thread.sleep(ThreadLocalRandom.current().nextLong(1, 2L << Math.min(intento, 6)));
+                } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                }
+        }
+
+        /**
+         * TRANSFERIR_LOTE: aplica muchas transferencias independientes (ej. una nómina)
+         * con unas pocas llamadas por partición en vez de un ciclo completo por cada una:
+         * 1. Débitos: cada partición de origen recibe los suyos en un APLICAR_MOVIMIENTOS.
+         * 2. Créditos de las que se debitaron, igual, por partición de destino.
+         * 3. Si un crédito falla, se devuelve el débito a su origen de la misma forma.
+         * Al final cada partición replica sus saldos nuevos con un ACTUALIZAR_SALDOS_REPLICA.
+         * Dentro de una partición los movimientos se aplican en el orden del lote.
+         * Cada transferencia se anota DECIDIDA en el diario antes del paso 1, y cada
+         * movimiento lleva su ID y su paso (CONFIRMAR_DEBITO, APLICAR_CREDITO o
+         * REVERTIR_DEBITO) para que el worker no lo aplique dos veces. Así las que
+         * quedan inciertas se completan o se revierten en segundo plano, como las de
+         * dos rondas (ver RecuperadorTransferencias). La respuesta lleva en datos el
+         * resultado de cada transferencia (List<EstadoOperacion>), en el mismo orden;
+         * ERROR_COMUNICACION significa que está decidida y se resolverá más tarde.
+         */
+        private Respuesta procesarTransferenciaLote(Solicitud solicitudCliente) {
+                Object parametro = solicitudCliente.getParametros().get("TRANSFERENCIAS");
+                if (!(parametro instanceof List<?> lista) || lista.isEmpty()) {
+                        return new Respuesta(EstadoOperacion.ERROR_GENERAL_SERVIDOR,
+                                        "Parámetros incompletos para TRANSFERIR_LOTE.", null);
+                }
+                if (lista.size() > MAX_TRANSFERENCIAS_POR_LOTE) {
+                        return new Respuesta(EstadoOperacion.ERROR_GENERAL_SERVIDOR, "El lote tiene " + lista.size()
+                                        + " transferencias; el máximo es " + MAX_TRANSFERENCIAS_POR_LOTE + ".", null);
+                }
+                int n = lista.size();
+                Transferencia[] tramos = new Transferencia[n];
+                for (int i = 0; i < n; i++) {
+                        if (!(lista.get(i) instanceof Transferencia t)) {
+                                return new Respuesta(EstadoOperacion.ERROR_GENERAL_SERVIDOR,
+                                                "Elemento " + i + " del lote no es una Transferencia.", null);
+                        }
+                        tramos[i] = t;
+                }
+                int idLote = ServidorCentral.generarIdTransaccionGlobal();
+                System.out.println("ManejadorCliente [Lote:" + idLote + "]: Procesando TRANSFERIR_LOTE de " + n
+                                + " transferencias.");
+
+                EstadoOperacion[] resultados = new EstadoOperacion[n];
+                int[] idsTransaccion = new int[n];
+                int[] cuentas = new int[2 * n]; // Orígenes y luego destinos
+                for (int i = 0; i < n; i++) {
+                        Transferencia t = tramos[i];
+                        idsTransaccion[i] = ServidorCentral.generarIdTransaccionGlobal();
+                        cuentas[i] = t.getIdCuentaOrigen();
+                        cuentas[n + i] = t.getIdCuentaDestino();
+                        String motivo = !(t.getMonto() > 0) ? "Monto inválido"
+                                        : t.getIdCuentaOrigen() == t.getIdCuentaDestino()
+                                                        ? "Cuentas origen y destino iguales"
+                                                        : null;
+                        if (motivo != null) {
+                                resultados[i] = EstadoOperacion.ERROR_GENERAL_SERVIDOR;
+                                ServidorCentral.registrarTransaccionGlobal(idsTransaccion[i], t.getIdCuentaOrigen(),
+                                                t.getIdCuentaDestino(), t.getMonto(),
+                                                EstadoOperacion.TRANSACCION_FALLIDA, motivo + " (Lote:" + idLote + ")");
+                        }
+                }
+
+                // Un lote grande bloquea muchas franjas a la vez, pero en orden, como cualquier otra operación
+                CerrojosCuentas.bloquear(cuentas);
+                String[] particiones = entrarEnParticionesDeCuentas(cuentas);
+                CacheSaldos.Escritura escrituraCache = CacheSaldos
+                                .iniciarEscritura(Arrays.stream(cuentas).distinct().toArray());
+                // Saldos finales de cada partición tocada y los workers que los aplicaron
+                Map<String, Map<Integer, Double>> saldosPorParticion = new ConcurrentHashMap<>();
+                Map<String, Map<Integer, Long>> versionesPorParticion = new ConcurrentHashMap<>();
+                Map<String, Set<String>> workersPorParticion = new ConcurrentHashMap<>();
+                long inicio = System.nanoTime();
+                try {
+                        for (String p : particiones) {
+                                ServidorCentral.marcarParticionModificada(p);
+                        }
+                        List<Integer> aDebitar = new ArrayList<>();
+                        boolean[] yaRegistrada = new boolean[n];
+                        for (int i = 0; i < n; i++) {
+                                if (resultados[i] != null) {
+                                        yaRegistrada[i] = true;
+                                        continue;
+                                }
+                                if (particiones[i] == null) {
+                                        resultados[i] = EstadoOperacion.ERROR_CUENTA_ORIGEN_NO_EXISTE;
+                                } else if (particiones[n + i] == null) {
+                                        resultados[i] = EstadoOperacion.ERROR_CUENTA_DESTINO_NO_EXISTE;
+                                } else {
+                                        aDebitar.add(i);
+                                }
+                        }
+
+                        // Sin la decisión en disco, un paso incierto no se podría terminar tras una caída
+                        List<CompletableFuture<Void>> decisiones = new ArrayList<>();
+                        for (int i : aDebitar) {
+                                decisiones.add(anotarTramo(DiarioTransferencias.Paso.DECIDIDA, tramos[i],
+                                                idsTransaccion[i], true));
+                        }
+                        if (!esperarDiario(CompletableFuture.allOf(decisiones.toArray(new CompletableFuture<?>[0])),
+                                        idLote)) {
+                                for (int i : aDebitar) {
+                                        resultados[i] = EstadoOperacion.ERROR_GENERAL_SERVIDOR;
+                                        anotarTramo(DiarioTransferencias.Paso.REVERTIDA, tramos[i], idsTransaccion[i],
+                                                        false);
+                                }
+                                aDebitar.clear();
+                        }
+                        // Las que quedan a medias con resultado incierto, para RecuperadorTransferencias
+                        DiarioTransferencias.Abierta[] enDuda = new DiarioTransferencias.Abierta[n];
+
+                        // Paso 1: Débitos
+                        EstadoOperacion[] debitos = aplicarMovimientosPorParticion(n, aDebitar, i -> particiones[i],
+                                        i -> tramos[i].getIdCuentaOrigen(), i -> -tramos[i].getMonto(),
+                                        TipoOperacion.CONFIRMAR_DEBITO, idsTransaccion, idLote, saldosPorParticion,
+                                        versionesPorParticion, workersPorParticion);
+                        List<Integer> aAcreditar = new ArrayList<>();
+                        for (int i : aDebitar) {
+                                Transferencia t = tramos[i];
+                                if (debitos[i] == EstadoOperacion.EXITO) {
+                                        anotarTramo(DiarioTransferencias.Paso.DEBITADA, t, idsTransaccion[i], false);
+                                        aAcreditar.add(i);
+                                } else if (esFalloDefinitivo(debitos[i])
+                                                || debitos[i] == EstadoOperacion.SERVIDOR_OCUPADO) {
+                                        // No se aplicó (con el worker ocupado ni llegó a enviarse)
+                                        anotarTramo(DiarioTransferencias.Paso.REVERTIDA, t, idsTransaccion[i], false);
+                                        resultados[i] = debitos[i];
+                                } else {
+                                        enDuda[i] = DiarioTransferencias.enCurso(idsTransaccion[i], t.getIdCuentaOrigen(),
+                                                        t.getIdCuentaDestino(), t.getMonto(), false, false);
+                                }
+                        }
+
+                        // Paso 2: Créditos
+                        EstadoOperacion[] creditos = aplicarMovimientosPorParticion(n, aAcreditar,
+                                        i -> particiones[n + i], i -> tramos[i].getIdCuentaDestino(),
+                                        i -> tramos[i].getMonto(), TipoOperacion.APLICAR_CREDITO, idsTransaccion, idLote,
+                                        saldosPorParticion, versionesPorParticion, workersPorParticion);
+                        List<Integer> aDevolver = new ArrayList<>();
+                        List<CompletableFuture<Void>> reversiones = new ArrayList<>();
+                        for (int i : aAcreditar) {
+                                Transferencia t = tramos[i];
+                                if (creditos[i] == EstadoOperacion.EXITO) {
+                                        anotarTramo(DiarioTransferencias.Paso.ACREDITADA, t, idsTransaccion[i], false);
+                                        resultados[i] = EstadoOperacion.EXITO;
+                                } else if (esFalloDefinitivo(creditos[i])) {
+                                        // Sin esto en disco, la recuperación podría completar lo que se deshace
+                                        reversiones.add(anotarTramo(DiarioTransferencias.Paso.REVIRTIENDO, t,
+                                                        idsTransaccion[i], true));
+                                        aDevolver.add(i);
+                                } else {
+                                        // Con timeout el crédito pudo aplicarse: se repite (no se aplica dos veces)
+                                        enDuda[i] = DiarioTransferencias.enCurso(idsTransaccion[i], t.getIdCuentaOrigen(),
+                                                        t.getIdCuentaDestino(), t.getMonto(), true, false);
+                                }
+                        }
+                        if (!aDevolver.isEmpty() && !esperarDiario(
+                                        CompletableFuture.allOf(reversiones.toArray(new CompletableFuture<?>[0])), idLote)) {
+                                // Al reintentarlas, el crédito vuelve a fallar y entonces se revierten
+                                for (int i : aDevolver) {
+                                        Transferencia t = tramos[i];
+                                        enDuda[i] = DiarioTransferencias.enCurso(idsTransaccion[i], t.getIdCuentaOrigen(),
+                                                        t.getIdCuentaDestino(), t.getMonto(), true, false);
+                                }
+                                aDevolver.clear();
+                        }
+
+                        // Paso 3: Devolver los débitos cuyo crédito falló
+                        EstadoOperacion[] devoluciones = aplicarMovimientosPorParticion(n, aDevolver,
+                                        i -> particiones[i], i -> tramos[i].getIdCuentaOrigen(),
+                                        i -> tramos[i].getMonto(), TipoOperacion.REVERTIR_DEBITO, idsTransaccion, idLote,
+                                        saldosPorParticion, versionesPorParticion, workersPorParticion);
+                        for (int i : aDevolver) {
+                                Transferencia t = tramos[i];
+                                if (devoluciones[i] == EstadoOperacion.EXITO) {
+                                        anotarTramo(DiarioTransferencias.Paso.REVERTIDA, t, idsTransaccion[i], false);
+                                        resultados[i] = creditos[i];
+                                } else {
+                                        System.err.println("ManejadorCliente [Lote:" + idLote + "]: Falló el crédito "
+                                                        + "y la devolución del débito de " + t + " (" + devoluciones[i]
+                                                        + "). Se reintenta en segundo plano.");
+                                        enDuda[i] = DiarioTransferencias.enReversion(idsTransaccion[i],
+                                                        t.getIdCuentaOrigen(), t.getIdCuentaDestino(), t.getMonto(), true,
+                                                        false);
+                                }
+                        }
+
+                        List<CompletableFuture<Void>> registros = new ArrayList<>();
+                        int aplicadas = 0;
+                        for (int i = 0; i < n; i++) {
+                                Transferencia t = tramos[i];
+                                if (enDuda[i] != null) {
+                                        resultados[i] = EstadoOperacion.ERROR_COMUNICACION;
+                                        ServidorCentral.registrarTransaccionGlobal(idsTransaccion[i],
+                                                        t.getIdCuentaOrigen(), t.getIdCuentaDestino(), t.getMonto(),
+                                                        EstadoOperacion.ERROR_COMUNICACION, "Resultado incierto en el lote "
+                                                                        + idLote + ". Decidida: se reintenta en segundo plano.");
+                                } else if (resultados[i] == EstadoOperacion.EXITO) {
+                                        aplicadas++;
+                                        registros.add(ServidorCentral.registrarTransaccionGlobalDurable(
+                                                        idsTransaccion[i], t.getIdCuentaOrigen(), t.getIdCuentaDestino(),
+                                                        t.getMonto(), EstadoOperacion.TRANSACCION_CONFIRMADA,
+                                                        "Transferencia del lote " + idLote + " completada."));
+                                } else if (!yaRegistrada[i]) {
+                                        ServidorCentral.registrarTransaccionGlobal(idsTransaccion[i],
+                                                        t.getIdCuentaOrigen(), t.getIdCuentaDestino(), t.getMonto(),
+                                                        EstadoOperacion.TRANSACCION_FALLIDA,
+                                                        resultados[i] + " (Lote:" + idLote + ")");
+                                }
+                        }
+                        esperarRegistroDurable(CompletableFuture.allOf(registros.toArray(new CompletableFuture<?>[0])),
+                                        idLote);
+                        for (int i = 0; i < n; i++) {
+                                if (resultados[i] == EstadoOperacion.EXITO) {
+                                        anotarTramo(DiarioTransferencias.Paso.CONFIRMADA, tramos[i], idsTransaccion[i],
+                                                        false);
+                                } else if (enDuda[i] != null) {
+                                        RecuperadorTransferencias.reintentar(enDuda[i]);
+                                }
+                        }
+
+                        replicarSaldosDeLote(saldosPorParticion, versionesPorParticion, workersPorParticion, idLote);
+                        long latenciaNs = System.nanoTime() - inicio;
+                        for (Map.Entry<String, Map<Integer, Double>> saldos : saldosPorParticion.entrySet()) {
+                                escrituraCache.confirmar(saldos.getValue());
+                                MetricasReplicacion.para(saldos.getKey()).registrarConfirmacion(latenciaNs);
+                        }
+                        System.out.println("ManejadorCliente [Lote:" + idLote + "]: " + aplicadas + " de " + n
+                                        + " transferencias aplicadas.");
+                        return new Respuesta(EstadoOperacion.EXITO, "Lote " + idLote + ": " + aplicadas + " de " + n
+                                        + " transferencias aplicadas.", new ArrayList<>(Arrays.asList(resultados)));
+                } finally {
+                        escrituraCache.terminar();
+                        CercoParticiones.salir(particiones);
+                        CerrojosCuentas.liberar(cuentas);
+                }
+        }
+
+        /** Anota en el diario un paso de una transferencia del lote; si durable, el futuro espera al disco. */
+        private static CompletableFuture<Void> anotarTramo(DiarioTransferencias.Paso paso, Transferencia t,
+                        int idTransaccion, boolean durable) {
+                if (!durable) {
+                        DiarioTransferencias.anotar(paso, idTransaccion, t.getIdCuentaOrigen(), t.getIdCuentaDestino(),
+                                        t.getMonto());
+                        return null;
+                }
+                return DiarioTransferencias.anotarDurable(paso, idTransaccion, t.getIdCuentaOrigen(),
+                                t.getIdCuentaDestino(), t.getMonto());
+        }
+
+        /**
+         * Aplica un movimiento por cada tramo dado (índices en [0, numTramos)),
+         * agrupados por partición: un APLICAR_MOVIMIENTOS por partición, en paralelo en
+         * poolLotes. Cada movimiento va como el paso "paso" de su transacción
+         * (idsTransaccion), que el worker aplica una sola vez.
+         * Devuelve el resultado indexado por tramo y acumula los saldos
+         * finales y sus versiones de cada partición, y los workers que tienen todos
+         * (ver workersAlDia).
+         */
+        private EstadoOperacion[] aplicarMovimientosPorParticion(int numTramos, List<Integer> tramos,
+                        IntFunction<String> particionDe,
+                        IntUnaryOperator cuentaDe, IntToDoubleFunction importeDe, TipoOperacion paso,
+                        int[] idsTransaccion, int idLote,
+                        Map<String, Map<Integer, Double>> saldosPorParticion,
+                        Map<String, Map<Integer, Long>> versionesPorParticion,
+                        Map<String, Set<String>> workersPorParticion) {
+                EstadoOperacion[] resultados = new EstadoOperacion[numTramos];
+                Map<String, List<Integer>> tramosPorParticion = new LinkedHashMap<>();
+                for (int i : tramos) {
+                        tramosPorParticion.computeIfAbsent(particionDe.apply(i), _ -> new ArrayList<>()).add(i);
+                }
+                List<CompletableFuture<Void>> llamadas = new ArrayList<>();
+                for (Map.Entry<String, List<Integer>> entrada : tramosPorParticion.entrySet()) {
+                        String idParticion = entrada.getKey();
+                        List<Integer> deParticion = entrada.getValue();
+                        llamadas.add(CompletableFuture.runAsync(() -> {
+                                int[] idsCuenta = new int[deParticion.size()];
+                                double[] importes = new double[deParticion.size()];
+                                int[] idsPaso = new int[deParticion.size()];
+                                for (int k = 0; k < idsCuenta.length; k++) {
+                                        idsCuenta[k] = cuentaDe.applyAsInt(deParticion.get(k));
+                                        importes[k] = importeDe.applyAsDouble(deParticion.get(k));
+                                        idsPaso[k] = idsTransaccion[deParticion.get(k)];
+                                }
+                                Respuesta resp = enviarSolicitudSubOperacion(idParticion,
+                                                TipoOperacion.APLICAR_MOVIMIENTOS,
+                                                Map.of("ID_CUENTAS", idsCuenta, "IMPORTES", importes, "ID_TRANSACCIONES",
+                                                                idsPaso, "PASO", paso, "ID_PARTICION", idParticion,
+                                                                "ID_TRANSACCION_GLOBAL", idLote),
+                                                "APLICAR_MOVIMIENTOS Lote:" + idLote);
+                                if (resp.getEstado() == EstadoOperacion.EXITO
+                                                && resp.getDatos() instanceof Map<?, ?> datos
+                                                && datos.get("resultados") instanceof EstadoOperacion[] deWorker
+                                                && deWorker.length == idsCuenta.length) {
+                                        for (int k = 0; k < deWorker.length; k++) {
+                                                resultados[deParticion.get(k)] = deWorker[k];
+                                        }
+                                        @SuppressWarnings("unchecked")
+                                        Map<Integer, Double> saldos = (Map<Integer, Double>) datos.get("saldos");
+                                        @SuppressWarnings("unchecked")
+                                        Map<String, Object> datosWorker = (Map<String, Object>) datos;
+                                        @SuppressWarnings("unchecked")
+                                        Map<Integer, Long> versiones = (Map<Integer, Long>) datos.get("versiones");
+                                        if (saldos != null && !saldos.isEmpty()) {
+                                                saldosPorParticion.computeIfAbsent(idParticion,
+                                                                _ -> new ConcurrentHashMap<>()).putAll(saldos);
+                                                if (versiones != null) {
+                                                        versionesPorParticion.computeIfAbsent(idParticion,
+                                                                        _ -> new ConcurrentHashMap<>()).putAll(versiones);
+                                                }
+                                                // Solo siguen al día los que lo estaban y tienen también estos saldos
+                                                workersPorParticion.merge(idParticion, workersAlDia(
+                                                                datosWorker, idParticion,
+                                                                (String) datos.get("workerIdProcesador")),
+                                                                (previos, nuevos) -> {
+                                                                        previos.retainAll(nuevos);
+                                                                        return previos;
+                                                                });
+                                        }
+                                } else {
+                                        // No se aplicó ninguno, o es incierto (ERROR_COMUNICACION) si hubo timeout
+                                        EstadoOperacion estado = resp.getEstado() == EstadoOperacion.EXITO
+                                                        ? EstadoOperacion.ERROR_GENERAL_SERVIDOR
+                                                        : resp.getEstado();
+                                        System.err.println("ManejadorCliente [Lote:" + idLote + "]: APLICAR_MOVIMIENTOS "
+                                                        + "falló en partición " + idParticion + ": " + resp.getMensaje());
+                                        for (int i : deParticion) {
+                                                resultados[i] = estado;
+                                        }
+                                }
+                        }, poolLotes));
+                }
+                CompletableFuture.allOf(llamadas.toArray(new CompletableFuture<?>[0])).join();
+                return resultados;
+        }
+
+        /**
+         * Replica los saldos que cambió un lote: un ACTUALIZAR_SALDOS_REPLICA por réplica
+         * de cada partición, salvo a las que ya tienen todos sus cambios (las que los
+         * aplicaron o los recibieron en cadena en cada llamada). Si esas ya son quórum,
+         * las demás no se esperan.
+         */
+        private void replicarSaldosDeLote(Map<String, Map<Integer, Double>> saldosPorParticion,
+                        Map<String, Map<Integer, Long>> versionesPorParticion,
+                        Map<String, Set<String>> workersPorParticion, int idLote) {
+                List<CompletableFuture<Void>> envios = new ArrayList<>();
+                for (Map.Entry<String, Map<Integer, Double>> entrada : saldosPorParticion.entrySet()) {
+                        String idParticion = entrada.getKey();
+                        HashMap<Integer, Double> saldos = new HashMap<>(entrada.getValue());
+                        HashMap<Integer, Long> versiones = new HashMap<>(
+                                        versionesPorParticion.getOrDefault(idParticion, Map.of()));
+                        Set<String> aplicadores = workersPorParticion.getOrDefault(idParticion, Set.of());
+                        List<String> idsWorkers = ServidorCentral.particionANodos.get(idParticion);
+                        if (idsWorkers == null) {
+                                continue;
+                        }
+                        boolean diferir = tieneQuorum(idParticion, aplicadores);
+                        for (String workerIdReplica : new ArrayList<>(idsWorkers)) {
+                                if (aplicadores.contains(workerIdReplica)) {
+                                        continue;
+                                }
+                                if (!ServidorCentral.replicaRecibeEscritura(idParticion, workerIdReplica)) {
+                                        continue; // Inactiva: deja de ser réplica hasta que se le vuelva a copiar
+                                }
+                                BooleanSupplier envio = () -> {
+                                        try {
+                                                Solicitud solicitudReplica = new Solicitud(
+                                                                TipoOperacion.ACTUALIZAR_SALDOS_REPLICA,
+                                                                Map.of("SALDOS", saldos, "VERSIONES", versiones,
+                                                                                "ID_PARTICION", idParticion,
+                                                                                "ID_TRANSACCION_GLOBAL", idLote));
+                                                Respuesta ack = CanalWorker.enviar(workerIdReplica, solicitudReplica,
+                                                                5000);
+                                                if (ack == null || ack.getEstado() != EstadoOperacion.REPLICA_ACTUALIZADA_OK) {
+                                                        System.err.println("ManejadorCliente [Lote:" + idLote
+                                                                        + "]: Worker " + workerIdReplica
+                                                                        + " falló al replicar partición " + idParticion
+                                                                        + (ack != null ? ": " + ack.getMensaje() : ""));
+                                                        return false;
+                                                }
+                                                return true;
+                                        } catch (Exception e) {
+                                                System.err.println("ManejadorCliente [Lote:" + idLote
+                                                                + "]: Error al replicar partición " + idParticion
+                                                                + " a worker " + workerIdReplica + ": " + e.getMessage());
+                                                return false;
+                                        }
+                                };
+                                if (diferir) {
+                                        diferirReplica(idParticion, workerIdReplica, envio);
+                                } else {
+                                        long inicioMs = System.currentTimeMillis();
+                                        envios.add(CompletableFuture.runAsync(
+                                                        () -> replicarOQuitar(idParticion, workerIdReplica, inicioMs,
+                                                                        envio),
+                                                        poolLotes));
+                                }
+                        }
+                }
+                CompletableFuture.allOf(envios.toArray(new CompletableFuture<?>[0])).join();
         }
 
         private Respuesta procesarArqueoCuentas(Solicitud solicitudArqueo) {
                 System.out.println("ManejadorCliente: Procesando ARQUEO_CUENTAS...");
+                // Si una partición se divide a mitad del arqueo, la suma mezcla el reparto
+                // viejo y el nuevo: se repite con la tabla nueva.
+                Respuesta resultado = null;
+                for (int intento = 1; intento <= MAX_INTENTOS_ARQUEO; intento++) {
+                        TablaEnrutamiento tabla = ServidorCentral.enrutamientoCuentas;
+                        resultado = arquearParticiones(tabla);
+                        if (tabla == ServidorCentral.enrutamientoCuentas) {
+                                return resultado;
+                        }
+                        System.out.println("ManejadorCliente: El enrutamiento de cuentas cambió durante el arqueo "
+                                        + "(intento " + intento + "). Se repite.");
+                }
+                return resultado;
+        }
+
+        private Respuesta arquearParticiones(TablaEnrutamiento tabla) {
                 double saldoTotalSistema = 0.0;
                 int particionesConsultadas = 0;
                 int particionesConError = 0;
                 StringBuilder detallesErrores = new StringBuilder();
 
-                // Iterar sobre todas las particiones de cuentas definidas globalmente
-                // Necesitamos obtener los IDs de las particiones de cuentas (ej. "CUENTA_P1",
-                // "CUENTA_P2", etc.)
-                // Esto podría obtenerse de las claves de datosParticionesGlobales que son de
-                // tipo Cuenta
-                // o tener una lista predefinida de IDs de particiones de cuentas.
-
-                List<String> idsParticionesCuenta = ServidorCentral.datosParticionesGlobales.keySet().stream()
-                                .filter(id -> id.startsWith("CUENTA_P"))
-                                .collect(Collectors.toList());
-
-                if (idsParticionesCuenta.isEmpty()) {
+                // Las particiones de cuentas son las de la tabla de enrutamiento
+                if (tabla.getNumRangos() == 0) {
                         return new Respuesta(EstadoOperacion.ERROR_GENERAL_SERVIDOR,
                                         "No hay particiones de cuentas definidas para el arqueo.", null);
                 }
 
-                for (String idParticion : idsParticionesCuenta) {
+                for (int i = 0; i < tabla.getNumRangos(); i++) {
+                        String idParticion = tabla.getParticion(i);
                         Map<String, Object> paramsParaWorker = Map.of("ID_PARTICION", idParticion);
                         // Usamos enviarSolicitudSubOperacion para pedirle a un worker de esa partición
                         // que calcule su total
-                        Respuesta respWorker = enviarSolicitudSubOperacion(idParticion,
-                                        TipoOperacion.CALCULAR_SALDO_PARTICION, paramsParaWorker,
-                                        "ARQUEO_PARTICION_" + idParticion);
+                        Respuesta respWorker;
+                        CercoParticiones.entrar(idParticion);
+                        try {
+                                respWorker = enviarSolicitudSubOperacion(idParticion,
+                                                TipoOperacion.CALCULAR_SALDO_PARTICION, paramsParaWorker,
+                                                "ARQUEO_PARTICION_" + idParticion);
+                        } finally {
+                                CercoParticiones.salir(idParticion);
+                        }
 
                         if (respWorker.getEstado() == EstadoOperacion.EXITO
                                         && respWorker.getDatos() instanceof Double) {
@@ -617,7 +1801,7 @@ public class ManejadorClienteServidor implements Runnable {
                 }
         }
 
-        private Respuesta enviarSolicitudSubOperacion(String idParticion, TipoOperacion tipoSubOperacion,
+        private static Respuesta enviarSolicitudSubOperacion(String idParticion, TipoOperacion tipoSubOperacion,
                         Map<String, Object> parametros, String logContext) {
                 List<String> idsWorkers = ServidorCentral.particionANodos.get(idParticion);
                 if (idsWorkers == null || idsWorkers.isEmpty()) {
@@ -633,27 +1817,26 @@ public class ManejadorClienteServidor implements Runnable {
                                 System.out.println("ManejadorCliente [" + logContext + "]: Intentando "
                                                 + tipoSubOperacion + " en worker " + workerId + " ("
                                                 + infoWorker.getHost() + ":" + infoWorker.getPuertoTareas() + ")");
-                                try (Socket socketAlWorker = new Socket(infoWorker.getHost(),
-                                                infoWorker.getPuertoTareas());
-                                                ObjectOutputStream oosWorker = new ObjectOutputStream(
-                                                                socketAlWorker.getOutputStream());
-                                                ObjectInputStream oisWorker = new ObjectInputStream(
-                                                                socketAlWorker.getInputStream())) {
-                                        socketAlWorker.setSoTimeout(10000); // Timeout para sub-operaciones
-                                        Solicitud solicitudAWorker = new Solicitud(tipoSubOperacion, parametros);
-                                        oosWorker.writeObject(solicitudAWorker);
-                                        oosWorker.flush();
-                                        Object respuestaObj = oisWorker.readObject();
+                                try {
+                                        Solicitud solicitudAWorker = new Solicitud(tipoSubOperacion,
+                                                        esSubOperacionDeSoloLectura(tipoSubOperacion) ? parametros
+                                                                        : conCadenas(parametros, workerId, idParticion));
+                                        // Timeout para sub-operaciones
+                                        Object respuestaObj = CanalWorker.enviar(workerId, solicitudAWorker, 10000);
                                         if (respuestaObj instanceof Respuesta) {
                                                 Respuesta resp = (Respuesta) respuestaObj;
                                                 // Añadir el workerId que procesó a los datos de la respuesta para
                                                 // trazabilidad
-                                                Map<String, Object> datosOriginales = resp.getDatos() instanceof Map
-                                                                ? (Map<String, Object>) resp.getDatos()
-                                                                : new HashMap<>();
-                                                Map<String, Object> datosConWorkerId = new HashMap<>(datosOriginales);
-                                                datosConWorkerId.put("workerIdProcesador", workerId);
-                                                resp.setDatos(datosConWorkerId);
+                                                // (solo si los datos son un Map o no hay datos, para no perder
+                                                // resultados escalares como la suma de CALCULAR_SALDO_PARTICION)
+                                                if (resp.getDatos() == null || resp.getDatos() instanceof Map) {
+                                                        Map<String, Object> datosConWorkerId = resp.getDatos() == null
+                                                                        ? new HashMap<>()
+                                                                        : new HashMap<>((Map<String, Object>) resp
+                                                                                        .getDatos());
+                                                        datosConWorkerId.put("workerIdProcesador", workerId);
+                                                        resp.setDatos(datosConWorkerId);
+                                                }
                                                 return resp;
                                         }
                                         System.err.println("ManejadorCliente [" + logContext
@@ -661,13 +1844,27 @@ public class ManejadorClienteServidor implements Runnable {
                                         return new Respuesta(EstadoOperacion.ERROR_COMUNICACION,
                                                         "Respuesta inesperada del worker " + workerId, null);
                                 } catch (SocketTimeoutException e) {
-                                        System.err.println("ManejadorCliente [" + logContext + "]: Timeout con worker "
-                                                        + workerId + ". Desregistrando.");
-                                        ServidorCentral.desregistrarWorker(workerId);
+                                        manejarFalloWorker(workerId, e, logContext);
+                                        if (!esSubOperacionDeSoloLectura(tipoSubOperacion)) {
+                                                // El worker pudo aplicar el cambio; repetirlo en otra réplica
+                                                // las haría divergir.
+                                                return new Respuesta(EstadoOperacion.ERROR_COMUNICACION,
+                                                                "Timeout con worker " + workerId + " en "
+                                                                                + tipoSubOperacion
+                                                                                + ". Resultado incierto.",
+                                                                null);
+                                        }
                                 } catch (IOException e) {
-                                        System.err.println("ManejadorCliente [" + logContext + "]: Error IO con worker "
-                                                        + workerId + ": " + e.getMessage() + ". Desregistrando.");
-                                        ServidorCentral.desregistrarWorker(workerId);
+                                        manejarFalloWorker(workerId, e, logContext);
+                                        if (e instanceof CanalWorker.WorkerNoDisponibleException noDisponible
+                                                        && noDisponible.isSaturado()
+                                                        && !esSubOperacionDeSoloLectura(tipoSubOperacion)) {
+                                                // Solo está ocupado: la siguiente réplica puede ir atrasada y
+                                                // escribir sobre ella perdería cambios del primario.
+                                                return new Respuesta(EstadoOperacion.SERVIDOR_OCUPADO, "Worker "
+                                                                + workerId + " saturado. No se aplicó "
+                                                                + tipoSubOperacion + ".", null);
+                                        }
                                 } catch (ClassNotFoundException e) {
                                         System.err.println("ManejadorCliente [" + logContext
                                                         + "]: Error ClassNotFound de worker " + workerId + ": "
@@ -681,77 +1878,247 @@ public class ManejadorClienteServidor implements Runnable {
                                 + tipoSubOperacion + " en partición " + idParticion, null);
         }
 
-        private void replicarActualizacionSaldo(String idParticion, int idCuenta, double nuevoSaldo,
-                        int idTransaccionGlobal, String workerPrimarioId) {
+        /**
+         * Sub-operaciones que no escriben saldos y pueden repetirse en otra réplica.
+         * PREPARAR_DEBITO no lo es: deja una retención en el worker que la atiende.
+         */
+        private static boolean esSubOperacionDeSoloLectura(TipoOperacion tipo) {
+                return tipo == TipoOperacion.PREPARAR_CREDITO || tipo == TipoOperacion.CANCELAR_DEBITO
+                                || tipo == TipoOperacion.CALCULAR_SALDO_PARTICION;
+        }
+
+        /**
+         * Parámetros con CADENAS añadido, para que el worker workerCabeza replique en cadena
+         * lo que escriba en esas particiones: por partición, las demás réplicas activas
+         * como "workerId@host:puerto", en el orden de particionANodos. Con escrituras por
+         * quórum la cadena acaba en la última réplica que hace falta para la mayoría: son
+         * las siguientes en hacerse primario si cae el actual, así que el nuevo primario
+         * siempre tiene las escrituras confirmadas. Las inactivas quedan fuera; al replicar
+         * lo escrito se les quita la partición (ServidorCentral.replicaRecibeEscritura).
+         * Si la replicación en cadena está desactivada se devuelven los mismos parámetros.
+         */
+        private static Map<String, Object> conCadenas(Map<String, Object> parametros, String workerCabeza,
+                        String... particiones) {
+                if (!REPLICACION_EN_CADENA) {
+                        return parametros;
+                }
+                HashMap<String, ArrayList<String>> cadenas = new HashMap<>();
+                for (String idParticion : particiones) {
+                        ArrayList<String> cadena = new ArrayList<>();
+                        for (String workerId : new ArrayList<>(
+                                        ServidorCentral.particionANodos.getOrDefault(idParticion, List.of()))) {
+                                InfoWorker info = ServidorCentral.workersActivos.get(workerId);
+                                if (!workerId.equals(workerCabeza) && info != null && info.isActivo()) {
+                                        cadena.add(workerId + "@" + info.getHost() + ":" + info.getPuertoTareas());
+                                }
+                        }
+                        if (ESCRITURAS_POR_QUORUM) {
+                                int seguidoresEnQuorum = Math.max(0, quorum(idParticion) - 1);
+                                while (cadena.size() > seguidoresEnQuorum) {
+                                        cadena.remove(cadena.size() - 1);
+                                }
+                        }
+                        cadenas.put(idParticion, cadena);
+                }
+                Map<String, Object> conCadenas = new HashMap<>(parametros);
+                conCadenas.put("CADENAS", cadenas);
+                return conCadenas;
+        }
+
+        /** Réplicas que forman mayoría en la partición (las registradas, activas o no). */
+        private static int quorum(String idParticion) {
+                return ServidorCentral.particionANodos.getOrDefault(idParticion, List.of()).size() / 2 + 1;
+        }
+
+        /** Si con escrituras por quórum los workers dados ya son mayoría de las réplicas de la partición. */
+        private static boolean tieneQuorum(String idParticion, Set<String> alDia) {
+                if (!ESCRITURAS_POR_QUORUM) {
+                        return false;
+                }
+                int replicasAlDia = 0;
+                for (String workerId : new ArrayList<>(
+                                ServidorCentral.particionANodos.getOrDefault(idParticion, List.of()))) {
+                        if (alDia.contains(workerId)) {
+                                replicasAlDia++;
+                        }
+                }
+                return replicasAlDia >= quorum(idParticion);
+        }
+
+        /**
+         * Lanza en poolLlamadasWorker la actualización de una réplica que no hace falta
+         * para el quórum, sin esperarla. Queda registrada en CercoParticiones (el
+         * mantenimiento de la partición espera a que termine) y en MetricasReplicacion.
+         */
+        private static void diferirReplica(String idParticion, String workerIdReplica, BooleanSupplier envio) {
+                MetricasReplicacion metricas = MetricasReplicacion.para(idParticion);
+                CercoParticiones.registrarReplicacionPendiente(idParticion);
+                long inicioMs = metricas.iniciarDiferida(workerIdReplica);
+                CompletableFuture.supplyAsync(() -> replicarOQuitar(idParticion, workerIdReplica, inicioMs, envio),
+                                poolLlamadasWorker).whenComplete((exito, error) -> {
+                        metricas.terminarDiferida(workerIdReplica, inicioMs, Boolean.TRUE.equals(exito));
+                        CercoParticiones.terminarReplicacionPendiente(idParticion);
+                });
+        }
+
+        /**
+         * Hace el envío a una réplica. Si no lo aplicó su copia queda atrasada desde
+         * inicioMs: deja de ser réplica de la partición hasta que ReparadorReplicas se la
+         * vuelva a copiar, y hasta entonces cuenta en el retraso de MetricasReplicacion.
+         */
+        private static boolean replicarOQuitar(String idParticion, String workerIdReplica, long inicioMs,
+                        BooleanSupplier envio) {
+                if (envio.getAsBoolean()) {
+                        return true;
+                }
+                ServidorCentral.quitarReplicaDesactualizada(idParticion, workerIdReplica,
+                                "no aplicó una actualización", inicioMs);
+                return false;
+        }
+
+        /**
+         * Workers que ya tienen los saldos que una escritura dejó en la partición: el que
+         * la aplicó y los que la confirmaron en la cadena ("replicasConfirmadas").
+         */
+        private static Set<String> workersAlDia(Map<String, Object> datos, String idParticion, String workerProcesador) {
+                Set<String> alDia = ConcurrentHashMap.newKeySet();
+                if (workerProcesador != null) {
+                        alDia.add(workerProcesador);
+                }
+                if (datos != null && datos.get("replicasConfirmadas") instanceof Map<?, ?> confirmadas
+                                && confirmadas.get(idParticion) instanceof List<?> workers) {
+                        for (Object w : workers) {
+                                alDia.add((String) w);
+                        }
+                }
+                return alDia;
+        }
+
+        /**
+         * Envía el saldo nuevo de la cuenta a las réplicas que no lo tienen ya (yaAlDia,
+         * ver workersAlDia), todas a la vez en poolLlamadasWorker, y devuelve los envíos
+         * en curso (ver esperarReplicas). Con la replicación en cadena normalmente solo
+         * quedan las de fuera del quórum, que no se esperan (ver diferirReplica), o las
+         * que la cadena no alcanzó por un fallo.
+         * Con su versión (puede ser null), una réplica ignora un saldo más viejo que el
+         * suyo si le llegan en otro orden.
+         */
+        private static List<CompletableFuture<Void>> replicarActualizacionSaldo(String idParticion, int idCuenta,
+                        double nuevoSaldo, Long version, int idTransaccionGlobal, Set<String> yaAlDia) {
+                List<CompletableFuture<Void>> envios = new ArrayList<>();
                 List<String> idsWorkersConParticion = ServidorCentral.particionANodos.get(idParticion);
-                if (idsWorkersConParticion == null)
-                        return;
+                if (idsWorkersConParticion == null || yaAlDia.containsAll(idsWorkersConParticion))
+                        return envios;
 
                 System.out.println("ManejadorCliente [Tx:" + idTransaccionGlobal
                                 + "]: Iniciando replicación de saldo para cuenta " + idCuenta + " en partición "
                                 + idParticion + " (nuevo saldo: " + nuevoSaldo + ")");
 
+                Map<String, Object> paramsReplica = new HashMap<>(Map.of("ID_CUENTA", idCuenta, "NUEVO_SALDO",
+                                nuevoSaldo, "ID_PARTICION", idParticion, "ID_TRANSACCION_GLOBAL", idTransaccionGlobal));
+                if (version != null) {
+                        paramsReplica.put("VERSION", version);
+                }
+                boolean diferir = tieneQuorum(idParticion, yaAlDia);
                 for (String workerIdReplica : new ArrayList<>(idsWorkersConParticion)) {
-                        if (workerIdReplica.equals(workerPrimarioId)) {
-                                continue; // No replicar al worker que ya hizo el cambio primario
+                        if (yaAlDia.contains(workerIdReplica)) {
+                                continue; // Ya lo aplicó (primario o cadena)
                         }
-                        InfoWorker infoWorkerReplica = ServidorCentral.workersActivos.get(workerIdReplica);
-                        if (infoWorkerReplica != null && infoWorkerReplica.isActivo()) {
-                                System.out.println("ManejadorCliente [Tx:" + idTransaccionGlobal
-                                                + "]: Replicando saldo de cta " + idCuenta + " a worker réplica "
-                                                + workerIdReplica);
-                                try (Socket socketAlWorker = new Socket(infoWorkerReplica.getHost(),
-                                                infoWorkerReplica.getPuertoTareas());
-                                                ObjectOutputStream oosWorker = new ObjectOutputStream(
-                                                                socketAlWorker.getOutputStream());
-                                                ObjectInputStream oisWorker = new ObjectInputStream(
-                                                                socketAlWorker.getInputStream())) {
-                                        socketAlWorker.setSoTimeout(5000);
-                                        Map<String, Object> paramsReplica = Map.of("ID_CUENTA", idCuenta, "NUEVO_SALDO",
-                                                        nuevoSaldo, "ID_PARTICION", idParticion,
-                                                        "ID_TRANSACCION_GLOBAL", idTransaccionGlobal);
-                                        Solicitud solicitudReplica = new Solicitud(
-                                                        TipoOperacion.ACTUALIZAR_SALDO_REPLICA, paramsReplica);
-                                        oosWorker.writeObject(solicitudReplica);
-                                        oosWorker.flush();
-
-                                        Object ackObj = oisWorker.readObject();
-                                        if (ackObj instanceof Respuesta) {
-                                                Respuesta ackResp = (Respuesta) ackObj;
-                                                if (ackResp.getEstado() == EstadoOperacion.REPLICA_ACTUALIZADA_OK) {
-                                                        System.out.println("ManejadorCliente [Tx:" + idTransaccionGlobal
-                                                                        + "]: Worker " + workerIdReplica
-                                                                        + " confirmó replicación para cta " + idCuenta);
-                                                } else {
-                                                        System.err.println("ManejadorCliente [Tx:" + idTransaccionGlobal
-                                                                        + "]: Worker " + workerIdReplica
-                                                                        + " falló al replicar para cta " + idCuenta
-                                                                        + ": " + ackResp.getMensaje());
-                                                }
+                        if (!ServidorCentral.replicaRecibeEscritura(idParticion, workerIdReplica)) {
+                                continue; // Inactiva: deja de ser réplica hasta que se le vuelva a copiar
+                        }
+                        BooleanSupplier envio = () -> enviarReplica(workerIdReplica, paramsReplica, idCuenta,
+                                        idTransaccionGlobal);
+                        if (diferir) {
+                                diferirReplica(idParticion, workerIdReplica, envio);
+                        } else {
+                                long inicioMs = System.currentTimeMillis();
+                                envios.add(CompletableFuture.runAsync(
+                                                () -> replicarOQuitar(idParticion, workerIdReplica, inicioMs, envio),
+                                                poolLlamadasWorker));
+                        }
+                }
+                return envios;
+        }
+
+        /** Envía el saldo a una réplica; devuelve si lo aplicó. */
+        private static boolean enviarReplica(String workerIdReplica, Map<String, Object> paramsReplica, int idCuenta,
+                        int idTransaccionGlobal) {
+                System.out.println("ManejadorCliente [Tx:" + idTransaccionGlobal + "]: Replicando saldo de cta "
+                                + idCuenta + " a worker réplica " + workerIdReplica);
+                // Mientras la réplica solo esté saturada se sigue intentando, como mucho lo que
+                // se esperaría su respuesta: una réplica que se salta un saldo queda divergente
+                long limiteMs = System.currentTimeMillis() + TIMEOUT_REPLICA_MS;
+                for (int intento = 1;; intento++) {
+                        try {
+                                Solicitud solicitudReplica = new Solicitud(TipoOperacion.ACTUALIZAR_SALDO_REPLICA,
+                                                paramsReplica);
+                                Object ackObj = CanalWorker.enviar(workerIdReplica, solicitudReplica,
+                                                TIMEOUT_REPLICA_MS);
+                                if (ackObj instanceof Respuesta) {
+                                        Respuesta ackResp = (Respuesta) ackObj;
+                                        if (ackResp.getEstado() == EstadoOperacion.REPLICA_ACTUALIZADA_OK) {
+                                                System.out.println("ManejadorCliente [Tx:" + idTransaccionGlobal
+                                                                + "]: Worker " + workerIdReplica
+                                                                + " confirmó replicación para cta " + idCuenta);
+                                                return true;
                                         } else {
                                                 System.err.println("ManejadorCliente [Tx:" + idTransaccionGlobal
-                                                                + "]: Respuesta de replicación inesperada de worker "
-                                                                + workerIdReplica);
+                                                                + "]: Worker " + workerIdReplica
+                                                                + " falló al replicar para cta " + idCuenta + ": "
+                                                                + ackResp.getMensaje());
                                         }
-                                } catch (Exception e) {
+                                } else {
                                         System.err.println("ManejadorCliente [Tx:" + idTransaccionGlobal
-                                                        + "]: Error al replicar saldo a worker " + workerIdReplica
-                                                        + " para cta " + idCuenta + ": " + e.getMessage());
-                                        // Considerar desregistrar o marcar como "necesita sincronización"
+                                                        + "]: Respuesta de replicación inesperada de worker "
+                                                        + workerIdReplica);
                                 }
+                                return false;
+                        } catch (CanalWorker.WorkerNoDisponibleException e) {
+                                if (!e.isSaturado() || System.currentTimeMillis() > limiteMs) {
+                                        System.err.println("ManejadorCliente [Tx:" + idTransaccionGlobal
+                                                        + "]: No se replicó saldo de cta " + idCuenta + " a worker "
+                                                        + workerIdReplica + ": " + e.getMessage());
+                                        return false;
+                                }
+                                // Réplica saturada: el envío no salió, se repite en un momento
+                                esperarAntesDeReintentar(intento);
+                        } catch (Exception e) {
+                                System.err.println("ManejadorCliente [Tx:" + idTransaccionGlobal
+                                                + "]: Error al replicar saldo a worker " + workerIdReplica
+                                                + " para cta " + idCuenta + ": " + e.getMessage());
+                                return false;
                         }
                 }
         }
 
+        /** Espera a que terminen los envíos a réplicas (los fallos ya quedaron en el log). */
+        private static void esperarReplicas(List<CompletableFuture<Void>> envios) {
+                CompletableFuture.allOf(envios.toArray(new CompletableFuture<?>[0])).join();
+        }
+
+        /**
+         * La conexión no cabe en el pool de clientes: se responde SERVIDOR_OCUPADO (sin
+         * idSolicitud, vale para la primera solicitud que envíe) y se cierra.
+         */
+        public void rechazarPorSobrecarga(long reintentarEnMs) {
+                if (!activo) {
+                        return;
+                }
+                enviarRespuesta(new Respuesta(EstadoOperacion.SERVIDOR_OCUPADO,
+                                "Servidor ocupado: demasiadas conexiones. Reintente en " + reintentarEnMs + " ms.",
+                                reintentarEnMs));
+                cerrarRecursos();
+        }
+
         private void enviarRespuesta(Respuesta respuesta) {
-                if (!activo || oos == null || socketCliente.isClosed()) {
+                if (!activo || flujo == null || socketCliente.isClosed()) {
                         System.err.println(
                                         "ManejadorCliente: No se puede enviar respuesta, conexión inactiva o cerrada.");
                         return;
                 }
                 try {
-                        oos.writeObject(respuesta);
-                        oos.flush();
+                        flujo.escribir(respuesta); // Sincronizado: las respuestas en paralelo comparten flujo
                         System.out.println("Respuesta enviada a [" + socketCliente.getInetAddress().getHostAddress()
                                         + "]: "
                                         + respuesta.getEstado() + " - " + respuesta.getMensaje());
@@ -783,20 +2150,6 @@ public class ManejadorClienteServidor implements Runnable {
                                 ? socketCliente.getInetAddress().getHostAddress()
                                 : "desconocido";
                 System.out.println("ManejadorCliente: Cerrando conexión y recursos para " + address);
-                try {
-                        if (ois != null)
-                                ois.close();
-                } catch (IOException e) {
-                        // System.err.println("ManejadorCliente: Error al cerrar ObjectInputStream: " +
-                        // e.getMessage());
-                }
-                try {
-                        if (oos != null)
-                                oos.close();
-                } catch (IOException e) {
-                        // System.err.println("ManejadorCliente: Error al cerrar ObjectOutputStream: " +
-                        // e.getMessage());
-                }
                 cerrarSocket();
         }
 }
\ No newline at end of file
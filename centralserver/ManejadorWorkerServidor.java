@@ -80,9 +80,12 @@ public class ManejadorWorkerServidor implements Runnable {
             // menos de N réplicas)
             // Esto debe ser sincronizado o usar estructuras Concurrentes de forma segura en
             // ServidorCentral
-            ServidorCentral.asignarParticionesAWorker(this.workerId, particionesAsignadasAlWorker, datosParaWorker);
+            ServidorCentral.asignarParticionesAWorker(this.workerId, msgRegistro.getListaParticiones(),
+                    particionesAsignadasAlWorker, datosParaWorker);
 
-            if (particionesAsignadasAlWorker.isEmpty()) {
+            // Sin particiones con datos iniciales se le registra igual: el Rebalanceador le
+            // copiará las que le toquen. Solo se le rechaza si no hay datos en absoluto.
+            if (particionesAsignadasAlWorker.isEmpty() && ImagenesParticiones.estaVacio()) {
                 System.out.println(
                         "ManejadorWorker: No hay particiones disponibles para asignar al worker " + this.workerId);
                 oos.writeObject(new MensajeWorker(MensajeWorker.TipoMensaje.ERROR, "ServidorCentral",
@@ -125,10 +128,10 @@ public class ManejadorWorkerServidor implements Runnable {
                 oos.flush();
                 System.out.println(
                         "ManejadorWorker: Confirmación de registro completo enviada a worker " + this.workerId);
-                // El hilo podría quedar para heartbeats o terminar si la conexión inicial es
-                // solo para registro.
-                // Por ahora, lo mantenemos activo para un posible heartbeat futuro.
-                // while(activo) { Thread.sleep(10000); /* heartbeat simulado */ }
+
+                // 7. Mantener la conexión de registro abierta para heartbeats
+                DetectorFallos.registrarLatido(this.workerId);
+                atenderHeartbeats();
 
             } else {
                 System.err.println("ManejadorWorker [" + this.workerId
@@ -164,15 +167,64 @@ public class ManejadorWorkerServidor implements Runnable {
             // La lógica de desregistrarWorker ya debería encargarse si infoEsteWorker fue
             // registrado.
             if (this.infoEsteWorker == null && this.workerId != null) {
-                // System.out.println("Limpieza adicional para worker " + this.workerId + " si
-                // es necesario.");
-                // ServidorCentral.removerParticionesDeWorker(this.workerId, ...); //
-                // Necesitaría la lista de particiones que se intentó asignar
+                // Que deje de contar como miembro del anillo de particiones
+                ServidorCentral.cancelarRegistroEnCurso(this.workerId);
             }
             cerrarRecursos();
         }
     }
 
+    /**
+     * Atiende los HEARTBEAT del worker hasta que la conexión se cierre. Cada latido
+     * alimenta al DetectorFallos y reactiva al worker si estaba marcado inactivo.
+     */
+    private void atenderHeartbeats() throws IOException, ClassNotFoundException {
+        while (activo) {
+            Object msgObj = ois.readObject();
+            if (!(msgObj instanceof MensajeWorker)) {
+                System.err.println(
+                        "ManejadorWorker [" + this.workerId + "]: Mensaje de heartbeat no es MensajeWorker.");
+                continue;
+            }
+            MensajeWorker msg = (MensajeWorker) msgObj;
+            if (msg.getTipo() != MensajeWorker.TipoMensaje.HEARTBEAT) {
+                System.err.println("ManejadorWorker [" + this.workerId + "]: Se esperaba HEARTBEAT pero se recibió: "
+                        + msg.getTipo());
+                continue;
+            }
+            if (!ServidorCentral.workersActivos.containsKey(this.workerId)) {
+                // Fue desregistrado por otro camino (ej. fallo de IO en una tarea); sus datos
+                // pueden estar desactualizados, así que no se reactiva.
+                System.out.println("ManejadorWorker: Worker " + this.workerId
+                        + " ya no está registrado. Cerrando conexión de heartbeats.");
+                oos.writeObject(new MensajeWorker(MensajeWorker.TipoMensaje.ERROR, "ServidorCentral",
+                        "Worker desregistrado."));
+                oos.flush();
+                break;
+            }
+            DetectorFallos.registrarLatido(this.workerId);
+            boolean estabaInactivo;
+            // Mismo cerrojo que ServidorCentral.replicaRecibeEscritura: las escrituras que se
+            // lo saltaron mientras estaba inactivo ya le han quitado esas particiones, y las
+            // demás modificadas se le quitan antes de volver a enrutarle nada
+            synchronized (infoEsteWorker) {
+                estabaInactivo = !infoEsteWorker.isActivo();
+                if (estabaInactivo) {
+                    ServidorCentral.reincorporarWorker(this.workerId);
+                }
+                infoEsteWorker.setUltimoHeartbeat(System.currentTimeMillis()); // También lo marca activo
+            }
+            if (estabaInactivo) {
+                System.out.println("ManejadorWorker: Worker " + this.workerId
+                        + " vuelve a enviar heartbeats. Reactivado sin las particiones modificadas "
+                        + "que atiende otra réplica; se le vuelven a copiar.");
+            }
+            oos.writeObject(new MensajeWorker(MensajeWorker.TipoMensaje.RESPUESTA_HEARTBEAT, "ServidorCentral", "ok"));
+            oos.flush();
+            oos.reset(); // Evita que el stream retenga cada mensaje enviado
+        }
+    }
+
     private void cerrarSocket() {
         try {
             if (socketWorker != null && !socketWorker.isClosed()) {
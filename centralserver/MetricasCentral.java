@@ -0,0 +1,85 @@
+package centralserver;
+
+import java.util.Map;
+import commons.InfoWorker;
+import commons.Metricas;
+import commons.ServidorMetricas;
+import commons.TipoOperacion;
+
+/**
+ * Publica en el endpoint de métricas, además de las latencias y contadores que
+ * se registran por el camino (Metricas), lo que ya cuentan las demás clases del
+ * Servidor Central: workers, circuitos, admisión, caché, replicación, diario y
+ * recuperación.
+ */
+public class MetricasCentral {
+
+    private static final int PUERTO = Integer.getInteger("banco.metricas.puerto", 12347);
+
+    public static void iniciar() {
+        Metricas.registrarFuente(MetricasCentral::exportar);
+        ServidorMetricas.iniciar(PUERTO, "ServidorCentral");
+    }
+
+    private static void exportar(Metricas.Salida s) {
+        for (InfoWorker info : ServidorCentral.workersActivos.values()) {
+            s.medidor("banco_worker_activo", info.isActivo() ? 1 : 0, "worker", info.getWorkerId());
+            s.medidor("banco_worker_phi", DetectorFallos.phi(info.getWorkerId()), "worker", info.getWorkerId());
+        }
+        for (Map.Entry<String, InterruptorCircuito> e : InterruptorCircuito.todos().entrySet()) {
+            InterruptorCircuito.Estado estado = e.getValue().getEstado();
+            s.medidor("banco_circuito_abierto", estado == InterruptorCircuito.Estado.CERRADO ? 0 : 1, "worker",
+                    e.getKey(), "estado", estado.name());
+            s.medidor("banco_circuito_en_vuelo", e.getValue().getEnVuelo(), "worker", e.getKey());
+        }
+        for (Map.Entry<TipoOperacion, ControlAdmision> e : ControlAdmision.todos().entrySet()) {
+            String tipo = e.getKey().name();
+            ControlAdmision c = e.getValue();
+            s.medidor("banco_admision_limite", c.getLimite(), "tipo", tipo);
+            s.medidor("banco_admision_en_ejecucion", c.getEnEjecucion(), "tipo", tipo);
+            s.medidor("banco_admision_en_cola", c.getEnCola(), "tipo", tipo);
+            s.contador("banco_admision_admitidas_total", c.getAdmitidas(), "tipo", tipo);
+            s.contador("banco_admision_rechazadas_total", c.getRechazadas(), "tipo", tipo);
+            s.contador("banco_admision_expiradas_total", c.getExpiradasEnCola(), "tipo", tipo);
+        }
+
+        s.contador("banco_cache_aciertos_total", CacheSaldos.getAciertos());
+        s.contador("banco_cache_fallos_total", CacheSaldos.getFallos());
+        s.contador("banco_cache_desalojos_total", CacheSaldos.getDesalojos());
+        s.contador("banco_cache_invalidaciones_total", CacheSaldos.getInvalidaciones());
+        s.medidor("banco_cache_entradas", CacheSaldos.getTamano());
+
+        s.contador("banco_lectura_cubierta_lecturas_total", LecturaCubierta.lecturas.get());
+        s.contador("banco_lectura_cubierta_coberturas_total", LecturaCubierta.coberturasEnviadas.get());
+        s.contador("banco_lectura_cubierta_coberturas_ganadoras_total", LecturaCubierta.coberturasGanadoras.get());
+
+        // Replicación: las particiones son muchas, se agregan
+        long pendientes = 0;
+        long atrasadas = 0;
+        long retrasoMaxMs = 0;
+        long diferidas = 0;
+        long fallosDiferidas = 0;
+        for (MetricasReplicacion m : MetricasReplicacion.todas().values()) {
+            pendientes += m.getReplicasPendientes();
+            atrasadas += m.getReplicasAtrasadas();
+            retrasoMaxMs = Math.max(retrasoMaxMs, m.getRetrasoActualMs());
+            diferidas += m.getReplicacionesDiferidas();
+            fallosDiferidas += m.getFallosDiferidas();
+        }
+        s.medidor("banco_replicas_pendientes", pendientes);
+        s.medidor("banco_replicas_atrasadas", atrasadas);
+        s.medidor("banco_replicas_retraso_max_segundos", retrasoMaxMs / 1000.0);
+        s.contador("banco_replicaciones_diferidas_total", diferidas);
+        s.contador("banco_replicaciones_diferidas_fallidas_total", fallosDiferidas);
+        s.medidor("banco_particiones_subreplicadas", ReparadorReplicas.getParticionesSubreplicadas());
+        s.contador("banco_reparacion_copias_total", ReparadorReplicas.getCopiasRealizadas());
+        s.contador("banco_reparacion_bytes_total", ReparadorReplicas.getBytesCopiados());
+
+        s.contador("banco_diario_registros_total", DiarioTransferencias.getRegistros());
+        s.contador("banco_diario_fsyncs_total", DiarioTransferencias.getFsyncs());
+        s.contador("banco_diario_puntos_control_total", DiarioTransferencias.getPuntosControl());
+        s.medidor("banco_recuperacion_en_duda", RecuperadorTransferencias.getEnDuda());
+        s.medidor("banco_recuperacion_pendientes", RecuperadorTransferencias.getPendientes());
+        s.medidor("banco_recuperacion_reintentando", RecuperadorTransferencias.getReintentando());
+    }
+}
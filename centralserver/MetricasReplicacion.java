@@ -0,0 +1,161 @@
+package centralserver;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Métricas de escritura y replicación por partición.
+ * - Latencia de confirmación: desde que una escritura de cliente empieza hasta que
+ * la tiene el quórum de réplicas (cuando se le responde al cliente).
+ * - Retraso de réplicas: las réplicas fuera del quórum se actualizan después; se
+ * mide cuánto tardan en tener el cambio desde que se confirmó, y el retraso
+ * actual es la edad de la actualización pendiente más vieja.
+ * - Una réplica que no aplicó una actualización sigue contando como retrasada
+ * desde entonces hasta que se le vuelve a copiar la partición (o se desregistra).
+ * - Lo mismo por réplica (getRetrasoMs), para las lecturas con antigüedad acotada.
+ */
+public class MetricasReplicacion {
+
+    private static final ConcurrentHashMap<String, MetricasReplicacion> porParticion = new ConcurrentHashMap<>();
+
+    private final String idParticion;
+    private long confirmaciones = 0;
+    private long nanosConfirmando = 0;
+    private long maxNanosConfirmacion = 0;
+    // Actualizaciones de réplica pendientes por instante (ms) de confirmación
+    private final TreeMap<Long, Integer> pendientesDesde = new TreeMap<>();
+    private final Map<String, TreeMap<Long, Integer>> pendientesPorReplica = new HashMap<>();
+    private int pendientes = 0;
+    // Réplicas que se quedaron sin una actualización, y desde cuándo (ms)
+    private final Map<String, Long> atrasadasDesde = new HashMap<>();
+    private long replicacionesDiferidas = 0;
+    private long fallosDiferidas = 0;
+    private long ultimoRetrasoMs = 0;
+    private long maxRetrasoMs = 0;
+
+    private MetricasReplicacion(String idParticion) {
+        this.idParticion = idParticion;
+    }
+
+    public static MetricasReplicacion para(String idParticion) {
+        return porParticion.computeIfAbsent(idParticion, MetricasReplicacion::new);
+    }
+
+    public static Map<String, MetricasReplicacion> todas() {
+        return porParticion;
+    }
+
+    /** Una escritura quedó confirmada por el quórum latenciaNs después de empezar. */
+    public synchronized void registrarConfirmacion(long latenciaNs) {
+        confirmaciones++;
+        nanosConfirmando += latenciaNs;
+        maxNanosConfirmacion = Math.max(maxNanosConfirmacion, latenciaNs);
+    }
+
+    /** Empieza la actualización diferida de la réplica workerId; devuelve su instante de inicio. */
+    public synchronized long iniciarDiferida(String workerId) {
+        long ahora = System.currentTimeMillis();
+        pendientesDesde.merge(ahora, 1, Integer::sum);
+        pendientesPorReplica.computeIfAbsent(workerId, _ -> new TreeMap<>()).merge(ahora, 1, Integer::sum);
+        pendientes++;
+        return ahora;
+    }
+
+    public synchronized void terminarDiferida(String workerId, long inicioMs, boolean exito) {
+        pendientesDesde.computeIfPresent(inicioMs, (_, n) -> n > 1 ? n - 1 : null);
+        TreeMap<Long, Integer> deReplica = pendientesPorReplica.get(workerId);
+        if (deReplica != null) {
+            deReplica.computeIfPresent(inicioMs, (_, n) -> n > 1 ? n - 1 : null);
+            if (deReplica.isEmpty()) {
+                pendientesPorReplica.remove(workerId);
+            }
+        }
+        pendientes--;
+        if (exito) {
+            replicacionesDiferidas++;
+            ultimoRetrasoMs = System.currentTimeMillis() - inicioMs;
+            maxRetrasoMs = Math.max(maxRetrasoMs, ultimoRetrasoMs);
+        } else {
+            fallosDiferidas++;
+        }
+    }
+
+    /** La réplica workerId no tiene las escrituras confirmadas desde desdeMs. */
+    public synchronized void marcarAtrasada(String workerId, long desdeMs) {
+        atrasadasDesde.merge(workerId, desdeMs, Math::min);
+    }
+
+    /** La réplica workerId recibió una copia completa de la partición. */
+    public synchronized void replicaAlDia(String workerId) {
+        atrasadasDesde.remove(workerId);
+    }
+
+    /** El worker se desregistró: ya no es réplica de ninguna partición. */
+    public static void olvidarReplica(String workerId) {
+        for (MetricasReplicacion m : porParticion.values()) {
+            m.replicaAlDia(workerId);
+        }
+    }
+
+    public String getIdParticion() {
+        return idParticion;
+    }
+
+    public synchronized long getConfirmaciones() {
+        return confirmaciones;
+    }
+
+    public synchronized double getLatenciaMediaConfirmacionMs() {
+        return confirmaciones == 0 ? 0 : nanosConfirmando / 1_000_000.0 / confirmaciones;
+    }
+
+    public synchronized double getMaxLatenciaConfirmacionMs() {
+        return maxNanosConfirmacion / 1_000_000.0;
+    }
+
+    public synchronized int getReplicasPendientes() {
+        return pendientes;
+    }
+
+    /** Edad de la actualización de réplica pendiente o no aplicada más vieja (0 si no hay). */
+    public synchronized long getRetrasoActualMs() {
+        long masViejaMs = pendientesDesde.isEmpty() ? Long.MAX_VALUE : pendientesDesde.firstKey();
+        for (long desdeMs : atrasadasDesde.values()) {
+            masViejaMs = Math.min(masViejaMs, desdeMs);
+        }
+        return masViejaMs == Long.MAX_VALUE ? 0 : System.currentTimeMillis() - masViejaMs;
+    }
+
+    /**
+     * Retraso de la réplica workerId: edad de su actualización pendiente o no aplicada
+     * más vieja. 0 si tiene todas las escrituras confirmadas.
+     */
+    public synchronized long getRetrasoMs(String workerId) {
+        TreeMap<Long, Integer> deReplica = pendientesPorReplica.get(workerId);
+        long masViejaMs = deReplica == null ? Long.MAX_VALUE : deReplica.firstKey();
+        masViejaMs = Math.min(masViejaMs, atrasadasDesde.getOrDefault(workerId, Long.MAX_VALUE));
+        return masViejaMs == Long.MAX_VALUE ? 0 : System.currentTimeMillis() - masViejaMs;
+    }
+
+    public synchronized int getReplicasAtrasadas() {
+        return atrasadasDesde.size();
+    }
+
+    public synchronized long getUltimoRetrasoMs() {
+        return ultimoRetrasoMs;
+    }
+
+    public synchronized long getMaxRetrasoMs() {
+        return maxRetrasoMs;
+    }
+
+    public synchronized long getReplicacionesDiferidas() {
+        return replicacionesDiferidas;
+    }
+
+    public synchronized long getFallosDiferidas() {
+        return fallosDiferidas;
+    }
+}
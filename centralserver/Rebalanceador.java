@@ -0,0 +1,222 @@
+package centralserver;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import commons.EstadoOperacion;
+import commons.InfoWorker;
+import commons.Respuesta;
+import commons.Solicitud;
+import commons.TipoOperacion;
+
+/**
+ * Mueve réplicas de particiones hacia los workers que les corresponden según el
+ * anillo de hash consistente, para que un worker que entra reciba su parte.
+ * En cada revisión compara, para cada partición, los workers que la tienen con
+ * los que prefiere el anillo:
+ * - A un worker preferido que no la tiene se le copia desde la réplica viva menos
+ * cargada (OBTENER_DATOS_PARTICION + INSTALAR_PARTICION) y, si con él sobran
+ * réplicas, se libera la del worker no preferido más cargado.
+ * - El corte se hace con la partición cerrada en CercoParticiones, así que ninguna
+ * escritura queda a medias entre la copia y el cambio de workers.
+ * Las migraciones se espacian para no pasar de MIGRACIONES_POR_SEG, y se atienden
+ * primero las particiones cuyo worker principal recibe más solicitudes.
+ */
+public class Rebalanceador {
+
+    private static final long INTERVALO_MS = Long.getLong("banco.rebalanceo.intervaloMs", 2000);
+    private static final int MIGRACIONES_POR_SEG = Integer.getInteger("banco.rebalanceo.migracionesPorSeg", 20);
+    private static final int MAX_MIGRACIONES_POR_RONDA = Integer.getInteger("banco.rebalanceo.maxPorRonda", 100);
+    private static final long ESPERA_CIERRE_MS = 5000;
+    private static final int TIMEOUT_COPIA_MS = 15000;
+
+    private static ScheduledExecutorService monitor;
+
+    public static synchronized void iniciarMonitor() {
+        if (monitor != null) {
+            return;
+        }
+        monitor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "rebalanceador");
+            t.setDaemon(true);
+            return t;
+        });
+        monitor.scheduleWithFixedDelay(Rebalanceador::revisar, INTERVALO_MS, INTERVALO_MS, TimeUnit.MILLISECONDS);
+        System.out.println("Rebalanceador: Monitor iniciado (máx. " + MIGRACIONES_POR_SEG + " migraciones/s).");
+    }
+
+    // prioridad: solicitudes/s del worker principal actual de la partición
+    private record Movimiento(String idParticion, String origen, String destino, String liberar, double prioridad) {
+    }
+
+    private static void revisar() {
+        try {
+            List<Movimiento> plan = planificar();
+            if (plan.isEmpty()) {
+                return;
+            }
+            System.out.println("Rebalanceador: " + plan.size() + " movimientos pendientes; se harán como mucho "
+                    + MAX_MIGRACIONES_POR_RONDA + " en esta ronda.");
+            long pausaMs = 1000L / Math.max(1, MIGRACIONES_POR_SEG);
+            int hechos = 0;
+            for (int i = 0; i < plan.size() && i < MAX_MIGRACIONES_POR_RONDA; i++) {
+                long inicio = System.currentTimeMillis();
+                if (ejecutar(plan.get(i))) {
+                    hechos++;
+                }
+                long restante = pausaMs - (System.currentTimeMillis() - inicio);
+                if (restante > 0) {
+                    Thread.sleep(restante);
+                }
+            }
+            System.out.println("Rebalanceador: Ronda terminada, " + hechos + " movimientos completados.");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            System.err.println("Rebalanceador: Error durante la revisión: " + e);
+        }
+    }
+
+    private static boolean activo(String workerId) {
+        InfoWorker info = ServidorCentral.workersActivos.get(workerId);
+        return info != null && info.isActivo();
+    }
+
+    private static String primarioActivo(List<String> workers) {
+        for (String w : workers) {
+            if (activo(w)) {
+                return w;
+            }
+        }
+        return null;
+    }
+
+    /** Carga de cada worker: suma de las solicitudes/s de las particiones de las que es principal. */
+    private static Map<String, Double> cargaPorWorker() {
+        Map<String, Double> carga = new HashMap<>();
+        for (Map.Entry<String, List<String>> entry : ServidorCentral.particionANodos.entrySet()) {
+            List<String> workers = entry.getValue();
+            if (!workers.isEmpty()) {
+                carga.merge(workers.get(0), DivisorParticiones.tasaReciente(entry.getKey()), Double::sum);
+            }
+        }
+        return carga;
+    }
+
+    private static List<Movimiento> planificar() {
+        Map<String, Double> carga = cargaPorWorker();
+        Comparator<String> porCarga = Comparator.comparingDouble(w -> carga.getOrDefault(w, 0.0));
+        List<Movimiento> plan = new ArrayList<>();
+        for (Map.Entry<String, List<String>> entry : ServidorCentral.particionANodos.entrySet()) {
+            String idParticion = entry.getKey();
+            List<String> workers = new ArrayList<>(entry.getValue());
+            List<String> objetivo = ServidorCentral.preferenciasDe(idParticion);
+            List<String> vivos = new ArrayList<>();
+            for (String w : workers) {
+                if (activo(w)) {
+                    vivos.add(w);
+                }
+            }
+            List<String> sobrantes = new ArrayList<>(workers);
+            sobrantes.removeAll(objetivo);
+            sobrantes.sort(porCarga.reversed());
+            String destino = null;
+            for (String w : objetivo) {
+                if (!workers.contains(w) && activo(w)) {
+                    destino = w;
+                    break;
+                }
+            }
+            if (vivos.size() < ReparadorReplicas.replicasDeseadas()) {
+                continue; // Le faltan réplicas: se encarga ReparadorReplicas
+            }
+            double prioridad = workers.isEmpty() ? 0.0 : carga.getOrDefault(workers.get(0), 0.0);
+            if (destino != null && !vivos.isEmpty()) {
+                // Se copia del primario, como ReparadorReplicas: los seguidores pueden ir
+                // atrasados por la replicación diferida
+                String origen = vivos.get(0);
+                String liberar = workers.size() + 1 > ServidorCentral.MAX_REPLICAS_POR_PARTICION
+                        && !sobrantes.isEmpty() ? sobrantes.get(0) : null;
+                plan.add(new Movimiento(idParticion, origen, destino, liberar, prioridad));
+            } else if (destino == null && workers.size() > ServidorCentral.MAX_REPLICAS_POR_PARTICION
+                    && !sobrantes.isEmpty()) {
+                plan.add(new Movimiento(idParticion, null, null, sobrantes.get(0), prioridad));
+            }
+        }
+        // Primero las particiones cuyo worker principal está más cargado
+        plan.sort(Comparator.comparingDouble(Movimiento::prioridad).reversed());
+        return plan;
+    }
+
+    private static boolean ejecutar(Movimiento m) {
+        if (!CercoParticiones.cerrar(m.idParticion(), ESPERA_CIERRE_MS)) {
+            System.err.println("Rebalanceador: No se pudo cerrar " + m.idParticion() + ". Se reintentará.");
+            return false;
+        }
+        boolean liberado = false;
+        try {
+            List<String> workers = ServidorCentral.particionANodos.get(m.idParticion());
+            if (workers == null) {
+                return false; // Se dividió mientras tanto
+            }
+            if (m.destino() != null) {
+                if (workers.contains(m.destino()) || !m.origen().equals(primarioActivo(workers))) {
+                    return false; // El plan quedó viejo; la próxima ronda lo recalcula
+                }
+                if (copiarParticion(m.idParticion(), m.origen(), m.destino()) < 0) {
+                    return false;
+                }
+            }
+            ServidorCentral.aplicarMigracion(m.idParticion(), m.destino(), m.liberar());
+            liberado = m.liberar() != null;
+        } finally {
+            CercoParticiones.abrir(m.idParticion());
+        }
+        if (liberado && activo(m.liberar())) {
+            // Ya no se le enruta nada de esta partición: puede borrar su copia
+            Map<String, Object> params = Map.of("ID_PARTICION", m.idParticion());
+            try {
+                CanalWorker.enviar(m.liberar(), new Solicitud(TipoOperacion.LIBERAR_PARTICION, params), 5000);
+            } catch (IOException | ClassNotFoundException e) {
+                System.err.println("Rebalanceador: No se pudo pedir a " + m.liberar() + " que libere "
+                        + m.idParticion() + ": " + e.getMessage());
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Copia el contenido actual de la partición de origen a destino. El llamador debe
+     * tener la partición cerrada en CercoParticiones. Devuelve los registros copiados,
+     * o -1 si falló.
+     */
+    static int copiarParticion(String idParticion, String origen, String destino) {
+        try {
+            Respuesta datos = CanalWorker.enviar(origen, new Solicitud(TipoOperacion.OBTENER_DATOS_PARTICION,
+                    Map.of("ID_PARTICION", idParticion)), TIMEOUT_COPIA_MS);
+            if (datos == null || datos.getEstado() != EstadoOperacion.EXITO || !(datos.getDatos() instanceof List)) {
+                System.err.println("Rebalanceador: " + origen + " no entregó " + idParticion + ": "
+                        + (datos == null ? "respuesta inesperada" : datos.getMensaje()));
+                return -1;
+            }
+            Respuesta instalada = CanalWorker.enviar(destino, new Solicitud(TipoOperacion.INSTALAR_PARTICION,
+                    Map.of("ID_PARTICION_NUEVA", idParticion, "DATOS", datos.getDatos())), TIMEOUT_COPIA_MS);
+            if (instalada == null || instalada.getEstado() != EstadoOperacion.EXITO) {
+                System.err.println("Rebalanceador: " + destino + " no instaló " + idParticion + ": "
+                        + (instalada == null ? "respuesta inesperada" : instalada.getMensaje()));
+                return -1;
+            }
+            return ((List<?>) datos.getDatos()).size();
+        } catch (IOException | ClassNotFoundException e) {
+            System.err.println("Rebalanceador: Error al copiar " + idParticion + " de " + origen + " a " + destino
+                    + ": " + e.getMessage());
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,266 @@
+package centralserver;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import commons.Cuenta;
+import commons.EstadoOperacion;
+import commons.InfoWorker;
+import commons.Respuesta;
+import commons.Solicitud;
+import commons.TipoOperacion;
+
+/**
+ * Al arrancar el Servidor Central, termina o compensa las transferencias entre
+ * particiones que DiarioTransferencias tiene abiertas (las que estaban a medias
+ * cuando se cayó).
+ * Un hilo en segundo plano espera a que los workers vuelvan a registrarse: una
+ * transferencia se resuelve cuando sus dos particiones tienen
+ * MAX_REPLICAS_POR_PARTICION réplicas activas, o al menos una tras
+ * ESPERA_REPLICAS_MS (así el primario de antes, que recuerda los pasos aplicados,
+ * ya ha vuelto). Las que no se pueden resolver se reintentan cada INTERVALO_MS;
+ * tras MAX_ESPERA_MS se dejan en el diario para el siguiente arranque.
+ * Después pone al día las réplicas de las particiones que los workers conservaron
+ * al reconectarse: las actualizaciones diferidas que estaban en curso al caerse
+ * se perdieron. Se compara la versión de cada cuenta entre las réplicas y a las
+ * atrasadas se les envía el saldo más nuevo (ACTUALIZAR_SALDOS_REPLICA ignora lo
+ * que no sea más nuevo, así que no hace falta cerrar la partición).
+ * Con el servidor en marcha, las transferencias decididas cuyo paso de la ronda 2
+ * quedó incierto (reintentar) se resuelven igual en otro hilo, sin esperar a un
+ * reinicio.
+ */
+public class RecuperadorTransferencias {
+
+    private static final long INTERVALO_MS = Long.getLong("banco.recuperacion.intervaloMs", 500);
+    private static final long ESPERA_REPLICAS_MS = Long.getLong("banco.recuperacion.esperaReplicasMs", 10000);
+    private static final long MAX_ESPERA_MS = Long.getLong("banco.recuperacion.maxEsperaMs", 300000);
+    private static final int TIMEOUT_LECTURA_MS = 30000;
+
+    private static Thread hilo;
+    private static Thread hiloReintentos;
+    // Transferencias en duda con el servidor en marcha -> cuándo se entregaron
+    private static final Map<DiarioTransferencias.Abierta, Long> reintentando = new LinkedHashMap<>();
+
+    // Métricas
+    private static volatile int enDuda = 0;
+    private static volatile int pendientes = 0;
+    private static volatile long duracionMs = -1;
+    private static volatile long cuentasPuestasAlDia = 0;
+
+    public static synchronized void iniciar(List<DiarioTransferencias.Abierta> abiertas) {
+        if (hilo != null) {
+            return;
+        }
+        enDuda = abiertas.size();
+        pendientes = abiertas.size();
+        System.out.println("RecuperadorTransferencias: " + abiertas.size()
+                + " transferencias en duda. Esperando a sus workers...");
+        hilo = new Thread(() -> ejecutar(new ArrayList<>(abiertas)), "recuperacion-transferencias");
+        hilo.setDaemon(true);
+        hilo.start();
+    }
+
+    /**
+     * Resuelve en segundo plano una transferencia decidida cuyo resultado quedó
+     * incierto: se repiten los pasos que falten (el worker no aplica dos veces el
+     * mismo) o, si uno falla sin dudas, se deshace lo aplicado. Tras MAX_ESPERA_MS
+     * se deja en el diario para el siguiente arranque.
+     */
+    public static synchronized void reintentar(DiarioTransferencias.Abierta t) {
+        reintentando.put(t, System.currentTimeMillis());
+        if (hiloReintentos == null) {
+            hiloReintentos = new Thread(RecuperadorTransferencias::bucleReintentos, "reintentos-transferencias");
+            hiloReintentos.setDaemon(true);
+            hiloReintentos.start();
+        }
+        RecuperadorTransferencias.class.notifyAll();
+    }
+
+    private static void bucleReintentos() {
+        while (true) {
+            List<DiarioTransferencias.Abierta> lote;
+            try {
+                synchronized (RecuperadorTransferencias.class) {
+                    while (reintentando.isEmpty()) {
+                        RecuperadorTransferencias.class.wait();
+                    }
+                }
+                // Se da tiempo a que el worker que no respondió se recupere
+                Thread.sleep(INTERVALO_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            synchronized (RecuperadorTransferencias.class) {
+                lote = new ArrayList<>(reintentando.keySet());
+            }
+            for (DiarioTransferencias.Abierta t : lote) {
+                boolean resuelta = listas(t, true) && resolver(t);
+                synchronized (RecuperadorTransferencias.class) {
+                    if (resuelta) {
+                        reintentando.remove(t);
+                    } else if (System.currentTimeMillis() - reintentando.get(t) >= MAX_ESPERA_MS) {
+                        reintentando.remove(t);
+                        System.err.println("RecuperadorTransferencias: " + t
+                                + " sigue abierta en el diario (se reintentará al arrancar).");
+                    }
+                }
+            }
+        }
+    }
+
+    private static void ejecutar(List<DiarioTransferencias.Abierta> quedan) {
+        long inicio = System.currentTimeMillis();
+        try {
+            // Los workers que se reconectan lo hacen en cuanto arranca el servidor
+            Thread.sleep(quedan.isEmpty() ? ESPERA_REPLICAS_MS : 0);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        while (!quedan.isEmpty() && System.currentTimeMillis() - inicio < MAX_ESPERA_MS) {
+            boolean sinEsperarReplicas = System.currentTimeMillis() - inicio >= ESPERA_REPLICAS_MS;
+            quedan.removeIf(t -> listas(t, sinEsperarReplicas) && resolver(t));
+            pendientes = quedan.size();
+            if (quedan.isEmpty()) {
+                break;
+            }
+            try {
+                Thread.sleep(INTERVALO_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        duracionMs = System.currentTimeMillis() - inicio;
+        if (quedan.isEmpty()) {
+            System.out.println("RecuperadorTransferencias: " + enDuda + " transferencias en duda resueltas en "
+                    + duracionMs + " ms.");
+        } else {
+            System.err.println("RecuperadorTransferencias: " + quedan.size()
+                    + " transferencias siguen abiertas en el diario (se reintentarán al arrancar): " + quedan);
+        }
+        ponerAlDiaReadmitidas();
+    }
+
+    private static void ponerAlDiaReadmitidas() {
+        long inicio = System.currentTimeMillis();
+        int particiones = 0;
+        for (String idParticion : new ArrayList<>(ServidorCentral.particionesReadmitidas)) {
+            if (idParticion.startsWith("CUENTA_P") && replicasActivas(idParticion) > 1) {
+                ponerAlDia(idParticion);
+                particiones++;
+            }
+        }
+        System.out.println("RecuperadorTransferencias: " + particiones + " particiones conservadas revisadas en "
+                + (System.currentTimeMillis() - inicio) + " ms; " + cuentasPuestasAlDia
+                + " saldos de réplicas atrasadas puestos al día.");
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void ponerAlDia(String idParticion) {
+        // Lo que tiene cada réplica, y por cuenta la versión más nueva
+        Map<String, Map<Integer, Cuenta>> porWorker = new HashMap<>();
+        Map<Integer, Cuenta> masNuevas = new HashMap<>();
+        for (String workerId : new ArrayList<>(ServidorCentral.particionANodos.getOrDefault(idParticion, List.of()))) {
+            try {
+                Respuesta datos = CanalWorker.enviar(workerId, new Solicitud(TipoOperacion.OBTENER_DATOS_PARTICION,
+                        Map.of("ID_PARTICION", idParticion)), TIMEOUT_LECTURA_MS);
+                if (datos == null || datos.getEstado() != EstadoOperacion.EXITO
+                        || !(datos.getDatos() instanceof List)) {
+                    continue;
+                }
+                Map<Integer, Cuenta> cuentas = new HashMap<>();
+                for (Object o : (List<Object>) datos.getDatos()) {
+                    if (o instanceof Cuenta c) {
+                        cuentas.put(c.getIdCuenta(), c);
+                        masNuevas.merge(c.getIdCuenta(), c, (a, b) -> b.getVersion() > a.getVersion() ? b : a);
+                    }
+                }
+                porWorker.put(workerId, cuentas);
+            } catch (IOException | ClassNotFoundException e) {
+                System.err.println("RecuperadorTransferencias: No se pudo leer " + idParticion + " de " + workerId
+                        + ": " + e.getMessage());
+            }
+        }
+        for (Map.Entry<String, Map<Integer, Cuenta>> replica : porWorker.entrySet()) {
+            HashMap<Integer, Double> saldos = new HashMap<>();
+            HashMap<Integer, Long> versiones = new HashMap<>();
+            for (Cuenta nueva : masNuevas.values()) {
+                Cuenta actual = replica.getValue().get(nueva.getIdCuenta());
+                if (actual == null || actual.getVersion() < nueva.getVersion()) {
+                    saldos.put(nueva.getIdCuenta(), nueva.getSaldo());
+                    versiones.put(nueva.getIdCuenta(), nueva.getVersion());
+                }
+            }
+            if (saldos.isEmpty()) {
+                continue;
+            }
+            try {
+                Respuesta ack = CanalWorker.enviar(replica.getKey(), new Solicitud(
+                        TipoOperacion.ACTUALIZAR_SALDOS_REPLICA, new HashMap<>(Map.of("SALDOS", saldos, "VERSIONES",
+                                versiones, "ID_PARTICION", idParticion, "ID_TRANSACCION_GLOBAL", -1))),
+                        TIMEOUT_LECTURA_MS);
+                if (ack != null && ack.getEstado() == EstadoOperacion.REPLICA_ACTUALIZADA_OK) {
+                    cuentasPuestasAlDia += saldos.size();
+                    System.out.println("RecuperadorTransferencias: " + saldos.size() + " saldos de " + idParticion
+                            + " puestos al día en " + replica.getKey() + ".");
+                }
+            } catch (IOException | ClassNotFoundException e) {
+                System.err.println("RecuperadorTransferencias: No se pudo poner al día " + idParticion + " en "
+                        + replica.getKey() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private static boolean resolver(DiarioTransferencias.Abierta t) {
+        try {
+            return ManejadorClienteServidor.resolverTransferenciaEnDuda(t);
+        } catch (RuntimeException e) {
+            System.err.println("RecuperadorTransferencias: Error al resolver " + t + ": " + e);
+            return false;
+        }
+    }
+
+    private static boolean listas(DiarioTransferencias.Abierta t, boolean sinEsperarReplicas) {
+        int minimo = sinEsperarReplicas ? 1 : ServidorCentral.MAX_REPLICAS_POR_PARTICION;
+        return replicasActivas(ServidorCentral.particionDeCuenta(t.idCuentaOrigen)) >= minimo
+                && replicasActivas(ServidorCentral.particionDeCuenta(t.idCuentaDestino)) >= minimo;
+    }
+
+    private static int replicasActivas(String idParticion) {
+        List<String> workers = idParticion == null ? null : ServidorCentral.particionANodos.get(idParticion);
+        int activas = 0;
+        for (String workerId : workers == null ? List.<String>of() : new ArrayList<>(workers)) {
+            InfoWorker info = ServidorCentral.workersActivos.get(workerId);
+            if (info != null && info.isActivo()) {
+                activas++;
+            }
+        }
+        return activas;
+    }
+
+    public static int getEnDuda() {
+        return enDuda;
+    }
+
+    public static synchronized int getReintentando() {
+        return reintentando.size();
+    }
+
+    public static int getPendientes() {
+        return pendientes;
+    }
+
+    public static long getCuentasPuestasAlDia() {
+        return cuentasPuestasAlDia;
+    }
+
+    /** Lo que tardó en resolverlas todas (-1 si aún no terminó). */
+    public static long getDuracionMs() {
+        return duracionMs;
+    }
+}
@@ -0,0 +1,358 @@
+package centralserver;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import commons.EstadoOperacion;
+
+/**
+ * Log de transacciones globales con escritura agrupada ("group commit").
+ * Los hilos que registran no tocan el archivo: reservan una ranura en un buffer
+ * circular sin bloqueos (varios productores, un consumidor) y vuelven. Un único
+ * hilo escritor vacía el buffer por lotes, formatea en un buffer reutilizado y
+ * hace fsync cuando hay alguien esperando durabilidad, cuando se acumulan
+ * BYTES_ENTRE_FSYNC o cuando pasan INTERVALO_FSYNC_MS desde el último.
+ * El formato de cada línea es el mismo de siempre:
+ * ID_TRANSACC|ID_ORIG|ID_DEST|MONTO|FECHA_HORA|ESTADO|DETALLE
+ */
+public class RegistroTransaccionesGlobales {
+
+    private static final int CAPACIDAD = 8192; // Potencia de 2
+    private static final int MASCARA = CAPACIDAD - 1;
+    private static final int TAM_BUFFER_ESCRITURA = 64 * 1024;
+    private static final int MAX_REGISTROS_LOTE = 1024;
+    private static final long BYTES_ENTRE_FSYNC = 256 * 1024;
+    private static final long INTERVALO_FSYNC_MS = 10;
+    private static final long ESPERA_INACTIVO_MS = 100;
+    private static final long MAX_ESPERA_COLA_LLENA_NS = 1_000_000;
+    private static final String CABECERA = "ID_TRANSACC|ID_ORIG|ID_DEST|MONTO|FECHA_HORA|ESTADO|DETALLE\n";
+
+    /** Ranura preasignada del buffer circular; el productor la rellena y luego la publica. */
+    private static final class Ranura {
+        int idTransaccion;
+        int idCuentaOrigen;
+        int idCuentaDestino;
+        double monto;
+        EstadoOperacion estado;
+        String detalle;
+        long instanteMs;
+        CompletableFuture<Void> durable; // null si nadie espera el fsync
+    }
+
+    private final Path ruta;
+    private final Ranura[] ranuras = new Ranura[CAPACIDAD];
+    // secuencias[i] == pos: ranura libre para el productor de pos;
+    // secuencias[i] == pos + 1: ranura publicada, lista para el escritor.
+    private final AtomicLongArray secuencias = new AtomicLongArray(CAPACIDAD);
+    private final AtomicLong cola = new AtomicLong(0); // Siguiente posición a reservar
+    private long cabeza = 0; // Siguiente posición a consumir (solo el escritor)
+    private final Thread escritor;
+    private volatile boolean escritorDormido = false;
+    private volatile boolean cerrando = false;
+
+    // Estado exclusivo del hilo escritor
+    private FileChannel canal;
+    private final StringBuilder linea = new StringBuilder(256);
+    private final ByteBuffer bufferEscritura = ByteBuffer.allocateDirect(TAM_BUFFER_ESCRITURA);
+    private final CharsetEncoder codificador = StandardCharsets.UTF_8.newEncoder();
+    private final List<CompletableFuture<Void>> esperandoFsync = new ArrayList<>();
+    private long bytesSinFsync = 0;
+    private long ultimoFsyncMs = System.currentTimeMillis();
+    private long segundoFechaCacheada = Long.MIN_VALUE;
+    private String fechaCacheada;
+
+    public final AtomicLong registros = new AtomicLong();
+    public final AtomicLong lotes = new AtomicLong();
+    public final AtomicLong fsyncs = new AtomicLong();
+    public final AtomicLong esperasColaLlena = new AtomicLong();
+
+    private RegistroTransaccionesGlobales(String rutaArchivo) {
+        this.ruta = Paths.get(rutaArchivo);
+        for (int i = 0; i < CAPACIDAD; i++) {
+            ranuras[i] = new Ranura();
+            secuencias.set(i, i);
+        }
+        escritor = new Thread(this::bucleEscritor, "registro-transacciones");
+        escritor.setDaemon(true);
+    }
+
+    /** Crea el registro, arranca su hilo escritor y lo cierra (vaciando el buffer) al apagar el proceso. */
+    public static RegistroTransaccionesGlobales abrir(String rutaArchivo) {
+        RegistroTransaccionesGlobales registro = new RegistroTransaccionesGlobales(rutaArchivo);
+        registro.escritor.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(registro::cerrar, "registro-transacciones-cierre"));
+        return registro;
+    }
+
+    /** Encola el registro y vuelve sin esperar a que llegue al disco. */
+    public void registrar(int idTransaccion, int idCuentaOrigen, int idCuentaDestino, double monto,
+            EstadoOperacion estadoFinal, String detalle) {
+        publicar(idTransaccion, idCuentaOrigen, idCuentaDestino, monto, estadoFinal, detalle, null);
+    }
+
+    /**
+     * Encola el registro y devuelve un futuro que se completa cuando la línea ya
+     * está en disco (tras el fsync de su lote), o excepcionalmente si no se pudo escribir.
+     */
+    public CompletableFuture<Void> registrarDurable(int idTransaccion, int idCuentaOrigen, int idCuentaDestino,
+            double monto, EstadoOperacion estadoFinal, String detalle) {
+        CompletableFuture<Void> durable = new CompletableFuture<>();
+        publicar(idTransaccion, idCuentaOrigen, idCuentaDestino, monto, estadoFinal, detalle, durable);
+        return durable;
+    }
+
+    private void publicar(int idTransaccion, int idCuentaOrigen, int idCuentaDestino, double monto,
+            EstadoOperacion estadoFinal, String detalle, CompletableFuture<Void> durable) {
+        long pos;
+        int giros = 0;
+        while (true) {
+            pos = cola.get();
+            long dif = secuencias.get((int) (pos & MASCARA)) - pos;
+            if (dif == 0) {
+                if (cola.compareAndSet(pos, pos + 1)) {
+                    break;
+                }
+            } else if (dif < 0) {
+                // Buffer lleno: ceder la CPU al escritor hasta que libere ranuras
+                if (giros == 0) {
+                    esperasColaLlena.incrementAndGet();
+                    LockSupport.unpark(escritor);
+                }
+                LockSupport.parkNanos(Math.min(MAX_ESPERA_COLA_LLENA_NS, 10_000L << Math.min(giros, 7)));
+                giros++;
+            }
+        }
+        int indice = (int) (pos & MASCARA);
+        Ranura r = ranuras[indice];
+        r.idTransaccion = idTransaccion;
+        r.idCuentaOrigen = idCuentaOrigen;
+        r.idCuentaDestino = idCuentaDestino;
+        r.monto = monto;
+        r.estado = estadoFinal;
+        r.detalle = detalle;
+        r.instanteMs = System.currentTimeMillis();
+        r.durable = durable;
+        secuencias.set(indice, pos + 1); // Publicar
+        if (escritorDormido) {
+            LockSupport.unpark(escritor);
+        }
+    }
+
+    private boolean hayPublicado() {
+        return secuencias.get((int) (cabeza & MASCARA)) == cabeza + 1;
+    }
+
+    private void bucleEscritor() {
+        while (true) {
+            int procesados = 0;
+            while (procesados < MAX_REGISTROS_LOTE && hayPublicado()) {
+                int indice = (int) (cabeza & MASCARA);
+                Ranura r = ranuras[indice];
+                escribirLinea(r);
+                if (r.durable != null) {
+                    esperandoFsync.add(r.durable);
+                }
+                r.detalle = null;
+                r.durable = null;
+                secuencias.set(indice, cabeza + CAPACIDAD); // Liberar la ranura para la siguiente vuelta
+                cabeza++;
+                procesados++;
+            }
+            if (procesados > 0) {
+                registros.addAndGet(procesados);
+                lotes.incrementAndGet();
+                volcarBuffer();
+            }
+            long ahora = System.currentTimeMillis();
+            if (!esperandoFsync.isEmpty() || bytesSinFsync >= BYTES_ENTRE_FSYNC
+                    || (bytesSinFsync > 0 && ahora - ultimoFsyncMs >= INTERVALO_FSYNC_MS)) {
+                forzarADisco();
+            }
+            if (procesados > 0) {
+                continue; // Puede quedar más trabajo
+            }
+            if (cerrando) {
+                forzarADisco();
+                return;
+            }
+            escritorDormido = true;
+            if (!hayPublicado()) {
+                long esperaMs = bytesSinFsync > 0
+                        ? Math.max(1, INTERVALO_FSYNC_MS - (System.currentTimeMillis() - ultimoFsyncMs))
+                        : ESPERA_INACTIVO_MS;
+                LockSupport.parkNanos(esperaMs * 1_000_000L);
+            }
+            escritorDormido = false;
+        }
+    }
+
+    private void escribirLinea(Ranura r) {
+        linea.setLength(0);
+        linea.append(r.idTransaccion).append('|')
+                .append(r.idCuentaOrigen).append('|')
+                .append(r.idCuentaDestino).append('|');
+        agregarMonto(r.monto);
+        linea.append('|').append(fecha(r.instanteMs)).append('|')
+                .append(r.estado).append('|')
+                .append(r.detalle).append('\n');
+        // Igual que el formato anterior: sin comas (separador decimal de la locale)
+        for (int i = 0; i < linea.length(); i++) {
+            if (linea.charAt(i) == ',') {
+                linea.setCharAt(i, '.');
+            }
+        }
+        System.out.println("ServidorCentral: Transacción global registrada: "
+                + linea.substring(0, linea.length() - 1));
+
+        CharBuffer entrada = CharBuffer.wrap(linea);
+        codificador.reset();
+        while (true) {
+            CoderResult resultado = codificador.encode(entrada, bufferEscritura, true);
+            if (resultado.isOverflow()) {
+                volcarBuffer();
+            } else {
+                break;
+            }
+        }
+    }
+
+    /** Equivalente a String.format("%.2f", monto) sin crear un Formatter por registro. */
+    private void agregarMonto(double monto) {
+        if (Double.isFinite(monto)) {
+            linea.append(BigDecimal.valueOf(monto).setScale(2, RoundingMode.HALF_UP).toPlainString());
+        } else {
+            linea.append(monto);
+        }
+    }
+
+    /** new Date().toString() solo cambia una vez por segundo; se reutiliza. */
+    private String fecha(long instanteMs) {
+        long segundo = instanteMs / 1000;
+        if (segundo != segundoFechaCacheada) {
+            segundoFechaCacheada = segundo;
+            fechaCacheada = new Date(instanteMs).toString();
+        }
+        return fechaCacheada;
+    }
+
+    private void volcarBuffer() {
+        bufferEscritura.flip();
+        if (!bufferEscritura.hasRemaining()) {
+            bufferEscritura.clear();
+            return;
+        }
+        try {
+            FileChannel c = abrirCanal();
+            while (bufferEscritura.hasRemaining()) {
+                bytesSinFsync += c.write(bufferEscritura);
+            }
+        } catch (IOException e) {
+            System.err.println("ServidorCentral: Error al escribir en log de transacciones globales: "
+                    + e.getMessage());
+            fallarEsperando(e);
+            cerrarCanal();
+        } finally {
+            bufferEscritura.clear();
+        }
+    }
+
+    private void forzarADisco() {
+        if (canal != null && bytesSinFsync > 0) {
+            try {
+                canal.force(false);
+                fsyncs.incrementAndGet();
+            } catch (IOException e) {
+                System.err.println("ServidorCentral: Error en fsync del log de transacciones globales: "
+                        + e.getMessage());
+                fallarEsperando(e);
+                cerrarCanal();
+                return;
+            }
+        }
+        bytesSinFsync = 0;
+        ultimoFsyncMs = System.currentTimeMillis();
+        for (CompletableFuture<Void> f : esperandoFsync) {
+            f.complete(null);
+        }
+        esperandoFsync.clear();
+    }
+
+    private FileChannel abrirCanal() throws IOException {
+        if (canal == null) {
+            canal = FileChannel.open(ruta, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.APPEND);
+            if (canal.size() == 0) { // Escribir cabecera solo si el archivo está vacío
+                ByteBuffer cabecera = ByteBuffer.wrap(CABECERA.getBytes(StandardCharsets.UTF_8));
+                while (cabecera.hasRemaining()) {
+                    bytesSinFsync += canal.write(cabecera);
+                }
+            }
+        }
+        return canal;
+    }
+
+    private void cerrarCanal() {
+        if (canal != null) {
+            try {
+                canal.close();
+            } catch (IOException e) {
+                /* Silenciado */ }
+            canal = null; // Se reabrirá en el siguiente lote
+        }
+        bytesSinFsync = 0;
+    }
+
+    private void fallarEsperando(IOException e) {
+        for (CompletableFuture<Void> f : esperandoFsync) {
+            f.completeExceptionally(e);
+        }
+        esperandoFsync.clear();
+    }
+
+    /** Crea el archivo (con cabecera) si aún no existe, desde el hilo llamador. */
+    public void inicializarArchivo() {
+        try (FileChannel c = FileChannel.open(ruta, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND)) {
+            if (c.size() == 0) {
+                c.write(ByteBuffer.wrap(CABECERA.getBytes(StandardCharsets.UTF_8)));
+            }
+        } catch (IOException e) {
+            System.err.println("ServidorCentral: Error al inicializar log de transacciones globales: "
+                    + e.getMessage());
+        }
+    }
+
+    /** Vacía lo pendiente y hace el último fsync. Se llama al apagar la JVM. */
+    public void cerrar() {
+        cerrando = true;
+        LockSupport.unpark(escritor);
+        try {
+            escritor.join(2000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public String resumen() {
+        long l = lotes.get();
+        return "registros=" + registros.get() + ", lotes=" + l + ", fsyncs=" + fsyncs.get()
+                + ", registrosPorLote=" + (l == 0 ? 0 : registros.get() / l)
+                + ", esperasColaLlena=" + esperasColaLlena.get();
+    }
+}
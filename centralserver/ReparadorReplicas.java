@@ -0,0 +1,252 @@
+package centralserver;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import commons.InfoWorker;
+
+/**
+ * Vuelve a replicar las particiones que se quedaron con menos réplicas vivas de
+ * las deseadas (min(MAX_REPLICAS_POR_PARTICION, workers activos)), normalmente
+ * porque se perdió un worker.
+ * Un único hilo en segundo plano revisa las particiones cada INTERVALO_MS (o en
+ * cuanto se avisa de una pérdida), elige como destino el primer worker activo
+ * del anillo que no la tiene y la copia desde una réplica sana, de una en una y
+ * empezando por las que tienen menos réplicas.
+ * Las copias respetan un límite de ancho de banda (BYTES_POR_SEG) para no
+ * quitarle red a las operaciones de clientes; la espera se hace antes de cerrar
+ * la partición, así que no bloquea sus escrituras.
+ * Se mide el tiempo hasta la replicación completa: desde que se detecta la
+ * primera partición con réplicas de menos hasta que ninguna lo está.
+ */
+public class ReparadorReplicas {
+
+    private static final long INTERVALO_MS = Long.getLong("banco.reparacion.intervaloMs", 1000);
+    private static final long BYTES_POR_SEG = Long.getLong("banco.reparacion.bytesPorSeg", 1024 * 1024);
+    // Tamaño aproximado de una Cuenta o Cliente serializado dentro de una lista
+    private static final int BYTES_POR_REGISTRO = 64;
+    private static final long ESPERA_CIERRE_MS = 5000;
+
+    private static final Object senal = new Object();
+    private static boolean hayAviso = false;
+    private static Thread hilo;
+
+    // Ancho de banda: instante (ns) a partir del cual se puede volver a copiar
+    private static long siguienteCopiaNs = System.nanoTime();
+
+    // Métricas
+    private static volatile long inicioDegradacionMs = 0; // 0 = todas las particiones con sus réplicas
+    private static volatile long ultimoTiempoHastaReplicacionCompletaMs = -1;
+    private static volatile long maxTiempoHastaReplicacionCompletaMs = -1;
+    private static volatile int particionesSubreplicadas = 0;
+    private static volatile long copiasRealizadas = 0;
+    private static volatile long bytesCopiados = 0;
+
+    public static synchronized void iniciar() {
+        if (hilo != null) {
+            return;
+        }
+        hilo = new Thread(ReparadorReplicas::ejecutar, "reparador-replicas");
+        hilo.setDaemon(true);
+        hilo.start();
+        System.out.println("ReparadorReplicas: Iniciado (límite " + BYTES_POR_SEG + " bytes/s).");
+    }
+
+    /** Avisa de que se perdió un worker; la degradación cuenta desde este momento. */
+    public static void notificarPerdida(String workerId) {
+        if (inicioDegradacionMs == 0) {
+            inicioDegradacionMs = System.currentTimeMillis();
+        }
+        System.out.println("ReparadorReplicas: Worker " + workerId + " perdido. Revisando réplicas.");
+        synchronized (senal) {
+            hayAviso = true;
+            senal.notifyAll();
+        }
+    }
+
+    /** Avisa de que a una partición se le quitó una réplica atrasada; se vuelve a copiar. */
+    public static void notificarReplicaDesactualizada() {
+        if (inicioDegradacionMs == 0) {
+            inicioDegradacionMs = System.currentTimeMillis();
+        }
+        synchronized (senal) {
+            hayAviso = true;
+            senal.notifyAll();
+        }
+    }
+
+    /** Réplicas vivas que debería tener cada partición con los workers activos actuales. */
+    public static int replicasDeseadas() {
+        int activos = 0;
+        for (InfoWorker info : ServidorCentral.workersActivos.values()) {
+            if (info.isActivo()) {
+                activos++;
+            }
+        }
+        return Math.min(ServidorCentral.MAX_REPLICAS_POR_PARTICION, activos);
+    }
+
+    private static boolean activo(String workerId) {
+        InfoWorker info = ServidorCentral.workersActivos.get(workerId);
+        return info != null && info.isActivo();
+    }
+
+    private static List<String> vivos(List<String> workers) {
+        List<String> resultado = new ArrayList<>();
+        for (String w : workers) {
+            if (activo(w)) {
+                resultado.add(w);
+            }
+        }
+        return resultado;
+    }
+
+    private static void ejecutar() {
+        while (true) {
+            try {
+                synchronized (senal) {
+                    if (!hayAviso) {
+                        senal.wait(INTERVALO_MS);
+                    }
+                    hayAviso = false;
+                }
+                reparar();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (RuntimeException e) {
+                System.err.println("ReparadorReplicas: Error durante la reparación: " + e);
+            }
+        }
+    }
+
+    private record Pendiente(String idParticion, int vivas) {
+    }
+
+    private static List<Pendiente> buscarSubreplicadas() {
+        int deseadas = replicasDeseadas();
+        List<Pendiente> pendientes = new ArrayList<>();
+        for (Map.Entry<String, List<String>> entry : ServidorCentral.particionANodos.entrySet()) {
+            int vivas = vivos(entry.getValue()).size();
+            // Sin réplicas vivas no hay de dónde copiar; eso no lo arregla este proceso
+            if (vivas > 0 && vivas < deseadas) {
+                pendientes.add(new Pendiente(entry.getKey(), vivas));
+            }
+        }
+        pendientes.sort(Comparator.comparingInt(Pendiente::vivas).thenComparing(Pendiente::idParticion));
+        return pendientes;
+    }
+
+    private static void reparar() throws InterruptedException {
+        List<Pendiente> pendientes = buscarSubreplicadas();
+        particionesSubreplicadas = pendientes.size();
+        if (pendientes.isEmpty()) {
+            if (inicioDegradacionMs != 0) {
+                long duracion = System.currentTimeMillis() - inicioDegradacionMs;
+                inicioDegradacionMs = 0;
+                ultimoTiempoHastaReplicacionCompletaMs = duracion;
+                maxTiempoHastaReplicacionCompletaMs = Math.max(maxTiempoHastaReplicacionCompletaMs, duracion);
+                System.out.println("ReparadorReplicas: Replicación completa restablecida en " + duracion + " ms ("
+                        + copiasRealizadas + " copias, " + bytesCopiados + " bytes en total).");
+            }
+            return;
+        }
+        if (inicioDegradacionMs == 0) {
+            inicioDegradacionMs = System.currentTimeMillis();
+        }
+        System.out.println("ReparadorReplicas: " + pendientes.size() + " particiones con réplicas de menos.");
+        for (Pendiente p : pendientes) {
+            repararParticion(p.idParticion());
+            particionesSubreplicadas--;
+        }
+    }
+
+    private static void repararParticion(String idParticion) throws InterruptedException {
+        long bytesEstimados = (long) Math.max(1, ImagenesParticiones.numRegistros(idParticion)) * BYTES_POR_REGISTRO;
+        esperarAnchoBanda(bytesEstimados);
+
+        if (!CercoParticiones.cerrar(idParticion, ESPERA_CIERRE_MS)) {
+            System.err.println("ReparadorReplicas: No se pudo cerrar " + idParticion + ". Se reintentará.");
+            return;
+        }
+        String destino = null;
+        int registros = -1;
+        try {
+            List<String> workers = ServidorCentral.particionANodos.get(idParticion);
+            if (workers == null) {
+                return; // Se dividió mientras tanto
+            }
+            List<String> vivas = vivos(workers);
+            if (vivas.isEmpty() || vivas.size() >= replicasDeseadas()) {
+                return; // Ya no hace falta (o no hay de dónde copiar)
+            }
+            for (String w : ServidorCentral.preferenciasDe(idParticion, Integer.MAX_VALUE)) {
+                if (!workers.contains(w) && activo(w)) {
+                    destino = w;
+                    break;
+                }
+            }
+            if (destino == null) {
+                return;
+            }
+            registros = Rebalanceador.copiarParticion(idParticion, vivas.get(0), destino);
+            if (registros >= 0) {
+                ServidorCentral.aplicarMigracion(idParticion, destino, null);
+            }
+        } finally {
+            CercoParticiones.abrir(idParticion);
+        }
+        if (registros >= 0) {
+            long bytes = (long) registros * BYTES_POR_REGISTRO;
+            copiasRealizadas++;
+            bytesCopiados += bytes;
+            // Se cobra lo que faltó por la estimación
+            if (bytes > bytesEstimados) {
+                esperarAnchoBanda(bytes - bytesEstimados);
+            }
+            System.out.println("ReparadorReplicas: Partición " + idParticion + " re-replicada en " + destino + " ("
+                    + registros + " registros).");
+        }
+    }
+
+    /** Duerme lo necesario para que las copias no pasen de BYTES_POR_SEG. */
+    private static void esperarAnchoBanda(long bytes) throws InterruptedException {
+        long ahora = System.nanoTime();
+        if (siguienteCopiaNs < ahora) {
+            siguienteCopiaNs = ahora;
+        }
+        long esperaNs = siguienteCopiaNs - ahora;
+        siguienteCopiaNs += bytes * 1_000_000_000L / BYTES_POR_SEG;
+        if (esperaNs > 0) {
+            Thread.sleep(esperaNs / 1_000_000, (int) (esperaNs % 1_000_000));
+        }
+    }
+
+    /** Duración (ms) de la última degradación hasta volver a la replicación completa, o -1 si no hubo. */
+    public static long getUltimoTiempoHastaReplicacionCompletaMs() {
+        return ultimoTiempoHastaReplicacionCompletaMs;
+    }
+
+    public static long getMaxTiempoHastaReplicacionCompletaMs() {
+        return maxTiempoHastaReplicacionCompletaMs;
+    }
+
+    /** Milisegundos que lleva la degradación en curso, o 0 si todas las particiones tienen sus réplicas. */
+    public static long getDegradacionEnCursoMs() {
+        long inicio = inicioDegradacionMs;
+        return inicio == 0 ? 0 : System.currentTimeMillis() - inicio;
+    }
+
+    public static int getParticionesSubreplicadas() {
+        return particionesSubreplicadas;
+    }
+
+    public static long getCopiasRealizadas() {
+        return copiasRealizadas;
+    }
+
+    public static long getBytesCopiados() {
+        return bytesCopiados;
+    }
+}
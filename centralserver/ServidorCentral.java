@@ -1,22 +1,26 @@
 package centralserver;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.Serializable;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import commons.InfoWorker; // Importar InfoWorker
 import commons.Cliente;
@@ -28,60 +32,117 @@ public class ServidorCentral {
     private static final int PUERTO_CLIENTES = 12345;
     private static final int PUERTO_WORKERS = 12346; // Nuevo puerto para workers
     private static final int MAX_CLIENTES_CONCURRENTES = 50;
+    // Conexiones aceptadas esperando hilo; las que no caben se rechazan con SERVIDOR_OCUPADO
+    private static final int MAX_CLIENTES_EN_ESPERA = Integer.getInteger("banco.admision.maxConexionesEnEspera", 100);
+    private static final long REINTENTO_CONEXION_MS = 1000;
     private static final int MAX_WORKERS_CONCURRENTES = 20; // Límite para workers
-    private static final int NUM_PARTICIONES_CUENTAS = 3;
-    private static final int NUM_PARTICIONES_CLIENTES = 3;
-    private static final int MAX_REPLICAS_POR_PARTICION = 3;
+    // Número de particiones por tabla; configurable con -Dbanco.particiones=N
+    private static final int NUM_PARTICIONES_CUENTAS = Integer.getInteger("banco.particiones", 256);
+    private static final int NUM_PARTICIONES_CLIENTES = Integer.getInteger("banco.particiones", 256);
+    static final int MAX_REPLICAS_POR_PARTICION = 3;
     private static final String LOG_TRANSACCIONES_GLOBALES = "../data" + File.separator + "transacciones_globales.log";
     private static AtomicInteger contadorIdTransaccionGlobal = new AtomicInteger(0);
+    private static final RegistroTransaccionesGlobales registroTransacciones = RegistroTransaccionesGlobales.abrir(
+            LOG_TRANSACCIONES_GLOBALES);
 
     // Estructuras para manejar workers y particiones
     // Usamos ConcurrentHashMap para seguridad en hilos
     public static final ConcurrentHashMap<String, InfoWorker> workersActivos = new ConcurrentHashMap<>();
     // Mapea: ID_Particion -> Lista de IDs de Workers que la tienen
     public static final ConcurrentHashMap<String, List<String>> particionANodos = new ConcurrentHashMap<>();
-    // Mapea: ID_Cuenta -> ID_Particion (Ej: 101 -> "CUENTA_P1")
-    public static final ConcurrentHashMap<Integer, String> cuentaAParticion = new ConcurrentHashMap<>();
-    public static final ConcurrentHashMap<Integer, String> clienteAParticion = new ConcurrentHashMap<>();
+    // Anillo de hash consistente con los workers registrados; decide qué workers
+    // guardan cada partición y en qué orden se les consulta
+    private static volatile AnilloConsistente anillo = new AnilloConsistente(Collections.emptyList());
+    // Workers que ya recibieron su asignación pero aún no confirmaron; cuentan como
+    // miembros del anillo para que registros simultáneos no se pisen
+    private static final Set<String> workersEnRegistro = new HashSet<>();
+    // Rangos de IDs -> ID_Particion (Ej: 100001..102017 -> "CUENTA_P1"). Son inmutables:
+    // para cambiar el reparto se publica una tabla nueva.
+    public static volatile TablaEnrutamiento enrutamientoCuentas = TablaEnrutamiento.VACIA;
+    public static volatile TablaEnrutamiento enrutamientoClientes = TablaEnrutamiento.VACIA;
 
-    // Almacenará los objetos de cada partición para enviarlos a los workers cuando
-    // se registren.
-    // Clave: ID de Partición (ej: "CUENTA_P1"), Valor: Lista de objetos (Cuenta o
-    // Cliente)
-    public static final ConcurrentHashMap<String, List<? extends Serializable>> datosParticionesGlobales = new ConcurrentHashMap<>();
+    // Particiones que ya recibieron alguna transferencia: sus datos en
+    // ImagenesParticiones están desactualizados y a un worker nuevo se le copian
+    // desde una réplica viva (Rebalanceador)
+    public static final Set<String> particionesModificadas = ConcurrentHashMap.newKeySet();
+    // Particiones que conservó un worker al reconectarse (ej. tras reiniciarse este
+    // servidor): su copia es más nueva que la de ImagenesParticiones
+    public static final Set<String> particionesReadmitidas = ConcurrentHashMap.newKeySet();
+
+    // Los objetos de cada partición, para enviarlos a los workers cuando se
+    // registren, quedan en disco en ImagenesParticiones (no en el heap)
 
     // Método para registrar/actualizar un worker y sus particiones
-    // Debe ser synchronized para proteger el acceso concurrente a particionANodos y
-    // cuentaAParticion
+    // Debe ser synchronized para proteger el acceso concurrente a particionANodos
     public static synchronized void registrarActualizarWorker(InfoWorker infoWorker,
             List<String> particionesAsignadas) {
         infoWorker.setParticionesManejadas(particionesAsignadas);
         workersActivos.put(infoWorker.getWorkerId(), infoWorker);
+        workersEnRegistro.remove(infoWorker.getWorkerId());
         System.out.println("ServidorCentral: Worker " + infoWorker.getWorkerId() + " registrado/actualizado. Host: "
                 + infoWorker.getHost() + ", Puerto Tareas: " + infoWorker.getPuertoTareas() + ", Particiones: "
                 + particionesAsignadas);
 
         for (String particionId : particionesAsignadas) {
-            particionANodos.computeIfAbsent(particionId, _ -> new ArrayList<>()).remove(infoWorker.getWorkerId()); // Evitar
-                                                                                                                   // duplicados
-                                                                                                                   // si
-                                                                                                                   // se
-                                                                                                                   // re-registra
-            particionANodos.computeIfAbsent(particionId, _ -> new ArrayList<>()).add(infoWorker.getWorkerId());
+            // Copia nueva: la lista publicada la leen los manejadores sin bloquear
+            List<String> workers = new ArrayList<>(particionANodos.getOrDefault(particionId, new ArrayList<>()));
+            workers.remove(infoWorker.getWorkerId()); // Evitar duplicados si se re-registra
+            workers.add(infoWorker.getWorkerId());
+            particionANodos.put(particionId, workers);
             System.out.println("ServidorCentral: Worker " + infoWorker.getWorkerId() + " ahora maneja partición "
                     + particionId);
         }
+        anillo = new AnilloConsistente(workersActivos.keySet());
+        for (Map.Entry<String, List<String>> entry : particionANodos.entrySet()) {
+            // Se publica una copia ordenada: los manejadores leen estas listas sin bloquear
+            List<String> ordenados = new ArrayList<>(entry.getValue());
+            anillo.ordenar(entry.getKey(), ordenados);
+            entry.setValue(ordenados);
+        }
+        // Si una partición recibió una transferencia mientras el worker cargaba los datos
+        // iniciales, su copia está desactualizada: se le quita y el Rebalanceador se la
+        // copiará desde una réplica viva. Se comprueba después de publicarlo para que
+        // ninguna escritura se pierda entre medias.
+        List<String> desactualizadas = new ArrayList<>();
+        for (String particionId : particionesAsignadas) {
+            List<String> workers = particionANodos.get(particionId);
+            if (particionesModificadas.contains(particionId) && workers != null && workers.size() > 1) {
+                List<String> sinEste = new ArrayList<>(workers);
+                sinEste.remove(infoWorker.getWorkerId());
+                particionANodos.put(particionId, sinEste);
+                desactualizadas.add(particionId);
+            }
+        }
+        if (!desactualizadas.isEmpty()) {
+            List<String> manejadas = new ArrayList<>(particionesAsignadas);
+            manejadas.removeAll(desactualizadas);
+            infoWorker.setParticionesManejadas(manejadas);
+            System.out.println("ServidorCentral: Worker " + infoWorker.getWorkerId() + " no atenderá aún "
+                    + desactualizadas + " (modificadas durante su registro).");
+        }
     }
 
     // Método para desregistrar un worker
     public static synchronized void desregistrarWorker(String workerId) {
         InfoWorker info = workersActivos.remove(workerId);
+        if (info != null) {
+            ReparadorReplicas.notificarPerdida(workerId);
+            // Las particiones pasan a leerse (y copiarse) de otras réplicas: la caché debe
+            // reflejar lo que tienen ellas
+            CacheSaldos.invalidarTodo();
+        }
+        DetectorFallos.olvidar(workerId);
+        InterruptorCircuito.eliminar(workerId);
+        MetricasReplicacion.olvidarReplica(workerId);
+        anillo = new AnilloConsistente(workersActivos.keySet());
         if (info != null) {
             System.out.println("ServidorCentral: Worker " + workerId + " desregistrado.");
             if (info.getParticionesManejadas() != null) {
                 for (String particionId : info.getParticionesManejadas()) {
-                    List<String> workers = particionANodos.get(particionId);
-                    if (workers != null) {
+                    List<String> actuales = particionANodos.get(particionId);
+                    if (actuales != null) {
+                        // Se publica una lista nueva en vez de modificar la que leen los manejadores
+                        List<String> workers = new ArrayList<>(actuales);
                         boolean removed = workers.remove(workerId); // Asegurarse que la remoción sea efectiva
                         if (removed)
                             System.out.println("ServidorCentral: Worker " + workerId
@@ -90,6 +151,8 @@ public class ServidorCentral {
                             particionANodos.remove(particionId); // Si ya no hay workers para esta partición
                             System.out.println(
                                     "ServidorCentral: Partición " + particionId + " ya no tiene workers asignados.");
+                        } else {
+                            particionANodos.put(particionId, workers);
                         }
                     }
                 }
@@ -101,56 +164,94 @@ public class ServidorCentral {
     }
 
     /**
-     * Asigna particiones a un worker que se registra. Intenta asignar particiones
-     * que tengan
-     * menos de MAX_REPLICAS_POR_PARTICION.
+     * Asigna particiones a un worker que se registra: recibe las particiones para
+     * las que está entre los MAX_REPLICAS_POR_PARTICION primeros workers del anillo
+     * de hash consistente (contándolo a él junto a los ya registrados).
+     * Las que declara tener (se reconecta) las conserva sin recibir datos, salvo que
+     * se hayan escrito desde que arrancó este servidor y otra réplica activa las
+     * tenga: su copia podría estar atrasada.
      * Llena las listas 'particionesAsignadasAlWorkerParam' y
      * 'datosParaWorkerParam'.
      */
-    public static synchronized void asignarParticionesAWorker(String workerId,
+    public static synchronized void asignarParticionesAWorker(String workerId, List<String> particionesDeclaradas,
             List<String> particionesAsignadasAlWorkerParam,
             Map<String, List<? extends Serializable>> datosParaWorkerParam) {
         System.out.println("ServidorCentral: Iniciando asignación de particiones para worker " + workerId);
-        int particionesAsignadasEnEstaRonda = 0;
+        workersEnRegistro.add(workerId);
+        List<String> miembros = new ArrayList<>(workersActivos.keySet());
+        miembros.addAll(workersEnRegistro);
+        AnilloConsistente anilloConNuevo = new AnilloConsistente(miembros);
 
-        List<String> todasLasIdsParticiones = new ArrayList<>(datosParticionesGlobales.keySet());
-        Collections.shuffle(todasLasIdsParticiones); // Para distribuir un poco al azar si varios workers se registran
-                                                     // al mismo tiempo
+        Set<String> conservadas = new HashSet<>();
+        for (String idParticion : particionesDeclaradas != null ? particionesDeclaradas : List.<String>of()) {
+            List<String> workers = particionANodos.getOrDefault(idParticion, new ArrayList<>());
+            if (workers.contains(workerId)
+                    || (!ImagenesParticiones.existe(idParticion) && !particionANodos.containsKey(idParticion))) {
+                continue; // Ya la tiene registrada, o no existe en el enrutamiento actual
+            }
+            if (!particionesModificadas.contains(idParticion) || !tieneWorkerActivo(workers)) {
+                conservadas.add(idParticion);
+                particionesReadmitidas.add(idParticion);
+                particionesAsignadasAlWorkerParam.add(idParticion);
+            }
+        }
+        if (!conservadas.isEmpty()) {
+            System.out.println("ServidorCentral: Worker " + workerId + " conserva " + conservadas.size()
+                    + " particiones que ya tenía.");
+        }
 
+        List<String> todasLasIdsParticiones = ImagenesParticiones.ids();
         for (String idParticionGlobal : todasLasIdsParticiones) {
             List<String> workersConEstaParticion = particionANodos.getOrDefault(idParticionGlobal, new ArrayList<>());
 
             // Verificar si este worker ya tiene esta partición (por si se re-registra o por
             // error)
-            if (workersConEstaParticion.contains(workerId)) {
+            if (workersConEstaParticion.contains(workerId) || conservadas.contains(idParticionGlobal)) {
                 continue;
             }
-
-            if (workersConEstaParticion.size() < MAX_REPLICAS_POR_PARTICION) {
-                List<? extends Serializable> datosDeLaParticion = datosParticionesGlobales.get(idParticionGlobal);
-                if (datosDeLaParticion != null && !datosDeLaParticion.isEmpty()) {
-                    particionesAsignadasAlWorkerParam.add(idParticionGlobal);
-                    datosParaWorkerParam.put(idParticionGlobal, datosDeLaParticion);
-                    System.out.println("ServidorCentral: Asignando partición " + idParticionGlobal + " a worker "
-                            + workerId + " (Réplica #" + (workersConEstaParticion.size() + 1) + ")");
-                    particionesAsignadasEnEstaRonda++;
-                    // No actualizamos particionANodos aquí todavía, solo cuando el worker confirme
-                    // recepción
-                } else {
-                    System.err.println(
-                            "ServidorCentral: Partición global " + idParticionGlobal + " no tiene datos cargados.");
-                }
-                // if (particionesAsignadasEnEstaRonda >= maxParticionesPorWorker) break; //
-                // Opcional: limitar asignaciones por ronda
+            if (!anilloConNuevo.preferencias(idParticionGlobal, MAX_REPLICAS_POR_PARTICION).contains(workerId)) {
+                continue;
+            }
+            if ((particionesModificadas.contains(idParticionGlobal)
+                    || particionesReadmitidas.contains(idParticionGlobal))
+                    && tieneWorkerActivo(workersConEstaParticion)) {
+                continue; // Los datos iniciales ya no valen: el Rebalanceador la copiará de una réplica
+            }
+            // Se lee del disco al serializarse el mensaje para el worker
+            List<? extends Serializable> datosDeLaParticion = ImagenesParticiones.imagen(idParticionGlobal);
+            if (datosDeLaParticion != null && !datosDeLaParticion.isEmpty()) {
+                particionesAsignadasAlWorkerParam.add(idParticionGlobal);
+                datosParaWorkerParam.put(idParticionGlobal, datosDeLaParticion);
+                // No actualizamos particionANodos aquí todavía, solo cuando el worker confirme
+                // recepción
             } else {
-                System.out.println("ServidorCentral: Partición " + idParticionGlobal + " ya tiene "
-                        + workersConEstaParticion.size() + " réplicas. No se asigna a " + workerId);
+                System.err.println(
+                        "ServidorCentral: Partición global " + idParticionGlobal + " no tiene datos cargados.");
             }
         }
-        if (particionesAsignadasEnEstaRonda == 0) {
-            System.out.println("ServidorCentral: No se asignaron nuevas particiones a worker " + workerId
-                    + " en esta ronda (posiblemente todas las particiones ya tienen suficientes réplicas o no hay datos).");
+        if (particionesAsignadasAlWorkerParam.isEmpty()) {
+            System.out.println("ServidorCentral: No se asignaron particiones con datos iniciales a worker " + workerId
+                    + " (el Rebalanceador le copiará las que le toquen).");
+        } else {
+            System.out.println("ServidorCentral: Asignadas " + particionesAsignadasAlWorkerParam.size() + " de "
+                    + todasLasIdsParticiones.size() + " particiones a worker " + workerId + " (anillo de "
+                    + anilloConNuevo.getNumWorkers() + " workers).");
+        }
+    }
+
+    private static boolean tieneWorkerActivo(List<String> workers) {
+        for (String w : workers) {
+            InfoWorker info = workersActivos.get(w);
+            if (info != null && info.isActivo()) {
+                return true;
+            }
         }
+        return false;
+    }
+
+    // El worker no llegó a completar su registro (ej. se cayó mientras recibía datos)
+    public static synchronized void cancelarRegistroEnCurso(String workerId) {
+        workersEnRegistro.remove(workerId);
     }
 
     /**
@@ -165,59 +266,256 @@ public class ServidorCentral {
             List<String> particionesQueSeIntentaronAsignar) {
         if (workerId == null || particionesQueSeIntentaronAsignar == null)
             return;
+        workersEnRegistro.remove(workerId);
         System.out.println("ServidorCentral: Revirtiendo asignación tentativa de particiones para worker " + workerId
                 + ": " + particionesQueSeIntentaronAsignar);
         for (String idParticion : particionesQueSeIntentaronAsignar) {
-            List<String> workers = particionANodos.get(idParticion);
-            if (workers != null) {
+            List<String> actuales = particionANodos.get(idParticion);
+            if (actuales != null) {
+                List<String> workers = new ArrayList<>(actuales);
                 boolean removed = workers.remove(workerId);
                 if (removed)
                     System.out.println(
                             "ServidorCentral: Worker " + workerId + " removido de partición tentativa " + idParticion);
                 if (workers.isEmpty()) {
                     particionANodos.remove(idParticion);
+                } else {
+                    particionANodos.put(idParticion, workers);
                 }
             }
         }
     }
 
+    /**
+     * Publica la división de una partición de cuentas ya hecha en los workers: el
+     * rango de idParticion se parte en [inicio, idCorte-1] -> particionBaja e
+     * [idCorte, fin] -> particionAlta, que quedan en los workers que confirmaron.
+     * Los demás workers que tenían la partición la pierden (se re-replicará aparte).
+     */
+    public static synchronized void aplicarDivision(String idParticion, int idCorte, String particionBaja,
+            String particionAlta, List<String> workersConfirmados) {
+        TablaEnrutamiento actual = enrutamientoCuentas;
+        TablaEnrutamiento.Constructor nueva = new TablaEnrutamiento.Constructor();
+        for (int i = 0; i < actual.getNumRangos(); i++) {
+            if (actual.getParticion(i).equals(idParticion)) {
+                nueva.agregarRango(actual.getInicio(i), idCorte - 1, particionBaja);
+                nueva.agregarRango(idCorte, actual.getFin(i), particionAlta);
+            } else {
+                nueva.agregarRango(actual.getInicio(i), actual.getFin(i), actual.getParticion(i));
+            }
+        }
+
+        int[] cuentas = ImagenesParticiones.dividir(idParticion, idCorte, particionBaja, particionAlta);
+        if (particionesModificadas.contains(idParticion)) {
+            particionesModificadas.add(particionBaja);
+            particionesModificadas.add(particionAlta);
+        }
+
+        List<String> holdersBaja = new ArrayList<>(workersConfirmados);
+        List<String> holdersAlta = new ArrayList<>(workersConfirmados);
+        anillo.ordenar(particionBaja, holdersBaja);
+        anillo.ordenar(particionAlta, holdersAlta);
+        particionANodos.put(particionBaja, holdersBaja);
+        particionANodos.put(particionAlta, holdersAlta);
+        List<String> holdersAnteriores = particionANodos.remove(idParticion);
+
+        for (InfoWorker info : workersActivos.values()) {
+            List<String> manejadas = info.getParticionesManejadas();
+            if (manejadas == null || !manejadas.contains(idParticion)) {
+                continue;
+            }
+            List<String> nuevasManejadas = new ArrayList<>(manejadas);
+            nuevasManejadas.remove(idParticion);
+            if (workersConfirmados.contains(info.getWorkerId())) {
+                nuevasManejadas.add(particionBaja);
+                nuevasManejadas.add(particionAlta);
+            }
+            info.setParticionesManejadas(nuevasManejadas);
+        }
+        // Se publica al final: quien vea la tabla nueva ya encuentra los workers de las hijas
+        enrutamientoCuentas = nueva.construir();
+        particionesModificadas.remove(idParticion);
+        System.out.println("ServidorCentral: Partición " + idParticion + " dividida en " + particionBaja + " ("
+                + cuentas[0] + " cuentas) y " + particionAlta + " (" + cuentas[1]
+                + " cuentas), corte en " + idCorte + ". Workers: " + holdersBaja + " (antes " + holdersAnteriores
+                + ").");
+    }
+
+    // Los workers activos que deberían tener la partición según el anillo, por orden de preferencia
+    public static List<String> preferenciasDe(String idParticion) {
+        return preferenciasDe(idParticion, MAX_REPLICAS_POR_PARTICION);
+    }
+
+    public static List<String> preferenciasDe(String idParticion, int n) {
+        return anillo.preferencias(idParticion, n);
+    }
+
+    public static void marcarParticionModificada(String idParticion) {
+        if (idParticion != null) {
+            particionesModificadas.add(idParticion);
+        }
+    }
+
+    /**
+     * Si la réplica workerId de idParticion recibe una escritura ya aplicada en otra.
+     * Si está inactiva (sospechosa) se la salta, así que su copia queda atrasada: deja
+     * de ser réplica de la partición y ReparadorReplicas se la vuelve a copiar cuando
+     * esté activa. Se comprueba con el InfoWorker bloqueado, igual que al reactivarlo
+     * (ManejadorWorkerServidor), para que no vuelva a atender la partición entre que
+     * se la salta una escritura y se le quita.
+     */
+    public static boolean replicaRecibeEscritura(String idParticion, String workerId) {
+        InfoWorker info = workersActivos.get(workerId);
+        if (info == null) {
+            return false;
+        }
+        synchronized (info) {
+            if (info.isActivo()) {
+                return true;
+            }
+            quitarReplicaDesactualizada(idParticion, workerId, "inactivo durante una escritura",
+                    System.currentTimeMillis());
+            return false;
+        }
+    }
+
+    /**
+     * Reincorporación de un worker que vuelve a enviar heartbeats tras una sospecha: deja
+     * las particiones modificadas que sigue atendiendo otra réplica activa, porque pudo
+     * perderse escrituras (o seguir otra réplica como primaria) mientras estaba inactivo.
+     * ReparadorReplicas se las vuelve a copiar con la partición cercada. Se llama con el
+     * InfoWorker bloqueado y antes de marcarlo activo.
+     */
+    public static void reincorporarWorker(String workerId) {
+        InfoWorker info = workersActivos.get(workerId);
+        if (info == null || info.getParticionesManejadas() == null) {
+            return;
+        }
+        for (String idParticion : new ArrayList<>(info.getParticionesManejadas())) {
+            List<String> workers = particionANodos.get(idParticion);
+            if (workers == null || !particionesModificadas.contains(idParticion)) {
+                continue;
+            }
+            List<String> otros = new ArrayList<>(workers);
+            otros.remove(workerId);
+            if (tieneWorkerActivo(otros)) {
+                quitarReplicaDesactualizada(idParticion, workerId, "reincorporado tras una sospecha",
+                        info.getUltimoHeartbeat());
+            }
+        }
+    }
+
+    /**
+     * Quita workerId de las réplicas de idParticion porque su copia no tiene las
+     * escrituras desde atrasadaDesdeMs. La última réplica nunca se quita: no habría de
+     * dónde copiarla.
+     */
+    public static synchronized void quitarReplicaDesactualizada(String idParticion, String workerId,
+            String motivo, long atrasadaDesdeMs) {
+        List<String> actuales = particionANodos.get(idParticion);
+        if (actuales == null || !actuales.contains(workerId) || actuales.size() <= 1) {
+            return;
+        }
+        // Se publica una lista nueva en vez de modificar la que leen los manejadores
+        List<String> workers = new ArrayList<>(actuales);
+        workers.remove(workerId);
+        particionANodos.put(idParticion, workers);
+        MetricasReplicacion.para(idParticion).marcarAtrasada(workerId, atrasadaDesdeMs);
+        InfoWorker info = workersActivos.get(workerId);
+        if (info != null && info.getParticionesManejadas() != null) {
+            List<String> manejadas = new ArrayList<>(info.getParticionesManejadas());
+            manejadas.remove(idParticion);
+            info.setParticionesManejadas(manejadas);
+        }
+        System.err.println("ServidorCentral: Worker " + workerId + " deja de ser réplica de " + idParticion + " ("
+                + motivo + "). Se le volverá a copiar.");
+        ReparadorReplicas.notificarReplicaDesactualizada();
+    }
+
+    /**
+     * Corte de una migración de réplica: workerNuevo (que ya instaló la copia) pasa a
+     * tener la partición y workerLiberado (si no es null) deja de tenerla.
+     */
+    public static synchronized void aplicarMigracion(String idParticion, String workerNuevo, String workerLiberado) {
+        List<String> workers = new ArrayList<>(particionANodos.getOrDefault(idParticion, new ArrayList<>()));
+        InfoWorker infoNuevo = workerNuevo == null ? null : workersActivos.get(workerNuevo);
+        if (infoNuevo != null && !workers.contains(workerNuevo)) {
+            workers.add(workerNuevo);
+            List<String> manejadas = new ArrayList<>(infoNuevo.getParticionesManejadas());
+            manejadas.add(idParticion);
+            infoNuevo.setParticionesManejadas(manejadas);
+            MetricasReplicacion.para(idParticion).replicaAlDia(workerNuevo);
+        }
+        InfoWorker infoLiberado = workerLiberado == null ? null : workersActivos.get(workerLiberado);
+        if (workerLiberado != null && workers.remove(workerLiberado) && infoLiberado != null) {
+            List<String> manejadas = new ArrayList<>(infoLiberado.getParticionesManejadas());
+            manejadas.remove(idParticion);
+            infoLiberado.setParticionesManejadas(manejadas);
+        }
+        anillo.ordenar(idParticion, workers);
+        particionANodos.put(idParticion, workers);
+        System.out.println("ServidorCentral: Partición " + idParticion + " migrada"
+                + (infoNuevo != null ? " a " + workerNuevo : "")
+                + (workerLiberado != null ? ", liberada de " + workerLiberado : "") + ". Workers: " + workers);
+    }
+
+    // Dos IDs libres para las hijas de una división (Ej: "CUENTA_P257", "CUENTA_P258")
+    public static synchronized String[] nuevosIdsParticionCuentas() {
+        String[] ids = new String[2];
+        int n = NUM_PARTICIONES_CUENTAS;
+        for (int i = 0; i < ids.length; i++) {
+            do {
+                n++;
+            } while (ImagenesParticiones.existe("CUENTA_P" + n) || particionANodos.containsKey("CUENTA_P" + n));
+            ids[i] = "CUENTA_P" + n;
+        }
+        return ids;
+    }
+
+    // Devuelve la partición de la cuenta, o null si su ID no cae en ningún rango
+    public static String particionDeCuenta(int idCuenta) {
+        return enrutamientoCuentas.particionDe(idCuenta);
+    }
+
+    public static String particionDeCliente(int idCliente) {
+        return enrutamientoClientes.particionDe(idCliente);
+    }
+
     public static synchronized int generarIdTransaccionGlobal() {
         return contadorIdTransaccionGlobal.incrementAndGet();
     }
 
-    public static synchronized void registrarTransaccionGlobal(int idTransaccion, int idCuentaOrigen,
+    public static void registrarTransaccionGlobal(int idTransaccion, int idCuentaOrigen,
             int idCuentaDestino, double monto, EstadoOperacion estadoFinal, String detalle) {
-        try (BufferedWriter bw = new BufferedWriter(new FileWriter(LOG_TRANSACCIONES_GLOBALES, true))) {
-            // ID_TRANSACC|ID_ORIG|ID_DEST|MONTO|FECHA_HORA|ESTADO|DETALLE
-            String lineaLog = String.format("%d|%d|%d|%.2f|%s|%s|%s\n",
-                    idTransaccion,
-                    idCuentaOrigen,
-                    idCuentaDestino,
-                    monto,
-                    new Date().toString(), // Usar java.util.Date para la fecha y hora actual
-                    estadoFinal.toString(),
-                    detalle).replace(',', '.');
-            bw.write(lineaLog);
-            System.out.println("ServidorCentral: Transacción global registrada: " + lineaLog.trim());
-        } catch (IOException e) {
-            System.err
-                    .println("ServidorCentral: Error al escribir en log de transacciones globales: " + e.getMessage());
-        }
+        registroTransacciones.registrar(idTransaccion, idCuentaOrigen, idCuentaDestino, monto, estadoFinal, detalle);
+    }
+
+    // Igual que registrarTransaccionGlobal, pero el futuro se completa cuando la línea ya está en disco
+    public static CompletableFuture<Void> registrarTransaccionGlobalDurable(int idTransaccion, int idCuentaOrigen,
+            int idCuentaDestino, double monto, EstadoOperacion estadoFinal, String detalle) {
+        return registroTransacciones.registrarDurable(idTransaccion, idCuentaOrigen, idCuentaDestino, monto,
+                estadoFinal, detalle);
     }
 
     public static void main(String[] args) {
         System.out.println("Servidor Central iniciando...");
         // Crear archivo de log de transacciones si no existe y añadir cabecera
-        try (BufferedWriter bw = new BufferedWriter(new FileWriter(LOG_TRANSACCIONES_GLOBALES, true))) {
-            File logFile = new File(LOG_TRANSACCIONES_GLOBALES);
-            if (logFile.length() == 0) { // Escribir cabecera solo si el archivo está vacío
-                bw.write("ID_TRANSACC|ID_ORIG|ID_DEST|MONTO|FECHA_HORA|ESTADO|DETALLE\n");
-            }
+        registroTransacciones.inicializarArchivo();
+        List<DiarioTransferencias.Abierta> transferenciasEnDuda = List.of();
+        try {
+            transferenciasEnDuda = DiarioTransferencias.cargar();
         } catch (IOException e) {
-            System.err
-                    .println("ServidorCentral: Error al inicializar log de transacciones globales: " + e.getMessage());
+            System.err.println("ServidorCentral: Error al cargar el diario de transferencias: " + e.getMessage());
         }
+        // Los IDs siguen desde el último del diario: los workers recuerdan pasos por ID
+        contadorIdTransaccionGlobal.set(DiarioTransferencias.getMaxIdTransaccion());
         cargarYParticionarDatosGlobales();
+        DetectorFallos.iniciarMonitor();
+        DivisorParticiones.iniciarMonitor();
+        Rebalanceador.iniciarMonitor();
+        ReparadorReplicas.iniciar();
+        RecuperadorTransferencias.iniciar(transferenciasEnDuda);
+        MetricasCentral.iniciar();
 
         ServidorCentral servidor = new ServidorCentral();
         new Thread(servidor::escucharWorkers).start(); // Lanza el listener de workers en un nuevo hilo
@@ -225,7 +523,9 @@ public class ServidorCentral {
     }
 
     private void escucharClientes() {
-        ExecutorService poolClientes = Executors.newFixedThreadPool(MAX_CLIENTES_CONCURRENTES);
+        ThreadPoolExecutor poolClientes = new ThreadPoolExecutor(MAX_CLIENTES_CONCURRENTES,
+                MAX_CLIENTES_CONCURRENTES, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(MAX_CLIENTES_EN_ESPERA));
         System.out.println("Servidor Central: Escuchando clientes en el puerto " + PUERTO_CLIENTES + "...");
 
         try (ServerSocket serverSocket = new ServerSocket(PUERTO_CLIENTES)) {
@@ -234,7 +534,14 @@ public class ServidorCentral {
                     Socket socketCliente = serverSocket.accept();
                     System.out.println("Servidor Central: Nuevo cliente conectado: "
                             + socketCliente.getInetAddress().getHostAddress());
-                    poolClientes.execute(new ManejadorClienteServidor(socketCliente, this));
+                    ManejadorClienteServidor manejador = new ManejadorClienteServidor(socketCliente, this);
+                    try {
+                        poolClientes.execute(manejador);
+                    } catch (RejectedExecutionException e) {
+                        System.err.println("Servidor Central: Demasiados clientes, se rechaza la conexión de "
+                                + socketCliente.getInetAddress().getHostAddress());
+                        manejador.rechazarPorSobrecarga(REINTENTO_CONEXION_MS);
+                    }
                 } catch (IOException e) {
                     System.err.println("Servidor Central: Error al aceptar conexión de cliente: " + e.getMessage());
                 }
@@ -268,76 +575,132 @@ public class ServidorCentral {
 
     private static void cargarYParticionarDatosGlobales() {
         System.out.println("ServidorCentral: Cargando y particionando datos globales...");
-        List<Cliente> todosLosClientes = new ArrayList<>();
-        List<Cuenta> todasLasCuentas = new ArrayList<>();
-
-        // Cargar Clientes
-        try (BufferedReader br = new BufferedReader(new FileReader("../data/clientes.csv"))) {
-            String linea;
-            br.readLine(); // Saltar cabecera
-            while ((linea = br.readLine()) != null) {
-                String[] p = linea.split("\\|");
-                if (p.length >= 4) {
-                    todosLosClientes.add(new Cliente(Integer.parseInt(p[0]), p[1], p[2], p[3]));
-                }
-            }
-        } catch (IOException e) {
+        // Cada archivo se carga en paralelo y sale ya repartido en particiones
+        // contiguas por ID (ver CargadorCsv)
+        ForkJoinPool poolCarga = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        List<List<Cliente>> particionesClientes = new ArrayList<>();
+        List<List<Cuenta>> particionesCuentas = new ArrayList<>();
+        long inicioCarga = System.currentTimeMillis();
+        try {
+            particionesClientes = new CargadorCsv<>(Path.of("../data/clientes.csv"), ServidorCentral::analizarCliente,
+                    Cliente::getIdCliente, poolCarga).cargar(NUM_PARTICIONES_CLIENTES);
+        } catch (IOException | IllegalStateException e) {
             System.err.println("ServidorCentral: Error al leer data/clientes.csv: " + e.getMessage());
         }
-        System.out.println("ServidorCentral: Cargados " + todosLosClientes.size() + " clientes.");
-
-        // Cargar Cuentas
-        try (BufferedReader br = new BufferedReader(new FileReader("../data/cuentas.csv"))) {
-            String linea;
-            br.readLine(); // Saltar cabecera
-            while ((linea = br.readLine()) != null) {
-                String[] p = linea.split("\\|");
-                if (p.length >= 4) {
-                    todasLasCuentas.add(
-                            new Cuenta(Integer.parseInt(p[0]), Integer.parseInt(p[1]), Double.parseDouble(p[2]), p[3]));
-                }
-            }
-        } catch (IOException e) {
+        System.out.println("ServidorCentral: Cargados " + contarRegistros(particionesClientes) + " clientes.");
+
+        try {
+            particionesCuentas = new CargadorCsv<>(Path.of("../data/cuentas.csv"), ServidorCentral::analizarCuenta,
+                    Cuenta::getIdCuenta, poolCarga).cargar(NUM_PARTICIONES_CUENTAS);
+        } catch (IOException | IllegalStateException e) {
             System.err.println("ServidorCentral: Error al leer data/cuentas.csv: " + e.getMessage());
         }
-        System.out.println("ServidorCentral: Cargadas " + todasLasCuentas.size() + " cuentas.");
+        poolCarga.shutdown();
+        System.out.println("ServidorCentral: Cargadas " + contarRegistros(particionesCuentas) + " cuentas en "
+                + (System.currentTimeMillis() - inicioCarga) + " ms.");
 
-        // Particionar Clientes
-        int tamParticionClientes = (int) Math.ceil((double) todosLosClientes.size() / NUM_PARTICIONES_CLIENTES);
+        try {
+            ImagenesParticiones.inicializar();
+        } catch (IOException e) {
+            System.err.println("ServidorCentral: Error al preparar el directorio de imágenes de particiones: "
+                    + e.getMessage());
+        }
+
+        // Particionar Clientes. Cada partición se guarda en disco y se suelta de memoria
+        TablaEnrutamiento.Constructor rangosClientes = new TablaEnrutamiento.Constructor();
         for (int i = 0; i < NUM_PARTICIONES_CLIENTES; i++) {
             String idParticion = "CLIENTE_P" + (i + 1);
-            List<Cliente> clientesParticion = new ArrayList<>();
-            for (int j = i * tamParticionClientes; j < (i + 1) * tamParticionClientes
-                    && j < todosLosClientes.size(); j++) {
-                Cliente cliente = todosLosClientes.get(j);
-                clientesParticion.add(cliente);
-                clienteAParticion.put(cliente.getIdCliente(), idParticion);
+            List<Cliente> clientesParticion = i < particionesClientes.size() ? particionesClientes.get(i)
+                    : new ArrayList<>();
+            if (!clientesParticion.isEmpty()) {
+                rangosClientes.agregarRango(clientesParticion.get(0).getIdCliente(),
+                        clientesParticion.get(clientesParticion.size() - 1).getIdCliente(), idParticion);
+            }
+            guardarImagen(idParticion, clientesParticion);
+            if (i < particionesClientes.size()) {
+                particionesClientes.set(i, null);
             }
-            datosParticionesGlobales.put(idParticion, clientesParticion);
             System.out.println("ServidorCentral: Creada partición " + idParticion + " con " + clientesParticion.size()
                     + " clientes.");
         }
 
         // Particionar Cuentas
-        int tamParticionCuentas = (int) Math.ceil((double) todasLasCuentas.size() / NUM_PARTICIONES_CUENTAS);
+        TablaEnrutamiento.Constructor rangosCuentas = new TablaEnrutamiento.Constructor();
         for (int i = 0; i < NUM_PARTICIONES_CUENTAS; i++) {
             String idParticion = "CUENTA_P" + (i + 1);
-            List<Cuenta> cuentasParticion = new ArrayList<>();
-            for (int j = i * tamParticionCuentas; j < (i + 1) * tamParticionCuentas
-                    && j < todasLasCuentas.size(); j++) {
-                Cuenta cuenta = todasLasCuentas.get(j);
-                cuentasParticion.add(cuenta);
-                cuentaAParticion.put(cuenta.getIdCuenta(), idParticion);
+            List<Cuenta> cuentasParticion = i < particionesCuentas.size() ? particionesCuentas.get(i)
+                    : new ArrayList<>();
+            if (!cuentasParticion.isEmpty()) {
+                rangosCuentas.agregarRango(cuentasParticion.get(0).getIdCuenta(),
+                        cuentasParticion.get(cuentasParticion.size() - 1).getIdCuenta(), idParticion);
+            }
+            guardarImagen(idParticion, cuentasParticion);
+            if (i < particionesCuentas.size()) {
+                particionesCuentas.set(i, null);
             }
-            datosParticionesGlobales.put(idParticion, cuentasParticion);
             System.out.println("ServidorCentral: Creada partición " + idParticion + " con " + cuentasParticion.size()
                     + " cuentas.");
         }
+        enrutamientoClientes = rangosClientes.construir();
+        enrutamientoCuentas = rangosCuentas.construir();
+        System.out.println("ServidorCentral: Enrutamiento de cuentas: " + enrutamientoCuentas);
+        System.out.println("ServidorCentral: Enrutamiento de clientes: " + enrutamientoClientes);
         // La tabla de Transacciones no se pre-particionará activamente para delegación,
         // se registrará centralmente o por evento.
         System.out.println("ServidorCentral: Datos globales cargados y particionados.");
     }
 
+    private static void guardarImagen(String idParticion, List<? extends Serializable> datos) {
+        try {
+            ImagenesParticiones.guardar(idParticion, datos);
+        } catch (IOException e) {
+            System.err.println("ServidorCentral: Error al guardar en disco la partición " + idParticion + ": "
+                    + e.getMessage());
+        }
+    }
+
+    private static int contarRegistros(List<? extends List<?>> particiones) {
+        int total = 0;
+        for (List<?> p : particiones) {
+            total += p.size();
+        }
+        return total;
+    }
+
+    // ID_CLIENTE|NOMBRE|EMAIL|TELEFONO
+    private static Cliente analizarCliente(byte[] linea, int largo, Map<String, String> cadenas) {
+        int[] seps = new int[4];
+        int n = CargadorCsv.separadores(linea, largo, seps);
+        if (n < 3) {
+            return null;
+        }
+        int finTelefono = n > 3 ? seps[3] : largo;
+        try {
+            return new Cliente(CargadorCsv.entero(linea, 0, seps[0]), CargadorCsv.texto(linea, seps[0] + 1, seps[1]),
+                    CargadorCsv.texto(linea, seps[1] + 1, seps[2]),
+                    CargadorCsv.texto(linea, seps[2] + 1, finTelefono));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    // ID_CUENTA|ID_CLIENTE|SALDO|TIPO_CUENTA
+    private static Cuenta analizarCuenta(byte[] linea, int largo, Map<String, String> cadenas) {
+        int[] seps = new int[4];
+        int n = CargadorCsv.separadores(linea, largo, seps);
+        if (n < 3) {
+            return null;
+        }
+        int finTipo = n > 3 ? seps[3] : largo;
+        try {
+            return new Cuenta(CargadorCsv.entero(linea, 0, seps[0]), CargadorCsv.entero(linea, seps[0] + 1, seps[1]),
+                    CargadorCsv.decimal(linea, seps[1] + 1, seps[2]),
+                    CargadorCsv.textoCompartido(linea, seps[2] + 1, finTipo, cadenas));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
     // Más adelante: métodos para inicializar/cargar metadatos de particiones
     // private static void inicializarMetadatosParticiones() { ... }
 
@@ -348,6 +711,6 @@ public class ServidorCentral {
     // si la hace el ManejadorWorkerServidor al registrarse, este método no es
     // necesario aquí.
     public static List<? extends Serializable> getDatosDeParticion(String idParticion) {
-        return datosParticionesGlobales.get(idParticion);
+        return ImagenesParticiones.imagen(idParticion);
     }
 }
\ No newline at end of file
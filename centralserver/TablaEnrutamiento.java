@@ -0,0 +1,117 @@
+package centralserver;
+
+import java.util.Arrays;
+
+/**
+ * Tabla inmutable ID -> partición basada en rangos contiguos de IDs.
+ * Guarda, ordenados por inicio, los rangos [inicio, fin] (ambos inclusive) y la
+ * partición de cada uno en arrays primitivos, y resuelve con búsqueda binaria.
+ * Ocupa O(particiones) y buscar no reserva memoria. Para cambiar el reparto se
+ * construye una tabla nueva y se publica sustituyendo la referencia.
+ */
+public final class TablaEnrutamiento {
+
+    public static final TablaEnrutamiento VACIA = new TablaEnrutamiento(new int[0], new int[0], new String[0]);
+
+    private final int[] inicios;
+    private final int[] fines;
+    private final String[] particiones;
+
+    private TablaEnrutamiento(int[] inicios, int[] fines, String[] particiones) {
+        this.inicios = inicios;
+        this.fines = fines;
+        this.particiones = particiones;
+    }
+
+    /** Devuelve la partición del ID, o null si no cae en ningún rango. */
+    public String particionDe(int id) {
+        int bajo = 0;
+        int alto = inicios.length - 1;
+        while (bajo <= alto) {
+            int medio = (bajo + alto) >>> 1;
+            if (inicios[medio] <= id) {
+                bajo = medio + 1;
+            } else {
+                alto = medio - 1;
+            }
+        }
+        // alto es el último rango con inicio <= id
+        if (alto >= 0 && id <= fines[alto]) {
+            return particiones[alto];
+        }
+        return null;
+    }
+
+    public int getNumRangos() {
+        return inicios.length;
+    }
+
+    public int getInicio(int i) {
+        return inicios[i];
+    }
+
+    public int getFin(int i) {
+        return fines[i];
+    }
+
+    public String getParticion(int i) {
+        return particiones[i];
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("TablaEnrutamiento[");
+        for (int i = 0; i < inicios.length; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(particiones[i]).append('=').append(inicios[i]).append("..").append(fines[i]);
+        }
+        return sb.append(']').toString();
+    }
+
+    /** Acumula rangos (en cualquier orden) y construye la tabla validando que no se solapen. */
+    public static final class Constructor {
+        private int[] inicios = new int[8];
+        private int[] fines = new int[8];
+        private String[] particiones = new String[8];
+        private int n = 0;
+
+        public Constructor agregarRango(int inicio, int fin, String idParticion) {
+            if (inicio > fin) {
+                throw new IllegalArgumentException("Rango vacío " + inicio + ".." + fin + " para " + idParticion);
+            }
+            if (n == inicios.length) {
+                inicios = Arrays.copyOf(inicios, n * 2);
+                fines = Arrays.copyOf(fines, n * 2);
+                particiones = Arrays.copyOf(particiones, n * 2);
+            }
+            inicios[n] = inicio;
+            fines[n] = fin;
+            particiones[n] = idParticion;
+            n++;
+            return this;
+        }
+
+        public TablaEnrutamiento construir() {
+            Integer[] orden = new Integer[n];
+            for (int i = 0; i < n; i++) {
+                orden[i] = i;
+            }
+            Arrays.sort(orden, (a, b) -> Integer.compare(inicios[a], inicios[b]));
+            int[] ini = new int[n];
+            int[] fin = new int[n];
+            String[] part = new String[n];
+            for (int i = 0; i < n; i++) {
+                ini[i] = inicios[orden[i]];
+                fin[i] = fines[orden[i]];
+                part[i] = particiones[orden[i]];
+                if (i > 0 && ini[i] <= fin[i - 1]) {
+                    throw new IllegalArgumentException("Rangos solapados: " + part[i - 1] + " (.." + fin[i - 1]
+                            + ") y " + part[i] + " (" + ini[i] + "..)");
+                }
+            }
+            return new TablaEnrutamiento(ini, fin, part);
+        }
+    }
+}
@@ -1,21 +1,32 @@
 package client;
 
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Random;
 import java.util.Scanner;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
+import commons.EstadoOperacion;
+import commons.FlujoMensajes;
+import commons.NivelConsistencia;
 import commons.Solicitud;
 import commons.Respuesta;
 import commons.TipoOperacion;
+import commons.Transferencia;
 
 public class Cliente {
     private static String HOST_SERVIDOR = "localhost";
@@ -26,13 +37,32 @@ public class Cliente {
     private static final int MIN_ID_CUENTA = 100001;
     private static final int MAX_ID_CUENTA = 106049;
 
+    // Benchmark de contención (-x pct): solo transferencias, sin pausas entre ellas. El
+    // pct% se hace entre NUM_CUENTAS_CALIENTES cuentas repartidas por el rango (así caen
+    // en particiones distintas), que chocan entre sí; el resto va entre las demás cuentas
+    // al azar y casi nunca coincide.
+    private static int pctColision = -1; // -1: simulación normal
+    private static final int NUM_CUENTAS_CALIENTES = 2;
+    private static final Queue<Long> latenciasNs = new ConcurrentLinkedQueue<>();
+    private static final Map<EstadoOperacion, LongAdder> resultadosPorEstado = new ConcurrentHashMap<>();
+
+    // Consistencia de las consultas de saldo de la simulación (-l NIVEL[:ms]); null: la
+    // del servidor por defecto. Con LEER_MIS_ESCRITURAS cada cliente envía la versión que
+    // le devolvió su última transferencia de esa cuenta.
+    private static NivelConsistencia nivelLectura = null;
+    private static long antiguedadMaxMs = 1000;
+
     static class TareaCliente implements Runnable {
         private int idClienteSimulado;
         private int numOperaciones;
+        private int maxEnVuelo; // Operaciones enviadas sin esperar respuesta por la conexión
+        // Versión de cada cuenta tras las transferencias de este cliente (token de LEER_MIS_ESCRITURAS)
+        private final Map<Integer, Long> versionesVistas = new ConcurrentHashMap<>();
 
-        public TareaCliente(int idClienteSimulado, int numOperaciones) {
+        public TareaCliente(int idClienteSimulado, int numOperaciones, int maxEnVuelo) {
             this.idClienteSimulado = idClienteSimulado;
             this.numOperaciones = numOperaciones;
+            this.maxEnVuelo = maxEnVuelo;
         }
 
         private int generarIdCuentaAleatorio() {
@@ -42,14 +72,55 @@ public class Cliente {
         @Override
         public void run() {
             System.out.println("Cliente Simulado [" + idClienteSimulado + "]: Iniciando...");
-            try (Socket socket = new Socket(HOST_SERVIDOR, PUERTO_SERVIDOR);
-                    ObjectOutputStream oos = new ObjectOutputStream(socket.getOutputStream());
-                    ObjectInputStream ois = new ObjectInputStream(socket.getInputStream())) {
+            try (ConexionServidor conexion = new ConexionServidor(HOST_SERVIDOR, PUERTO_SERVIDOR)) {
 
-                System.out.println("Cliente Simulado [" + idClienteSimulado + "]: Conectado al Servidor Central.");
+                System.out.println("Cliente Simulado [" + idClienteSimulado + "]: Conectado al Servidor Central ("
+                        + maxEnVuelo + " operaciones en vuelo como máximo).");
 
+                Semaphore ventana = new Semaphore(maxEnVuelo);
                 for (int i = 0; i < numOperaciones; i++) {
-                    realizarOperacionAleatoria(oos, ois, idClienteSimulado, i + 1);
+                    try {
+                        ventana.acquire();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                    Solicitud solicitud = pctColision >= 0 ? crearTransferenciaBenchmark()
+                            : crearOperacionAleatoria(idClienteSimulado, i + 1);
+                    long inicio = System.nanoTime();
+                    String idLog = idClienteSimulado + ", Op#" + (i + 1) + " " + solicitud.getTipoOperacion();
+                    System.out.println("Cliente [" + idLog + "]: Enviando: " + solicitud.getTipoOperacion()
+                            + " Params: " + solicitud.getParametros());
+                    // Las respuestas pueden llegar en otro orden que las solicitudes
+                    conexion.enviar(solicitud).whenComplete((respuesta, error) -> {
+                        if (respuesta != null && respuesta.getEstado() == EstadoOperacion.SERVIDOR_OCUPADO
+                                && respuesta.getDatos() instanceof Long reintentarEnMs) {
+                            // El servidor está sobrecargado: no ocupar ese hueco hasta que lo sugiera
+                            CompletableFuture.delayedExecutor(reintentarEnMs, TimeUnit.MILLISECONDS)
+                                    .execute(ventana::release);
+                        } else {
+                            ventana.release();
+                        }
+                        if (error != null) {
+                            System.err.println("Cliente [" + idLog + "]: Sin respuesta - " + error.getMessage());
+                        } else {
+                            if (solicitud.getTipoOperacion() == TipoOperacion.TRANSFERIR_FONDOS
+                                    && respuesta.getEstado() == EstadoOperacion.EXITO
+                                    && respuesta.getDatos() instanceof Map<?, ?> token) {
+                                token.forEach((idCuenta, version) -> versionesVistas.merge((Integer) idCuenta,
+                                        (Long) version, Math::max));
+                            }
+                            if (pctColision >= 0) {
+                                latenciasNs.add(System.nanoTime() - inicio);
+                                resultadosPorEstado.computeIfAbsent(respuesta.getEstado(), _ -> new LongAdder())
+                                        .increment();
+                            }
+                            mostrarRespuesta(respuesta, idLog);
+                        }
+                    });
+                    if (pctColision >= 0) {
+                        continue; // El benchmark no hace pausas: la ventana marca el ritmo
+                    }
                     try {
                         Thread.sleep(random.nextInt(200) + 50); // Reducir delay para más carga: 50-250ms
                     } catch (InterruptedException e) {
@@ -58,6 +129,8 @@ public class Cliente {
                         break;
                     }
                 }
+                // Esperar las que siguen en vuelo antes de cerrar la conexión
+                ventana.acquireUninterruptibly(maxEnVuelo);
             } catch (UnknownHostException e) {
                 System.err.println("Cliente Simulado [" + idClienteSimulado + "]: Host del servidor no encontrado: "
                         + HOST_SERVIDOR);
@@ -71,8 +144,41 @@ public class Cliente {
             System.out.println("Cliente Simulado [" + idClienteSimulado + "]: Finalizado.");
         }
 
-        private void realizarOperacionAleatoria(ObjectOutputStream oos, ObjectInputStream ois, int clienteId, int opNum)
-                throws IOException, ClassNotFoundException {
+        /** Transferencia de 1.00 entre las cuentas calientes (pctColision% de las veces) o entre dos frías. */
+        private Solicitud crearTransferenciaBenchmark() {
+            int idCuentaOrigen;
+            int idCuentaDestino;
+            if (random.nextInt(100) < pctColision) {
+                int origen = random.nextInt(NUM_CUENTAS_CALIENTES);
+                int destino = (origen + 1 + random.nextInt(NUM_CUENTAS_CALIENTES - 1)) % NUM_CUENTAS_CALIENTES;
+                idCuentaOrigen = cuentaCaliente(origen);
+                idCuentaDestino = cuentaCaliente(destino);
+            } else {
+                do {
+                    idCuentaOrigen = generarIdCuentaAleatorio();
+                } while (esCuentaCaliente(idCuentaOrigen));
+                do {
+                    idCuentaDestino = generarIdCuentaAleatorio();
+                } while (idCuentaDestino == idCuentaOrigen || esCuentaCaliente(idCuentaDestino));
+            }
+            Map<String, Object> parametros = new HashMap<>();
+            parametros.put("ID_CUENTA_ORIGEN", idCuentaOrigen);
+            parametros.put("ID_CUENTA_DESTINO", idCuentaDestino);
+            parametros.put("MONTO", 1.0);
+            return new Solicitud(TipoOperacion.TRANSFERIR_FONDOS, parametros);
+        }
+
+        private static int cuentaCaliente(int k) {
+            return MIN_ID_CUENTA + k * ((MAX_ID_CUENTA - MIN_ID_CUENTA + 1) / NUM_CUENTAS_CALIENTES);
+        }
+
+        private static boolean esCuentaCaliente(int idCuenta) {
+            int desplazamiento = idCuenta - MIN_ID_CUENTA;
+            int paso = (MAX_ID_CUENTA - MIN_ID_CUENTA + 1) / NUM_CUENTAS_CALIENTES;
+            return desplazamiento % paso == 0 && desplazamiento / paso < NUM_CUENTAS_CALIENTES;
+        }
+
+        private Solicitud crearOperacionAleatoria(int clienteId, int opNum) {
             Solicitud solicitud;
             Map<String, Object> parametros = new HashMap<>();
 
@@ -81,6 +187,15 @@ public class Cliente {
             if (operacionRandom < 60) { // CONSULTAR_SALDO
                 int cuentaAConsultar = generarIdCuentaAleatorio();
                 parametros.put("ID_CUENTA", cuentaAConsultar);
+                if (nivelLectura != null) {
+                    parametros.put("CONSISTENCIA", nivelLectura);
+                    if (nivelLectura == NivelConsistencia.LEER_MIS_ESCRITURAS
+                            && versionesVistas.containsKey(cuentaAConsultar)) {
+                        parametros.put("VERSION_MINIMA", versionesVistas.get(cuentaAConsultar));
+                    } else if (nivelLectura == NivelConsistencia.ANTIGUEDAD_ACOTADA) {
+                        parametros.put("ANTIGUEDAD_MAX_MS", antiguedadMaxMs);
+                    }
+                }
                 solicitud = new Solicitud(TipoOperacion.CONSULTAR_SALDO, parametros);
                 System.out.println("Cliente [" + clienteId + ", Op#" + opNum + "]: CONSULTAR_SALDO para cuenta "
                         + cuentaAConsultar);
@@ -104,13 +219,14 @@ public class Cliente {
                 System.out.println("Cliente [" + clienteId + ", Op#" + opNum + "]: SOLICITANDO ARQUEO_CUENTAS");
             }
 
-            enviarYRecibir(solicitud, oos, ois, clienteId + ", Op#" + opNum + " " + solicitud.getTipoOperacion());
+            return solicitud;
         }
     }
 
     public static void main(String[] args) {
         int numClientes = 5;
         int numOpsPorCliente = 10;
+        int maxEnVuelo = 1;
         boolean modoInteractivo = false;
 
         for (int i = 0; i < args.length; i++) {
@@ -151,6 +267,38 @@ public class Cliente {
                         return;
                     }
                     break;
+                case "-e":
+                case "--en-vuelo":
+                    if (i + 1 < args.length)
+                        maxEnVuelo = Math.max(1, Integer.parseInt(args[++i]));
+                    else {
+                        System.err.println("Falta el valor para -e/--en-vuelo");
+                        return;
+                    }
+                    break;
+                case "-x":
+                case "--colision":
+                    if (i + 1 < args.length)
+                        pctColision = Math.max(0, Math.min(100, Integer.parseInt(args[++i])));
+                    else {
+                        System.err.println("Falta el valor para -x/--colision");
+                        return;
+                    }
+                    break;
+                case "-l":
+                case "--lectura":
+                    if (i + 1 < args.length) {
+                        // NIVEL o ANTIGUEDAD_ACOTADA:ms
+                        String[] partes = args[++i].split(":");
+                        nivelLectura = NivelConsistencia.valueOf(partes[0].toUpperCase());
+                        if (partes.length > 1) {
+                            antiguedadMaxMs = Long.parseLong(partes[1]);
+                        }
+                    } else {
+                        System.err.println("Falta el valor para -l/--lectura");
+                        return;
+                    }
+                    break;
                 case "-i":
                 case "--interactive":
                     modoInteractivo = true;
@@ -158,7 +306,7 @@ public class Cliente {
                 default:
                     System.err.println("Opción desconocida: " + args[i]);
                     System.err.println(
-                            "Uso: java Cliente [-h host] [-p puerto] [-c numClientes] [-o numOpsPorCliente] [-i para modo interactivo]");
+                            "Uso: java Cliente [-h host] [-p puerto] [-c numClientes] [-o numOpsPorCliente] [-e operacionesEnVuelo] [-x pctColision para benchmark de contención] [-l consistencia de lecturas: LINEALIZABLE, LEER_MIS_ESCRITURAS o ANTIGUEDAD_ACOTADA:ms] [-i para modo interactivo]");
                     return;
             }
         }
@@ -166,15 +314,14 @@ public class Cliente {
         if (modoInteractivo) {
             ejecutarModoInteractivo();
         } else {
-            ejecutarModoSimulacion(numClientes, numOpsPorCliente);
+            ejecutarModoSimulacion(numClientes, numOpsPorCliente, maxEnVuelo);
         }
     }
 
     private static void ejecutarModoInteractivo() {
         System.out.println("Cliente en Modo Interactivo. Conectando a " + HOST_SERVIDOR + ":" + PUERTO_SERVIDOR);
         try (Socket socket = new Socket(HOST_SERVIDOR, PUERTO_SERVIDOR);
-                ObjectOutputStream oos = new ObjectOutputStream(socket.getOutputStream());
-                ObjectInputStream ois = new ObjectInputStream(socket.getInputStream());
+                FlujoMensajes flujo = FlujoMensajes.conectar(socket);
                 Scanner scanner = new Scanner(System.in)) {
 
             System.out.println("Conectado al Servidor Central.");
@@ -183,11 +330,12 @@ public class Cliente {
                 System.out.println("1. Consultar Saldo");
                 System.out.println("2. Transferir Fondos");
                 System.out.println("3. Realizar Arqueo de Cuentas");
-                System.out.println("4. Salir");
+                System.out.println("4. Pagar Nómina (transferencias en lote)");
+                System.out.println("5. Salir");
                 System.out.print("Opción: ");
                 String opcion = scanner.nextLine().trim();
 
-                if ("4".equals(opcion))
+                if ("5".equals(opcion))
                     break;
 
                 Solicitud solicitud = null;
@@ -214,12 +362,28 @@ public class Cliente {
                         case "3":
                             solicitud = new Solicitud(TipoOperacion.ARQUEO_CUENTAS, new HashMap<>());
                             break;
+                        case "4":
+                            System.out.print("ID Cuenta Origen (pagador): ");
+                            int idPagador = Integer.parseInt(scanner.nextLine().trim());
+                            System.out.print("ID de la primera Cuenta Destino: ");
+                            int primerDestino = Integer.parseInt(scanner.nextLine().trim());
+                            System.out.print("Número de cuentas destino (consecutivas): ");
+                            int numDestinos = Integer.parseInt(scanner.nextLine().trim());
+                            System.out.print("Monto por cuenta: ");
+                            double montoNomina = Double.parseDouble(scanner.nextLine().trim().replace(',', '.'));
+                            ArrayList<Transferencia> transferencias = new ArrayList<>();
+                            for (int k = 0; k < numDestinos; k++) {
+                                transferencias.add(new Transferencia(idPagador, primerDestino + k, montoNomina));
+                            }
+                            parametros = Map.of("TRANSFERENCIAS", transferencias);
+                            solicitud = new Solicitud(TipoOperacion.TRANSFERIR_LOTE, parametros);
+                            break;
                         default:
                             System.out.println("Opción inválida.");
                             continue;
                     }
                     if (solicitud != null)
-                        enviarYRecibir(solicitud, oos, ois, "Interactivo");
+                        enviarYRecibir(solicitud, flujo, "Interactivo");
                 } catch (NumberFormatException e) {
                     System.err.println("Error: Entrada numérica no válida - " + e.getMessage());
                 }
@@ -231,12 +395,14 @@ public class Cliente {
         System.out.println("Cliente interactivo desconectado.");
     }
 
-    private static void ejecutarModoSimulacion(int numClientes, int numOpsPorCliente) {
+    private static void ejecutarModoSimulacion(int numClientes, int numOpsPorCliente, int maxEnVuelo) {
         System.out.println("Iniciando simulación con " + numClientes + " clientes, " + numOpsPorCliente
-                + " operaciones/cliente, servidor en " + HOST_SERVIDOR + ":" + PUERTO_SERVIDOR);
+                + " operaciones/cliente (" + maxEnVuelo + " en vuelo), servidor en " + HOST_SERVIDOR + ":"
+                + PUERTO_SERVIDOR);
+        long inicio = System.nanoTime();
         ExecutorService poolClientes = Executors.newFixedThreadPool(numClientes);
         for (int i = 0; i < numClientes; i++) {
-            poolClientes.execute(new TareaCliente(i + 1, numOpsPorCliente));
+            poolClientes.execute(new TareaCliente(i + 1, numOpsPorCliente, maxEnVuelo));
         }
         poolClientes.shutdown();
         try {
@@ -250,23 +416,52 @@ public class Cliente {
             Thread.currentThread().interrupt();
         }
         System.out.println("Simulación de todos los clientes completada.");
+        if (pctColision >= 0) {
+            mostrarResultadoBenchmark(System.nanoTime() - inicio);
+        }
     }
 
-    private static void enviarYRecibir(Solicitud solicitud, ObjectOutputStream oos, ObjectInputStream ois,
-            String idClienteLog)
+    private static void mostrarResultadoBenchmark(long duracionNs) {
+        long[] latencias = latenciasNs.stream().mapToLong(Long::longValue).sorted().toArray();
+        if (latencias.length == 0) {
+            System.out.println("Benchmark de contención: ninguna respuesta.");
+            return;
+        }
+        double segundos = duracionNs / 1e9;
+        System.out.printf("Benchmark de contención (%d%% entre %d cuentas calientes): %d transferencias en %.1f s"
+                + " = %.1f/s, latencia p50 %d ms, p99 %d ms, máx %d ms. Resultados: %s%n",
+                pctColision, NUM_CUENTAS_CALIENTES, latencias.length, segundos, latencias.length / segundos,
+                latencias[latencias.length / 2] / 1_000_000,
+                latencias[(int) (latencias.length * 0.99)] / 1_000_000,
+                latencias[latencias.length - 1] / 1_000_000, new TreeMap<>(resultadosPorEstado));
+    }
+
+    private static void enviarYRecibir(Solicitud solicitud, FlujoMensajes flujo, String idClienteLog)
             throws IOException, ClassNotFoundException {
         System.out.println("Cliente [" + idClienteLog + "]: Enviando: " + solicitud.getTipoOperacion() + " Params: "
                 + solicitud.getParametros());
-        oos.writeObject(solicitud);
-        oos.flush();
-        Object respuestaObj = ois.readObject();
+        flujo.escribir(solicitud);
+        Object respuestaObj = flujo.leer();
         if (respuestaObj instanceof Respuesta) {
-            Respuesta respuesta = (Respuesta) respuestaObj;
-            System.out.println("Cliente [" + idClienteLog + "]: Respuesta Servidor: [" + respuesta.getEstado() + "] "
-                    + respuesta.getMensaje() + (respuesta.getDatos() != null ? " Datos: " + respuesta.getDatos() : ""));
+            mostrarRespuesta((Respuesta) respuestaObj, idClienteLog);
         } else {
             System.err.println("Cliente [" + idClienteLog + "]: Respuesta no es de tipo Respuesta: "
                     + (respuestaObj != null ? respuestaObj.getClass().getName() : "null"));
         }
     }
-}
\ No newline at end of file
+
+    private static void mostrarRespuesta(Respuesta respuesta, String idClienteLog) {
+        if (respuesta.getDatos() instanceof List<?> resultados) {
+            // Resultado por transferencia de un lote: se resume por estado
+            Map<Object, Integer> porEstado = new TreeMap<>();
+            for (Object estado : resultados) {
+                porEstado.merge(estado, 1, Integer::sum);
+            }
+            System.out.println("Cliente [" + idClienteLog + "]: Respuesta Servidor: [" + respuesta.getEstado() + "] "
+                    + respuesta.getMensaje() + " Resultados: " + porEstado);
+            return;
+        }
+        System.out.println("Cliente [" + idClienteLog + "]: Respuesta Servidor: [" + respuesta.getEstado() + "] "
+                + respuesta.getMensaje() + (respuesta.getDatos() != null ? " Datos: " + respuesta.getDatos() : ""));
+    }
+}
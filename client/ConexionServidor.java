@@ -0,0 +1,106 @@
+package client;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import commons.FlujoMensajes;
+import commons.Respuesta;
+import commons.Solicitud;
+
+/**
+ * Conexión con el Servidor Central que admite varias solicitudes en vuelo: cada
+ * Solicitud sale con un idSolicitud y un hilo lector entrega cada Respuesta a
+ * quien la espera según ese id, aunque lleguen en otro orden.
+ */
+public class ConexionServidor implements AutoCloseable {
+    private final Socket socket;
+    private final FlujoMensajes flujo;
+    private final AtomicLong siguienteId = new AtomicLong(0);
+    private final Map<Long, CompletableFuture<Respuesta>> pendientes = new ConcurrentHashMap<>();
+    private final Thread lector;
+    private volatile IOException error;
+
+    public ConexionServidor(String host, int puerto) throws IOException {
+        this.socket = new Socket(host, puerto);
+        this.flujo = FlujoMensajes.conectar(socket);
+        this.lector = new Thread(this::leerRespuestas, "lector-" + socket.getLocalPort());
+        this.lector.setDaemon(true);
+        this.lector.start();
+    }
+
+    /** Envía la solicitud sin esperar; el resultado se completa al llegar su respuesta. */
+    public CompletableFuture<Respuesta> enviar(Solicitud solicitud) throws IOException {
+        if (error != null) {
+            throw error;
+        }
+        long id = siguienteId.incrementAndGet();
+        solicitud.setIdSolicitud(id);
+        CompletableFuture<Respuesta> futura = new CompletableFuture<>();
+        pendientes.put(id, futura);
+        try {
+            flujo.escribir(solicitud);
+        } catch (IOException e) {
+            pendientes.remove(id);
+            throw e;
+        }
+        if (error != null && pendientes.remove(id) != null) {
+            futura.completeExceptionally(error); // El lector terminó mientras se enviaba
+        }
+        return futura;
+    }
+
+    private void leerRespuestas() {
+        try {
+            while (true) {
+                Object obj = flujo.leer();
+                if (!(obj instanceof Respuesta respuesta)) {
+                    System.err.println("ConexionServidor: Objeto recibido no es Respuesta: " + obj);
+                    continue;
+                }
+                if (respuesta.getIdSolicitud() == 0) {
+                    // Respuesta de la conexión (ej. SERVIDOR_OCUPADO al no admitirla): vale para todas
+                    for (Long id : pendientes.keySet()) {
+                        CompletableFuture<Respuesta> futura = pendientes.remove(id);
+                        if (futura != null) {
+                            futura.complete(respuesta);
+                        }
+                    }
+                    continue;
+                }
+                CompletableFuture<Respuesta> futura = pendientes.remove(respuesta.getIdSolicitud());
+                if (futura != null) {
+                    futura.complete(respuesta);
+                } else {
+                    System.err.println("ConexionServidor: Respuesta para solicitud desconocida "
+                            + respuesta.getIdSolicitud());
+                }
+            }
+        } catch (IOException | ClassNotFoundException e) {
+            error = e instanceof IOException ioe ? ioe : new IOException(e);
+            // Nadie va a responder las que quedaron en vuelo
+            for (Long id : pendientes.keySet()) {
+                CompletableFuture<Respuesta> futura = pendientes.remove(id);
+                if (futura != null) {
+                    futura.completeExceptionally(error);
+                }
+            }
+        }
+    }
+
+    public int getEnVuelo() {
+        return pendientes.size();
+    }
+
+    @Override
+    public void close() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Ignorado
+        }
+    }
+}
@@ -3,12 +3,13 @@ package commons;
 import java.io.Serializable;
 
 public class Cuenta implements Serializable {
-    private static final long serialVersionUID = 2L;
+    private static final long serialVersionUID = 3L;
 
     private int idCuenta;
     private int idCliente;
     private double saldo;
     private String tipoCuenta;
+    private long version; // Sube con cada escritura del saldo en los workers
 
     public Cuenta() {
     }
@@ -37,6 +38,10 @@ public class Cuenta implements Serializable {
         return tipoCuenta;
     }
 
+    public long getVersion() {
+        return version;
+    }
+
     // Setters
     public void setIdCuenta(int idCuenta) {
         this.idCuenta = idCuenta;
@@ -54,6 +59,10 @@ public class Cuenta implements Serializable {
         this.tipoCuenta = tipoCuenta;
     }
 
+    public void setVersion(long version) {
+        this.version = version;
+    }
+
     @Override
     public String toString() {
         return "Cuenta{" +
@@ -61,6 +70,7 @@ public class Cuenta implements Serializable {
                 ", idCliente=" + idCliente +
                 ", saldo=" + saldo +
                 ", tipoCuenta='" + tipoCuenta + '\'' +
+                ", version=" + version +
                 '}';
     }
 }
\ No newline at end of file
@@ -11,11 +11,14 @@ public enum EstadoOperacion {
     TRANSACCION_PENDIENTE, // Para transacciones que podrían tomar más tiempo o están en espera
     TRANSACCION_CONFIRMADA,
     TRANSACCION_FALLIDA,
+    SERVIDOR_OCUPADO, // Rechazada por sobrecarga sin ejecutarse; datos = ms sugeridos antes de reintentar (Long)
 
     // Estados para transacciones distribuidas
     DEBITO_PREPARADO_OK, // Worker Origen: Saldo validado, monto retenido/debitado provisionalmente
     DEBITO_CONFIRMADO_OK, // Worker Origen: Débito finalizado
     DEBITO_REVERTIDO_OK, // Worker Origen: Débito provisional revertido
+    CREDITO_PREPARADO_OK, // Worker Destino: La cuenta existe y puede recibir el crédito
     CREDITO_APLICADO_OK, // Worker Destino: Crédito aplicado
+    CREDITO_REVERTIDO_OK, // Worker Destino: Crédito deshecho
     REPLICA_ACTUALIZADA_OK // Worker Réplica: Actualización de saldo aplicada
 }
\ No newline at end of file
@@ -0,0 +1,99 @@
+package commons;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+/**
+ * Envía y recibe Solicitud/Respuesta por un socket, con ProtocoloBinario o con la
+ * serialización de Java de siempre.
+ * Quien abre la conexión (conectar) usa el protocolo de "banco.protocolo"
+ * ("binario" por defecto, o "java"); quien la acepta (aceptar) mira los primeros
+ * bytes y contesta con el mismo, así un cliente o worker que aún habla Java sigue
+ * funcionando contra un servidor nuevo.
+ * escribir se puede llamar desde varios hilos; leer solo desde uno.
+ */
+public class FlujoMensajes implements Closeable {
+
+    private static final boolean BINARIO = !"java".equalsIgnoreCase(System.getProperty("banco.protocolo", "binario"));
+
+    private final Socket socket;
+    private final ProtocoloBinario protocolo; // null = serialización de Java
+    private final InputStream entrada;
+    private final OutputStream salida;
+    private final ObjectOutputStream oos;
+    private final ObjectInputStream ois;
+
+    private FlujoMensajes(Socket socket, boolean binario, boolean iniciaConexion, InputStream entrada)
+            throws IOException {
+        this.socket = socket;
+        this.entrada = entrada;
+        this.salida = socket.getOutputStream();
+        if (binario) {
+            this.protocolo = new ProtocoloBinario(iniciaConexion);
+            this.oos = null;
+            this.ois = null;
+        } else {
+            this.protocolo = null;
+            // OOS antes que OIS: el constructor de OIS espera la cabecera del otro lado
+            this.oos = new ObjectOutputStream(salida);
+            this.ois = new ObjectInputStream(entrada);
+        }
+    }
+
+    /** Para el lado que abre la conexión. */
+    public static FlujoMensajes conectar(Socket socket) throws IOException {
+        return new FlujoMensajes(socket, BINARIO, true,
+                BINARIO ? new BufferedInputStream(socket.getInputStream()) : socket.getInputStream());
+    }
+
+    /** Para el lado que acepta la conexión: bloquea hasta recibir los primeros bytes del otro. */
+    public static FlujoMensajes aceptar(Socket socket) throws IOException {
+        BufferedInputStream entrada = new BufferedInputStream(socket.getInputStream());
+        entrada.mark(4);
+        byte[] cabecera = entrada.readNBytes(4);
+        boolean binario = cabecera.length == 4 && ProtocoloBinario.leerEntero32(cabecera, 0) == ProtocoloBinario.MAGIA;
+        if (!binario) {
+            entrada.reset(); // Era la cabecera de ObjectOutputStream: que la lea ObjectInputStream
+        }
+        return new FlujoMensajes(socket, binario, false, entrada);
+    }
+
+    public void escribir(Object mensaje) throws IOException {
+        synchronized (salida) {
+            if (protocolo != null) {
+                int longitud = protocolo.codificar(mensaje);
+                salida.write(protocolo.getTrama(), 0, longitud); // Una sola escritura por trama
+                salida.flush();
+            } else {
+                oos.writeObject(mensaje);
+                // Sin reset, el stream guardaría una referencia a cada objeto enviado
+                oos.reset();
+                oos.flush();
+            }
+        }
+    }
+
+    public Object leer() throws IOException, ClassNotFoundException {
+        return protocolo != null ? protocolo.leer(entrada) : ois.readObject();
+    }
+
+    public boolean isBinario() {
+        return protocolo != null;
+    }
+
+    public Socket getSocket() {
+        return socket;
+    }
+
+    /** Cierra el socket (y con él los streams). */
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
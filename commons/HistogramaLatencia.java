@@ -0,0 +1,84 @@
+package commons;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histograma de latencias al estilo HDR: cubetas log-lineales con
+ * SUBCUBETAS/2 divisiones por potencia de 2, así cualquier percentil tiene un
+ * error relativo menor de 2/SUBCUBETAS (1,6%) sin guardar cada muestra.
+ * Registrar no bloquea (contadores atómicos) y el tamaño es fijo. Acumula desde
+ * que se creó; los percentiles se calculan al leerlos.
+ */
+public class HistogramaLatencia {
+
+    private static final int BITS_SUBCUBETA = 7;
+    private static final int SUBCUBETAS = 1 << BITS_SUBCUBETA;
+    private static final int MITAD = SUBCUBETAS / 2;
+    private static final long MAX_NS = (1L << 45) - 1; // ~9,7 horas; lo que pase de ahí cuenta como esto
+    private static final int NUM_CUBETAS = indice(MAX_NS) + 1;
+
+    private final AtomicLongArray cuentas = new AtomicLongArray(NUM_CUBETAS);
+    private final LongAdder total = new LongAdder();
+    private final LongAdder sumaNs = new LongAdder();
+    private final AtomicLong maxNs = new AtomicLong();
+
+    public void registrar(long latenciaNs) {
+        long v = Math.min(Math.max(latenciaNs, 0), MAX_NS);
+        cuentas.incrementAndGet(indice(v));
+        total.increment();
+        sumaNs.add(v);
+        maxNs.accumulateAndGet(v, Math::max);
+    }
+
+    public long getCuenta() {
+        return total.sum();
+    }
+
+    public long getSumaNs() {
+        return sumaNs.sum();
+    }
+
+    public long getMaxNs() {
+        return maxNs.get();
+    }
+
+    /** Latencia (ns) por debajo de la cual queda la fracción p (0..1) de las muestras; 0 si no hay. */
+    public long percentilNs(double p) {
+        long[] copia = new long[NUM_CUBETAS];
+        long n = 0;
+        for (int i = 0; i < NUM_CUBETAS; i++) {
+            copia[i] = cuentas.get(i);
+            n += copia[i];
+        }
+        if (n == 0) {
+            return 0;
+        }
+        long objetivo = Math.max(1, (long) Math.ceil(p * n));
+        long acumulado = 0;
+        for (int i = 0; i < NUM_CUBETAS; i++) {
+            acumulado += copia[i];
+            if (acumulado >= objetivo) {
+                return Math.min(maximoDeCubeta(i), getMaxNs());
+            }
+        }
+        return getMaxNs();
+    }
+
+    // Los valores < SUBCUBETAS van a su propia cubeta; el resto se quedan con sus
+    // BITS_SUBCUBETA bits más altos (el primero siempre es 1, de ahí MITAD por magnitud)
+    private static int indice(long v) {
+        int magnitud = Math.max(0, 64 - Long.numberOfLeadingZeros(v) - BITS_SUBCUBETA);
+        return (magnitud * MITAD) + (int) (v >>> magnitud);
+    }
+
+    private static long maximoDeCubeta(int i) {
+        if (i < SUBCUBETAS) {
+            return i;
+        }
+        int magnitud = i / MITAD - 1;
+        long sub = i - (long) magnitud * MITAD;
+        return ((sub + 1) << magnitud) - 1;
+    }
+}
@@ -0,0 +1,240 @@
+package commons;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Lista de Cuentas o Clientes guardada en un archivo binario compacto en lugar
+ * de en memoria. Recorrerla lee el archivo; get(i) también, así que es O(n).
+ * Al serializarse (ej. dentro de un MensajeWorker) copia el archivo tal cual al
+ * stream, sin crear los objetos en quien la envía; quien la recibe obtiene un
+ * ArrayList normal con los registros.
+ * Formato: tipo (byte), número de registros (int) y después
+ * - Cuentas: tabla de tipos de cuenta (short + UTF cada uno) y por registro
+ * id (int), idCliente (int), saldo (double) e índice del tipo (short, -1 = null).
+ * - Clientes: por registro id (int), nombre, email y teléfono (UTF).
+ */
+public class ImagenParticion extends AbstractList<Serializable> implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public static final byte TIPO_CUENTAS = 1;
+    public static final byte TIPO_CLIENTES = 2;
+    private static final int BYTES_POR_CUENTA = 18;
+
+    private final transient Path archivo;
+    private final transient int numRegistros;
+    private transient List<Serializable> recibidos; // Solo en quien la deserializa
+
+    public ImagenParticion(Path archivo, int numRegistros) {
+        this.archivo = archivo;
+        this.numRegistros = numRegistros;
+    }
+
+    /** Escribe los registros (todos Cuenta o todos Cliente) en el archivo. Devuelve cuántos escribió. */
+    public static int escribir(Path archivo, byte tipo, List<? extends Serializable> registros) throws IOException {
+        ByteArrayOutputStream cabecera = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(cabecera);
+        out.writeByte(tipo);
+        out.writeInt(registros.size());
+        if (tipo == TIPO_CLIENTES) {
+            for (Serializable r : registros) {
+                Cliente c = (Cliente) r;
+                out.writeInt(c.getIdCliente());
+                out.writeUTF(c.getNombre() == null ? "" : c.getNombre());
+                out.writeUTF(c.getEmail() == null ? "" : c.getEmail());
+                out.writeUTF(c.getTelefono() == null ? "" : c.getTelefono());
+            }
+            Files.write(archivo, cabecera.toByteArray());
+            return registros.size();
+        }
+        List<String> tipos = new ArrayList<>();
+        for (Serializable r : registros) {
+            String t = ((Cuenta) r).getTipoCuenta();
+            if (t != null && !tipos.contains(t)) {
+                tipos.add(t);
+            }
+        }
+        out.writeShort(tipos.size());
+        for (String t : tipos) {
+            out.writeUTF(t);
+        }
+        // Las cuentas son registros de tamaño fijo: se arman directamente en un buffer
+        try (FileChannel canal = FileChannel.open(archivo, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+            buffer.put(cabecera.toByteArray());
+            String ultimoTipo = null;
+            short ultimoIndice = -1;
+            for (Serializable r : registros) {
+                Cuenta c = (Cuenta) r;
+                if (buffer.remaining() < BYTES_POR_CUENTA) {
+                    vaciar(canal, buffer);
+                }
+                String t = c.getTipoCuenta();
+                if (t != ultimoTipo) {
+                    ultimoTipo = t;
+                    ultimoIndice = (short) (t == null ? -1 : tipos.indexOf(t));
+                }
+                buffer.putInt(c.getIdCuenta()).putInt(c.getIdCliente()).putDouble(c.getSaldo()).putShort(ultimoIndice);
+            }
+            vaciar(canal, buffer);
+        }
+        return registros.size();
+    }
+
+    private static void vaciar(FileChannel canal, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            canal.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    @Override
+    public int size() {
+        return recibidos != null ? recibidos.size() : numRegistros;
+    }
+
+    @Override
+    public Serializable get(int indice) {
+        if (recibidos != null) {
+            return recibidos.get(indice);
+        }
+        if (indice < 0 || indice >= numRegistros) {
+            throw new IndexOutOfBoundsException(indice);
+        }
+        Iterator<Serializable> it = iterator();
+        for (int i = 0; i < indice; i++) {
+            it.next();
+        }
+        return it.next();
+    }
+
+    @Override
+    public Iterator<Serializable> iterator() {
+        if (recibidos != null) {
+            return recibidos.iterator();
+        }
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(archivo), 64 * 1024));
+            Lector lector = new Lector(in);
+            return new Iterator<>() {
+                private int leidos = 0;
+
+                @Override
+                public boolean hasNext() {
+                    if (leidos < lector.total) {
+                        return true;
+                    }
+                    cerrar(in);
+                    return false;
+                }
+
+                @Override
+                public Serializable next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    try {
+                        leidos++;
+                        return lector.siguiente();
+                    } catch (IOException e) {
+                        cerrar(in);
+                        throw new UncheckedIOException(e);
+                    }
+                }
+            };
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void cerrar(InputStream in) {
+        try {
+            in.close();
+        } catch (IOException e) {
+            /* Silenciado */ }
+    }
+
+    // Lee registros del formato desde cualquier DataInput (archivo o ObjectInputStream)
+    private static final class Lector {
+        private final DataInput in;
+        private final byte tipo;
+        private final int total;
+        private final String[] tiposCuenta;
+
+        Lector(DataInput in) throws IOException {
+            this.in = in;
+            this.tipo = in.readByte();
+            this.total = in.readInt();
+            if (tipo == TIPO_CUENTAS) {
+                tiposCuenta = new String[in.readShort()];
+                for (int i = 0; i < tiposCuenta.length; i++) {
+                    tiposCuenta[i] = in.readUTF();
+                }
+            } else if (tipo == TIPO_CLIENTES) {
+                tiposCuenta = null;
+            } else {
+                throw new IOException("Tipo de imagen de partición desconocido: " + tipo);
+            }
+        }
+
+        Serializable siguiente() throws IOException {
+            if (tipo == TIPO_CUENTAS) {
+                int id = in.readInt();
+                int idCliente = in.readInt();
+                double saldo = in.readDouble();
+                short t = in.readShort();
+                return new Cuenta(id, idCliente, saldo, t < 0 ? null : tiposCuenta[t]);
+            }
+            return new Cliente(in.readInt(), in.readUTF(), in.readUTF(), in.readUTF());
+        }
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        out.writeLong(Files.size(archivo));
+        try (InputStream in = Files.newInputStream(archivo)) {
+            in.transferTo(out);
+        }
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        long bytes = in.readLong();
+        if (bytes == 0) {
+            throw new EOFException("Imagen de partición vacía");
+        }
+        Lector lector = new Lector(in);
+        List<Serializable> registros = new ArrayList<>(lector.total);
+        for (int i = 0; i < lector.total; i++) {
+            registros.add(lector.siguiente());
+        }
+        this.recibidos = registros;
+    }
+
+    // Quien la recibe trabaja con una lista normal
+    private Object readResolve() {
+        return new ArrayList<>(recibidos);
+    }
+}
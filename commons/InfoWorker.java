@@ -13,8 +13,9 @@ public class InfoWorker implements Serializable {
     private transient Socket socketConexionInicial; // Socket de la conexión de registro, no serializar para evitar
                                                     // problemas.
     // Usar transient y manejar su ciclo de vida si es para heartbeats.
-    private long ultimoHeartbeat;
-    private boolean activo;
+    // Los escribe el hilo de heartbeats y el DetectorFallos; los leen los manejadores
+    private volatile long ultimoHeartbeat;
+    private volatile boolean activo;
 
     public InfoWorker(String workerId, String host, int puertoTareas, List<String> particiones,
             Socket socketConexionInicial) {
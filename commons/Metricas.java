@@ -0,0 +1,189 @@
+package commons;
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Registro de métricas del proceso (Servidor Central o worker) que ServidorMetricas
+ * publica en formato de texto de Prometheus.
+ * - Latencias: HistogramaLatencia por serie (nombre + etiquetas), exportados como
+ * summary con cuantiles, _sum y _count, más un _max aparte.
+ * - Contadores: LongAdder por serie.
+ * - Fuentes: las clases que ya llevan sus propias métricas (CacheSaldos,
+ * ControlAdmision...) registran una Fuente que las vuelca al exportar.
+ * Las etiquetas se pasan como pares nombre, valor.
+ */
+public class Metricas {
+
+    /** Vuelca métricas propias en cada exportación. */
+    public interface Fuente {
+        void exportar(Salida salida);
+    }
+
+    private record Serie(String nombre, String etiquetas) {
+    }
+
+    private static final double[] CUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+    private static final ConcurrentHashMap<Serie, HistogramaLatencia> histogramas = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<Serie, LongAdder> contadores = new ConcurrentHashMap<>();
+    private static final List<Fuente> fuentes = new CopyOnWriteArrayList<>();
+
+    public static void registrarLatencia(String nombre, long latenciaNs, String... etiquetas) {
+        histogramas.computeIfAbsent(new Serie(nombre, formatear(etiquetas)), _ -> new HistogramaLatencia())
+                .registrar(latenciaNs);
+    }
+
+    public static void contar(String nombre, String... etiquetas) {
+        contadores.computeIfAbsent(new Serie(nombre, formatear(etiquetas)), _ -> new LongAdder()).increment();
+    }
+
+    public static void registrarFuente(Fuente fuente) {
+        fuentes.add(fuente);
+    }
+
+    /**
+     * Una solicitud de tipo terminó con estado tras latenciaNs: alimenta
+     * &lt;metrica&gt;_segundos{tipo}, &lt;metrica&gt;_total{tipo,estado} y, si fue
+     * un error, &lt;metrica&gt;_errores_total{tipo}.
+     */
+    public static void registrarSolicitud(String metrica, TipoOperacion tipo, EstadoOperacion estado,
+            long latenciaNs) {
+        String nombreTipo = String.valueOf(tipo);
+        registrarLatencia(metrica + "_segundos", latenciaNs, "tipo", nombreTipo);
+        contar(metrica + "_total", "tipo", nombreTipo, "estado", String.valueOf(estado));
+        if (esError(estado)) {
+            contar(metrica + "_errores_total", "tipo", nombreTipo);
+        }
+    }
+
+    /**
+     * Una llamada a otro worker (o del Servidor Central a un worker) terminó con
+     * resultado ("ok", "error", "fallo", "cancelada"...): alimenta
+     * banco_llamada_worker_segundos{worker,fase}, banco_fase_segundos{fase} y
+     * banco_llamada_worker_total{worker,fase,resultado}. Las llamadas que no
+     * llegaron a salir se registran con latenciaNs &lt; 0 y solo cuentan.
+     */
+    public static void registrarLlamadaWorker(String workerId, TipoOperacion tipo, String resultado,
+            long latenciaNs) {
+        String fase = fase(tipo);
+        if (latenciaNs >= 0) {
+            registrarLatencia("banco_llamada_worker_segundos", latenciaNs, "worker", workerId, "fase", fase);
+            registrarLatencia("banco_fase_segundos", latenciaNs, "fase", fase);
+        }
+        contar("banco_llamada_worker_total", "worker", workerId, "fase", fase, "resultado", resultado);
+    }
+
+    /** Fase de una transferencia a la que pertenece una sub-operación. */
+    public static String fase(TipoOperacion tipo) {
+        if (tipo == null) {
+            return "desconocida";
+        }
+        return switch (tipo) {
+            case PREPARAR_DEBITO, PREPARAR_CREDITO -> "preparar";
+            case APLICAR_CREDITO -> "acreditar";
+            case CONFIRMAR_DEBITO -> "confirmar";
+            case ACTUALIZAR_SALDO_REPLICA, ACTUALIZAR_SALDOS_REPLICA -> "replicar";
+            case CANCELAR_DEBITO, REVERTIR_DEBITO, REVERTIR_CREDITO -> "compensar";
+            default -> tipo.name().toLowerCase();
+        };
+    }
+
+    public static boolean esError(EstadoOperacion estado) {
+        return estado == null || estado.name().startsWith("ERROR_") || estado == EstadoOperacion.TRANSACCION_FALLIDA;
+    }
+
+    /** Todas las métricas en formato de texto de Prometheus (versión 0.0.4). */
+    public static String exportar() {
+        Salida salida = new Salida();
+        for (Map.Entry<Serie, HistogramaLatencia> e : histogramas.entrySet()) {
+            salida.resumen(e.getKey().nombre(), e.getKey().etiquetas(), e.getValue());
+        }
+        for (Map.Entry<Serie, LongAdder> e : contadores.entrySet()) {
+            salida.linea(e.getKey().nombre(), "counter", e.getKey().nombre(), e.getKey().etiquetas(),
+                    e.getValue().sum());
+        }
+        for (Fuente fuente : fuentes) {
+            try {
+                fuente.exportar(salida);
+            } catch (RuntimeException ex) {
+                System.err.println("Metricas: Error en una fuente de métricas: " + ex);
+            }
+        }
+        return salida.texto();
+    }
+
+    /** Acumula las líneas agrupadas por familia (Prometheus no admite una familia partida). */
+    public static class Salida {
+        private final Map<String, StringBuilder> familias = new TreeMap<>();
+
+        public void medidor(String nombre, double valor, String... etiquetas) {
+            linea(nombre, "gauge", nombre, formatear(etiquetas), valor);
+        }
+
+        public void contador(String nombre, double valor, String... etiquetas) {
+            linea(nombre, "counter", nombre, formatear(etiquetas), valor);
+        }
+
+        void resumen(String nombre, String etiquetas, HistogramaLatencia h) {
+            for (double q : CUANTILES) {
+                String conCuantil = (etiquetas.isEmpty() ? "" : etiquetas + ",") + "quantile=\"" + q + "\"";
+                linea(nombre, "summary", nombre, conCuantil, h.percentilNs(q) / 1e9);
+            }
+            linea(nombre, "summary", nombre + "_sum", etiquetas, h.getSumaNs() / 1e9);
+            linea(nombre, "summary", nombre + "_count", etiquetas, h.getCuenta());
+            linea(nombre + "_max", "gauge", nombre + "_max", etiquetas, h.getMaxNs() / 1e9);
+        }
+
+        void linea(String familia, String tipo, String nombre, String etiquetas, double valor) {
+            StringBuilder sb = familias.computeIfAbsent(familia,
+                    f -> new StringBuilder("# TYPE ").append(f).append(' ').append(tipo).append('\n'));
+            sb.append(nombre);
+            if (!etiquetas.isEmpty()) {
+                sb.append('{').append(etiquetas).append('}');
+            }
+            sb.append(' ');
+            if (valor == Math.rint(valor) && Math.abs(valor) < 1e15) {
+                sb.append((long) valor);
+            } else {
+                sb.append(valor);
+            }
+            sb.append('\n');
+        }
+
+        String texto() {
+            StringBuilder sb = new StringBuilder();
+            familias.values().forEach(sb::append);
+            return sb.toString();
+        }
+    }
+
+    private static String formatear(String[] etiquetas) {
+        if (etiquetas.length == 0) {
+            return "";
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i + 1 < etiquetas.length; i += 2) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(etiquetas[i]).append("=\"");
+            String valor = String.valueOf(etiquetas[i + 1]);
+            for (int j = 0; j < valor.length(); j++) {
+                char c = valor.charAt(j);
+                switch (c) {
+                    case '\\' -> sb.append("\\\\");
+                    case '"' -> sb.append("\\\"");
+                    case '\n' -> sb.append("\\n");
+                    default -> sb.append(c);
+                }
+            }
+            sb.append('"');
+        }
+        return sb.toString();
+    }
+}
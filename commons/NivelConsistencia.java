@@ -0,0 +1,11 @@
+package commons;
+
+/**
+ * Consistencia que pide un cliente para CONSULTAR_SALDO (parámetro "CONSISTENCIA";
+ * sin él, LINEALIZABLE).
+ */
+public enum NivelConsistencia {
+    LINEALIZABLE, // Refleja todas las transferencias confirmadas
+    LEER_MIS_ESCRITURAS, // Refleja al menos "VERSION_MINIMA" (Long), la versión que devolvió la última transferencia del cliente
+    ANTIGUEDAD_ACOTADA // Puede ir atrasado como mucho "ANTIGUEDAD_MAX_MS" (Long)
+}
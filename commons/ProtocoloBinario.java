@@ -0,0 +1,597 @@
+package commons;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.NotSerializableException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Codificación binaria de Solicitud y Respuesta para los sockets, en lugar de la
+ * serialización de Java (ver FlujoMensajes).
+ * Cada mensaje es una trama [longitud int][SOLICITUD|RESPUESTA][cuerpo]:
+ * - Solicitud: tipoOperacion (byte), idSolicitud (varint) y los parámetros como
+ * pares nombre/valor.
+ * - Respuesta: estado (byte), idSolicitud, mensaje y datos.
+ * Cada valor lleva una etiqueta de tipo: int y long van en varint zigzag, double
+ * en 8 bytes, los enums en su ordinal, y Cuenta, Cliente y Transferencia campo a
+ * campo. Los nombres de parámetro y demás textos de TEXTOS van como un byte. Lo
+ * que no tiene etiqueta se manda serializado con Java dentro de la trama.
+ * TEXTOS y el orden de los enums forman parte del protocolo: solo se añade al
+ * final, y si algo cambia hay que subir la versión de MAGIA.
+ * Los buffers se reutilizan entre mensajes: una instancia la usan a la vez como
+ * mucho un hilo que escribe y otro que lee.
+ */
+public class ProtocoloBinario {
+
+    /** Primeros 4 bytes que envía quien abre la conexión: "BNC" y la versión. */
+    public static final int MAGIA = 0x424E4302;
+    private static final int MAX_TRAMA = Integer.getInteger("banco.protocolo.maxTrama", 64 << 20);
+
+    private static final byte SOLICITUD = 1;
+    private static final byte RESPUESTA = 2;
+
+    // Etiquetas de valor
+    private static final byte NULO = 0;
+    private static final byte ENTERO = 1;
+    private static final byte LARGO = 2;
+    private static final byte DOBLE = 3;
+    private static final byte FALSO = 4;
+    private static final byte VERDADERO = 5;
+    private static final byte TEXTO = 6;
+    private static final byte TEXTO_CONOCIDO = 7;
+    private static final byte ESTADO = 8;
+    private static final byte CONSISTENCIA = 9;
+    private static final byte TIPO_OPERACION = 10;
+    private static final byte LISTA = 11;
+    private static final byte MAPA = 12;
+    private static final byte ENTEROS = 13;
+    private static final byte DOBLES = 14;
+    private static final byte ESTADOS = 15;
+    private static final byte CUENTA = 16;
+    private static final byte CLIENTE = 17;
+    private static final byte TRANSFERENCIA = 18;
+    private static final byte SOLICITUD_ANIDADA = 19;
+    private static final byte RESPUESTA_ANIDADA = 20;
+    private static final byte SERIALIZADO = 21;
+
+    private static final String[] TEXTOS = {
+            // Parámetros de Solicitud
+            "ID_CUENTA", "ID_CUENTA_ORIGEN", "ID_CUENTA_DESTINO", "MONTO", "ID_TRANSACCION_GLOBAL", "ID_PARTICION",
+            "ID_PARTICION_ORIGEN", "ID_PARTICION_DESTINO", "ID_PARTICION_ORIGINAL", "ID_PARTICION_NUEVA",
+            "ID_CUENTA_CORTE", "ID_CUENTAS", "IMPORTES", "NUEVO_SALDO", "SALDOS", "VERSION", "VERSIONES",
+            "VERSION_MINIMA", "CONSISTENCIA", "ANTIGUEDAD_MAX_MS", "CADENAS", "RETENER",
+            "PASO_APLICADO", "ESTADO_PASO", "TRANSFERENCIAS", "DATOS", "PARTICION_BAJA", "PARTICION_ALTA",
+            // Claves de los datos de Respuesta
+            "nuevoSaldoOrigen", "nuevoSaldoDestino", "saldoActualOrigen", "saldoActualDestino", "versionOrigen",
+            "versionDestino", "workerIdProcesador", "replicasConfirmadas", "resultados", "saldos", "versiones",
+            "cuentasBaja", "cuentasAlta",
+            // Pasos de una transferencia (valores de PASO_APLICADO)
+            "PREPARAR_DEBITO", "CONFIRMAR_DEBITO", "CANCELAR_DEBITO", "REVERTIR_DEBITO", "PREPARAR_CREDITO",
+            "APLICAR_CREDITO", "REVERTIR_CREDITO",
+            // Pasos de transferencia dentro de APLICAR_MOVIMIENTOS
+            "ID_TRANSACCIONES", "PASO", "PASOS_APLICADOS", "pasosAplicados" };
+    private static final Map<String, Integer> INDICE_TEXTOS = new HashMap<>();
+    private static final EstadoOperacion[] ESTADOS_OPERACION = EstadoOperacion.values();
+    private static final NivelConsistencia[] NIVELES_CONSISTENCIA = NivelConsistencia.values();
+    private static final TipoOperacion[] TIPOS_OPERACION = TipoOperacion.values();
+
+    static {
+        for (int i = 0; i < TEXTOS.length; i++) {
+            INDICE_TEXTOS.put(TEXTOS[i], i);
+        }
+    }
+
+    private boolean magiaPendiente;
+    private byte[] salida = new byte[512];
+    private int posSalida;
+    private byte[] entrada = new byte[512];
+    private int posEntrada;
+    private int finEntrada;
+
+    /** Con iniciaConexion la primera trama que se codifique irá precedida de MAGIA. */
+    public ProtocoloBinario(boolean iniciaConexion) {
+        this.magiaPendiente = iniciaConexion;
+    }
+
+    /**
+     * Codifica una Solicitud o Respuesta en el buffer de salida (ver getTrama) y
+     * devuelve cuántos bytes ocupa, cabecera incluida.
+     */
+    public int codificar(Object mensaje) throws IOException {
+        posSalida = 0;
+        if (magiaPendiente) {
+            escribirEntero32(MAGIA);
+            magiaPendiente = false;
+        }
+        int inicioTrama = posSalida;
+        posSalida += 4;
+        if (mensaje instanceof Solicitud s) {
+            escribirByte(SOLICITUD);
+            escribirSolicitud(s);
+        } else if (mensaje instanceof Respuesta r) {
+            escribirByte(RESPUESTA);
+            escribirRespuesta(r);
+        } else {
+            throw new NotSerializableException("Solo se envían Solicitud y Respuesta: "
+                    + (mensaje == null ? "null" : mensaje.getClass().getName()));
+        }
+        int longitud = posSalida - inicioTrama - 4;
+        int fin = posSalida;
+        posSalida = inicioTrama;
+        escribirEntero32(longitud);
+        posSalida = fin;
+        return fin;
+    }
+
+    /** Buffer con lo último que se codificó; válido hasta el siguiente codificar. */
+    public byte[] getTrama() {
+        return salida;
+    }
+
+    /** Lee una trama completa del stream y la decodifica. */
+    public Object leer(InputStream in) throws IOException {
+        if (!leerCompleto(in, 0, 4)) {
+            throw new EOFException("Conexión cerrada");
+        }
+        int longitud = leerEntero32(entrada, 0);
+        if (longitud < 0 || longitud > MAX_TRAMA) {
+            throw new StreamCorruptedException("Trama de " + longitud + " bytes (máximo " + MAX_TRAMA + ")");
+        }
+        asegurarEntrada(longitud);
+        if (!leerCompleto(in, 0, longitud)) {
+            throw new EOFException("Conexión cerrada a mitad de trama");
+        }
+        return decodificar(entrada, longitud);
+    }
+
+    /** Decodifica el cuerpo de una trama (lo que va tras su longitud). */
+    public Object decodificar(byte[] datos, int longitud) throws IOException {
+        byte[] propio = entrada;
+        entrada = datos;
+        posEntrada = 0;
+        finEntrada = longitud;
+        try {
+            byte clase = leerByte();
+            Object mensaje = switch (clase) {
+                case SOLICITUD -> leerSolicitud();
+                case RESPUESTA -> leerRespuesta();
+                default -> throw new StreamCorruptedException("Tipo de trama desconocido: " + clase);
+            };
+            if (posEntrada != finEntrada) {
+                throw new StreamCorruptedException("Sobran " + (finEntrada - posEntrada) + " bytes en la trama");
+            }
+            return mensaje;
+        } finally {
+            entrada = propio;
+        }
+    }
+
+    public static int leerEntero32(byte[] b, int desde) {
+        return ((b[desde] & 0xFF) << 24) | ((b[desde + 1] & 0xFF) << 16) | ((b[desde + 2] & 0xFF) << 8)
+                | (b[desde + 3] & 0xFF);
+    }
+
+    // --- Escritura ---
+
+    private void escribirSolicitud(Solicitud s) throws IOException {
+        escribirOrdinal(s.getTipoOperacion());
+        escribirVarLong(s.getIdSolicitud());
+        Map<String, Object> parametros = s.getParametros();
+        if (parametros == null) {
+            escribirVarInt(0);
+            return;
+        }
+        escribirVarInt(parametros.size() + 1); // 0 = sin mapa
+        for (Map.Entry<String, Object> p : parametros.entrySet()) {
+            escribirTexto(p.getKey());
+            escribirValor(p.getValue());
+        }
+    }
+
+    private void escribirRespuesta(Respuesta r) throws IOException {
+        escribirOrdinal(r.getEstado());
+        escribirVarLong(r.getIdSolicitud());
+        escribirValor(r.getMensaje());
+        escribirValor(r.getDatos());
+    }
+
+    private void escribirValor(Object v) throws IOException {
+        if (v == null) {
+            escribirByte(NULO);
+        } else if (v instanceof Integer i) {
+            escribirByte(ENTERO);
+            escribirVarLong(i);
+        } else if (v instanceof Long l) {
+            escribirByte(LARGO);
+            escribirVarLong(l);
+        } else if (v instanceof Double d) {
+            escribirByte(DOBLE);
+            escribirDoble(d);
+        } else if (v instanceof Boolean b) {
+            escribirByte(b ? VERDADERO : FALSO);
+        } else if (v instanceof String s) {
+            escribirTexto(s);
+        } else if (v instanceof EstadoOperacion e) {
+            escribirByte(ESTADO);
+            escribirByte((byte) e.ordinal());
+        } else if (v instanceof NivelConsistencia n) {
+            escribirByte(CONSISTENCIA);
+            escribirByte((byte) n.ordinal());
+        } else if (v instanceof TipoOperacion t) {
+            escribirByte(TIPO_OPERACION);
+            escribirByte((byte) t.ordinal());
+        } else if (v instanceof Map<?, ?> m) {
+            escribirByte(MAPA);
+            escribirVarInt(m.size());
+            for (Map.Entry<?, ?> e : m.entrySet()) {
+                escribirValor(e.getKey());
+                escribirValor(e.getValue());
+            }
+        } else if (v instanceof List<?> l) {
+            escribirByte(LISTA);
+            escribirVarInt(l.size());
+            for (Object o : l) {
+                escribirValor(o);
+            }
+        } else if (v instanceof int[] a) {
+            escribirByte(ENTEROS);
+            escribirVarInt(a.length);
+            for (int x : a) {
+                escribirVarLong(x);
+            }
+        } else if (v instanceof double[] a) {
+            escribirByte(DOBLES);
+            escribirVarInt(a.length);
+            for (double x : a) {
+                escribirDoble(x);
+            }
+        } else if (v instanceof EstadoOperacion[] a) {
+            escribirByte(ESTADOS);
+            escribirVarInt(a.length);
+            for (EstadoOperacion e : a) {
+                escribirOrdinal(e);
+            }
+        } else if (v instanceof Cuenta c) {
+            escribirByte(CUENTA);
+            escribirVarLong(c.getIdCuenta());
+            escribirVarLong(c.getIdCliente());
+            escribirDoble(c.getSaldo());
+            escribirValor(c.getTipoCuenta());
+            escribirVarLong(c.getVersion());
+        } else if (v instanceof Cliente c) {
+            escribirByte(CLIENTE);
+            escribirVarLong(c.getIdCliente());
+            escribirValor(c.getNombre());
+            escribirValor(c.getEmail());
+            escribirValor(c.getTelefono());
+        } else if (v instanceof Transferencia t) {
+            escribirByte(TRANSFERENCIA);
+            escribirVarLong(t.getIdCuentaOrigen());
+            escribirVarLong(t.getIdCuentaDestino());
+            escribirDoble(t.getMonto());
+        } else if (v instanceof Solicitud s) {
+            escribirByte(SOLICITUD_ANIDADA);
+            escribirSolicitud(s);
+        } else if (v instanceof Respuesta r) {
+            escribirByte(RESPUESTA_ANIDADA);
+            escribirRespuesta(r);
+        } else if (v instanceof Serializable) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (ObjectOutputStream oos = new ObjectOutputStream(bytes)) {
+                oos.writeObject(v);
+            }
+            escribirByte(SERIALIZADO);
+            escribirVarInt(bytes.size());
+            asegurarSalida(bytes.size());
+            System.arraycopy(bytes.toByteArray(), 0, salida, posSalida, bytes.size());
+            posSalida += bytes.size();
+        } else {
+            throw new NotSerializableException(v.getClass().getName());
+        }
+    }
+
+    private void escribirTexto(String s) {
+        Integer conocido = INDICE_TEXTOS.get(s);
+        if (conocido != null) {
+            escribirByte(TEXTO_CONOCIDO);
+            escribirByte((byte) (int) conocido);
+            return;
+        }
+        escribirByte(TEXTO);
+        int n = s.length();
+        boolean ascii = true;
+        for (int i = 0; i < n && ascii; i++) {
+            ascii = s.charAt(i) < 0x80;
+        }
+        if (ascii) {
+            escribirVarInt(n);
+            asegurarSalida(n);
+            for (int i = 0; i < n; i++) {
+                salida[posSalida++] = (byte) s.charAt(i);
+            }
+        } else {
+            byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+            escribirVarInt(utf8.length);
+            asegurarSalida(utf8.length);
+            System.arraycopy(utf8, 0, salida, posSalida, utf8.length);
+            posSalida += utf8.length;
+        }
+    }
+
+    private void escribirOrdinal(Enum<?> e) {
+        escribirByte(e == null ? (byte) -1 : (byte) e.ordinal());
+    }
+
+    private void escribirByte(byte b) {
+        asegurarSalida(1);
+        salida[posSalida++] = b;
+    }
+
+    private void escribirEntero32(int v) {
+        asegurarSalida(4);
+        salida[posSalida++] = (byte) (v >>> 24);
+        salida[posSalida++] = (byte) (v >>> 16);
+        salida[posSalida++] = (byte) (v >>> 8);
+        salida[posSalida++] = (byte) v;
+    }
+
+    private void escribirDoble(double d) {
+        long bits = Double.doubleToRawLongBits(d);
+        asegurarSalida(8);
+        for (int desplazamiento = 56; desplazamiento >= 0; desplazamiento -= 8) {
+            salida[posSalida++] = (byte) (bits >>> desplazamiento);
+        }
+    }
+
+    private void escribirVarInt(int v) {
+        escribirVarSinSigno(v & 0xFFFFFFFFL);
+    }
+
+    /** Zigzag: los negativos pequeños (ej. ID_TRANSACCION_GLOBAL = -1) también ocupan 1 byte. */
+    private void escribirVarLong(long v) {
+        escribirVarSinSigno((v << 1) ^ (v >> 63));
+    }
+
+    private void escribirVarSinSigno(long v) {
+        asegurarSalida(10);
+        while ((v & ~0x7FL) != 0) {
+            salida[posSalida++] = (byte) ((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        salida[posSalida++] = (byte) v;
+    }
+
+    private void asegurarSalida(int bytes) {
+        if (posSalida + bytes > salida.length) {
+            byte[] mayor = new byte[Math.max(salida.length * 2, posSalida + bytes)];
+            System.arraycopy(salida, 0, mayor, 0, posSalida);
+            salida = mayor;
+        }
+    }
+
+    // --- Lectura ---
+
+    private Solicitud leerSolicitud() throws IOException {
+        Solicitud s = new Solicitud();
+        s.setTipoOperacion(leerEnum(TIPOS_OPERACION));
+        s.setIdSolicitud(leerVarLong());
+        int tamano = leerVarInt() - 1;
+        if (tamano >= 0) {
+            Map<String, Object> parametros = new HashMap<>(Math.max(4, tamano * 2));
+            for (int i = 0; i < tamano; i++) {
+                Object clave = leerValor();
+                if (!(clave instanceof String nombre)) {
+                    throw new StreamCorruptedException("Nombre de parámetro no es texto: " + clave);
+                }
+                parametros.put(nombre, leerValor());
+            }
+            s.setParametros(parametros);
+        }
+        return s;
+    }
+
+    private Respuesta leerRespuesta() throws IOException {
+        Respuesta r = new Respuesta();
+        r.setEstado(leerEnum(ESTADOS_OPERACION));
+        r.setIdSolicitud(leerVarLong());
+        Object mensaje = leerValor();
+        r.setMensaje(mensaje instanceof String s ? s : null);
+        r.setDatos(leerValor());
+        return r;
+    }
+
+    private Object leerValor() throws IOException {
+        byte etiqueta = leerByte();
+        switch (etiqueta) {
+            case NULO:
+                return null;
+            case ENTERO:
+                return (int) leerVarLong();
+            case LARGO:
+                return leerVarLong();
+            case DOBLE:
+                return leerDoble();
+            case FALSO:
+                return Boolean.FALSE;
+            case VERDADERO:
+                return Boolean.TRUE;
+            case TEXTO: {
+                int n = leerVarInt();
+                comprobarDisponibles(n);
+                String s = new String(entrada, posEntrada, n, StandardCharsets.UTF_8);
+                posEntrada += n;
+                return s;
+            }
+            case TEXTO_CONOCIDO: {
+                int i = leerByte() & 0xFF;
+                if (i >= TEXTOS.length) {
+                    throw new StreamCorruptedException("Texto conocido desconocido: " + i);
+                }
+                return TEXTOS[i];
+            }
+            case ESTADO:
+                return leerEnum(ESTADOS_OPERACION);
+            case CONSISTENCIA:
+                return leerEnum(NIVELES_CONSISTENCIA);
+            case TIPO_OPERACION:
+                return leerEnum(TIPOS_OPERACION);
+            case MAPA: {
+                int n = comprobarDisponibles(leerVarInt());
+                // Cada entrada ocupa al menos 2 bytes: no se reserva más de lo que cabe en la trama
+                int capacidad = Math.min(n, (finEntrada - posEntrada) / 2) * 2;
+                // Conserva el orden de iteración del mapa original (ej. un TreeMap)
+                Map<Object, Object> m = new LinkedHashMap<>(Math.max(4, capacidad));
+                for (int i = 0; i < n; i++) {
+                    m.put(leerValor(), leerValor());
+                }
+                return m;
+            }
+            case LISTA: {
+                int n = comprobarDisponibles(leerVarInt());
+                List<Object> l = new ArrayList<>(n);
+                for (int i = 0; i < n; i++) {
+                    l.add(leerValor());
+                }
+                return l;
+            }
+            case ENTEROS: {
+                int[] a = new int[comprobarDisponibles(leerVarInt())];
+                for (int i = 0; i < a.length; i++) {
+                    a[i] = (int) leerVarLong();
+                }
+                return a;
+            }
+            case DOBLES: {
+                double[] a = new double[comprobarDisponibles(leerVarInt())];
+                for (int i = 0; i < a.length; i++) {
+                    a[i] = leerDoble();
+                }
+                return a;
+            }
+            case ESTADOS: {
+                EstadoOperacion[] a = new EstadoOperacion[comprobarDisponibles(leerVarInt())];
+                for (int i = 0; i < a.length; i++) {
+                    a[i] = leerEnum(ESTADOS_OPERACION);
+                }
+                return a;
+            }
+            case CUENTA: {
+                Cuenta c = new Cuenta((int) leerVarLong(), (int) leerVarLong(), leerDoble(), (String) leerValor());
+                c.setVersion(leerVarLong());
+                return c;
+            }
+            case CLIENTE:
+                return new Cliente((int) leerVarLong(), (String) leerValor(), (String) leerValor(),
+                        (String) leerValor());
+            case TRANSFERENCIA:
+                return new Transferencia((int) leerVarLong(), (int) leerVarLong(), leerDoble());
+            case SOLICITUD_ANIDADA:
+                return leerSolicitud();
+            case RESPUESTA_ANIDADA:
+                return leerRespuesta();
+            case SERIALIZADO: {
+                int n = comprobarDisponibles(leerVarInt());
+                try (ObjectInputStream ois = new ObjectInputStream(
+                        new ByteArrayInputStream(entrada, posEntrada, n))) {
+                    posEntrada += n;
+                    return ois.readObject();
+                } catch (ClassNotFoundException e) {
+                    throw new StreamCorruptedException("Clase desconocida en la trama: " + e.getMessage());
+                }
+            }
+            default:
+                throw new StreamCorruptedException("Etiqueta de valor desconocida: " + etiqueta);
+        }
+    }
+
+    private <E extends Enum<E>> E leerEnum(E[] valores) throws IOException {
+        byte ordinal = leerByte();
+        if (ordinal == -1) {
+            return null;
+        }
+        if (ordinal < 0 || ordinal >= valores.length) {
+            throw new StreamCorruptedException("Ordinal " + ordinal + " fuera de "
+                    + valores[0].getDeclaringClass().getSimpleName());
+        }
+        return valores[ordinal];
+    }
+
+    private byte leerByte() throws IOException {
+        comprobarDisponibles(1);
+        return entrada[posEntrada++];
+    }
+
+    private double leerDoble() throws IOException {
+        comprobarDisponibles(8);
+        long bits = 0;
+        for (int i = 0; i < 8; i++) {
+            bits = (bits << 8) | (entrada[posEntrada++] & 0xFF);
+        }
+        return Double.longBitsToDouble(bits);
+    }
+
+    private int leerVarInt() throws IOException {
+        long v = leerVarSinSigno();
+        if (v < 0 || v > Integer.MAX_VALUE) {
+            throw new StreamCorruptedException("Longitud fuera de rango: " + v);
+        }
+        return (int) v;
+    }
+
+    private long leerVarLong() throws IOException {
+        long v = leerVarSinSigno();
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    private long leerVarSinSigno() throws IOException {
+        long v = 0;
+        for (int desplazamiento = 0; desplazamiento < 64; desplazamiento += 7) {
+            byte b = leerByte();
+            v |= (long) (b & 0x7F) << desplazamiento;
+            if (b >= 0) {
+                return v;
+            }
+        }
+        throw new StreamCorruptedException("Varint demasiado largo");
+    }
+
+    /** Falla si en la trama no quedan n bytes (así una longitud corrupta no reserva memoria de más). */
+    private int comprobarDisponibles(int n) throws IOException {
+        if (n < 0 || n > finEntrada - posEntrada) {
+            throw new StreamCorruptedException("Trama truncada: se esperaban " + n + " bytes y quedan "
+                    + (finEntrada - posEntrada));
+        }
+        return n;
+    }
+
+    /** Devuelve false si el stream se acaba antes de leer los n bytes. */
+    private boolean leerCompleto(InputStream in, int desde, int n) throws IOException {
+        int leidos = 0;
+        while (leidos < n) {
+            int r = in.read(entrada, desde + leidos, n - leidos);
+            if (r < 0) {
+                return false;
+            }
+            leidos += r;
+        }
+        return true;
+    }
+
+    private void asegurarEntrada(int bytes) {
+        if (bytes > entrada.length) {
+            entrada = new byte[Math.max(entrada.length * 2, bytes)];
+        }
+    }
+}
@@ -8,6 +8,7 @@ public class Respuesta implements Serializable {
     private EstadoOperacion estado;
     private String mensaje;
     private Object datos; // Para devolver datos específicos de la operación, ej. el saldo
+    private long idSolicitud; // Solicitud a la que responde (0 si no tenía identificador)
 
     public Respuesta() {
     }
@@ -35,6 +36,10 @@ public class Respuesta implements Serializable {
         return datos;
     }
 
+    public long getIdSolicitud() {
+        return idSolicitud;
+    }
+
     // Setters
     public void setEstado(EstadoOperacion estado) {
         this.estado = estado;
@@ -48,12 +53,17 @@ public class Respuesta implements Serializable {
         this.datos = datos;
     }
 
+    public void setIdSolicitud(long idSolicitud) {
+        this.idSolicitud = idSolicitud;
+    }
+
     @Override
     public String toString() {
         return "Respuesta{" +
                 "estado=" + estado +
                 ", mensaje='" + mensaje + '\'' +
                 ", datos=" + (datos != null ? datos.toString() : "null") +
+                (idSolicitud != 0 ? ", idSolicitud=" + idSolicitud : "") +
                 '}';
     }
 }
\ No newline at end of file
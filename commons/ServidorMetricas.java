@@ -0,0 +1,55 @@
+package commons;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Endpoint HTTP con las métricas del proceso (Metricas.exportar) en GET /metrics,
+ * en formato de texto de Prometheus. Por defecto solo escucha en 127.0.0.1
+ * ("banco.metricas.host" lo cambia). Un puerto negativo lo desactiva.
+ */
+public class ServidorMetricas {
+
+    private static final String HOST = System.getProperty("banco.metricas.host", "127.0.0.1");
+
+    private static HttpServer servidor;
+
+    public static synchronized void iniciar(int puerto, String proceso) {
+        if (servidor != null || puerto < 0) {
+            return;
+        }
+        try {
+            HttpServer http = HttpServer.create(new InetSocketAddress(HOST, puerto), 0);
+            http.createContext("/metrics", intercambio -> {
+                try (intercambio) {
+                    if (!"GET".equals(intercambio.getRequestMethod())) {
+                        intercambio.sendResponseHeaders(405, -1);
+                        return;
+                    }
+                    byte[] cuerpo = Metricas.exportar().getBytes(StandardCharsets.UTF_8);
+                    intercambio.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                    intercambio.sendResponseHeaders(200, cuerpo.length);
+                    try (OutputStream out = intercambio.getResponseBody()) {
+                        out.write(cuerpo);
+                    }
+                }
+            });
+            http.setExecutor(Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "metricas-http");
+                t.setDaemon(true);
+                return t;
+            }));
+            http.start();
+            servidor = http;
+            System.out.println(proceso + ": Métricas en http://" + HOST + ":" + http.getAddress().getPort()
+                    + "/metrics");
+        } catch (IOException e) {
+            System.err.println(proceso + ": No se pudo abrir el endpoint de métricas en el puerto " + puerto + ": "
+                    + e.getMessage());
+        }
+    }
+}
@@ -8,6 +8,9 @@ public class Solicitud implements Serializable {
 
     private TipoOperacion tipoOperacion;
     private Map<String, Object> parametros; // Usamos un Map para flexibilidad en los parámetros
+    // Identifica la solicitud dentro de su conexión para emparejarla con su Respuesta.
+    // 0 = sin identificador: el servidor la atiende antes de leer la siguiente.
+    private long idSolicitud;
 
     public Solicitud() {
     }
@@ -26,6 +29,10 @@ public class Solicitud implements Serializable {
         return parametros;
     }
 
+    public long getIdSolicitud() {
+        return idSolicitud;
+    }
+
     // Setters
     public void setTipoOperacion(TipoOperacion tipoOperacion) {
         this.tipoOperacion = tipoOperacion;
@@ -35,11 +42,16 @@ public class Solicitud implements Serializable {
         this.parametros = parametros;
     }
 
+    public void setIdSolicitud(long idSolicitud) {
+        this.idSolicitud = idSolicitud;
+    }
+
     @Override
     public String toString() {
         return "Solicitud{" +
                 "tipoOperacion=" + tipoOperacion +
                 ", parametros=" + parametros +
+                (idSolicitud != 0 ? ", idSolicitud=" + idSolicitud : "") +
                 '}';
     }
 }
\ No newline at end of file
@@ -3,16 +3,29 @@ package commons;
 public enum TipoOperacion {
     CONSULTAR_SALDO,
     TRANSFERIR_FONDOS, // Operación principal iniciada por el cliente
+    TRANSFERIR_LOTE, // Muchas transferencias (List<Transferencia>) en una solicitud, ej. pago de nóminas
 
     // Sub-operaciones para transacciones distribuidas (Servidor -> Worker)
     PREPARAR_DEBITO, // Validar saldo y "retener" fondos en cuenta origen
     CONFIRMAR_DEBITO, // Confirmar el débito que fue preparado
+    CANCELAR_DEBITO, // Liberar la retención de un débito preparado que no se confirmará
     REVERTIR_DEBITO, // Cancelar un débito preparado
+    PREPARAR_CREDITO, // Validar que la cuenta destino existe, sin tocarla
     APLICAR_CREDITO, // Aplicar crédito en cuenta destino
+    REVERTIR_CREDITO, // Deshacer un crédito aplicado cuyo débito falló
+    APLICAR_MOVIMIENTOS, // Aplica en orden varios débitos/créditos de una partición y la escribe una vez
+    TRANSFERIR_ENTRE_PARTICIONES, // Transferencia completa entre dos particiones que atiende el mismo worker
 
     // Operación para replicación (Servidor -> Worker)
     ACTUALIZAR_SALDO_REPLICA, // Instruye a un worker (que es réplica) a actualizar un saldo
+    ACTUALIZAR_SALDOS_REPLICA, // Igual, con varios saldos de la misma partición
 
     ARQUEO_CUENTAS, // Cliente -> Servidor: Solicita el arqueo total de todas las cuentas
-    CALCULAR_SALDO_PARTICION // Servidor -> Worker: Solicita la suma de saldos de una partición específica
+    CALCULAR_SALDO_PARTICION, // Servidor -> Worker: Solicita la suma de saldos de una partición específica
+
+    // Mantenimiento de particiones (Servidor -> Worker)
+    DIVIDIR_PARTICION, // Parte localmente una partición de cuentas en dos por un ID de corte
+    OBTENER_DATOS_PARTICION, // Devuelve el contenido actual de una partición (para copiarla a otro worker)
+    INSTALAR_PARTICION, // Guarda una copia de una partición y empieza a atenderla
+    LIBERAR_PARTICION // Deja de atender una partición y borra su archivo
 }
\ No newline at end of file
@@ -0,0 +1,42 @@
+package commons;
+
+import java.io.Serializable;
+
+/** Un tramo de una TRANSFERIR_LOTE: mover monto de idCuentaOrigen a idCuentaDestino. */
+public class Transferencia implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private int idCuentaOrigen;
+    private int idCuentaDestino;
+    private double monto;
+
+    public Transferencia() {
+    }
+
+    public Transferencia(int idCuentaOrigen, int idCuentaDestino, double monto) {
+        this.idCuentaOrigen = idCuentaOrigen;
+        this.idCuentaDestino = idCuentaDestino;
+        this.monto = monto;
+    }
+
+    public int getIdCuentaOrigen() {
+        return idCuentaOrigen;
+    }
+
+    public int getIdCuentaDestino() {
+        return idCuentaDestino;
+    }
+
+    public double getMonto() {
+        return monto;
+    }
+
+    @Override
+    public String toString() {
+        return "Transferencia{" +
+                "idCuentaOrigen=" + idCuentaOrigen +
+                ", idCuentaDestino=" + idCuentaDestino +
+                ", monto=" + monto +
+                '}';
+    }
+}
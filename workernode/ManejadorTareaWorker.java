@@ -2,9 +2,9 @@ package workernode;
 
 import java.io.EOFException;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.Socket;
+import commons.FlujoMensajes;
+import commons.Metricas;
 import commons.Solicitud;
 import commons.Respuesta;
 import commons.EstadoOperacion;
@@ -12,47 +12,45 @@ import commons.EstadoOperacion;
 public class ManejadorTareaWorker implements Runnable {
     private Socket socketTareaServidor; // Socket conectado al ServidorCentral para esta tarea específica
     private NodoTrabajador nodoTrabajador; // Referencia al worker que procesará la tarea
-    private ObjectOutputStream oos;
-    private ObjectInputStream ois;
+    private FlujoMensajes flujo;
     private boolean activo;
 
     public ManejadorTareaWorker(Socket socketTareaServidor, NodoTrabajador nodoTrabajador) {
         this.socketTareaServidor = socketTareaServidor;
         this.nodoTrabajador = nodoTrabajador;
         this.activo = true;
+    }
+
+    @Override
+    public void run() {
+        System.out.println("ManejadorTareaWorker [" + nodoTrabajador.workerId
+                + "]: Hilo iniciado para manejar tarea de " + socketTareaServidor.getInetAddress().getHostAddress());
         try {
-            // Orden importante: OOS primero, luego OIS
-            this.oos = new ObjectOutputStream(socketTareaServidor.getOutputStream());
-            this.ois = new ObjectInputStream(socketTareaServidor.getInputStream());
+            // En este hilo y no en el de accept: hay que esperar los primeros bytes para saber el protocolo
+            this.flujo = FlujoMensajes.aceptar(socketTareaServidor);
             System.out.println("ManejadorTareaWorker [" + nodoTrabajador.workerId
-                    + "]: Streams creados para tarea desde " + socketTareaServidor.getInetAddress());
+                    + "]: Streams creados para tarea desde " + socketTareaServidor.getInetAddress()
+                    + (flujo.isBinario() ? " (binario)" : ""));
         } catch (IOException e) {
             System.err.println("ManejadorTareaWorker [" + nodoTrabajador.workerId
                     + "]: Error al crear streams para tarea: " + e.getMessage());
-            activo = false;
-            cerrarSocket();
-        }
-    }
-
-    @Override
-    public void run() {
-        if (!activo) {
+            cerrarRecursos();
             return;
         }
-        System.out.println("ManejadorTareaWorker [" + nodoTrabajador.workerId
-                + "]: Hilo iniciado para manejar tarea de " + socketTareaServidor.getInetAddress().getHostAddress());
 
         try {
-            Object objetoRecibido = ois.readObject();
+            Object objetoRecibido = flujo.leer();
             if (objetoRecibido instanceof Solicitud) {
                 Solicitud solicitud = (Solicitud) objetoRecibido;
                 System.out.println("ManejadorTareaWorker [" + nodoTrabajador.workerId
                         + "]: Solicitud de tarea recibida: " + solicitud.getTipoOperacion());
 
+                long inicioNs = System.nanoTime();
                 Respuesta respuesta = nodoTrabajador.procesarSolicitud(solicitud);
+                Metricas.registrarSolicitud("banco_tarea", solicitud.getTipoOperacion(), respuesta.getEstado(),
+                        System.nanoTime() - inicioNs);
 
-                oos.writeObject(respuesta);
-                oos.flush();
+                flujo.escribir(respuesta);
                 System.out.println("ManejadorTareaWorker [" + nodoTrabajador.workerId
                         + "]: Respuesta enviada al ServidorCentral: " + respuesta.getEstado());
             } else {
@@ -63,8 +61,7 @@ public class ManejadorTareaWorker implements Runnable {
                 Respuesta errorRespuesta = new Respuesta(EstadoOperacion.ERROR_COMUNICACION,
                         "Formato de tarea incorrecto.", null);
                 try {
-                    oos.writeObject(errorRespuesta);
-                    oos.flush();
+                    flujo.escribir(errorRespuesta);
                 } catch (IOException ioe) {
                     System.err.println("ManejadorTareaWorker [" + nodoTrabajador.workerId
                             + "]: Error al enviar respuesta de error de formato.");
@@ -100,16 +97,6 @@ public class ManejadorTareaWorker implements Runnable {
         activo = false;
         System.out.println("ManejadorTareaWorker [" + nodoTrabajador.workerId + "]: Cerrando conexión de tarea con "
                 + socketTareaServidor.getInetAddress().getHostAddress());
-        try {
-            if (ois != null)
-                ois.close();
-        } catch (IOException e) {
-            /* Silenciado */ }
-        try {
-            if (oos != null)
-                oos.close();
-        } catch (IOException e) {
-            /* Silenciado */ }
         cerrarSocket();
     }
 }
\ No newline at end of file
@@ -15,16 +15,27 @@ import java.net.Socket;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
 import java.util.stream.Collectors;
 
 import commons.Cliente;
 import commons.Cuenta;
+import commons.FlujoMensajes;
 import commons.MensajeWorker;
+import commons.Metricas;
+import commons.ServidorMetricas;
 import commons.Solicitud;
 import commons.Respuesta;
 import commons.EstadoOperacion;
@@ -32,15 +43,52 @@ import commons.TipoOperacion;
 
 public class NodoTrabajador {
     public String workerId;
-    private List<String> particionesAsignadasLocalmente;
+    private Set<String> particionesAsignadasLocalmente; // Puede cambiar en caliente (ej. DIVIDIR_PARTICION)
     private String hostServidorCentral;
     private int puertoServidorCentral;
     private int puertoEscuchaTareas;
     private boolean registradoYDatosCargados = false;
     private String directorioBaseDatos;
     private String archivoLogTransaccionesLocal;
+    // Conexión de registro, que se mantiene abierta para enviar heartbeats
+    private Socket socketRegistro;
+    private ObjectOutputStream oosRegistro;
+    private ObjectInputStream oisRegistro;
+    // Un cerrojo por partición: cada una es un archivo aparte (el log local lo protege el monitor del nodo)
+    private final ConcurrentHashMap<String, Object> cerrojosParticion = new ConcurrentHashMap<>();
+    // Fondos retenidos por PREPARAR_DEBITO hasta su CONFIRMAR_DEBITO o CANCELAR_DEBITO, por partición
+    // y transacción. Cada mapa interior se toca solo con el cerrojo de su partición.
+    private final ConcurrentHashMap<String, Map<Integer, Retencion>> retencionesPorParticion = new ConcurrentHashMap<>();
 
     private static final int MAX_TAREAS_CONCURRENTES = 10;
+    // Solicitudes (que no sean de réplica) atendiéndose a la vez; ver procesarSolicitud
+    private final Semaphore permisosTareas = new Semaphore(MAX_TAREAS_CONCURRENTES);
+    private static final int TIMEOUT_CADENA_MS = Integer.getInteger("banco.cadena.timeoutMs", 5000);
+    // Estados con los que una solicitud pudo dejar saldos nuevos que reenviar en la cadena
+    private static final Set<EstadoOperacion> ESTADOS_ESCRITURA = Set.of(EstadoOperacion.EXITO,
+            EstadoOperacion.DEBITO_CONFIRMADO_OK, EstadoOperacion.DEBITO_REVERTIDO_OK,
+            EstadoOperacion.CREDITO_APLICADO_OK, EstadoOperacion.CREDITO_REVERTIDO_OK,
+            EstadoOperacion.REPLICA_ACTUALIZADA_OK);
+    // Pasos de transferencias entre particiones que pueden repetirse tras caerse el
+    // Servidor Central: se aplican una sola vez por transacción (ver procesarUnaVez)
+    private static final Set<TipoOperacion> PASOS_UNA_VEZ = Set.of(TipoOperacion.CONFIRMAR_DEBITO,
+            TipoOperacion.APLICAR_CREDITO, TipoOperacion.REVERTIR_DEBITO, TipoOperacion.REVERTIR_CREDITO);
+    private static final Set<EstadoOperacion> ESTADOS_PASO_APLICADO = Set.of(EstadoOperacion.DEBITO_CONFIRMADO_OK,
+            EstadoOperacion.CREDITO_APLICADO_OK, EstadoOperacion.DEBITO_REVERTIDO_OK,
+            EstadoOperacion.CREDITO_REVERTIDO_OK);
+    private static final int CAPACIDAD_PASOS_APLICADOS = Integer.getInteger("banco.pasosAplicados.capacidad", 100000);
+    // "idTransaccion:TIPO" -> respuesta con que se aplicó; se olvidan los más viejos
+    private final Map<String, Respuesta> pasosAplicados = Collections.synchronizedMap(
+            new LinkedHashMap<>(16, 0.75f, false) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Respuesta> mayor) {
+                    return size() > CAPACIDAD_PASOS_APLICADOS;
+                }
+            });
+    private static final long INTERVALO_HEARTBEAT_MS = 100;
+    private static final long REINTENTO_REGISTRO_MS = Long.getLong("banco.registro.reintentoMs", 1000);
+    // Si el coordinador no confirma ni cancela un débito preparado, su retención caduca sola
+    private static final long DURACION_RETENCION_MS = Long.getLong("banco.retenciones.duracionMs", 30000);
 
     public NodoTrabajador(String workerId, String hostServidorCentral, int puertoServidorCentral,
             int puertoEscuchaTareas, List<String> particionesSugeridasAlServidor) {
@@ -48,7 +96,7 @@ public class NodoTrabajador {
         this.hostServidorCentral = hostServidorCentral;
         this.puertoServidorCentral = puertoServidorCentral;
         this.puertoEscuchaTareas = puertoEscuchaTareas;
-        this.particionesAsignadasLocalmente = new ArrayList<>();
+        this.particionesAsignadasLocalmente = ConcurrentHashMap.newKeySet();
         this.directorioBaseDatos = "data_" + workerId;
         this.archivoLogTransaccionesLocal = this.directorioBaseDatos + File.separator + "transacciones_locales.log";
         new File(this.directorioBaseDatos).mkdirs();
@@ -59,6 +107,10 @@ public class NodoTrabajador {
             System.out.println("Worker [" + workerId + "]: Registrado y datos de partición recibidos. Directorio: "
                     + this.directorioBaseDatos + ". Iniciando escucha de tareas en puerto " + puertoEscuchaTareas);
             registradoYDatosCargados = true;
+            Thread hiloHeartbeats = new Thread(this::enviarHeartbeats, "heartbeats-" + workerId);
+            hiloHeartbeats.setDaemon(true);
+            hiloHeartbeats.start();
+            iniciarMetricas();
             escucharTareas();
         } else {
             System.err.println("Worker [" + workerId + "]: Proceso de registro y carga de datos fallido. Abortando.");
@@ -66,12 +118,17 @@ public class NodoTrabajador {
     }
 
     private boolean registrarYRecibirDatos() {
-        try (Socket socket = new Socket(hostServidorCentral, puertoServidorCentral);
-                ObjectOutputStream oos = new ObjectOutputStream(socket.getOutputStream());
-                ObjectInputStream ois = new ObjectInputStream(socket.getInputStream())) {
+        Socket socket = null;
+        try {
+            socket = new Socket(hostServidorCentral, puertoServidorCentral);
+            ObjectOutputStream oos = new ObjectOutputStream(socket.getOutputStream());
+            ObjectInputStream ois = new ObjectInputStream(socket.getInputStream());
             System.out.println("Worker [" + workerId + "]: Intentando registrar con Servidor Central en "
                     + hostServidorCentral + ":" + puertoServidorCentral);
-            MensajeWorker msgRegistro = new MensajeWorker(workerId, new ArrayList<>(), this.puertoEscuchaTareas);
+            // Si ya tiene particiones (se reconecta, ej. tras reiniciarse el Servidor Central)
+            // las declara para seguir con sus datos en vez de recibirlos de nuevo
+            MensajeWorker msgRegistro = new MensajeWorker(workerId, new ArrayList<>(particionesAsignadasLocalmente),
+                    this.puertoEscuchaTareas);
             oos.writeObject(msgRegistro);
             oos.flush();
             System.out.println("Worker [" + workerId + "]: Mensaje de REGISTRO enviado (puerto tareas: "
@@ -88,6 +145,7 @@ public class NodoTrabajador {
                 System.out.println("Worker [" + workerId + "]: Recibida asignación de particiones y datos: "
                         + msgAsignacion.getListaParticiones());
                 if (guardarDatosDeParticiones(msgAsignacion.getDatosPorParticion())) {
+                    this.particionesAsignadasLocalmente.retainAll(msgAsignacion.getListaParticiones());
                     this.particionesAsignadasLocalmente.addAll(msgAsignacion.getListaParticiones());
                     MensajeWorker msgConfirmacionDatos = new MensajeWorker(
                             MensajeWorker.TipoMensaje.DATOS_RECIBIDOS_POR_WORKER, this.workerId,
@@ -103,6 +161,10 @@ public class NodoTrabajador {
                                 .getTipo() == MensajeWorker.TipoMensaje.CONFIRMACION_REGISTRO_COMPLETO) {
                             System.out.println("Worker [" + workerId + "]: Registro completo confirmado por servidor: "
                                     + msgFinalConfirmacion.getMensajeTexto());
+                            // La conexión queda abierta para los heartbeats
+                            this.socketRegistro = socket;
+                            this.oosRegistro = oos;
+                            this.oisRegistro = ois;
                             return true;
                         } else {
                             System.err.println("Worker [" + workerId
@@ -136,10 +198,70 @@ public class NodoTrabajador {
         } catch (ClassNotFoundException e) {
             System.err.println(
                     "Worker [" + workerId + "]: Error ClassNotFound al recibir del servidor: " + e.getMessage());
+        } finally {
+            if (socket != null && socket != this.socketRegistro) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    /* Silenciado */ }
+            }
         }
         return false;
     }
 
+    /**
+     * Envía heartbeats mientras dure la conexión de registro. Si se pierde (o el
+     * Servidor Central deja de reconocerlo) se vuelve a registrar cada
+     * REINTENTO_REGISTRO_MS, sin dejar de atender tareas entre medias.
+     */
+    private void enviarHeartbeats() {
+        while (registradoYDatosCargados) {
+            enviarHeartbeatsPorConexion();
+            do {
+                try {
+                    Thread.sleep(REINTENTO_REGISTRO_MS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                System.out.println("Worker [" + workerId + "]: Reintentando registro con Servidor Central...");
+            } while (!registrarYRecibirDatos());
+        }
+    }
+
+    /**
+     * Envía un HEARTBEAT cada INTERVALO_HEARTBEAT_MS por la conexión de registro y
+     * espera la RESPUESTA_HEARTBEAT del Servidor Central.
+     */
+    private void enviarHeartbeatsPorConexion() {
+        try {
+            socketRegistro.setSoTimeout(5000);
+            while (registradoYDatosCargados) {
+                oosRegistro.writeObject(new MensajeWorker(MensajeWorker.TipoMensaje.HEARTBEAT, workerId, "latido"));
+                oosRegistro.flush();
+                oosRegistro.reset(); // Evita que el stream retenga cada mensaje enviado
+                Object respuestaObj = oisRegistro.readObject();
+                if (respuestaObj instanceof MensajeWorker
+                        && ((MensajeWorker) respuestaObj).getTipo() == MensajeWorker.TipoMensaje.ERROR) {
+                    System.err.println("Worker [" + workerId + "]: Servidor Central rechazó heartbeat: "
+                            + ((MensajeWorker) respuestaObj).getMensajeTexto());
+                    break;
+                }
+                Thread.sleep(INTERVALO_HEARTBEAT_MS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException | ClassNotFoundException e) {
+            System.err.println("Worker [" + workerId + "]: Conexión de heartbeats con Servidor Central perdida: "
+                    + e.getMessage());
+        } finally {
+            try {
+                socketRegistro.close();
+            } catch (IOException e) {
+                /* Silenciado */ }
+        }
+    }
+
     private boolean guardarDatosDeParticiones(Map<String, List<? extends Serializable>> datosPorParticion) {
         if (datosPorParticion == null)
             return false;
@@ -151,12 +273,12 @@ public class NodoTrabajador {
 
             try (BufferedWriter bw = new BufferedWriter(new FileWriter(nombreArchivo, false))) {
                 if (idParticion.startsWith("CUENTA_P")) {
-                    bw.write("ID_CUENTA|ID_CLIENTE|SALDO|TIPO_CUENTA\n");
+                    bw.write("ID_CUENTA|ID_CLIENTE|SALDO|TIPO_CUENTA|VERSION\n");
                     for (Serializable dato : listaDatos) {
                         if (dato instanceof Cuenta) {
                             Cuenta c = (Cuenta) dato;
-                            bw.write(String.format("%d|%d|%.2f|%s\n", c.getIdCuenta(), c.getIdCliente(), c.getSaldo(),
-                                    c.getTipoCuenta()).replace(',', '.'));
+                            bw.write(lineaCuenta(c.getIdCuenta(), String.valueOf(c.getIdCliente()), c.getSaldo(),
+                                    c.getTipoCuenta(), c.getVersion()));
                         }
                     }
                 } else if (idParticion.startsWith("CLIENTE_P")) {
@@ -181,7 +303,9 @@ public class NodoTrabajador {
     }
 
     private void escucharTareas() {
-        ExecutorService poolTareas = Executors.newFixedThreadPool(MAX_TAREAS_CONCURRENTES);
+        // Sin límite de hilos: el de trabajo lo pone permisosTareas, y así las réplicas en
+        // cadena siempre tienen hilo aunque todos los permisos estén esperando a otro worker
+        ExecutorService poolTareas = Executors.newCachedThreadPool();
         try (ServerSocket serverSocketTareas = new ServerSocket(puertoEscuchaTareas)) {
             System.out.println("Worker [" + workerId + "]: Escuchando tareas del Servidor Central en puerto "
                     + puertoEscuchaTareas);
@@ -210,7 +334,55 @@ public class NodoTrabajador {
         }
     }
 
-    private synchronized Double leerSaldoDeArchivo(String idParticion, int idCuentaBuscada) {
+    /** Saldo de una cuenta y su versión, que sube con cada escritura del saldo. */
+    private record SaldoVersionado(double saldo, long version) {
+    }
+
+    /** Monto apartado en una cuenta por un débito preparado y aún sin confirmar. */
+    private record Retencion(int idCuenta, double monto, long caducaMs) {
+    }
+
+    /** Total retenido en la cuenta por débitos preparados vigentes; de paso descarta los caducados. */
+    private double retenidoEnCuenta(String idParticion, int idCuenta) {
+        Map<Integer, Retencion> retenciones = retencionesPorParticion.get(idParticion);
+        if (retenciones == null) {
+            return 0;
+        }
+        long ahora = System.currentTimeMillis();
+        retenciones.values().removeIf(r -> r.caducaMs() < ahora);
+        double total = 0;
+        for (Retencion r : retenciones.values()) {
+            if (r.idCuenta() == idCuenta) {
+                total += r.monto();
+            }
+        }
+        return total;
+    }
+
+    private void retener(String idParticion, int idTransaccionGlobal, int idCuenta, double monto) {
+        retencionesPorParticion.computeIfAbsent(idParticion, _ -> new HashMap<>()).put(idTransaccionGlobal,
+                new Retencion(idCuenta, monto, System.currentTimeMillis() + DURACION_RETENCION_MS));
+    }
+
+    /** Quita y devuelve la retención de la transacción, o null si no hay (o ya caducó). */
+    private Retencion quitarRetencion(String idParticion, int idTransaccionGlobal) {
+        Map<Integer, Retencion> retenciones = retencionesPorParticion.get(idParticion);
+        Retencion retencion = retenciones != null ? retenciones.remove(idTransaccionGlobal) : null;
+        return retencion != null && retencion.caducaMs() >= System.currentTimeMillis() ? retencion : null;
+    }
+
+    /** Versión de una línea de cuenta; los archivos anteriores a las versiones no la traen y vale 0. */
+    private static long versionDeLinea(String[] partes) {
+        return partes.length >= 5 ? Long.parseLong(partes[4].trim()) : 0;
+    }
+
+    /** Línea de cuenta en el archivo: ID_CUENTA|ID_CLIENTE|SALDO|TIPO_CUENTA|VERSION. */
+    private static String lineaCuenta(Object idCuenta, String idCliente, double saldo, String tipoCuenta,
+            long version) {
+        return String.format("%s|%s|%.2f|%s|%d\n", idCuenta, idCliente, saldo, tipoCuenta, version).replace(',', '.');
+    }
+
+    private SaldoVersionado leerCuentaDeArchivo(String idParticion, int idCuentaBuscada) {
         String nombreArchivo = directorioBaseDatos + File.separator + idParticion + ".txt";
         try (BufferedReader br = new BufferedReader(new FileReader(nombreArchivo))) {
             String linea = br.readLine(); // Saltar cabecera
@@ -220,7 +392,8 @@ public class NodoTrabajador {
                     try {
                         int idCuentaArchivo = Integer.parseInt(partes[0].trim());
                         if (idCuentaArchivo == idCuentaBuscada) {
-                            return Double.parseDouble(partes[2].trim().replace(',', '.'));
+                            return new SaldoVersionado(Double.parseDouble(partes[2].trim().replace(',', '.')),
+                                    versionDeLinea(partes));
                         }
                     } catch (NumberFormatException e) {
                         System.err.println("Worker [" + workerId + "]: Error al parsear línea (saldo) en "
@@ -235,8 +408,9 @@ public class NodoTrabajador {
         return null;
     }
 
-    private synchronized boolean actualizarSaldosEnArchivo(String idParticion, int idCuentaOrigen,
-            double nuevoSaldoOrigen, int idCuentaDestino, double nuevoSaldoDestino) {
+    private boolean actualizarSaldosEnArchivo(String idParticion, int idCuentaOrigen,
+            double nuevoSaldoOrigen, long versionOrigen, int idCuentaDestino, double nuevoSaldoDestino,
+            long versionDestino) {
         String nombreArchivo = directorioBaseDatos + File.separator + idParticion + ".txt";
         String nombreArchivoTemp = nombreArchivo + ".tmp";
         List<String> lineas = new ArrayList<>();
@@ -266,12 +440,12 @@ public class NodoTrabajador {
                     try {
                         int idCuentaActual = Integer.parseInt(partes[0].trim());
                         if (idCuentaActual == idCuentaOrigen) {
-                            bw.write(String.format("%d|%s|%.2f|%s\n", idCuentaActual, partes[1].trim(),
-                                    nuevoSaldoOrigen, partes[3].trim()).replace(',', '.'));
+                            bw.write(lineaCuenta(idCuentaActual, partes[1].trim(), nuevoSaldoOrigen, partes[3].trim(),
+                                    versionOrigen));
                             origenActualizado = true;
                         } else if (idCuentaActual == idCuentaDestino) {
-                            bw.write(String.format("%d|%s|%.2f|%s\n", idCuentaActual, partes[1].trim(),
-                                    nuevoSaldoDestino, partes[3].trim()).replace(',', '.'));
+                            bw.write(lineaCuenta(idCuentaActual, partes[1].trim(), nuevoSaldoDestino,
+                                    partes[3].trim(), versionDestino));
                             destinoActualizado = true;
                         } else {
                             bw.write(linea + "\n");
@@ -329,8 +503,8 @@ public class NodoTrabajador {
         }
     }
 
-    private synchronized boolean actualizarSaldoUnicaCuentaEnArchivo(String idParticion, int idCuentaAActualizar,
-            double nuevoSaldo, String operacionDesc) {
+    private boolean actualizarSaldoUnicaCuentaEnArchivo(String idParticion, int idCuentaAActualizar,
+            double nuevoSaldo, long nuevaVersion, String operacionDesc) {
         String nombreArchivo = directorioBaseDatos + File.separator + idParticion + ".txt";
         File archivoOriginal = new File(nombreArchivo);
         File archivoTemporal = new File(nombreArchivo + ".tmp");
@@ -364,8 +538,8 @@ public class NodoTrabajador {
                     try {
                         int idCuentaActualArchivo = Integer.parseInt(partes[0].trim());
                         if (idCuentaActualArchivo == idCuentaAActualizar) {
-                            bw.write(String.format("%d|%s|%.2f|%s\n", idCuentaActualArchivo, partes[1].trim(),
-                                    nuevoSaldo, partes[3].trim()).replace(',', '.'));
+                            bw.write(lineaCuenta(idCuentaActualArchivo, partes[1].trim(), nuevoSaldo,
+                                    partes[3].trim(), nuevaVersion));
                             cuentaActualizada = true;
                         } else {
                             bw.write(linea + "\n");
@@ -407,7 +581,611 @@ public class NodoTrabajador {
         return true;
     }
 
+    /** Saldos de las cuentas pedidas que están en la partición (las que no, no aparecen); null si falla la lectura. */
+    private Map<Integer, SaldoVersionado> leerSaldosDeArchivo(String idParticion, Set<Integer> idsCuenta) {
+        String nombreArchivo = directorioBaseDatos + File.separator + idParticion + ".txt";
+        Map<Integer, SaldoVersionado> saldos = new HashMap<>();
+        try (BufferedReader br = new BufferedReader(new FileReader(nombreArchivo))) {
+            String linea = br.readLine(); // Saltar cabecera
+            while ((linea = br.readLine()) != null) {
+                String[] partes = linea.split("\\|");
+                if (partes.length >= 3) {
+                    try {
+                        int idCuentaArchivo = Integer.parseInt(partes[0].trim());
+                        if (idsCuenta.contains(idCuentaArchivo)) {
+                            saldos.put(idCuentaArchivo, new SaldoVersionado(
+                                    Double.parseDouble(partes[2].trim().replace(',', '.')), versionDeLinea(partes)));
+                        }
+                    } catch (NumberFormatException e) {
+                        System.err.println("Worker [" + workerId + "]: Error al parsear línea (saldo) en "
+                                + nombreArchivo + ": " + linea + " - " + e.getMessage());
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Worker [" + workerId + "]: Error al leer archivo de partición " + nombreArchivo
+                    + " para saldos: " + e.getMessage());
+            return null;
+        }
+        return saldos;
+    }
+
+    /**
+     * Escribe varios saldos de la partición, cada uno con su versión, reescribiendo
+     * el archivo una sola vez. Devuelve false si no se pudo o si alguna cuenta no está.
+     */
+    private boolean actualizarVariosSaldosEnArchivo(String idParticion, Map<Integer, Double> nuevosSaldos,
+            Map<Integer, Long> nuevasVersiones, String operacionDesc) {
+        String nombreArchivo = directorioBaseDatos + File.separator + idParticion + ".txt";
+        File archivoOriginal = new File(nombreArchivo);
+        File archivoTemporal = new File(nombreArchivo + ".tmp");
+        List<String> lineas = new ArrayList<>();
+        int cuentasActualizadas = 0;
+
+        try (BufferedReader br = new BufferedReader(new FileReader(archivoOriginal))) {
+            String linea;
+            while ((linea = br.readLine()) != null) {
+                lineas.add(linea);
+            }
+        } catch (IOException e) {
+            System.err.println("Worker [" + workerId + "]: Error al leer archivo para " + operacionDesc + ": "
+                    + nombreArchivo + " - " + e.getMessage());
+            return false;
+        }
+        try (BufferedWriter bw = new BufferedWriter(new FileWriter(archivoTemporal))) {
+            for (int i = 0; i < lineas.size(); i++) {
+                String linea = lineas.get(i);
+                String[] partes = linea.split("\\|");
+                Double nuevoSaldo = null;
+                Long nuevaVersion = null;
+                if (i > 0 && partes.length >= 4) {
+                    try {
+                        int idCuentaArchivo = Integer.parseInt(partes[0].trim());
+                        nuevoSaldo = nuevosSaldos.get(idCuentaArchivo);
+                        nuevaVersion = nuevasVersiones.get(idCuentaArchivo);
+                    } catch (NumberFormatException e) {
+                        System.err.println("Worker [" + workerId + "]: Error parseando ID en " + nombreArchivo
+                                + " linea: " + linea);
+                    }
+                }
+                if (nuevoSaldo != null && nuevaVersion != null) {
+                    bw.write(lineaCuenta(partes[0].trim(), partes[1].trim(), nuevoSaldo, partes[3].trim(),
+                            nuevaVersion));
+                    cuentasActualizadas++;
+                } else {
+                    bw.write(linea + "\n");
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Worker [" + workerId + "]: Error al escribir archivo temporal para " + operacionDesc
+                    + ": " + e.getMessage());
+            archivoTemporal.delete();
+            return false;
+        }
+        if (cuentasActualizadas != nuevosSaldos.size()) {
+            System.err.println("Worker [" + workerId + "]: Solo " + cuentasActualizadas + " de " + nuevosSaldos.size()
+                    + " cuentas encontradas para " + operacionDesc + " en " + idParticion + ".");
+            archivoTemporal.delete();
+            return false;
+        }
+        if (!archivoOriginal.delete() || !archivoTemporal.renameTo(archivoOriginal)) {
+            System.err.println("Worker [" + workerId + "]: Error al reemplazar archivo de " + idParticion + " para "
+                    + operacionDesc + ".");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * APLICAR_MOVIMIENTOS de un lote: si trae idsTransaccion, cada movimiento es el
+     * paso "paso" de su transferencia y se aplica una sola vez, como los pasos de
+     * PASOS_UNA_VEZ (así el Servidor Central puede repetirlo suelto, ver
+     * RecuperadorTransferencias). Los ya aplicados se dan por buenos sin tocarlos;
+     * los que se aplican ahora quedan en pasosAplicados (y en pasos, con su cuenta,
+     * para la cadena).
+     */
+    private EstadoOperacion[] aplicarMovimientosUnaVez(String idParticion, int[] idsCuenta, double[] importes,
+            int[] idsTransaccion, TipoOperacion paso, Map<Integer, Double> saldosFinales,
+            Map<Integer, Long> versionesFinales, Map<String, Integer> pasos) {
+        if (idsTransaccion == null) {
+            return aplicarMovimientosEnArchivo(idParticion, idsCuenta, importes, saldosFinales, versionesFinales);
+        }
+        EstadoOperacion[] resultados = new EstadoOperacion[idsCuenta.length];
+        List<Integer> pendientes = new ArrayList<>();
+        for (int i = 0; i < idsCuenta.length; i++) {
+            if (idsTransaccion[i] > 0 && pasosAplicados.containsKey(idsTransaccion[i] + ":" + paso)) {
+                resultados[i] = EstadoOperacion.EXITO;
+            } else {
+                pendientes.add(i);
+            }
+        }
+        if (pendientes.isEmpty()) {
+            return resultados;
+        }
+        int[] idsPendientes = new int[pendientes.size()];
+        double[] importesPendientes = new double[pendientes.size()];
+        for (int k = 0; k < idsPendientes.length; k++) {
+            idsPendientes[k] = idsCuenta[pendientes.get(k)];
+            importesPendientes[k] = importes[pendientes.get(k)];
+        }
+        EstadoOperacion[] aplicados = aplicarMovimientosEnArchivo(idParticion, idsPendientes, importesPendientes,
+                saldosFinales, versionesFinales);
+        if (aplicados == null) {
+            return null;
+        }
+        for (int k = 0; k < aplicados.length; k++) {
+            int i = pendientes.get(k);
+            resultados[i] = aplicados[k];
+            if (aplicados[k] != EstadoOperacion.EXITO || idsTransaccion[i] <= 0) {
+                continue;
+            }
+            String clave = idsTransaccion[i] + ":" + paso;
+            pasosAplicados.put(clave, respuestaDePaso(paso, "Paso " + clave + " aplicado en un lote por " + workerId,
+                    saldosFinales.get(idsCuenta[i]), versionesFinales.get(idsCuenta[i])));
+            pasos.put(clave, idsCuenta[i]);
+        }
+        return resultados;
+    }
+
+    /**
+     * Lo que respondería el paso suelto de PASOS_UNA_VEZ al aplicarse: su estado y el
+     * saldo y la versión con que quedó la cuenta.
+     */
+    private static Respuesta respuestaDePaso(TipoOperacion paso, String mensaje, double saldo, long version) {
+        return switch (paso) {
+            case CONFIRMAR_DEBITO -> new Respuesta(EstadoOperacion.DEBITO_CONFIRMADO_OK, mensaje,
+                    Map.of("nuevoSaldoOrigen", saldo, "versionOrigen", version));
+            case REVERTIR_DEBITO -> new Respuesta(EstadoOperacion.DEBITO_REVERTIDO_OK, mensaje,
+                    Map.of("nuevoSaldoOrigen", saldo, "versionOrigen", version));
+            case APLICAR_CREDITO -> new Respuesta(EstadoOperacion.CREDITO_APLICADO_OK, mensaje,
+                    Map.of("nuevoSaldoDestino", saldo, "versionDestino", version));
+            default -> new Respuesta(EstadoOperacion.CREDITO_REVERTIDO_OK, mensaje,
+                    Map.of("nuevoSaldoDestino", saldo, "versionDestino", version));
+        };
+    }
+
+    /**
+     * Aplica en orden los movimientos de la partición (importe negativo = débito,
+     * positivo = crédito) y escribe el archivo una sola vez. Un débito sin saldo
+     * suficiente o una cuenta que no está se rechazan sin afectar al resto. Deja en
+     * saldosFinales y versionesFinales el saldo final y la nueva versión de las
+     * cuentas modificadas (la versión sube una vez por llamada, no por movimiento).
+     * Devuelve el resultado de cada movimiento, o null si no se pudo leer o escribir
+     * (no se aplicó ninguno).
+     */
+    private EstadoOperacion[] aplicarMovimientosEnArchivo(String idParticion, int[] idsCuenta,
+            double[] importes, Map<Integer, Double> saldosFinales, Map<Integer, Long> versionesFinales) {
+        Set<Integer> cuentas = new HashSet<>();
+        for (int id : idsCuenta) {
+            cuentas.add(id);
+        }
+        Map<Integer, SaldoVersionado> leidos = leerSaldosDeArchivo(idParticion, cuentas);
+        if (leidos == null) {
+            return null;
+        }
+        Map<Integer, Double> saldos = new HashMap<>();
+        leidos.forEach((id, leido) -> saldos.put(id, leido.saldo()));
+        EstadoOperacion[] resultados = new EstadoOperacion[idsCuenta.length];
+        for (int i = 0; i < idsCuenta.length; i++) {
+            Double saldo = saldos.get(idsCuenta[i]);
+            if (saldo == null) {
+                resultados[i] = importes[i] < 0 ? EstadoOperacion.ERROR_CUENTA_ORIGEN_NO_EXISTE
+                        : EstadoOperacion.ERROR_CUENTA_DESTINO_NO_EXISTE;
+            } else if (saldo + importes[i] < (importes[i] < 0 ? retenidoEnCuenta(idParticion, idsCuenta[i]) : 0)) {
+                // Un débito no puede gastar lo que tienen retenido transferencias ya preparadas
+                resultados[i] = EstadoOperacion.ERROR_SALDO_INSUFICIENTE;
+            } else {
+                // Con 2 decimales, como quedaría en el archivo
+                double nuevoSaldo = Math.round((saldo + importes[i]) * 100) / 100.0;
+                saldos.put(idsCuenta[i], nuevoSaldo);
+                saldosFinales.put(idsCuenta[i], nuevoSaldo);
+                versionesFinales.put(idsCuenta[i], leidos.get(idsCuenta[i]).version() + 1);
+                resultados[i] = EstadoOperacion.EXITO;
+            }
+        }
+        if (!saldosFinales.isEmpty() && !actualizarVariosSaldosEnArchivo(idParticion, saldosFinales,
+                versionesFinales, "APLICAR_MOVIMIENTOS")) {
+            saldosFinales.clear();
+            versionesFinales.clear();
+            return null;
+        }
+        return resultados;
+    }
+
+    /**
+     * Divide el archivo de una partición de cuentas en dos: las cuentas con ID menor
+     * que idCorte pasan a particionBaja y el resto a particionAlta. Después la
+     * partición original deja de atenderse y su archivo se borra.
+     * Devuelve {cuentasBaja, cuentasAlta}, o null si falló.
+     */
+    private int[] dividirParticionEnArchivos(String idParticion, int idCorte, String particionBaja,
+            String particionAlta) {
+        File original = new File(directorioBaseDatos + File.separator + idParticion + ".txt");
+        File archivoBaja = new File(directorioBaseDatos + File.separator + particionBaja + ".txt");
+        File archivoAlta = new File(directorioBaseDatos + File.separator + particionAlta + ".txt");
+        File tempBaja = new File(archivoBaja.getPath() + ".tmp");
+        File tempAlta = new File(archivoAlta.getPath() + ".tmp");
+        int[] cuentas = new int[2];
+        try (BufferedReader br = new BufferedReader(new FileReader(original));
+                BufferedWriter bwBaja = new BufferedWriter(new FileWriter(tempBaja));
+                BufferedWriter bwAlta = new BufferedWriter(new FileWriter(tempAlta))) {
+            String cabecera = br.readLine();
+            bwBaja.write(cabecera + "\n");
+            bwAlta.write(cabecera + "\n");
+            String linea;
+            while ((linea = br.readLine()) != null) {
+                int separador = linea.indexOf('|');
+                try {
+                    int idCuenta = Integer.parseInt(linea.substring(0, separador).trim());
+                    if (idCuenta < idCorte) {
+                        bwBaja.write(linea + "\n");
+                        cuentas[0]++;
+                    } else {
+                        bwAlta.write(linea + "\n");
+                        cuentas[1]++;
+                    }
+                } catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+                    System.err.println("Worker [" + workerId + "]: Línea ignorada al dividir " + idParticion + ": "
+                            + linea);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Worker [" + workerId + "]: Error al dividir partición " + idParticion + ": "
+                    + e.getMessage());
+            tempBaja.delete();
+            tempAlta.delete();
+            return null;
+        }
+        archivoBaja.delete();
+        archivoAlta.delete();
+        if (!tempBaja.renameTo(archivoBaja) || !tempAlta.renameTo(archivoAlta)) {
+            System.err.println("Worker [" + workerId + "]: Error al renombrar archivos de la división de "
+                    + idParticion + ".");
+            return null;
+        }
+        particionesAsignadasLocalmente.add(particionBaja);
+        particionesAsignadasLocalmente.add(particionAlta);
+        particionesAsignadasLocalmente.remove(idParticion);
+        original.delete();
+        System.out.println("Worker [" + workerId + "]: Partición " + idParticion + " dividida en " + particionBaja
+                + " (" + cuentas[0] + " cuentas) y " + particionAlta + " (" + cuentas[1] + " cuentas), corte en "
+                + idCorte + ".");
+        return cuentas;
+    }
+
+    /** Lee el contenido actual de una partición como objetos Cuenta o Cliente, o null si falla. */
+    private ArrayList<Serializable> leerDatosDeParticion(String idParticion) {
+        String nombreArchivo = directorioBaseDatos + File.separator + idParticion + ".txt";
+        ArrayList<Serializable> datos = new ArrayList<>();
+        try (BufferedReader br = new BufferedReader(new FileReader(nombreArchivo))) {
+            String linea = br.readLine(); // Saltar cabecera
+            while ((linea = br.readLine()) != null) {
+                String[] p = linea.split("\\|");
+                if (p.length < 4) {
+                    continue;
+                }
+                if (idParticion.startsWith("CUENTA_P")) {
+                    Cuenta cuenta = new Cuenta(Integer.parseInt(p[0].trim()), Integer.parseInt(p[1].trim()),
+                            Double.parseDouble(p[2].trim().replace(',', '.')), p[3]);
+                    cuenta.setVersion(versionDeLinea(p)); // La copia sigue la misma secuencia de versiones
+                    datos.add(cuenta);
+                } else {
+                    datos.add(new Cliente(Integer.parseInt(p[0].trim()), p[1], p[2], p[3]));
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            System.err.println("Worker [" + workerId + "]: Error al leer partición " + idParticion + " para copiarla: "
+                    + e.getMessage());
+            return null;
+        }
+        return datos;
+    }
+
+    /** Deja de atender la partición y borra su archivo. */
+    private void liberarParticion(String idParticion) {
+        particionesAsignadasLocalmente.remove(idParticion);
+        retencionesPorParticion.remove(idParticion);
+        new File(directorioBaseDatos + File.separator + idParticion + ".txt").delete();
+        System.out.println("Worker [" + workerId + "]: Partición " + idParticion + " liberada.");
+    }
+
+    /**
+     * Atiende la solicitud (como mucho MAX_TAREAS_CONCURRENTES a la vez) y reenvía en
+     * la cadena de réplicas los saldos que haya cambiado.
+     * Las actualizaciones de réplica no cuentan para ese límite: quien reenvía en la
+     * cadena espera a la siguiente réplica con su permiso tomado, y si esa réplica
+     * esperase a su vez un permiso de este worker se bloquearían entre sí.
+     */
     public Respuesta procesarSolicitud(Solicitud solicitud) {
+        boolean esReplica = solicitud.getTipoOperacion() == TipoOperacion.ACTUALIZAR_SALDO_REPLICA
+                || solicitud.getTipoOperacion() == TipoOperacion.ACTUALIZAR_SALDOS_REPLICA;
+        if (!esReplica) {
+            permisosTareas.acquireUninterruptibly();
+        }
+        try {
+            return propagarEnCadena(solicitud, procesarConCerrojos(solicitud));
+        } finally {
+            if (!esReplica) {
+                permisosTareas.release();
+            }
+        }
+    }
+
+    /**
+     * Atiende la solicitud con el cerrojo de la partición que toca, así que lo que
+     * hace sobre su archivo (leer, calcular y reescribir) no se intercala con otra
+     * operación de la misma partición. Las de particiones distintas van en paralelo.
+     * TRANSFERIR_ENTRE_PARTICIONES toma los cerrojos de sus dos particiones, siempre
+     * en el mismo orden para que dos de ellas no se interbloqueen.
+     */
+    private Respuesta procesarConCerrojos(Solicitud solicitud) {
+        String idParticion = particionDeSolicitud(solicitud);
+        if (idParticion == null) {
+            return procesarEnParticion(solicitud);
+        }
+        String otraParticion = (String) solicitud.getParametros().get("ID_PARTICION_DESTINO");
+        if (otraParticion != null && !otraParticion.equals(idParticion)) {
+            String primera = idParticion.compareTo(otraParticion) < 0 ? idParticion : otraParticion;
+            String segunda = primera.equals(idParticion) ? otraParticion : idParticion;
+            synchronized (cerrojoParticion(primera)) {
+                synchronized (cerrojoParticion(segunda)) {
+                    return procesarUnaVez(solicitud);
+                }
+            }
+        }
+        synchronized (cerrojoParticion(idParticion)) {
+            return procesarUnaVez(solicitud);
+        }
+    }
+
+    /**
+     * Los pasos de PASOS_UNA_VEZ se aplican una sola vez por transacción: si el
+     * Servidor Central repite uno ya aplicado (al recuperar una transferencia en duda
+     * tras caerse) se devuelve la respuesta de entonces. Las réplicas que reciben los
+     * saldos en cadena también lo apuntan, por si una pasa a ser primario.
+     */
+    private Respuesta procesarUnaVez(Solicitud solicitud) {
+        String paso = clavePaso(solicitud);
+        if (paso != null) {
+            Respuesta anterior = pasosAplicados.get(paso);
+            if (anterior != null) {
+                System.out.println("Worker [" + workerId + "]: Paso " + paso + " ya aplicado. Se repite su respuesta.");
+                return anterior;
+            }
+        }
+        Respuesta respuesta = procesarEnParticion(solicitud);
+        if (paso != null && ESTADOS_PASO_APLICADO.contains(respuesta.getEstado())) {
+            pasosAplicados.put(paso, respuesta);
+        } else if (respuesta.getEstado() == EstadoOperacion.REPLICA_ACTUALIZADA_OK) {
+            apuntarPasosReplicados(solicitud);
+        }
+        return respuesta;
+    }
+
+    /**
+     * Apunta los pasos que trae una actualización en cadena (PASO_APLICADO, o
+     * PASOS_APLICADOS de un lote con la cuenta de cada uno), pero solo si la cuenta
+     * quedó con el saldo y la versión que trae. Si la réplica tiene otra versión (por
+     * ejemplo, porque no entró la de un primario depuesto que aplicó tarde), el paso
+     * no está en sus datos y, si se lo repiten aquí, debe aplicarse.
+     */
+    @SuppressWarnings("unchecked")
+    private void apuntarPasosReplicados(Solicitud solicitud) {
+        Map<String, Object> parametros = solicitud.getParametros();
+        Map<Integer, Double> saldos = (Map<Integer, Double>) parametros.get("SALDOS");
+        Map<Integer, Long> versiones = (Map<Integer, Long>) parametros.get("VERSIONES");
+        String idParticion = (String) parametros.get("ID_PARTICION");
+        Map<String, Integer> pasos = new HashMap<>();
+        if (parametros.get("PASO_APLICADO") instanceof String pasoReplicado && saldos != null && saldos.size() == 1) {
+            pasos.put(pasoReplicado, saldos.keySet().iterator().next());
+        }
+        if (parametros.get("PASOS_APLICADOS") instanceof Map<?, ?> pasosLote) {
+            pasosLote.forEach((clave, cuenta) -> pasos.put((String) clave, (Integer) cuenta));
+        }
+        if (pasos.isEmpty() || saldos == null || versiones == null || idParticion == null) {
+            return;
+        }
+        Map<Integer, SaldoVersionado> actuales = leerSaldosDeArchivo(idParticion, new HashSet<>(pasos.values()));
+        if (actuales == null) {
+            return;
+        }
+        for (Map.Entry<String, Integer> p : pasos.entrySet()) {
+            SaldoVersionado actual = actuales.get(p.getValue());
+            if (actual == null || !Objects.equals(versiones.get(p.getValue()), actual.version())
+                    || !Objects.equals(saldos.get(p.getValue()), actual.saldo())) {
+                System.out.println("Worker [" + workerId + "]: Paso " + p.getKey() + " no apuntado: la cuenta "
+                        + p.getValue() + " no quedó con su saldo.");
+                continue;
+            }
+            // Con el saldo, quien repita el paso aquí vuelve a replicarlo a las que no lo tengan
+            pasosAplicados.putIfAbsent(p.getKey(), respuestaDePaso(
+                    TipoOperacion.valueOf(p.getKey().substring(p.getKey().indexOf(':') + 1)),
+                    "Paso " + p.getKey() + " ya aplicado (réplica " + workerId + ")", actual.saldo(),
+                    actual.version()));
+        }
+    }
+
+    /** "idTransaccion:TIPO" si la solicitud es un paso de PASOS_UNA_VEZ con ID de transacción; si no, null. */
+    private static String clavePaso(Solicitud solicitud) {
+        if (PASOS_UNA_VEZ.contains(solicitud.getTipoOperacion())
+                && solicitud.getParametros().get("ID_TRANSACCION_GLOBAL") instanceof Integer idTransaccion
+                && idTransaccion > 0) {
+            return idTransaccion + ":" + solicitud.getTipoOperacion();
+        }
+        return null;
+    }
+
+    /** Partición cuyo archivo usa la solicitud (DIVIDIR e INSTALAR la traen en su propio parámetro). */
+    private static String particionDeSolicitud(Solicitud solicitud) {
+        Map<String, Object> parametros = solicitud.getParametros();
+        Object idParticion = parametros.get("ID_PARTICION");
+        if (idParticion == null) {
+            idParticion = parametros.get("ID_PARTICION_ORIGEN");
+        }
+        if (idParticion == null) {
+            idParticion = parametros.get("ID_PARTICION_ORIGINAL");
+        }
+        if (idParticion == null) {
+            idParticion = parametros.get("ID_PARTICION_NUEVA");
+        }
+        return (String) idParticion;
+    }
+
+    private Object cerrojoParticion(String idParticion) {
+        return cerrojosParticion.computeIfAbsent(idParticion, _ -> new Object());
+    }
+
+    /**
+     * Replicación en cadena: si la solicitud trae CADENAS (por partición, los workers
+     * que siguen a este, como "workerId@host:puerto") y dejó saldos nuevos, se envían al
+     * siguiente de cada cadena como ACTUALIZAR_SALDOS_REPLICA con el resto de la
+     * cadena, y ese hace lo mismo hasta llegar a la cola. Va sin cerrojos de partición:
+     * las versiones ordenan las réplicas aunque dos cambios se crucen.
+     * La respuesta lleva en "replicasConfirmadas" los workers de cada partición que
+     * aplicaron los saldos más abajo en la cadena. Si un eslabón falla no se sigue; el
+     * Servidor Central replica él mismo a los que falten.
+     */
+    @SuppressWarnings("unchecked")
+    private Respuesta propagarEnCadena(Solicitud solicitud, Respuesta respuesta) {
+        Map<String, List<String>> cadenas = (Map<String, List<String>>) solicitud.getParametros().get("CADENAS");
+        if (cadenas == null || cadenas.isEmpty() || !ESTADOS_ESCRITURA.contains(respuesta.getEstado())) {
+            return respuesta;
+        }
+        Map<String, HashMap<Integer, Double>> saldos = new HashMap<>();
+        Map<String, HashMap<Integer, Long>> versiones = new HashMap<>();
+        cambiosDeSolicitud(solicitud, respuesta, saldos, versiones);
+        HashMap<String, ArrayList<String>> confirmadas = new HashMap<>();
+        for (Map.Entry<String, HashMap<Integer, Double>> cambio : saldos.entrySet()) {
+            String idParticion = cambio.getKey();
+            List<String> siguientes = new ArrayList<>();
+            for (String eslabon : cadenas.getOrDefault(idParticion, List.of())) {
+                if (!eslabon.startsWith(workerId + "@")) {
+                    siguientes.add(eslabon);
+                }
+            }
+            if (siguientes.isEmpty()) {
+                continue;
+            }
+            String siguiente = siguientes.get(0);
+            HashMap<String, Object> params = new HashMap<>();
+            params.put("SALDOS", cambio.getValue());
+            params.put("VERSIONES", versiones.getOrDefault(idParticion, new HashMap<>()));
+            params.put("ID_PARTICION", idParticion);
+            params.put("ID_TRANSACCION_GLOBAL", solicitud.getParametros().getOrDefault("ID_TRANSACCION_GLOBAL", -1));
+            params.put("CADENAS", new HashMap<>(Map.of(idParticion, new ArrayList<>(siguientes.subList(1,
+                    siguientes.size())))));
+            String paso = clavePaso(solicitud);
+            if (paso != null) {
+                params.put("PASO_APLICADO", paso);
+            } else if (solicitud.getParametros().get("PASO_APLICADO") != null) {
+                params.put("PASO_APLICADO", solicitud.getParametros().get("PASO_APLICADO"));
+            }
+            Object pasosLote = respuesta.getDatos() instanceof Map<?, ?> datos ? datos.get("pasosAplicados") : null;
+            if (pasosLote == null) {
+                pasosLote = solicitud.getParametros().get("PASOS_APLICADOS");
+            }
+            if (pasosLote instanceof Map<?, ?> pasos && !pasos.isEmpty()) {
+                params.put("PASOS_APLICADOS", pasosLote);
+            }
+            try {
+                Respuesta ack = enviarAWorker(siguiente, new Solicitud(TipoOperacion.ACTUALIZAR_SALDOS_REPLICA, params));
+                if (ack == null || ack.getEstado() != EstadoOperacion.REPLICA_ACTUALIZADA_OK) {
+                    System.err.println("Worker [" + workerId + "]: Réplica en cadena de " + idParticion + " falló en "
+                            + siguiente + (ack != null ? ": " + ack.getMensaje() : ""));
+                    continue;
+                }
+                ArrayList<String> alDia = new ArrayList<>();
+                alDia.add(siguiente.substring(0, siguiente.indexOf('@')));
+                if (ack.getDatos() instanceof Map<?, ?> datosAck
+                        && datosAck.get("replicasConfirmadas") instanceof Map<?, ?> masAbajo
+                        && masAbajo.get(idParticion) instanceof List<?> workers) {
+                    for (Object w : workers) {
+                        alDia.add((String) w);
+                    }
+                }
+                confirmadas.put(idParticion, alDia);
+            } catch (IOException | ClassNotFoundException | RuntimeException e) {
+                System.err.println("Worker [" + workerId + "]: No se pudo reenviar en cadena " + idParticion + " a "
+                        + siguiente + ": " + e.getMessage());
+            }
+        }
+        HashMap<String, Object> datos = respuesta.getDatos() instanceof Map
+                ? new HashMap<>((Map<String, Object>) respuesta.getDatos())
+                : new HashMap<>();
+        datos.put("replicasConfirmadas", confirmadas);
+        respuesta.setDatos(datos);
+        return respuesta;
+    }
+
+    /** Saldos y versiones que dejó la solicitud, por partición. */
+    @SuppressWarnings("unchecked")
+    private static void cambiosDeSolicitud(Solicitud solicitud, Respuesta respuesta,
+            Map<String, HashMap<Integer, Double>> saldos, Map<String, HashMap<Integer, Long>> versiones) {
+        Map<String, Object> params = solicitud.getParametros();
+        String idParticion = (String) params.get("ID_PARTICION");
+        if (solicitud.getTipoOperacion() == TipoOperacion.ACTUALIZAR_SALDOS_REPLICA) {
+            saldos.put(idParticion, new HashMap<>((Map<Integer, Double>) params.get("SALDOS")));
+            Map<Integer, Long> recibidas = (Map<Integer, Long>) params.get("VERSIONES");
+            versiones.put(idParticion, recibidas != null ? new HashMap<>(recibidas) : new HashMap<>());
+            return;
+        }
+        if (!(respuesta.getDatos() instanceof Map)) {
+            return;
+        }
+        Map<String, Object> datos = (Map<String, Object>) respuesta.getDatos();
+        if (datos.get("saldos") instanceof Map<?, ?> saldosMovimientos) { // APLICAR_MOVIMIENTOS
+            saldos.put(idParticion, new HashMap<>((Map<Integer, Double>) saldosMovimientos));
+            versiones.put(idParticion, new HashMap<>((Map<Integer, Long>) datos.get("versiones")));
+            return;
+        }
+        String[][] lados = { { "ID_CUENTA_ORIGEN", "ID_PARTICION_ORIGEN", "nuevoSaldoOrigen", "versionOrigen" },
+                { "ID_CUENTA_DESTINO", "ID_PARTICION_DESTINO", "nuevoSaldoDestino", "versionDestino" } };
+        for (String[] lado : lados) {
+            Integer idCuenta = (Integer) params.get(lado[0]);
+            String particionLado = idParticion != null ? idParticion : (String) params.get(lado[1]);
+            if (idCuenta != null && particionLado != null && datos.get(lado[2]) instanceof Double nuevoSaldo) {
+                saldos.computeIfAbsent(particionLado, _ -> new HashMap<>()).put(idCuenta, nuevoSaldo);
+                if (datos.get(lado[3]) instanceof Long version) {
+                    versiones.computeIfAbsent(particionLado, _ -> new HashMap<>()).put(idCuenta, version);
+                }
+            }
+        }
+    }
+
+    private void iniciarMetricas() {
+        Metricas.registrarFuente(s -> {
+            s.medidor("banco_worker_particiones", particionesAsignadasLocalmente.size());
+            s.medidor("banco_worker_tareas_en_curso", MAX_TAREAS_CONCURRENTES - permisosTareas.availablePermits());
+            s.medidor("banco_worker_pasos_recordados", pasosAplicados.size());
+        });
+        ServidorMetricas.iniciar(Integer.getInteger("banco.metricas.puerto", puertoEscuchaTareas + 1000),
+                "Worker [" + workerId + "]");
+    }
+
+    /** Envía una solicitud a otro worker ("workerId@host:puerto") y espera su respuesta. */
+    private Respuesta enviarAWorker(String eslabon, Solicitud solicitud) throws IOException, ClassNotFoundException {
+        String siguiente = eslabon.substring(0, Math.max(0, eslabon.indexOf('@')));
+        String direccion = eslabon.substring(eslabon.indexOf('@') + 1);
+        int separador = direccion.lastIndexOf(':');
+        long inicioNs = System.nanoTime();
+        try (Socket socket = new Socket(direccion.substring(0, separador),
+                Integer.parseInt(direccion.substring(separador + 1)))) {
+            socket.setSoTimeout(TIMEOUT_CADENA_MS);
+            FlujoMensajes flujo = FlujoMensajes.conectar(socket);
+            flujo.escribir(solicitud);
+            Object respuesta = flujo.leer();
+            Metricas.registrarLlamadaWorker(siguiente, solicitud.getTipoOperacion(),
+                    respuesta instanceof Respuesta r && !Metricas.esError(r.getEstado()) ? "ok" : "error",
+                    System.nanoTime() - inicioNs);
+            return respuesta instanceof Respuesta ? (Respuesta) respuesta : null;
+        } catch (IOException | ClassNotFoundException e) {
+            Metricas.registrarLlamadaWorker(siguiente, solicitud.getTipoOperacion(), "fallo",
+                    System.nanoTime() - inicioNs);
+            throw e;
+        }
+    }
+
+    private Respuesta procesarEnParticion(Solicitud solicitud) {
         System.out.println("Worker [" + workerId + "]: Procesando " + solicitud.getTipoOperacion() + " params: "
                 + solicitud.getParametros());
         Integer idTransaccionGlobal = (Integer) solicitud.getParametros().getOrDefault("ID_TRANSACCION_GLOBAL", -1);
@@ -428,9 +1206,15 @@ public class NodoTrabajador {
                 if (idCuentaConsulta == null || idParticionSolicitada == null)
                     return new Respuesta(EstadoOperacion.ERROR_GENERAL_SERVIDOR, "Params incompletos CONSULTAR_SALDO",
                             null);
-                Double saldo = leerSaldoDeArchivo(idParticionSolicitada, idCuentaConsulta);
-                if (saldo != null) {
-                    return new Respuesta(EstadoOperacion.EXITO, "Saldo: " + saldo, saldo);
+                SaldoVersionado consultada = leerCuentaDeArchivo(idParticionSolicitada, idCuentaConsulta);
+                Long versionMinima = (Long) solicitud.getParametros().get("VERSION_MINIMA");
+                if (consultada != null && versionMinima != null && consultada.version() < versionMinima) {
+                    // Réplica que aún no recibió la escritura que el cliente ya vio
+                    return new Respuesta(EstadoOperacion.ERROR_REINTENTAR_EN_OTRO_NODO, "Cta " + idCuentaConsulta
+                            + " en versión " + consultada.version() + " < " + versionMinima, null);
+                }
+                if (consultada != null) {
+                    return new Respuesta(EstadoOperacion.EXITO, "Saldo: " + consultada.saldo(), consultada.saldo());
                 } else {
                     return new Respuesta(EstadoOperacion.ERROR_CUENTA_ORIGEN_NO_EXISTE,
                             "Cta " + idCuentaConsulta + " no en part " + idParticionSolicitada, null);
@@ -444,31 +1228,35 @@ public class NodoTrabajador {
                     return new Respuesta(EstadoOperacion.ERROR_GENERAL_SERVIDOR, "Params incompletos TRANSFERIR_FONDOS",
                             null);
 
-                Double saldoO = leerSaldoDeArchivo(idParticionSolicitada, idCtaOrigen);
-                if (saldoO == null)
+                SaldoVersionado cuentaO = leerCuentaDeArchivo(idParticionSolicitada, idCtaOrigen);
+                if (cuentaO == null)
                     return new Respuesta(EstadoOperacion.ERROR_CUENTA_ORIGEN_NO_EXISTE,
                             "CtaOrigen " + idCtaOrigen + " no existe", null);
-                if (saldoO < monto) {
+                double saldoO = cuentaO.saldo();
+                if (saldoO - retenidoEnCuenta(idParticionSolicitada, idCtaOrigen) < monto) {
                     registrarTransaccionLocal(idTransaccionGlobal, idCtaOrigen, idCtaDestino, monto,
                             "RECHAZADA_SALDO_INSUF_W" + workerId);
                     return new Respuesta(EstadoOperacion.ERROR_SALDO_INSUFICIENTE,
                             "Saldo insuficiente CtaOrigen " + idCtaOrigen, saldoO);
                 }
-                Double saldoD = leerSaldoDeArchivo(idParticionSolicitada, idCtaDestino);
-                if (saldoD == null) {
+                SaldoVersionado cuentaD = leerCuentaDeArchivo(idParticionSolicitada, idCtaDestino);
+                if (cuentaD == null) {
                     registrarTransaccionLocal(idTransaccionGlobal, idCtaOrigen, idCtaDestino, monto,
                             "FALLIDA_DESTINO_NO_EXISTE_W" + workerId);
                     return new Respuesta(EstadoOperacion.ERROR_CUENTA_DESTINO_NO_EXISTE,
                             "CtaDestino " + idCtaDestino + " no existe", null);
                 }
                 double nSaldoO = saldoO - monto;
-                double nSaldoD = saldoD + monto;
-                if (actualizarSaldosEnArchivo(idParticionSolicitada, idCtaOrigen, nSaldoO, idCtaDestino, nSaldoD)) {
+                double nSaldoD = cuentaD.saldo() + monto;
+                long nVersionO = cuentaO.version() + 1;
+                long nVersionD = cuentaD.version() + 1;
+                if (actualizarSaldosEnArchivo(idParticionSolicitada, idCtaOrigen, nSaldoO, nVersionO, idCtaDestino,
+                        nSaldoD, nVersionD)) {
                     registrarTransaccionLocal(idTransaccionGlobal, idCtaOrigen, idCtaDestino, monto,
                             "EXITO_INTRA_PARTICION_W" + workerId);
                     return new Respuesta(EstadoOperacion.EXITO, "Transferencia intra-partición OK por " + workerId,
-                            Map.of("nuevoSaldoOrigen", nSaldoO, "nuevoSaldoDestino", nSaldoD, "workerIdProcesador",
-                                    workerId));
+                            Map.of("nuevoSaldoOrigen", nSaldoO, "nuevoSaldoDestino", nSaldoD, "versionOrigen",
+                                    nVersionO, "versionDestino", nVersionD, "workerIdProcesador", workerId));
                 } else {
                     registrarTransaccionLocal(idTransaccionGlobal, idCtaOrigen, idCtaDestino, monto,
                             "FALLIDA_ESCRITURA_W" + workerId);
@@ -476,23 +1264,98 @@ public class NodoTrabajador {
                             "Error escritura en " + idParticionSolicitada, null);
                 }
 
+            case TRANSFERIR_ENTRE_PARTICIONES: // Caso B con ambas particiones en este worker
+                idCtaOrigen = (Integer) solicitud.getParametros().get("ID_CUENTA_ORIGEN");
+                idCtaDestino = (Integer) solicitud.getParametros().get("ID_CUENTA_DESTINO");
+                monto = (Double) solicitud.getParametros().get("MONTO");
+                String pOrigen = (String) solicitud.getParametros().get("ID_PARTICION_ORIGEN");
+                String pDestino = (String) solicitud.getParametros().get("ID_PARTICION_DESTINO");
+                if (idCtaOrigen == null || idCtaDestino == null || monto == null || pOrigen == null
+                        || pDestino == null)
+                    return new Respuesta(EstadoOperacion.ERROR_GENERAL_SERVIDOR,
+                            "Params incompletos TRANSFERIR_ENTRE_PARTICIONES", null);
+                if (!particionesAsignadasLocalmente.contains(pOrigen)
+                        || !particionesAsignadasLocalmente.contains(pDestino))
+                    return new Respuesta(EstadoOperacion.ERROR_REINTENTAR_EN_OTRO_NODO,
+                            "Worker no maneja las particiones " + pOrigen + " y " + pDestino, null);
+                cuentaO = leerCuentaDeArchivo(pOrigen, idCtaOrigen);
+                if (cuentaO == null)
+                    return new Respuesta(EstadoOperacion.ERROR_CUENTA_ORIGEN_NO_EXISTE,
+                            "CtaOrigen " + idCtaOrigen + " no existe", null);
+                if (cuentaO.saldo() - retenidoEnCuenta(pOrigen, idCtaOrigen) < monto) {
+                    registrarTransaccionLocal(idTransaccionGlobal, idCtaOrigen, idCtaDestino, monto,
+                            "RECHAZADA_SALDO_INSUF_W" + workerId);
+                    return new Respuesta(EstadoOperacion.ERROR_SALDO_INSUFICIENTE,
+                            "Saldo insuficiente CtaOrigen " + idCtaOrigen, cuentaO.saldo());
+                }
+                cuentaD = leerCuentaDeArchivo(pDestino, idCtaDestino);
+                if (cuentaD == null) {
+                    registrarTransaccionLocal(idTransaccionGlobal, idCtaOrigen, idCtaDestino, monto,
+                            "FALLIDA_DESTINO_NO_EXISTE_W" + workerId);
+                    return new Respuesta(EstadoOperacion.ERROR_CUENTA_DESTINO_NO_EXISTE,
+                            "CtaDestino " + idCtaDestino + " no existe", null);
+                }
+                nSaldoO = cuentaO.saldo() - monto;
+                nSaldoD = cuentaD.saldo() + monto;
+                nVersionO = cuentaO.version() + 1;
+                nVersionD = cuentaD.version() + 1;
+                if (!actualizarSaldoUnicaCuentaEnArchivo(pOrigen, idCtaOrigen, nSaldoO, nVersionO,
+                        "TRANSFERIR_ENTRE_PARTICIONES")) {
+                    return new Respuesta(EstadoOperacion.ERROR_GENERAL_SERVIDOR, "Error escritura en " + pOrigen, null);
+                }
+                if (!actualizarSaldoUnicaCuentaEnArchivo(pDestino, idCtaDestino, nSaldoD, nVersionD,
+                        "TRANSFERIR_ENTRE_PARTICIONES")) {
+                    // Se deja el origen como estaba (con otra versión); con los dos cerrojos nadie vio el débito
+                    boolean restaurado = actualizarSaldoUnicaCuentaEnArchivo(pOrigen, idCtaOrigen, cuentaO.saldo(),
+                            nVersionO + 1, "TRANSFERIR_ENTRE_PARTICIONES (deshacer)");
+                    registrarTransaccionLocal(idTransaccionGlobal, idCtaOrigen, idCtaDestino, monto,
+                            (restaurado ? "FALLIDA_ESCRITURA_W" : "CRITICO_ORIGEN_SIN_RESTAURAR_W") + workerId);
+                    return new Respuesta(EstadoOperacion.ERROR_GENERAL_SERVIDOR, "Error escritura en " + pDestino
+                            + (restaurado ? "; origen restaurado" : "; CRÍTICO: no se pudo restaurar el origen"), null);
+                }
+                registrarTransaccionLocal(idTransaccionGlobal, idCtaOrigen, idCtaDestino, monto,
+                        "EXITO_ENTRE_PARTICIONES_W" + workerId);
+                return new Respuesta(EstadoOperacion.EXITO, "Transferencia entre " + pOrigen + " y " + pDestino
+                        + " OK por " + workerId,
+                        Map.of("nuevoSaldoOrigen", nSaldoO, "nuevoSaldoDestino", nSaldoD, "versionOrigen", nVersionO,
+                                "versionDestino", nVersionD, "workerIdProcesador", workerId));
+
             case PREPARAR_DEBITO:
                 idCtaOrigen = (Integer) solicitud.getParametros().get("ID_CUENTA_ORIGEN");
                 monto = (Double) solicitud.getParametros().get("MONTO");
                 if (idCtaOrigen == null || monto == null || idParticionSolicitada == null)
                     return new Respuesta(EstadoOperacion.ERROR_GENERAL_SERVIDOR, "Params incompletos PREPARAR_DEBITO",
                             null);
-                saldoO = leerSaldoDeArchivo(idParticionSolicitada, idCtaOrigen);
-                if (saldoO == null)
+                cuentaO = leerCuentaDeArchivo(idParticionSolicitada, idCtaOrigen);
+                if (cuentaO == null)
                     return new Respuesta(EstadoOperacion.ERROR_CUENTA_ORIGEN_NO_EXISTE,
                             "CtaOrigen " + idCtaOrigen + " no existe", null);
-                if (saldoO < monto)
+                if (cuentaO.saldo() - retenidoEnCuenta(idParticionSolicitada, idCtaOrigen) < monto)
                     return new Respuesta(EstadoOperacion.ERROR_SALDO_INSUFICIENTE, "Saldo insuficiente " + idCtaOrigen,
-                            saldoO);
+                            cuentaO.saldo());
+                if (Boolean.TRUE.equals(solicitud.getParametros().get("RETENER"))) {
+                    // Nadie más podrá gastar este monto hasta que se confirme o cancele el débito
+                    retener(idParticionSolicitada, idTransaccionGlobal, idCtaOrigen, monto);
+                }
                 registrarTransaccionLocal(idTransaccionGlobal, idCtaOrigen, -1, monto,
                         "PREPARAR_DEBITO_OK_W" + workerId);
+                // Con la versión, CONFIRMAR_DEBITO puede exigir que la cuenta no haya cambiado desde aquí
                 return new Respuesta(EstadoOperacion.DEBITO_PREPARADO_OK, "Débito preparado por " + workerId,
-                        Map.of("saldoActualOrigen", saldoO, "workerIdProcesador", workerId));
+                        Map.of("saldoActualOrigen", cuentaO.saldo(), "versionOrigen", cuentaO.version(),
+                                "workerIdProcesador", workerId));
+
+            case PREPARAR_CREDITO:
+                idCtaDestino = (Integer) solicitud.getParametros().get("ID_CUENTA_DESTINO");
+                if (idCtaDestino == null || idParticionSolicitada == null)
+                    return new Respuesta(EstadoOperacion.ERROR_GENERAL_SERVIDOR, "Params incompletos PREPARAR_CREDITO",
+                            null);
+                cuentaD = leerCuentaDeArchivo(idParticionSolicitada, idCtaDestino);
+                if (cuentaD == null)
+                    return new Respuesta(EstadoOperacion.ERROR_CUENTA_DESTINO_NO_EXISTE,
+                            "CtaDestino " + idCtaDestino + " no existe", null);
+                return new Respuesta(EstadoOperacion.CREDITO_PREPARADO_OK, "Crédito preparado por " + workerId,
+                        Map.of("saldoActualDestino", cuentaD.saldo(), "versionDestino", cuentaD.version(),
+                                "workerIdProcesador", workerId));
 
             case APLICAR_CREDITO:
                 idCtaDestino = (Integer) solicitud.getParametros().get("ID_CUENTA_DESTINO");
@@ -500,17 +1363,19 @@ public class NodoTrabajador {
                 if (idCtaDestino == null || monto == null || idParticionSolicitada == null)
                     return new Respuesta(EstadoOperacion.ERROR_GENERAL_SERVIDOR, "Params incompletos APLICAR_CREDITO",
                             null);
-                saldoD = leerSaldoDeArchivo(idParticionSolicitada, idCtaDestino);
-                if (saldoD == null)
+                cuentaD = leerCuentaDeArchivo(idParticionSolicitada, idCtaDestino);
+                if (cuentaD == null)
                     return new Respuesta(EstadoOperacion.ERROR_CUENTA_DESTINO_NO_EXISTE,
                             "CtaDestino " + idCtaDestino + " no existe", null);
-                nSaldoD = saldoD + monto;
-                if (actualizarSaldoUnicaCuentaEnArchivo(idParticionSolicitada, idCtaDestino, nSaldoD,
+                nSaldoD = cuentaD.saldo() + monto;
+                nVersionD = cuentaD.version() + 1;
+                if (actualizarSaldoUnicaCuentaEnArchivo(idParticionSolicitada, idCtaDestino, nSaldoD, nVersionD,
                         "APLICAR_CREDITO")) {
                     registrarTransaccionLocal(idTransaccionGlobal, -1, idCtaDestino, monto,
                             "APLICAR_CREDITO_OK_W" + workerId);
                     return new Respuesta(EstadoOperacion.CREDITO_APLICADO_OK, "Crédito aplicado por " + workerId,
-                            Map.of("nuevoSaldoDestino", nSaldoD, "workerIdProcesador", workerId));
+                            Map.of("nuevoSaldoDestino", nSaldoD, "versionDestino", nVersionD, "workerIdProcesador",
+                                    workerId));
                 } else {
                     return new Respuesta(EstadoOperacion.ERROR_GENERAL_SERVIDOR, "Error escritura APLICAR_CREDITO",
                             null);
@@ -522,18 +1387,26 @@ public class NodoTrabajador {
                 if (idCtaOrigen == null || monto == null || idParticionSolicitada == null)
                     return new Respuesta(EstadoOperacion.ERROR_GENERAL_SERVIDOR, "Params incompletos CONFIRMAR_DEBITO",
                             null);
-                saldoO = leerSaldoDeArchivo(idParticionSolicitada, idCtaOrigen);
-                if (saldoO == null)
+                cuentaO = leerCuentaDeArchivo(idParticionSolicitada, idCtaOrigen);
+                if (cuentaO == null)
                     return new Respuesta(EstadoOperacion.ERROR_CUENTA_ORIGEN_NO_EXISTE,
                             "CtaOrigen " + idCtaOrigen + " no existe (CONFIRMAR_DEBITO)", null);
-                // Se asume que el saldo fue suficiente porque PREPARAR_DEBITO tuvo éxito.
-                nSaldoO = saldoO - monto;
-                if (actualizarSaldoUnicaCuentaEnArchivo(idParticionSolicitada, idCtaOrigen, nSaldoO,
+                // Con la retención de PREPARAR_DEBITO el saldo está asegurado. Sin ella (caducó, o
+                // este worker no es el que preparó) se vuelve a comprobar.
+                if (quitarRetencion(idParticionSolicitada, idTransaccionGlobal) == null
+                        && cuentaO.saldo() - retenidoEnCuenta(idParticionSolicitada, idCtaOrigen) < monto) {
+                    return new Respuesta(EstadoOperacion.ERROR_SALDO_INSUFICIENTE,
+                            "Saldo insuficiente " + idCtaOrigen + " (CONFIRMAR_DEBITO sin retención)", cuentaO.saldo());
+                }
+                nSaldoO = cuentaO.saldo() - monto;
+                nVersionO = cuentaO.version() + 1;
+                if (actualizarSaldoUnicaCuentaEnArchivo(idParticionSolicitada, idCtaOrigen, nSaldoO, nVersionO,
                         "CONFIRMAR_DEBITO")) {
                     registrarTransaccionLocal(idTransaccionGlobal, idCtaOrigen, -1, monto,
                             "CONFIRMAR_DEBITO_OK_W" + workerId);
                     return new Respuesta(EstadoOperacion.DEBITO_CONFIRMADO_OK, "Débito confirmado por " + workerId,
-                            Map.of("nuevoSaldoOrigen", nSaldoO, "workerIdProcesador", workerId));
+                            Map.of("nuevoSaldoOrigen", nSaldoO, "versionOrigen", nVersionO, "workerIdProcesador",
+                                    workerId));
                 } else {
                     return new Respuesta(EstadoOperacion.ERROR_GENERAL_SERVIDOR, "Error escritura CONFIRMAR_DEBITO",
                             null);
@@ -545,30 +1418,150 @@ public class NodoTrabajador {
                 if (idCtaOrigen == null || monto == null || idParticionSolicitada == null)
                     return new Respuesta(EstadoOperacion.ERROR_GENERAL_SERVIDOR, "Params incompletos REVERTIR_DEBITO",
                             null);
-                saldoO = leerSaldoDeArchivo(idParticionSolicitada, idCtaOrigen);
-                if (saldoO == null)
+                cuentaO = leerCuentaDeArchivo(idParticionSolicitada, idCtaOrigen);
+                if (cuentaO == null)
                     return new Respuesta(EstadoOperacion.ERROR_CUENTA_ORIGEN_NO_EXISTE,
                             "CtaOrigen " + idCtaOrigen + " no existe (REVERTIR_DEBITO)", null);
-                nSaldoO = saldoO + monto; // Sumar de vuelta
-                if (actualizarSaldoUnicaCuentaEnArchivo(idParticionSolicitada, idCtaOrigen, nSaldoO,
+                nSaldoO = cuentaO.saldo() + monto; // Sumar de vuelta
+                nVersionO = cuentaO.version() + 1;
+                if (actualizarSaldoUnicaCuentaEnArchivo(idParticionSolicitada, idCtaOrigen, nSaldoO, nVersionO,
                         "REVERTIR_DEBITO")) {
                     registrarTransaccionLocal(idTransaccionGlobal, idCtaOrigen, -1, monto,
                             "REVERTIR_DEBITO_OK_W" + workerId);
                     return new Respuesta(EstadoOperacion.DEBITO_REVERTIDO_OK, "Débito revertido por " + workerId,
-                            Map.of("nuevoSaldoOrigen", nSaldoO, "workerIdProcesador", workerId));
+                            Map.of("nuevoSaldoOrigen", nSaldoO, "versionOrigen", nVersionO, "workerIdProcesador",
+                                    workerId));
                 } else {
                     return new Respuesta(EstadoOperacion.ERROR_GENERAL_SERVIDOR, "Error escritura REVERTIR_DEBITO",
                             null);
                 }
 
+            case CANCELAR_DEBITO:
+                if (idParticionSolicitada == null)
+                    return new Respuesta(EstadoOperacion.ERROR_GENERAL_SERVIDOR, "Params incompletos CANCELAR_DEBITO",
+                            null);
+                boolean habiaRetencion = quitarRetencion(idParticionSolicitada, idTransaccionGlobal) != null;
+                registrarTransaccionLocal(idTransaccionGlobal, -1, -1, 0,
+                        (habiaRetencion ? "CANCELAR_DEBITO_OK_W" : "CANCELAR_DEBITO_SIN_RETENCION_W") + workerId);
+                return new Respuesta(EstadoOperacion.EXITO,
+                        (habiaRetencion ? "Retención liberada por " : "Sin retención que liberar en ") + workerId, null);
+
+            case REVERTIR_CREDITO:
+                idCtaDestino = (Integer) solicitud.getParametros().get("ID_CUENTA_DESTINO");
+                monto = (Double) solicitud.getParametros().get("MONTO");
+                if (idCtaDestino == null || monto == null || idParticionSolicitada == null)
+                    return new Respuesta(EstadoOperacion.ERROR_GENERAL_SERVIDOR, "Params incompletos REVERTIR_CREDITO",
+                            null);
+                cuentaD = leerCuentaDeArchivo(idParticionSolicitada, idCtaDestino);
+                if (cuentaD == null)
+                    return new Respuesta(EstadoOperacion.ERROR_CUENTA_DESTINO_NO_EXISTE,
+                            "CtaDestino " + idCtaDestino + " no existe (REVERTIR_CREDITO)", null);
+                nSaldoD = cuentaD.saldo() - monto; // Quitar lo acreditado
+                nVersionD = cuentaD.version() + 1;
+                if (actualizarSaldoUnicaCuentaEnArchivo(idParticionSolicitada, idCtaDestino, nSaldoD, nVersionD,
+                        "REVERTIR_CREDITO")) {
+                    registrarTransaccionLocal(idTransaccionGlobal, -1, idCtaDestino, monto,
+                            "REVERTIR_CREDITO_OK_W" + workerId);
+                    return new Respuesta(EstadoOperacion.CREDITO_REVERTIDO_OK, "Crédito revertido por " + workerId,
+                            Map.of("nuevoSaldoDestino", nSaldoD, "versionDestino", nVersionD, "workerIdProcesador",
+                                    workerId));
+                } else {
+                    return new Respuesta(EstadoOperacion.ERROR_GENERAL_SERVIDOR, "Error escritura REVERTIR_CREDITO",
+                            null);
+                }
+
+            case APLICAR_MOVIMIENTOS:
+                int[] idsCuentaMovimientos = (int[]) solicitud.getParametros().get("ID_CUENTAS");
+                double[] importesMovimientos = (double[]) solicitud.getParametros().get("IMPORTES");
+                if (idsCuentaMovimientos == null || importesMovimientos == null || idParticionSolicitada == null
+                        || idsCuentaMovimientos.length != importesMovimientos.length)
+                    return new Respuesta(EstadoOperacion.ERROR_GENERAL_SERVIDOR,
+                            "Params incompletos APLICAR_MOVIMIENTOS", null);
+                int[] idsTransaccionMovimientos = (int[]) solicitud.getParametros().get("ID_TRANSACCIONES");
+                TipoOperacion pasoMovimientos = (TipoOperacion) solicitud.getParametros().get("PASO");
+                if (idsTransaccionMovimientos != null && (pasoMovimientos == null
+                        || !PASOS_UNA_VEZ.contains(pasoMovimientos)
+                        || idsTransaccionMovimientos.length != idsCuentaMovimientos.length))
+                    return new Respuesta(EstadoOperacion.ERROR_GENERAL_SERVIDOR,
+                            "ID_TRANSACCIONES o PASO inválidos en APLICAR_MOVIMIENTOS", null);
+                HashMap<Integer, Double> saldosMovimientos = new HashMap<>();
+                HashMap<Integer, Long> versionesMovimientos = new HashMap<>();
+                HashMap<String, Integer> pasosMovimientos = new HashMap<>();
+                EstadoOperacion[] resultadosMovimientos = aplicarMovimientosUnaVez(idParticionSolicitada,
+                        idsCuentaMovimientos, importesMovimientos, idsTransaccionMovimientos, pasoMovimientos,
+                        saldosMovimientos, versionesMovimientos, pasosMovimientos);
+                if (resultadosMovimientos == null) {
+                    return new Respuesta(EstadoOperacion.ERROR_GENERAL_SERVIDOR,
+                            "Error escritura APLICAR_MOVIMIENTOS en " + idParticionSolicitada, null);
+                }
+                registrarTransaccionLocal(idTransaccionGlobal, -1, -1, 0,
+                        "APLICAR_MOVIMIENTOS_OK_" + saldosMovimientos.size() + "_CUENTAS_W" + workerId);
+                return new Respuesta(EstadoOperacion.EXITO, idsCuentaMovimientos.length + " movimientos procesados por "
+                        + workerId, Map.of("resultados", resultadosMovimientos, "saldos", saldosMovimientos,
+                                "versiones", versionesMovimientos, "pasosAplicados", pasosMovimientos,
+                                "workerIdProcesador", workerId));
+
+            case ACTUALIZAR_SALDOS_REPLICA:
+                @SuppressWarnings("unchecked")
+                Map<Integer, Double> saldosReplica = (Map<Integer, Double>) solicitud.getParametros().get("SALDOS");
+                @SuppressWarnings("unchecked")
+                Map<Integer, Long> versionesReplica = (Map<Integer, Long>) solicitud.getParametros().get("VERSIONES");
+                if (saldosReplica == null || idParticionSolicitada == null)
+                    return new Respuesta(EstadoOperacion.ERROR_GENERAL_SERVIDOR,
+                            "Params incompletos ACTUALIZAR_SALDOS_REPLICA", null);
+                Map<Integer, SaldoVersionado> actualesReplica = leerSaldosDeArchivo(idParticionSolicitada,
+                        saldosReplica.keySet());
+                if (actualesReplica == null)
+                    return new Respuesta(EstadoOperacion.ERROR_GENERAL_SERVIDOR,
+                            "Error lectura ACTUALIZAR_SALDOS_REPLICA", null);
+                Map<Integer, Double> saldosNuevosReplica = new HashMap<>();
+                Map<Integer, Long> versionesNuevasReplica = new HashMap<>();
+                for (Map.Entry<Integer, Double> e : saldosReplica.entrySet()) {
+                    SaldoVersionado actual = actualesReplica.get(e.getKey());
+                    long versionActual = actual != null ? actual.version() : 0;
+                    Long versionRecibida = versionesReplica != null ? versionesReplica.get(e.getKey()) : null;
+                    if (versionRecibida == null) {
+                        versionRecibida = versionActual + 1;
+                    } else if (versionRecibida <= versionActual) {
+                        continue; // Llegó tarde: la réplica ya tiene ese saldo o uno posterior
+                    }
+                    saldosNuevosReplica.put(e.getKey(), e.getValue());
+                    versionesNuevasReplica.put(e.getKey(), versionRecibida);
+                }
+                if (saldosNuevosReplica.isEmpty() || actualizarVariosSaldosEnArchivo(idParticionSolicitada,
+                        saldosNuevosReplica, versionesNuevasReplica, "ACTUALIZAR_SALDOS_REPLICA")) {
+                    System.out.println("Worker [" + workerId + "] [Tx:" + idTransaccionGlobal + "]: Réplica actualizada ("
+                            + saldosNuevosReplica.size() + " de " + saldosReplica.size() + " cuentas) en part "
+                            + idParticionSolicitada);
+                    return new Respuesta(EstadoOperacion.REPLICA_ACTUALIZADA_OK, "Réplica actualizada por " + workerId,
+                            null);
+                } else {
+                    return new Respuesta(EstadoOperacion.ERROR_GENERAL_SERVIDOR,
+                            "Error escritura ACTUALIZAR_SALDOS_REPLICA", null);
+                }
+
             case ACTUALIZAR_SALDO_REPLICA:
                 Integer idCuentaReplica = (Integer) solicitud.getParametros().get("ID_CUENTA");
                 Double nuevoSaldoReplica = (Double) solicitud.getParametros().get("NUEVO_SALDO");
+                Long versionReplica = (Long) solicitud.getParametros().get("VERSION");
                 if (idCuentaReplica == null || nuevoSaldoReplica == null || idParticionSolicitada == null)
                     return new Respuesta(EstadoOperacion.ERROR_GENERAL_SERVIDOR,
                             "Params incompletos ACTUALIZAR_SALDO_REPLICA", null);
+                SaldoVersionado actualReplica = leerCuentaDeArchivo(idParticionSolicitada, idCuentaReplica);
+                if (actualReplica != null && versionReplica != null && versionReplica <= actualReplica.version()) {
+                    // Las réplicas pueden recibir los saldos en otro orden del que se escribieron en el
+                    // primario; uno viejo no pisa al nuevo
+                    System.out.println("Worker [" + workerId + "] [Tx:" + idTransaccionGlobal + "]: Réplica de cta "
+                            + idCuentaReplica + " ignorada (versión " + versionReplica + ", ya tiene "
+                            + actualReplica.version() + ")");
+                    return new Respuesta(EstadoOperacion.REPLICA_ACTUALIZADA_OK, "Réplica ya al día en " + workerId,
+                            null);
+                }
+                if (versionReplica == null) {
+                    versionReplica = actualReplica != null ? actualReplica.version() + 1 : 1;
+                }
                 if (actualizarSaldoUnicaCuentaEnArchivo(idParticionSolicitada, idCuentaReplica, nuevoSaldoReplica,
-                        "ACTUALIZAR_SALDO_REPLICA")) {
+                        versionReplica, "ACTUALIZAR_SALDO_REPLICA")) {
                     System.out.println(
                             "Worker [" + workerId + "] [Tx:" + idTransaccionGlobal + "]: Réplica actualizada para cta "
                                     + idCuentaReplica + " en part " + idParticionSolicitada);
@@ -618,6 +1611,71 @@ public class NodoTrabajador {
                             "Error al leer archivo de partición para arqueo.", null);
                 }
 
+            case DIVIDIR_PARTICION:
+                // La partición original va en ID_PARTICION_ORIGINAL y no en ID_PARTICION: si se
+                // reintenta una división ya hecha, este worker ya no la tiene.
+                String idParticionOriginal = (String) solicitud.getParametros().get("ID_PARTICION_ORIGINAL");
+                Integer idCorte = (Integer) solicitud.getParametros().get("ID_CUENTA_CORTE");
+                String particionBaja = (String) solicitud.getParametros().get("PARTICION_BAJA");
+                String particionAlta = (String) solicitud.getParametros().get("PARTICION_ALTA");
+                if (idParticionOriginal == null || idCorte == null || particionBaja == null || particionAlta == null)
+                    return new Respuesta(EstadoOperacion.ERROR_GENERAL_SERVIDOR,
+                            "Params incompletos DIVIDIR_PARTICION", null);
+                if (!particionesAsignadasLocalmente.contains(idParticionOriginal)) {
+                    if (particionesAsignadasLocalmente.contains(particionBaja)
+                            && particionesAsignadasLocalmente.contains(particionAlta)) {
+                        return new Respuesta(EstadoOperacion.EXITO, "Partición " + idParticionOriginal
+                                + " ya estaba dividida en " + workerId, null);
+                    }
+                    return new Respuesta(EstadoOperacion.ERROR_GENERAL_SERVIDOR,
+                            "Worker no maneja la partición " + idParticionOriginal + " para dividirla.", null);
+                }
+                int[] cuentasDivision = dividirParticionEnArchivos(idParticionOriginal, idCorte, particionBaja,
+                        particionAlta);
+                if (cuentasDivision == null) {
+                    return new Respuesta(EstadoOperacion.ERROR_GENERAL_SERVIDOR,
+                            "Error al dividir partición " + idParticionOriginal, null);
+                }
+                return new Respuesta(EstadoOperacion.EXITO, "Partición " + idParticionOriginal + " dividida por "
+                        + workerId, Map.of("cuentasBaja", cuentasDivision[0], "cuentasAlta", cuentasDivision[1]));
+
+            case OBTENER_DATOS_PARTICION:
+                if (idParticionSolicitada == null)
+                    return new Respuesta(EstadoOperacion.ERROR_GENERAL_SERVIDOR,
+                            "Params incompletos OBTENER_DATOS_PARTICION", null);
+                ArrayList<Serializable> datosParticion = leerDatosDeParticion(idParticionSolicitada);
+                if (datosParticion == null) {
+                    return new Respuesta(EstadoOperacion.ERROR_GENERAL_SERVIDOR,
+                            "Error al leer partición " + idParticionSolicitada, null);
+                }
+                return new Respuesta(EstadoOperacion.EXITO, datosParticion.size() + " registros de partición "
+                        + idParticionSolicitada, datosParticion);
+
+            case INSTALAR_PARTICION:
+                // Va en ID_PARTICION_NUEVA porque el worker todavía no la maneja
+                String idParticionNueva = (String) solicitud.getParametros().get("ID_PARTICION_NUEVA");
+                @SuppressWarnings("unchecked")
+                List<? extends Serializable> datosNuevos = (List<? extends Serializable>) solicitud.getParametros()
+                        .get("DATOS");
+                if (idParticionNueva == null || datosNuevos == null)
+                    return new Respuesta(EstadoOperacion.ERROR_GENERAL_SERVIDOR,
+                            "Params incompletos INSTALAR_PARTICION", null);
+                if (!guardarDatosDeParticiones(Map.of(idParticionNueva, datosNuevos))) {
+                    return new Respuesta(EstadoOperacion.ERROR_GENERAL_SERVIDOR,
+                            "Error al guardar partición " + idParticionNueva, null);
+                }
+                particionesAsignadasLocalmente.add(idParticionNueva);
+                return new Respuesta(EstadoOperacion.EXITO, "Partición " + idParticionNueva + " instalada en "
+                        + workerId, null);
+
+            case LIBERAR_PARTICION:
+                if (idParticionSolicitada == null)
+                    return new Respuesta(EstadoOperacion.ERROR_GENERAL_SERVIDOR,
+                            "Params incompletos LIBERAR_PARTICION", null);
+                liberarParticion(idParticionSolicitada);
+                return new Respuesta(EstadoOperacion.EXITO, "Partición " + idParticionSolicitada + " liberada por "
+                        + workerId, null);
+
             default:
                 return new Respuesta(EstadoOperacion.ERROR_GENERAL_SERVIDOR,
                         "Operación no soportada [" + solicitud.getTipoOperacion() + "].", null);